@@ -0,0 +1,809 @@
+package org.xbib.io.ftp.client;
+
+import org.xbib.io.ftp.client.parser.DefaultFTPFileEntryParserFactory;
+import org.xbib.io.ftp.client.parser.FTPFileEntryParserFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Inet6Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.UnknownHostException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.function.Function;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * An asynchronous FTP client, whose operations return futures.
+ * <p>
+ * The client keeps a pool of up to {@link #getMaxConnections()} non-blocking control connections to one server,
+ * which are driven by the event loops of an {@link FTPEventLoopGroup}. Each operation is queued on the connection
+ * with the fewest queued operations, and a new connection is opened while all connections are busy and the
+ * pool is not full. The operations queued on one connection run one after another, so an operation, including
+ * its data connection, never interleaves with another operation on the same connection. Application code can
+ * thus submit hundreds of operations at once, without managing threads, data connections or
+ * {@link FTPClient#completePendingCommand()}.
+ * <p>
+ * Unlike {@link FTPClient}, the operations do not report a negative reply by their result; instead the future
+ * fails with an {@link FTPReplyException} that contains the reply. Only {@link #login(String, String)} completes
+ * with false if the server rejects the login, like {@link FTPClient#login(String, String)}. Futures fail with an
+ * {@link IOException} if the connection fails.
+ * <p>
+ * {@link #connect(String, int)} opens the first connection, and {@link #login(String, String)} logs it in. The
+ * connections that are opened later log in with the same user name and password before they run their first
+ * operation. After the login, each connection switches to binary file type, and files are transferred in binary
+ * mode. Data connections are opened in passive mode.
+ * <p>
+ * The futures are completed on event loop threads, and the streams given to the transfer operations are read and
+ * written on them, so they should not block for long. Dependent actions that block must run asynchronously, e.g.
+ * with {@link CompletableFuture#thenApplyAsync(Function)}.
+ * <p>
+ * Example:
+ * <pre>
+ *    try (FTPEventLoopGroup group = new FTPEventLoopGroup();
+ *         AsyncFTPClient client = new AsyncFTPClient(group)) {
+ *        client.connect("ftp.example.com", FTP.DEFAULT_PORT).join();
+ *        client.login("anonymous", "guest").join();
+ *        List&lt;CompletableFuture&lt;FTPFile&gt;&gt; files = new ArrayList&lt;&gt;();
+ *        for (String path : paths) {
+ *            files.add(client.mlistFile(path));
+ *        }
+ *        CompletableFuture.allOf(files.toArray(new CompletableFuture[0])).join();
+ *    }
+ * </pre>
+ *
+ * @see FTPControlConnection
+ */
+public final class AsyncFTPClient implements Closeable {
+
+    /**
+     * The default maximum number of connections.
+     */
+    public static final int DEFAULT_MAX_CONNECTIONS = 4;
+
+    private static final Pattern PARMS_PAT =
+            Pattern.compile("(\\d{1,3},\\d{1,3},\\d{1,3},\\d{1,3}),(\\d{1,3}),(\\d{1,3})");
+
+    private final FTPEventLoopGroup group;
+    private final FTPFileEntryParserFactory parserFactory = new DefaultFTPFileEntryParserFactory();
+
+    private volatile String controlEncoding = FTP.DEFAULT_CONTROL_ENCODING;
+    private volatile int connectTimeout = 0;
+    private volatile int replyTimeout = 0;
+    private volatile int dataTimeout = 0;
+    private volatile int maxConnections = DEFAULT_MAX_CONNECTIONS;
+
+    // guarded by this
+    private final List<Session> sessions = new ArrayList<>();
+    private InetSocketAddress address;
+    private String username;
+    private String password;
+    private CompletableFuture<FTPFileEntryParser> entryParser;
+    private boolean closed;
+
+    /**
+     * Creates a client whose connections are driven by the event loops of the given group.
+     *
+     * @param group The event loop group.
+     */
+    public AsyncFTPClient(FTPEventLoopGroup group) {
+        this.group = group;
+    }
+
+    /**
+     * @return The character encoding used to communicate over the control connections.
+     */
+    public String getControlEncoding() {
+        return controlEncoding;
+    }
+
+    /**
+     * Sets the character encoding of the control connections, which is also used for listings.
+     *
+     * @param encoding The new character encoding.
+     */
+    public void setControlEncoding(String encoding) {
+        this.controlEncoding = encoding;
+    }
+
+    /**
+     * @return The timeout in milliseconds for establishing a connection and receiving the greeting.
+     */
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    /**
+     * Sets the timeout for establishing a connection and receiving the greeting of the server.
+     *
+     * @param connectTimeout The timeout in milliseconds; 0 means no timeout.
+     */
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    /**
+     * @return The timeout in milliseconds for waiting for a reply.
+     */
+    public int getReplyTimeout() {
+        return replyTimeout;
+    }
+
+    /**
+     * Sets the timeout for waiting for a reply.
+     *
+     * @param replyTimeout The timeout in milliseconds; 0 means no timeout.
+     * @see FTPControlConnection#setReplyTimeout(int)
+     */
+    public void setReplyTimeout(int replyTimeout) {
+        this.replyTimeout = replyTimeout;
+    }
+
+    /**
+     * @return The timeout in milliseconds for a data connection to be idle.
+     */
+    public int getDataTimeout() {
+        return dataTimeout;
+    }
+
+    /**
+     * Sets the time a data connection may be idle before the transfer fails.
+     *
+     * @param dataTimeout The timeout in milliseconds; 0 means no timeout.
+     */
+    public void setDataTimeout(int dataTimeout) {
+        this.dataTimeout = dataTimeout;
+    }
+
+    /**
+     * @return The maximum number of connections.
+     */
+    public int getMaxConnections() {
+        return maxConnections;
+    }
+
+    /**
+     * Sets the maximum number of connections to the server.
+     *
+     * @param maxConnections The maximum number of connections.
+     */
+    public void setMaxConnections(int maxConnections) {
+        if (maxConnections <= 0) {
+            throw new IllegalArgumentException(maxConnections + " <= 0");
+        }
+        this.maxConnections = maxConnections;
+    }
+
+    /**
+     * @return The number of open connections.
+     */
+    public synchronized int getConnectionCount() {
+        return sessions.size();
+    }
+
+    /**
+     * Connects to the given server by opening the first connection. The host name is resolved by the calling
+     * thread.
+     *
+     * @param host The name of the host.
+     * @param port The port.
+     * @return A future for the greeting of the server; it fails with an {@link FTPReplyException} if the greeting
+     * is negative.
+     * @throws IllegalStateException If the client has been connected before.
+     */
+    public CompletableFuture<FTPCommandReply> connect(String host, int port) {
+        InetSocketAddress address = new InetSocketAddress(host, port);
+        Session session;
+        synchronized (this) {
+            if (closed || this.address != null) {
+                throw new IllegalStateException(closed ? "client closed" : "client already connected");
+            }
+            this.address = address;
+            session = newSession();
+        }
+        return session.greeting;
+    }
+
+    /**
+     * Logs in with the given user name and password. The connections that are opened later log in with them
+     * before they run their first operation.
+     *
+     * @param username The user name.
+     * @param password The password.
+     * @return A future that is completed with true if the login was successful.
+     */
+    public CompletableFuture<Boolean> login(String username, String password) {
+        synchronized (this) {
+            this.username = username;
+            this.password = password;
+        }
+        return submit(session -> {
+            if (session.loggedIn) {
+                return CompletableFuture.completedFuture(true);
+            }
+            return login(session, username, password).handle((reply, e) -> {
+                if (e != null) {
+                    if (unwrap(e) instanceof FTPReplyException) {
+                        return CompletableFuture.completedFuture(false);
+                    }
+                    throw new CompletionException(unwrap(e));
+                }
+                return session.connection.sendCommand(FTPCmd.TYPE, "I").thenApply(type -> {
+                    check(type);
+                    return true;
+                });
+            }).thenCompose(Function.identity());
+        });
+    }
+
+    /**
+     * Lists the files of a directory, like {@link FTPClient#listFiles(String)}. The parser for the listing is
+     * chosen by the system type of the server.
+     *
+     * @param pathname The directory, or null for the current directory.
+     * @return A future for the files of the directory.
+     */
+    public CompletableFuture<List<FTPFile>> listFiles(String pathname) {
+        return submit(session -> entryParser(session).thenCompose(parser -> {
+            ByteArrayOutputStream listing = new ByteArrayOutputStream();
+            return transfer(session, FTPCmd.LIST, pathname, address -> FTPDataChannel.receive(
+                    session.connection.eventLoop(), address, data -> {
+                        listing.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+                        data.position(data.limit());
+                    }, dataTimeout)).thenApply(count -> {
+                FTPListParseEngine engine = new FTPListParseEngine(parser);
+                try {
+                    engine.readServerList(new ByteArrayInputStream(listing.toByteArray()), controlEncoding);
+                    return Arrays.asList(engine.getFiles());
+                } catch (IOException e) {
+                    throw new CompletionException(e);
+                }
+            });
+        }));
+    }
+
+    /**
+     * Gets the details of a file or directory with the {@code MLST} command, like
+     * {@link FTPClient#mlistFile(String)}.
+     *
+     * @param pathname The file or directory.
+     * @return A future for the file.
+     */
+    public CompletableFuture<FTPFile> mlistFile(String pathname) {
+        return submit(session -> session.connection.sendCommand(FTPCmd.MLST, pathname).thenApply(reply -> {
+            try {
+                return FTPClient.parseMlistReply(check(reply).getReplyStrings());
+            } catch (MalformedServerReplyException e) {
+                throw new CompletionException(e);
+            }
+        }));
+    }
+
+    /**
+     * Retrieves a file, and writes its content to the given stream. The stream is not closed.
+     *
+     * @param remote The name of the remote file.
+     * @param local  The stream to write the content to, on an event loop thread.
+     * @return A future for the number of bytes retrieved.
+     */
+    public CompletableFuture<Long> retrieveFile(String remote, OutputStream local) {
+        return submit(session -> transfer(session, FTPCmd.RETR, remote, address -> FTPDataChannel.receive(
+                session.connection.eventLoop(), address, data -> {
+                    local.write(data.array(), data.arrayOffset() + data.position(), data.remaining());
+                    data.position(data.limit());
+                }, dataTimeout)));
+    }
+
+    /**
+     * Retrieves a file into a local file, which is created or replaced. The content is written to a temporary file
+     * in the same directory first, which is moved into place once the transfer is complete; if the transfer fails,
+     * the temporary file is deleted, and an existing local file is left as it was.
+     *
+     * @param remote The name of the remote file.
+     * @param local  The local file.
+     * @return A future for the number of bytes retrieved.
+     */
+    public CompletableFuture<Long> retrieveFile(String remote, Path local) {
+        return submit(session -> {
+            Path temp;
+            try {
+                temp = Files.createTempFile(local.toAbsolutePath().getParent(), local.getFileName().toString(), ".part");
+            } catch (IOException e) {
+                CompletableFuture<Long> future = new CompletableFuture<>();
+                future.completeExceptionally(e);
+                return future;
+            }
+            CompletableFuture<Long> future;
+            try {
+                future = withFile(temp, channel -> transfer(session, FTPCmd.RETR, remote,
+                        address -> FTPDataChannel.receive(session.connection.eventLoop(), address, data -> {
+                            while (data.hasRemaining()) {
+                                channel.write(data);
+                            }
+                        }, dataTimeout)), StandardOpenOption.WRITE);
+            } catch (CompletionException e) {
+                deleteQuietly(temp, e);
+                throw e;
+            }
+            return future.handle((count, e) -> {
+                if (e == null) {
+                    try {
+                        Files.move(temp, local, StandardCopyOption.REPLACE_EXISTING);
+                        return count;
+                    } catch (IOException moveException) {
+                        e = moveException;
+                    }
+                }
+                deleteQuietly(temp, e);
+                throw e instanceof CompletionException ? (CompletionException) e : new CompletionException(e);
+            });
+        });
+    }
+
+    /**
+     * Stores a file with the content read from the given stream. The stream is not closed.
+     *
+     * @param remote The name of the remote file.
+     * @param local  The stream to read the content from, on an event loop thread.
+     * @return A future for the number of bytes stored.
+     */
+    public CompletableFuture<Long> storeFile(String remote, InputStream local) {
+        return submit(session -> transfer(session, FTPCmd.STOR, remote, address -> FTPDataChannel.send(
+                session.connection.eventLoop(), address, data -> {
+                    int n = local.read(data.array(), data.arrayOffset() + data.position(), data.remaining());
+                    if (n > 0) {
+                        data.position(data.position() + n);
+                    }
+                    return n;
+                }, dataTimeout)));
+    }
+
+    /**
+     * Stores a file with the content of a local file.
+     *
+     * @param remote The name of the remote file.
+     * @param local  The local file.
+     * @return A future for the number of bytes stored.
+     */
+    public CompletableFuture<Long> storeFile(String remote, Path local) {
+        return submit(session -> withFile(local, channel -> transfer(session, FTPCmd.STOR, remote,
+                address -> FTPDataChannel.send(session.connection.eventLoop(), address, channel::read,
+                        dataTimeout)), StandardOpenOption.READ));
+    }
+
+    /**
+     * Renames a remote file.
+     *
+     * @param from The name of the remote file to rename.
+     * @param to   The new name of the remote file.
+     * @return A future that is completed when the file has been renamed.
+     */
+    public CompletableFuture<Void> rename(String from, String to) {
+        return submit(session -> session.connection.sendCommand(FTPCmd.RNFR, from).thenCompose(reply -> {
+            if (!FTPReply.isPositiveIntermediate(reply.getReplyCode())) {
+                throw new CompletionException(new FTPReplyException(reply));
+            }
+            return session.connection.sendCommand(FTPCmd.RNTO, to);
+        }).thenApply(reply -> {
+            check(reply);
+            return null;
+        }));
+    }
+
+    /**
+     * Deletes a remote file.
+     *
+     * @param pathname The name of the remote file.
+     * @return A future that is completed when the file has been deleted.
+     */
+    public CompletableFuture<Void> deleteFile(String pathname) {
+        return submit(session -> session.connection.sendCommand(FTPCmd.DELE, pathname).thenApply(reply -> {
+            check(reply);
+            return null;
+        }));
+    }
+
+    /**
+     * Closes all connections. Operations that have not completed yet fail with an {@link IOException}.
+     */
+    @Override
+    public void close() {
+        List<Session> open;
+        synchronized (this) {
+            closed = true;
+            open = new ArrayList<>(sessions);
+            sessions.clear();
+        }
+        for (Session session : open) {
+            session.connection.close();
+        }
+    }
+
+    /**
+     * Queues an operation on the connection with the fewest queued operations.
+     */
+    private <T> CompletableFuture<T> submit(Function<Session, CompletableFuture<T>> action) {
+        Operation<T> operation = new Operation<>(action);
+        schedule(operation);
+        return operation.result;
+    }
+
+    private void schedule(Operation<?> operation) {
+        Session session;
+        synchronized (this) {
+            if (closed || address == null) {
+                operation.result.completeExceptionally(new IOException(closed ? "client closed" : "not connected"));
+                return;
+            }
+            session = select();
+            session.queue.add(operation);
+            if (session.running) {
+                return;
+            }
+            session.running = true;
+        }
+        runNext(session);
+    }
+
+    // guarded by this
+    private Session select() {
+        Session best = null;
+        for (Session session : sessions) {
+            if (best == null || session.load() < best.load()) {
+                best = session;
+            }
+        }
+        if ((best == null || best.load() > 0) && sessions.size() < maxConnections) {
+            best = newSession();
+        }
+        return best;
+    }
+
+    // guarded by this
+    private Session newSession() {
+        FTPControlConnection connection = new FTPControlConnection(group);
+        connection.setControlEncoding(controlEncoding);
+        connection.setConnectTimeout(connectTimeout);
+        connection.setReplyTimeout(replyTimeout);
+        Session session = new Session(connection);
+        sessions.add(session);
+        String user = username;
+        String pass = password;
+        session.greeting = connection.connect(address).thenApply(AsyncFTPClient::check);
+        CompletableFuture<?> ready = session.greeting;
+        if (user != null) {
+            ready = session.greeting
+                    .thenCompose(greeting -> login(session, user, pass))
+                    .thenCompose(reply -> connection.sendCommand(FTPCmd.TYPE, "I"))
+                    .thenApply(AsyncFTPClient::check);
+        }
+        session.ready = ready;
+        ready.whenComplete((result, e) -> {
+            if (e != null) {
+                remove(session);
+            }
+        });
+        return session;
+    }
+
+    private synchronized void remove(Session session) {
+        sessions.remove(session);
+    }
+
+    /**
+     * Runs the next operation queued on a connection, once the connection is ready.
+     */
+    private void runNext(Session session) {
+        Operation<?> operation;
+        List<Operation<?>> orphaned = null;
+        synchronized (this) {
+            operation = session.queue.poll();
+            if (operation == null) {
+                session.running = false;
+                return;
+            }
+            if (session.isLost()) {
+                // the connection failed after it was set up; run the queued operations on other connections
+                sessions.remove(session);
+                orphaned = new ArrayList<>();
+                orphaned.add(operation);
+                orphaned.addAll(session.queue);
+                session.queue.clear();
+                session.running = false;
+            }
+        }
+        if (orphaned != null) {
+            for (Operation<?> o : orphaned) {
+                if (o.rescheduled) {
+                    o.result.completeExceptionally(new IOException("Connection is not open"));
+                } else {
+                    o.rescheduled = true;
+                    schedule(o);
+                }
+            }
+            return;
+        }
+        operation.run(session).whenComplete((result, e) -> runNext(session));
+    }
+
+    /**
+     * Logs a connection in, and fails with an {@link FTPReplyException} if the login is rejected.
+     */
+    private static CompletableFuture<FTPCommandReply> login(Session session, String username, String password) {
+        FTPControlConnection connection = session.connection;
+        return connection.sendCommand(FTPCmd.USER, username).thenCompose(reply -> {
+            if (reply.isPositiveCompletion()) {
+                return CompletableFuture.completedFuture(reply);
+            }
+            if (!FTPReply.isPositiveIntermediate(reply.getReplyCode())) {
+                throw new CompletionException(new FTPReplyException(reply));
+            }
+            return connection.sendCommand(FTPCmd.PASS, password).thenApply(AsyncFTPClient::check);
+        }).thenApply(reply -> {
+            session.loggedIn = true;
+            return reply;
+        });
+    }
+
+    /**
+     * Determines the parser for listings from the system type of the server, like
+     * {@link FTPClient#initiateListParsing(String)}. The parser is determined once, by the first listing.
+     */
+    private CompletableFuture<FTPFileEntryParser> entryParser(Session session) {
+        CompletableFuture<FTPFileEntryParser> parser;
+        synchronized (this) {
+            if (entryParser != null) {
+                return entryParser;
+            }
+            parser = new CompletableFuture<>();
+            entryParser = parser;
+        }
+        String systemType = System.getProperty(FTPClient.FTP_SYSTEM_TYPE);
+        CompletableFuture<String> type = systemType != null ? CompletableFuture.completedFuture(systemType)
+                : session.connection.sendCommand(FTPCmd.SYST, null).thenApply(reply -> {
+            if (reply.isPositiveCompletion()) {
+                String[] lines = reply.getReplyStrings();
+                return lines[lines.length - 1].substring(FTP.REPLY_CODE_LEN + 1);
+            }
+            // Check if the user has provided a default for when the SYST command fails
+            String systDefault = System.getProperty(FTPClient.FTP_SYSTEM_TYPE_DEFAULT);
+            if (systDefault != null) {
+                return systDefault;
+            }
+            throw new CompletionException(new FTPReplyException(reply));
+        });
+        type.thenApply(parserFactory::createFileEntryParser).whenComplete((result, e) -> {
+            if (e != null) {
+                synchronized (this) {
+                    // try again with the next listing
+                    entryParser = null;
+                }
+                parser.completeExceptionally(unwrap(e));
+            } else {
+                parser.complete(result);
+            }
+        });
+        return parser;
+    }
+
+    /**
+     * Transfers a file over a data connection in passive mode. The data connection is opened, and the command
+     * is sent, after the reply to {@code PASV} has been received; the data connection is aborted if the command
+     * fails. The transfer completes when both the reply and the data connection are complete.
+     */
+    private static CompletableFuture<Long> transfer(Session session, FTPCmd command, String pathname,
+                                                    Function<InetSocketAddress, FTPDataChannel> open) {
+        FTPControlConnection connection = session.connection;
+        InetAddress remote = connection.getRemoteAddress().getAddress();
+        boolean extended = remote instanceof Inet6Address;
+        return connection.sendCommand(extended ? FTPCmd.EPSV : FTPCmd.PASV, null).thenCompose(pasv -> {
+            InetSocketAddress address;
+            try {
+                address = extended ? parseExtendedPassiveModeReply(check(pasv), remote)
+                        : parsePassiveModeReply(check(pasv), remote);
+            } catch (MalformedServerReplyException e) {
+                throw new CompletionException(e);
+            }
+            FTPDataChannel data = open.apply(address);
+            // the data connection has its own timeout, so the reply may take longer than the reply timeout
+            connection.transferStarted();
+            data.future().whenComplete((count, e) -> connection.transferEnded());
+            CompletableFuture<FTPCommandReply> reply = connection.sendCommand(command, pathname);
+            reply.whenComplete((r, e) -> {
+                if (e != null) {
+                    data.abort(new IOException("transfer aborted", unwrap(e)));
+                } else if (!FTPReply.isPositivePreliminary(r.getReplyCode()) && !r.isPositiveCompletion()) {
+                    data.abort(new FTPReplyException(r));
+                }
+            });
+            // the server may close the data connection before its negative reply, which then takes precedence
+            return reply.handle((r, e) -> data.future().handle((count, dataException) -> {
+                if (e != null) {
+                    throw new CompletionException(unwrap(e));
+                }
+                check(r);
+                if (dataException != null) {
+                    throw new CompletionException(unwrap(dataException));
+                }
+                return count;
+            })).thenCompose(Function.identity());
+        });
+    }
+
+    private static <T> CompletableFuture<T> withFile(Path path,
+                                                     IOFunction<FileChannel, CompletableFuture<T>> action,
+                                                     StandardOpenOption... options) {
+        FileChannel channel;
+        try {
+            channel = FileChannel.open(path, options);
+        } catch (IOException e) {
+            CompletableFuture<T> future = new CompletableFuture<>();
+            future.completeExceptionally(e);
+            return future;
+        }
+        CompletableFuture<T> future;
+        try {
+            future = action.apply(channel);
+        } catch (IOException | RuntimeException e) {
+            Util.closeQuietly(channel);
+            throw new CompletionException(e);
+        }
+        return future.whenComplete((result, e) -> Util.closeQuietly(channel));
+    }
+
+    private static void deleteQuietly(Path path, Throwable cause) {
+        try {
+            Files.deleteIfExists(path);
+        } catch (IOException e) {
+            cause.addSuppressed(e);
+        }
+    }
+
+    /**
+     * Parses the reply to {@code PASV}. A site-local address is replaced by the address of the server if that is
+     * not site-local, like {@link FTPClient.NatServerResolverImpl} does.
+     */
+    static InetSocketAddress parsePassiveModeReply(FTPCommandReply reply, InetAddress remote)
+            throws MalformedServerReplyException {
+        String line = reply.getReplyStrings()[0];
+        Matcher m = PARMS_PAT.matcher(line);
+        if (!m.find()) {
+            throw new MalformedServerReplyException(
+                    "Could not parse passive host information.\nServer Reply: " + line);
+        }
+        InetAddress host;
+        int port;
+        try {
+            // an IP address is not looked up
+            host = InetAddress.getByName(m.group(1).replace(',', '.'));
+            port = (Integer.parseInt(m.group(2)) << 8) | Integer.parseInt(m.group(3));
+        } catch (UnknownHostException | NumberFormatException e) {
+            throw new MalformedServerReplyException(
+                    "Could not parse passive host information.\nServer Reply: " + line);
+        }
+        if (host.isSiteLocalAddress() && !remote.isSiteLocalAddress()) {
+            host = remote;
+        }
+        return new InetSocketAddress(host, port);
+    }
+
+    /**
+     * Parses the reply to {@code EPSV}; the host of the data connection is the server.
+     */
+    static InetSocketAddress parseExtendedPassiveModeReply(FTPCommandReply reply, InetAddress remote)
+            throws MalformedServerReplyException {
+        String line = reply.getReplyStrings()[0];
+        int start = line.indexOf('(');
+        int end = line.indexOf(')', start + 1);
+        if (start < 0 || end < 0) {
+            throw new MalformedServerReplyException(
+                    "Could not parse extended passive host information.\nServer Reply: " + line);
+        }
+        String params = line.substring(start + 1, end).trim();
+        if (params.length() < 5 || params.charAt(0) != params.charAt(1) || params.charAt(1) != params.charAt(2)
+                || params.charAt(2) != params.charAt(params.length() - 1)) {
+            throw new MalformedServerReplyException(
+                    "Could not parse extended passive host information.\nServer Reply: " + line);
+        }
+        try {
+            return new InetSocketAddress(remote, Integer.parseInt(params.substring(3, params.length() - 1)));
+        } catch (IllegalArgumentException e) {
+            throw new MalformedServerReplyException(
+                    "Could not parse extended passive host information.\nServer Reply: " + line);
+        }
+    }
+
+    /**
+     * Returns the reply if it is a positive completion, and fails with an {@link FTPReplyException} otherwise.
+     */
+    private static FTPCommandReply check(FTPCommandReply reply) {
+        if (!reply.isPositiveCompletion()) {
+            throw new CompletionException(new FTPReplyException(reply));
+        }
+        return reply;
+    }
+
+    private static Throwable unwrap(Throwable e) {
+        return e instanceof CompletionException && e.getCause() != null ? e.getCause() : e;
+    }
+
+    /**
+     * A function that may throw an {@link IOException}.
+     */
+    private interface IOFunction<T, R> {
+        R apply(T t) throws IOException;
+    }
+
+    /**
+     * A connection of the pool, with the operations queued on it.
+     */
+    private static final class Session {
+
+        private final FTPControlConnection connection;
+        // guarded by AsyncFTPClient.this
+        private final Deque<Operation<?>> queue = new ArrayDeque<>();
+        private boolean running;
+        private CompletableFuture<FTPCommandReply> greeting;
+        private CompletableFuture<?> ready;
+        private volatile boolean loggedIn;
+
+        private Session(FTPControlConnection connection) {
+            this.connection = connection;
+        }
+
+        private int load() {
+            return queue.size() + (running ? 1 : 0);
+        }
+
+        /**
+         * @return Whether the connection has been set up, but has been closed since.
+         */
+        private boolean isLost() {
+            return ready.isDone() && !ready.isCompletedExceptionally()
+                    && connection.getState() == FTPControlConnection.State.CLOSED;
+        }
+    }
+
+    /**
+     * An operation, which runs on a connection once the connection is ready.
+     */
+    private static final class Operation<T> {
+
+        private final Function<Session, CompletableFuture<T>> action;
+        private final CompletableFuture<T> result = new CompletableFuture<>();
+        private boolean rescheduled;
+
+        private Operation(Function<Session, CompletableFuture<T>> action) {
+            this.action = action;
+        }
+
+        private CompletableFuture<?> run(Session session) {
+            CompletableFuture<T> future = session.ready.thenCompose(ready -> action.apply(session));
+            CompletableFuture<?> done = future.handle((value, e) -> null);
+            future.whenComplete((value, e) -> {
+                if (e != null) {
+                    result.completeExceptionally(unwrap(e));
+                } else {
+                    result.complete(value);
+                }
+            });
+            return done;
+        }
+    }
+}
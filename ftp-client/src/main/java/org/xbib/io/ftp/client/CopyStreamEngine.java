@@ -0,0 +1,427 @@
+package org.xbib.io.ftp.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Copies streams and channels with reusable buffers, like
+ * {@link Util#copyStream(InputStream, OutputStream, int, long, CopyStreamListener, boolean)}.
+ * <p>
+ * Unlike {@code Util.copyStream}, an engine does not allocate a new buffer for each copy. It keeps a pool of
+ * buffers of {@link #getMaxChunkSize()} bytes, which is shared by all copies, including concurrent ones; buffers
+ * beyond {@link #getMaxPooledBuffers()} are allocated when needed and left to the garbage collector. Buffers
+ * for channels are direct if {@link #isDirect()}, so the data does not need to be copied between the heap and
+ * native memory; streams always use heap buffers.
+ * <p>
+ * Unless a copy asks for a fixed chunk size, the engine adapts the number of bytes it reads at once to the
+ * measured throughput: it starts with {@link #getMinChunkSize()} bytes, and doubles the chunk size while the
+ * chunks are filled and take less than about {@value #TARGET_CHUNK_MILLIS} ms each, up to
+ * {@link #getMaxChunkSize()} bytes. Slow transfers thus keep small chunks, and fast transfers make few calls.
+ * <p>
+ * The {@link CopyStreamListener} is not notified for each chunk, but whenever at least
+ * {@link #getNotificationInterval()} bytes have been copied since the last notification, and once at the end of
+ * the copy for the remaining bytes. {@link CopyStreamListener#bytesTransferred(long, int, long)} receives the
+ * number of bytes copied since the last notification.
+ * <p>
+ * An engine is thread-safe. {@link FTPClient} uses {@link #getDefault()} unless
+ * {@link FTPClient#setCopyStreamEngine(CopyStreamEngine)} has been called.
+ */
+public final class CopyStreamEngine {
+
+    /**
+     * The default minimum chunk size ({@value}).
+     */
+    public static final int DEFAULT_MIN_CHUNK_SIZE = 8 * 1024;
+
+    /**
+     * The default maximum chunk size ({@value}), which is the size of the pooled buffers.
+     */
+    public static final int DEFAULT_MAX_CHUNK_SIZE = 256 * 1024;
+
+    /**
+     * The default maximum number of pooled buffers ({@value}).
+     */
+    public static final int DEFAULT_MAX_POOLED_BUFFERS = 16;
+
+    /**
+     * The default number of bytes ({@value}) between two notifications of a listener.
+     */
+    public static final long DEFAULT_NOTIFICATION_INTERVAL = 64 * 1024;
+
+    private static final long TARGET_CHUNK_MILLIS = 10;
+
+    private static final long TARGET_CHUNK_NANOS = TARGET_CHUNK_MILLIS * 1000000L;
+
+    private static final CopyStreamEngine DEFAULT = new CopyStreamEngine();
+
+    private final int minChunkSize;
+    private final int maxChunkSize;
+    private final int maxPooledBuffers;
+    private final boolean direct;
+    private final long notificationInterval;
+
+    private final ConcurrentLinkedQueue<ByteBuffer> heapBuffers = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooledHeapBuffers = new AtomicInteger();
+    private final ConcurrentLinkedQueue<ByteBuffer> directBuffers = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger pooledDirectBuffers = new AtomicInteger();
+
+    /**
+     * Creates an engine with heap buffers and the default settings.
+     */
+    public CopyStreamEngine() {
+        this(DEFAULT_MIN_CHUNK_SIZE, DEFAULT_MAX_CHUNK_SIZE, DEFAULT_MAX_POOLED_BUFFERS, false,
+                DEFAULT_NOTIFICATION_INTERVAL);
+    }
+
+    /**
+     * Creates an engine.
+     *
+     * @param minChunkSize         The initial and minimum number of bytes read at once.
+     * @param maxChunkSize         The maximum number of bytes read at once, which is the size of the pooled buffers.
+     * @param maxPooledBuffers     The maximum number of buffers kept for reuse, per kind of buffer.
+     * @param direct               Whether to use direct buffers for channels.
+     * @param notificationInterval The minimum number of bytes between two notifications of a listener;
+     *                             0 to notify the listener after each chunk.
+     */
+    public CopyStreamEngine(int minChunkSize, int maxChunkSize, int maxPooledBuffers, boolean direct,
+                            long notificationInterval) {
+        if (minChunkSize <= 0) {
+            throw new IllegalArgumentException(minChunkSize + " <= 0");
+        }
+        if (maxChunkSize < minChunkSize) {
+            throw new IllegalArgumentException(maxChunkSize + " < " + minChunkSize);
+        }
+        if (maxPooledBuffers < 0) {
+            throw new IllegalArgumentException(maxPooledBuffers + " < 0");
+        }
+        if (notificationInterval < 0) {
+            throw new IllegalArgumentException(notificationInterval + " < 0");
+        }
+        this.minChunkSize = minChunkSize;
+        this.maxChunkSize = maxChunkSize;
+        this.maxPooledBuffers = maxPooledBuffers;
+        this.direct = direct;
+        this.notificationInterval = notificationInterval;
+    }
+
+    /**
+     * @return The engine that is shared by all clients that do not have their own.
+     */
+    public static CopyStreamEngine getDefault() {
+        return DEFAULT;
+    }
+
+    /**
+     * @return The initial and minimum number of bytes read at once.
+     */
+    public int getMinChunkSize() {
+        return minChunkSize;
+    }
+
+    /**
+     * @return The maximum number of bytes read at once.
+     */
+    public int getMaxChunkSize() {
+        return maxChunkSize;
+    }
+
+    /**
+     * @return The maximum number of buffers kept for reuse, per kind of buffer.
+     */
+    public int getMaxPooledBuffers() {
+        return maxPooledBuffers;
+    }
+
+    /**
+     * @return Whether direct buffers are used for channels.
+     */
+    public boolean isDirect() {
+        return direct;
+    }
+
+    /**
+     * @return The minimum number of bytes between two notifications of a listener.
+     */
+    public long getNotificationInterval() {
+        return notificationInterval;
+    }
+
+    /**
+     * Copies the contents of an InputStream to an OutputStream, until the end of the InputStream is reached.
+     * Neither stream is closed or flushed.
+     *
+     * @param source     The source InputStream.
+     * @param dest       The destination OutputStream.
+     * @param chunkSize  The number of bytes to read at once; a zero or negative value means to adapt the number
+     *                   to the throughput.
+     * @param streamSize The number of bytes in the stream being copied, or
+     *                   {@link CopyStreamEvent#UNKNOWN_STREAM_SIZE}; it is passed to the listener.
+     * @param listener   The CopyStreamListener to notify of progress, may be {@code null}.
+     * @return The number of bytes copied.
+     * @throws CopyStreamException If an error occurs while reading from the source or writing to the destination.
+     *                             It contains the number of bytes written before the error.
+     */
+    public long copy(InputStream source, OutputStream dest, int chunkSize, long streamSize,
+                     CopyStreamListener listener) throws CopyStreamException {
+        ByteBuffer buffer = acquire(false, chunkSize);
+        Progress progress = new Progress(chunkSize, buffer.capacity(), streamSize, listener);
+        byte[] array = buffer.array();
+        int offset = buffer.arrayOffset();
+        try {
+            int numBytes;
+            while ((numBytes = source.read(array, offset, progress.chunkSize)) != -1) {
+                if (numBytes == 0) {
+                    // read(byte[]) may return 0 without being at the end of the stream; wait for one byte
+                    int singleByte = source.read();
+                    if (singleByte < 0) {
+                        break;
+                    }
+                    array[offset] = (byte) singleByte;
+                    numBytes = 1;
+                }
+                dest.write(array, offset, numBytes);
+                progress.copied(numBytes);
+            }
+        } catch (IOException e) {
+            throw new CopyStreamException("IOException caught while copying.", progress.total, e);
+        } finally {
+            release(buffer);
+        }
+        progress.finish();
+        return progress.total;
+    }
+
+    /**
+     * Copies the contents of a ReadableByteChannel to a WritableByteChannel, until the end of the source is
+     * reached, like {@link #copy(InputStream, OutputStream, int, long, CopyStreamListener)}. Both channels must
+     * be in blocking mode.
+     *
+     * @param source     The source channel.
+     * @param dest       The destination channel.
+     * @param chunkSize  The number of bytes to read at once; a zero or negative value means to adapt the number
+     *                   to the throughput.
+     * @param streamSize The number of bytes in the stream being copied, or
+     *                   {@link CopyStreamEvent#UNKNOWN_STREAM_SIZE}; it is passed to the listener.
+     * @param listener   The CopyStreamListener to notify of progress, may be {@code null}.
+     * @return The number of bytes copied.
+     * @throws CopyStreamException If an error occurs while reading from the source or writing to the destination.
+     *                             It contains the number of bytes written before the error.
+     */
+    public long copy(ReadableByteChannel source, WritableByteChannel dest, int chunkSize, long streamSize,
+                     CopyStreamListener listener) throws CopyStreamException {
+        ByteBuffer buffer = acquire(direct, chunkSize);
+        Progress progress = new Progress(chunkSize, buffer.capacity(), streamSize, listener);
+        try {
+            while (true) {
+                buffer.clear().limit(progress.chunkSize);
+                int numBytes = source.read(buffer);
+                if (numBytes < 0) {
+                    break;
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    dest.write(buffer);
+                }
+                progress.copied(numBytes);
+            }
+        } catch (IOException e) {
+            throw new CopyStreamException("IOException caught while copying.", progress.total, e);
+        } finally {
+            release(buffer);
+        }
+        progress.finish();
+        return progress.total;
+    }
+
+    /**
+     * Copies a given number of bytes from a given position of a FileChannel to a WritableByteChannel, like
+     * {@link #copy(ReadableByteChannel, WritableByteChannel, int, long, CopyStreamListener)}. The position of the
+     * FileChannel is not changed, so several threads can read different parts of the same FileChannel concurrently.
+     *
+     * @param source    The source FileChannel.
+     * @param position  The position in the FileChannel at which to start reading.
+     * @param count     The maximum number of bytes to copy; fewer bytes are copied if the end of the file is reached
+     *                  before. It is passed to the listener as the stream size.
+     * @param dest      The destination channel. It must be in blocking mode.
+     * @param chunkSize The number of bytes to read at once; a zero or negative value means to adapt the number
+     *                  to the throughput.
+     * @param listener  The CopyStreamListener to notify of progress, may be {@code null}.
+     * @return The number of bytes copied.
+     * @throws CopyStreamException If an error occurs while reading from the source or writing to the destination.
+     *                             It contains the number of bytes written before the error.
+     */
+    public long copy(FileChannel source, long position, long count, WritableByteChannel dest, int chunkSize,
+                     CopyStreamListener listener) throws CopyStreamException {
+        ByteBuffer buffer = acquire(direct, chunkSize);
+        Progress progress = new Progress(chunkSize, buffer.capacity(), count, listener);
+        try {
+            while (progress.total < count) {
+                buffer.clear().limit((int) Math.min(progress.chunkSize, count - progress.total));
+                int numBytes = source.read(buffer, position + progress.total);
+                if (numBytes < 0) {
+                    break;
+                }
+                buffer.flip();
+                while (buffer.hasRemaining()) {
+                    dest.write(buffer);
+                }
+                progress.copied(numBytes);
+            }
+        } catch (IOException e) {
+            throw new CopyStreamException("IOException caught while copying.", progress.total, e);
+        } finally {
+            release(buffer);
+        }
+        progress.finish();
+        return progress.total;
+    }
+
+    /**
+     * Copies at most a given number of bytes from a ReadableByteChannel to a given position of a FileChannel, like
+     * {@link #copy(ReadableByteChannel, WritableByteChannel, int, long, CopyStreamListener)}. The position of the
+     * FileChannel is not changed, so several threads can write different parts of the same FileChannel concurrently.
+     *
+     * @param source    The source channel. It must be in blocking mode.
+     * @param dest      The destination FileChannel.
+     * @param position  The position in the FileChannel at which to start writing.
+     * @param count     The maximum number of bytes to copy, or a negative value to copy until the end of the source
+     *                  is reached.
+     * @param chunkSize The number of bytes to read at once; a zero or negative value means to adapt the number
+     *                  to the throughput.
+     * @param listener  The CopyStreamListener to notify of progress, may be {@code null}.
+     * @return The number of bytes copied.
+     * @throws CopyStreamException If an error occurs while reading from the source or writing to the destination.
+     *                             It contains the number of bytes written before the error.
+     */
+    public long copy(ReadableByteChannel source, FileChannel dest, long position, long count, int chunkSize,
+                     CopyStreamListener listener) throws CopyStreamException {
+        long remaining = count < 0 ? Long.MAX_VALUE : count;
+        ByteBuffer buffer = acquire(direct, chunkSize);
+        Progress progress = new Progress(chunkSize, buffer.capacity(),
+                count < 0 ? CopyStreamEvent.UNKNOWN_STREAM_SIZE : count, listener);
+        try {
+            while (progress.total < remaining) {
+                buffer.clear().limit((int) Math.min(progress.chunkSize, remaining - progress.total));
+                int numBytes = source.read(buffer);
+                if (numBytes < 0) {
+                    break;
+                }
+                buffer.flip();
+                long offset = position + progress.total;
+                while (buffer.hasRemaining()) {
+                    offset += dest.write(buffer, offset);
+                }
+                progress.copied(numBytes);
+            }
+        } catch (IOException e) {
+            throw new CopyStreamException("IOException caught while copying.", progress.total, e);
+        } finally {
+            release(buffer);
+        }
+        progress.finish();
+        return progress.total;
+    }
+
+    /**
+     * @return The number of buffers that are currently kept for reuse.
+     */
+    int getPooledBufferCount() {
+        return pooledHeapBuffers.get() + pooledDirectBuffers.get();
+    }
+
+    private ByteBuffer acquire(boolean direct, int chunkSize) {
+        if (chunkSize > maxChunkSize) {
+            // larger than the pooled buffers
+            return direct ? ByteBuffer.allocateDirect(chunkSize) : ByteBuffer.allocate(chunkSize);
+        }
+        ConcurrentLinkedQueue<ByteBuffer> pool = direct ? directBuffers : heapBuffers;
+        ByteBuffer buffer = pool.poll();
+        if (buffer != null) {
+            (direct ? pooledDirectBuffers : pooledHeapBuffers).decrementAndGet();
+            buffer.clear();
+            return buffer;
+        }
+        return direct ? ByteBuffer.allocateDirect(maxChunkSize) : ByteBuffer.allocate(maxChunkSize);
+    }
+
+    private void release(ByteBuffer buffer) {
+        if (buffer.capacity() != maxChunkSize) {
+            return;
+        }
+        AtomicInteger count = buffer.isDirect() ? pooledDirectBuffers : pooledHeapBuffers;
+        if (count.incrementAndGet() > maxPooledBuffers) {
+            count.decrementAndGet();
+            return;
+        }
+        (buffer.isDirect() ? directBuffers : heapBuffers).offer(buffer);
+    }
+
+    /**
+     * The progress of one copy, which adapts the chunk size and notifies the listener.
+     */
+    private final class Progress {
+
+        private final boolean adaptive;
+        private final int capacity;
+        private final long streamSize;
+        private final CopyStreamListener listener;
+
+        private int chunkSize;
+        private long total;
+        private long notified;
+        private long chunkStart;
+
+        private Progress(int chunkSize, int capacity, long streamSize, CopyStreamListener listener) {
+            this.adaptive = chunkSize <= 0;
+            this.capacity = capacity;
+            this.chunkSize = adaptive ? minChunkSize : chunkSize;
+            this.streamSize = streamSize;
+            this.listener = listener;
+            if (adaptive) {
+                chunkStart = System.nanoTime();
+            }
+        }
+
+        private void copied(int numBytes) {
+            total += numBytes;
+            if (adaptive) {
+                adapt(numBytes);
+            }
+            if (listener != null && total - notified >= notificationInterval) {
+                notifyListener();
+            }
+        }
+
+        private void adapt(int numBytes) {
+            long now = System.nanoTime();
+            long elapsed = now - chunkStart;
+            chunkStart = now;
+            if (numBytes == chunkSize && chunkSize < capacity && elapsed < TARGET_CHUNK_NANOS) {
+                // the source could deliver more at once, and the chunks are quick
+                chunkSize = Math.min(chunkSize << 1, capacity);
+            } else if (chunkSize > minChunkSize && elapsed > 2 * TARGET_CHUNK_NANOS) {
+                // the chunks are slow, so smaller ones give a more even progress
+                chunkSize = Math.max(chunkSize >> 1, minChunkSize);
+            }
+        }
+
+        private void finish() {
+            if (listener != null && total > notified) {
+                notifyListener();
+            }
+        }
+
+        private void notifyListener() {
+            long bytes = total - notified;
+            notified = total;
+            listener.bytesTransferred(total, (int) Math.min(bytes, Integer.MAX_VALUE), streamSize);
+        }
+    }
+}
@@ -1,17 +1,16 @@
 package org.xbib.io.ftp.client;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.io.Reader;
+import java.io.UnsupportedEncodingException;
 import java.net.Inet4Address;
 import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
-import java.util.ArrayList;
+import java.nio.charset.Charset;
 import java.util.List;
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -178,6 +177,13 @@ public class FTP extends SocketClient {
      ***/
     public static final int COMPRESSED_TRANSFER_MODE = 12;
 
+    /***
+     * A constant used to indicate a file is to be transferred as a zlib
+     * compressed stream of bytes (MODE Z).  All constants ending in
+     * <code>TRANSFER_MODE</code> are used to indicate file transfer modes.
+     ***/
+    public static final int DEFLATE_TRANSFER_MODE = 13;
+
     // We have to ensure that the protocol communication is in ASCII
     // but we use ISO-8859-1 just in case 8-bit characters cross
     // the wire.
@@ -195,12 +201,13 @@ public class FTP extends SocketClient {
      */
     public static final int REPLY_CODE_LEN = 3;
 
-    private static final String __modes = "AEILNTCFRPSBC";
+    private static final String __modes = "AEILNTCFRPSBCZ";
 
     protected int replyCode;
+    /**
+     * The lines of the last reply. This is a read-only view; the lines are only decoded when they are accessed.
+     */
     protected List<String> replyLines;
-    protected boolean newReplyString;
-    protected String replyString;
     protected String controlEncoding;
 
     /**
@@ -216,21 +223,19 @@ public class FTP extends SocketClient {
      */
     protected boolean strictMultilineParsing = false;
     /**
-     * Wraps SocketClient._input_ to facilitate the reading of text
-     * from the FTP control connection.  Do not access the control
-     * connection via SocketClient._input_.  This member starts
-     * with a null value, is initialized in {@link #_connectAction_},
-     * and set to null in {@link #disconnect}.
+     * Reads replies from the FTP control connection.  Do not access the
+     * control connection via SocketClient._input_.  Its input is set in
+     * {@link #_connectAction_} or {@link #setControlInput(InputStream)},
+     * and cleared in {@link #disconnect}.
      */
-    protected BufferedReader bufferedReader;
+    private final FTPReplyReader replyReader;
     /**
-     * Wraps SocketClient._output_ to facilitate the writing of text
-     * to the FTP control connection.  Do not access the control
-     * connection via SocketClient._output_.  This member starts
-     * with a null value, is initialized in {@link #_connectAction_},
-     * and set to null in {@link #disconnect}.
+     * Writes commands to the FTP control connection.  Do not access the
+     * control connection via SocketClient._output_.  Its output is set in
+     * {@link #_connectAction_} or {@link #setControlOutput(OutputStream)},
+     * and cleared in {@link #disconnect}.
      */
-    protected BufferedWriter bufferedWriter;
+    private final FTPCommandWriter commandWriter;
     /**
      * If this is true, then non-multiline replies must have the format:
      * 3 digit code <space> <text>
@@ -247,28 +252,13 @@ public class FTP extends SocketClient {
     public FTP() {
         super();
         setDefaultPort(DEFAULT_PORT);
-        replyLines = new ArrayList<>();
-        newReplyString = false;
-        replyString = null;
+        replyReader = new FTPReplyReader(Charset.forName(DEFAULT_CONTROL_ENCODING));
+        replyLines = replyReader.lines();
+        commandWriter = new FTPCommandWriter(Charset.forName(DEFAULT_CONTROL_ENCODING));
         controlEncoding = DEFAULT_CONTROL_ENCODING;
         protocolCommandSupport = new ProtocolCommandSupport(this);
     }
 
-    // The RFC-compliant multiline termination check
-    private boolean strictCheck(String line, String code) {
-        return (!(line.startsWith(code) && line.charAt(REPLY_CODE_LEN) == ' '));
-    }
-
-    // The strict check is too strong a condition because of non-conforming ftp
-    // servers like ftp.funet.fi which sent 226 as the last line of a
-    // 426 multi-line reply in response to ls /.  We relax the condition to
-    // test that the line starts with a digit rather than starting with
-    // the code.
-    private boolean lenientCheck(String line) {
-        return (!(line.length() > REPLY_CODE_LEN && line.charAt(REPLY_CODE_LEN) != '-' &&
-                Character.isDigit(line.charAt(0))));
-    }
-
     /**
      * Get the reply, and pass it to command listeners
      */
@@ -277,55 +267,9 @@ public class FTP extends SocketClient {
     }
 
     private void internalGetReply(boolean reportReply) throws IOException {
-        int length;
-        newReplyString = true;
-        replyLines.clear();
-        String line = bufferedReader.readLine();
-        if (line == null) {
-            throw new ConnectionClosedException("connection closed without indication");
-        }
-        // In case we run into an anomaly we don't want fatal index exceptions
-        // to be thrown.
-        length = line.length();
-        if (length < REPLY_CODE_LEN) {
-            throw new MalformedServerReplyException("Truncated server reply: " + line);
-        }
-        String code;
-        try {
-            code = line.substring(0, REPLY_CODE_LEN);
-            replyCode = Integer.parseInt(code);
-        } catch (NumberFormatException e) {
-            throw new MalformedServerReplyException("Could not parse response code.\nServer Reply: " + line);
-        }
-        replyLines.add(line);
-        // Check the server reply type
-        if (length > REPLY_CODE_LEN) {
-            char sep = line.charAt(REPLY_CODE_LEN);
-            // Get extra lines if message continues.
-            if (sep == '-') {
-                do {
-                    line = bufferedReader.readLine();
-                    if (line == null) {
-                        throw new ConnectionClosedException("connection closed without indication");
-                    }
-                    replyLines.add(line);
-                    // The length() check handles problems that could arise from readLine()
-                    // returning too soon after encountering a naked CR or some other
-                    // anomaly.
-                }
-                while (isStrictMultilineParsing() ? strictCheck(line, code) : lenientCheck(line));
-
-            } else if (isStrictReplyParsing()) {
-                if (length == REPLY_CODE_LEN + 1) { // expecting some text
-                    throw new MalformedServerReplyException("Truncated server reply: '" + line + "'");
-                } else if (sep != ' ') {
-                    throw new MalformedServerReplyException("Invalid server reply: '" + line + "'");
-                }
-            }
-        } else if (isStrictReplyParsing()) {
-            throw new MalformedServerReplyException("Truncated server reply: '" + line + "'");
-        }
-        if (reportReply) {
+        replyCode = replyReader.readReply(isStrictMultilineParsing(), isStrictReplyParsing());
+        // only materialize the reply text if someone is listening
+        if (reportReply && getCommandSupport().getListenerCount() > 0) {
             fireReplyReceived(replyCode, getReplyString());
         }
         if (replyCode == FTPReply.SERVICE_NOT_AVAILABLE) {
@@ -335,7 +279,7 @@ public class FTP extends SocketClient {
 
     /**
      * Initiates control connections and gets initial reply.
-     * Initializes {@link #bufferedReader} and {@link #bufferedWriter}.
+     * Initializes the reading of replies and the writing of commands.
      */
     @Override
     protected void _connectAction_() throws IOException {
@@ -344,19 +288,20 @@ public class FTP extends SocketClient {
 
     /**
      * Initiates control connections and gets initial reply.
-     * Initializes {@link #bufferedReader} and {@link #bufferedWriter}.
+     * Initializes the reading of replies and the writing of commands.
      *
      * @param socketIsReader the reader to reuse (if non-null)
      * @throws IOException on error
      */
     protected void _connectAction_(Reader socketIsReader) throws IOException {
         super._connectAction_(); // sets up _input_ and _output_
+        replyReader.setCharset(getControlCharset());
         if (socketIsReader == null) {
-            bufferedReader = new CRLFLineReader(new InputStreamReader(inputStream, getControlEncoding()));
+            replyReader.setInput(inputStream);
         } else {
-            bufferedReader = new CRLFLineReader(socketIsReader);
+            replyReader.setInput(socketIsReader);
         }
-        bufferedWriter = new BufferedWriter(new OutputStreamWriter(outputStream, getControlEncoding()));
+        setControlOutput(outputStream);
         if (connectTimeout > 0) { // NET-385
             int original = socket.getSoTimeout();
             socket.setSoTimeout(connectTimeout);
@@ -404,22 +349,62 @@ public class FTP extends SocketClient {
         controlEncoding = encoding;
     }
 
+    private Charset getControlCharset() throws UnsupportedEncodingException {
+        try {
+            return Charset.forName(controlEncoding);
+        } catch (IllegalArgumentException e) {
+            throw new UnsupportedEncodingException(controlEncoding);
+        }
+    }
+
+    /**
+     * Sets the stream that replies are read from, e.g. after the control connection has been secured,
+     * and applies the current control encoding to the replies that follow.
+     * If the stream is the one that replies are already read from, bytes that have been received but
+     * not consumed yet are kept.
+     *
+     * @param input The input stream of the control connection.
+     * @throws UnsupportedEncodingException If the control encoding is not supported.
+     */
+    protected void setControlInput(InputStream input) throws UnsupportedEncodingException {
+        replyReader.setCharset(getControlCharset());
+        replyReader.setInput(input);
+    }
+
+    /**
+     * Sets the stream that commands are written to, e.g. after the control connection has been secured,
+     * and applies the current control encoding to the commands that follow.
+     *
+     * @param output The output stream of the control connection.
+     * @throws UnsupportedEncodingException If the control encoding is not supported.
+     */
+    protected void setControlOutput(OutputStream output) throws UnsupportedEncodingException {
+        commandWriter.setCharset(getControlCharset());
+        commandWriter.setOutput(output);
+    }
+
+    /**
+     * Replaces the last reply, e.g. to restore a reply that was saved before other commands were sent.
+     */
+    void setReply(int replyCode, String[] replyLines) {
+        this.replyCode = replyCode;
+        replyReader.setReply(replyCode, replyLines);
+    }
+
     /***
      * Closes the control connection to the FTP server and sets to null
      * some internal data so that the memory may be reclaimed by the
      * garbage collector.  The reply text and code information from the
      * last command is voided so that the memory it used may be reclaimed.
-     * Also sets {@link #bufferedReader} and {@link #bufferedWriter} to null.
+     * Also stops reading replies and writing commands.
      *
      * @throws IOException If an error occurs while disconnecting.
      ***/
     @Override
     public void disconnect() throws IOException {
         super.disconnect();
-        bufferedReader = null;
-        bufferedWriter = null;
-        newReplyString = false;
-        replyString = null;
+        replyReader.setInput((InputStream) null);
+        commandWriter.setOutput((OutputStream) null);
     }
 
     /***
@@ -443,20 +428,47 @@ public class FTP extends SocketClient {
      *      command or receiving the server reply.
      ***/
     public int sendCommand(String command, String args) throws IOException {
-        if (bufferedWriter == null) {
+        if (!commandWriter.isOpen()) {
             throw new IOException("Connection is not open");
         }
 
-        final String message = __buildMessage(command, args);
+        __send(command, args, true);
 
-        __send(message);
-
-        fireCommandSent(command, message);
+        __fireCommandSent(command, args);
 
         internalGetReply();
         return replyCode;
     }
 
+    /**
+     * Writes an FTP command to the control connection without waiting for its reply.
+     * Used by {@link FTPCommandPipeline}, which reads the replies later using {@link #getReply()}.
+     *
+     * @param command The text representation of the FTP command to send.
+     * @param args    The arguments to the FTP command, or null.
+     * @param flush   Whether to flush the control connection after writing the command.
+     * @throws IOException If an I/O error occurs while sending the command.
+     */
+    void sendCommandWithoutReply(String command, String args, boolean flush) throws IOException {
+        if (!commandWriter.isOpen()) {
+            throw new IOException("Connection is not open");
+        }
+        __send(command, args, flush);
+        __fireCommandSent(command, args);
+    }
+
+    /**
+     * Flushes commands written by {@link #sendCommandWithoutReply(String, String, boolean)}.
+     *
+     * @throws IOException If an I/O error occurs while flushing the control connection.
+     */
+    void flushCommands() throws IOException {
+        if (!commandWriter.isOpen()) {
+            throw new IOException("Connection is not open");
+        }
+        commandWriter.flush();
+    }
+
     private String __buildMessage(String command, String args) {
         final StringBuilder __commandBuffer = new StringBuilder();
 
@@ -470,10 +482,19 @@ public class FTP extends SocketClient {
         return __commandBuffer.toString();
     }
 
-    private void __send(String message) throws IOException {
+    // only build the message text if someone is listening
+    private void __fireCommandSent(String command, String args) {
+        if (getCommandSupport().getListenerCount() > 0) {
+            getCommandSupport().fireCommandSent(command, __buildMessage(command, args));
+        }
+    }
+
+    private void __send(String command, String args, boolean flush) throws IOException {
         try {
-            bufferedWriter.write(message);
-            bufferedWriter.flush();
+            commandWriter.write(command, args);
+            if (flush) {
+                commandWriter.flush();
+            }
         } catch (SocketException e) {
             if (!isConnected()) {
                 throw new IOException("connection unexpectedly closed");
@@ -490,11 +511,32 @@ public class FTP extends SocketClient {
      * @throws IOException on error
      */
     protected void __noop() throws IOException {
-        String msg = __buildMessage(FTPCmd.NOOP.getCommand(), null);
-        __send(msg);
+        __send(FTPCmd.NOOP.getCommand(), null, true);
         internalGetReply(false);
     }
 
+    /**
+     * Send a noop without waiting for the reply, and without reporting to the command listener.
+     * Intended for use with keep-alive while a transfer is in progress; the reply must be
+     * fetched later with {@link #__getReplyNoReport()}.
+     *
+     * @throws IOException on error
+     */
+    protected void __sendNoop() throws IOException {
+        __send(FTPCmd.NOOP.getCommand(), null, true);
+    }
+
+    /**
+     * Get the reply without reporting to the command listener.
+     *
+     * @return The integer value of the reply code of the fetched FTP reply.
+     * @throws IOException on error
+     */
+    protected int __getReplyNoReport() throws IOException {
+        internalGetReply(false);
+        return replyCode;
+    }
+
     /**
      * Sends an FTP command to the server, waits for a reply and returns the
      * numerical response code.  After invocation, for more detailed
@@ -597,6 +639,30 @@ public class FTP extends SocketClient {
         return replyCode;
     }
 
+    /**
+     * Creates a pipeline for sending commands without waiting for the reply to each command first,
+     * with at most {@link FTPCommandPipeline#DEFAULT_MAX_IN_FLIGHT} commands in flight.
+     *
+     * @return A new command pipeline that uses this connection.
+     * @see FTPCommandPipeline
+     */
+    public FTPCommandPipeline pipeline() {
+        return pipeline(FTPCommandPipeline.DEFAULT_MAX_IN_FLIGHT);
+    }
+
+    /**
+     * Creates a pipeline for sending commands without waiting for the reply to each command first.
+     * Until the pipeline is closed, no other commands must be sent over this connection.
+     *
+     * @param maxInFlight The maximum number of commands that are sent before their replies are read.
+     * @return A new command pipeline that uses this connection.
+     * @throws IllegalArgumentException If the maximum number of commands in flight is not positive.
+     * @see FTPCommandPipeline
+     */
+    public FTPCommandPipeline pipeline(int maxInFlight) {
+        return new FTPCommandPipeline(this, maxInFlight);
+    }
+
 
     /***
      * Returns the lines of text from the last FTP server response as an array
@@ -606,7 +672,7 @@ public class FTP extends SocketClient {
      * @return The lines of text from the last FTP response as an array.
      ***/
     public String[] getReplyStrings() {
-        return replyLines.toArray(new String[replyLines.size()]);
+        return replyReader.getLines();
     }
 
     /***
@@ -617,22 +683,7 @@ public class FTP extends SocketClient {
      * @return The entire text from the last FTP response as a String.
      ***/
     public String getReplyString() {
-        StringBuilder buffer;
-
-        if (!newReplyString) {
-            return replyString;
-        }
-
-        buffer = new StringBuilder(256);
-
-        for (String line : replyLines) {
-            buffer.append(line);
-            buffer.append("\r\n");
-        }
-
-        newReplyString = false;
-
-        return (replyString = buffer.toString());
+        return replyReader.getReplyString();
     }
 
 
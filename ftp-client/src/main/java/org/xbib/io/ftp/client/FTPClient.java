@@ -8,13 +8,14 @@ import org.xbib.io.ftp.client.parser.ParserInitializationException;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.BufferedReader;
-import java.io.BufferedWriter;
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
 import java.io.Reader;
+import java.io.UncheckedIOException;
 import java.net.Inet6Address;
 import java.net.InetAddress;
 import java.net.InetSocketAddress;
@@ -23,14 +24,30 @@ import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.Locale;
+import java.util.Map;
 import java.util.Properties;
 import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 import java.util.regex.Pattern;
+import java.util.zip.Deflater;
 
 /**
  * FTPClient encapsulates all the functionality necessary to store and
@@ -252,9 +269,10 @@ import java.util.regex.Pattern;
  * and the other xxxFileStream methods.
  * In such cases, the user is responsible for keeping the control connection alive if necessary.
  * <p>
- * The implementation currently uses a {@link CopyStreamListener} which is passed to the
- * {@link Util#copyStream(InputStream, OutputStream, int, long, CopyStreamListener, boolean)}
- * method, so the timing is partially dependent on how long each block transfer takes.
+ * The NOOPs are sent by a shared background thread while the data is being copied, so the timing does not
+ * depend on how long each block transfer takes, and the copy is not held up by a server that is slow to answer.
+ * Their replies are read by {@link #completePendingCommand()} once the transfer is complete; replies that do not
+ * arrive within {@link #getControlKeepAliveReplyTimeout()} are skipped.
  * <p>
  * <b>This keep-alive feature is optional; if it does not help or causes problems then don't use it.</b>
  *
@@ -346,6 +364,12 @@ public class FTPClient extends FTP implements Configurable {
     private InetAddress reportActiveExternalHost;
     private InetAddress passiveLocalHost;
     private int fileType;
+    private int fileTransferMode;
+    private int deflateLevel;
+    private Socket blockDataSocket;
+    private Socket pendingDataSocket;
+    private volatile Socket rangeDataSocket;
+    private boolean dataConnectionReused;
     private boolean remoteVerificationEnabled;
     private long restartOffset;
     private FTPFileEntryParserFactory entryParserFactory;
@@ -359,8 +383,22 @@ public class FTPClient extends FTP implements Configurable {
     private String entryParserKey;
     private FTPClientConfig ftpClientConfig;
     private CopyStreamListener copyStreamListener;
+    private CopyStreamEngine copyStreamEngine = CopyStreamEngine.getDefault();
     private long controlKeepAliveTimeout;
     private int controlKeepAliveReplyTimeout = 1000;
+    /**
+     * The keep-alive of the transfer in progress, if any.
+     */
+    private ControlKeepAlive controlKeepAlive;
+    /**
+     * The number of keep-alive NOOPs whose replies have not been read yet.
+     */
+    private int pendingNoopReplies;
+    private int maxCommandsInFlight = FTPCommandPipeline.DEFAULT_MAX_IN_FLIGHT;
+    /**
+     * Set while opening a data connection for a transfer that can use a channel.
+     */
+    private boolean dataChannelRequested;
     /**
      * Enable or disable replacement of internal IP in passive mode. Default enabled
      * using {code NatServerResolverImpl}.
@@ -467,6 +505,15 @@ public class FTPClient extends FTP implements Configurable {
         activeMinPort = 0;
         activeMaxPort = 0;
         fileType = ASCII_FILE_TYPE;
+        fileTransferMode = STREAM_TRANSFER_MODE;
+        deflateLevel = Deflater.DEFAULT_COMPRESSION;
+        Util.closeQuietly(blockDataSocket);
+        blockDataSocket = null;
+        Util.closeQuietly(pendingDataSocket);
+        pendingDataSocket = null;
+        stopControlKeepAlive();
+        pendingNoopReplies = 0;
+        dataConnectionReused = false;
         restartOffset = 0;
         systemName = null;
         fileEntryParser = null;
@@ -548,6 +595,67 @@ public class FTPClient extends FTP implements Configurable {
         return _storeFile(command.getCommand(), remote, local);
     }
 
+    private boolean __storeFile(FTPCmd command, String remote, FileChannel local)
+            throws IOException {
+        if (fileType == ASCII_FILE_TYPE) {
+            // line separators need to be converted, so the data must pass through the JVM
+            return _storeFile(command.getCommand(), remote, Channels.newInputStream(local));
+        }
+
+        Socket socket = _openDataChannelConnection_(command.getCommand(), remote);
+
+        if (socket == null) {
+            return false;
+        }
+
+        startControlKeepAlive();
+
+        try {
+            SocketChannel channel = socket.getChannel();
+            if (channel != null) {
+                Util.copyChannel(local, channel, copyStreamListener);
+            } else {
+                // e.g. an encrypted data connection, or a custom socket factory
+                OutputStream output = getBufferedOutputStream(getDataOutputStream(socket));
+                copyStreamEngine.copy(Channels.newInputStream(local), output, getBufferSize(),
+                        CopyStreamEvent.UNKNOWN_STREAM_SIZE, copyStreamListener);
+                output.close(); // ensure the file is fully written
+            }
+            closeDataConnection(socket); // done writing the file
+
+            // Get the transfer response
+            return completePendingCommand();
+        } catch (IOException e) {
+            Util.closeQuietly(socket); // ignore close errors here
+            abortControlKeepAlive(e);
+            throw e;
+        } finally {
+            drainControlKeepAliveReplies(); // fetch any outstanding keepalive replies
+        }
+    }
+
+    /**
+     * Establishes a data connection like {@link #_openDataConnection_(String, String)},
+     * but backs the socket by a {@link SocketChannel} if the default socket factories are used.
+     * Otherwise, e.g. for encrypted data connections, {@link Socket#getChannel()} of the
+     * returned socket is null.
+     *
+     * @param command The text representation of the FTP command to send.
+     * @param arg     The arguments to the FTP command.
+     * @return A Socket corresponding to the established data connection, or null.
+     * @throws IOException If an I/O error occurs.
+     */
+    private Socket _openDataChannelConnection_(String command, String arg)
+            throws IOException {
+        // in other transfer modes, the data needs to pass through the JVM to be compressed, decompressed or framed
+        dataChannelRequested = fileTransferMode == STREAM_TRANSFER_MODE;
+        try {
+            return _openDataConnection_(command, arg);
+        } finally {
+            dataChannelRequested = false;
+        }
+    }
+
     /**
      * @param command the command to send
      * @param remote  the remote file name
@@ -567,34 +675,29 @@ public class FTPClient extends FTP implements Configurable {
         final OutputStream output;
 
         if (fileType == ASCII_FILE_TYPE) {
-            output = new ToNetASCIIOutputStream(getBufferedOutputStream(socket.getOutputStream()));
+            output = new ToNetASCIIOutputStream(getBufferedOutputStream(getDataOutputStream(socket)));
         } else {
-            output = getBufferedOutputStream(socket.getOutputStream());
+            output = getBufferedOutputStream(getDataOutputStream(socket));
         }
 
-        CSL csl = null;
-        if (controlKeepAliveTimeout > 0) {
-            csl = new CSL(this, controlKeepAliveTimeout, controlKeepAliveReplyTimeout);
-        }
+        startControlKeepAlive();
 
         // Treat everything else as binary for now
         try {
-            Util.copyStream(local, output, getBufferSize(),
-                    CopyStreamEvent.UNKNOWN_STREAM_SIZE, __mergeListeners(csl),
-                    false);
+            copyStreamEngine.copy(local, output, getBufferSize(),
+                    CopyStreamEvent.UNKNOWN_STREAM_SIZE, copyStreamListener);
             output.close(); // ensure the file is fully written
-            socket.close(); // done writing the file
+            closeDataConnection(socket); // done writing the file
 
             // Get the transfer response
             return completePendingCommand();
         } catch (IOException e) {
             Util.closeQuietly(output); // ignore close errors here
             Util.closeQuietly(socket); // ignore close errors here
+            abortControlKeepAlive(e);
             throw e;
         } finally {
-            if (csl != null) {
-                csl.cleanUp(); // fetch any outstanding keepalive replies
-            }
+            drainControlKeepAliveReplies(); // fetch any outstanding keepalive replies
         }
     }
 
@@ -626,9 +729,12 @@ public class FTPClient extends FTP implements Configurable {
             // programmer if possible.  Programmers can decide on their
             // own if they want to wrap the SocketOutputStream we return
             // for file types other than ASCII.
-            output = new ToNetASCIIOutputStream(getBufferedOutputStream(socket.getOutputStream()));
+            output = new ToNetASCIIOutputStream(getBufferedOutputStream(getDataOutputStream(socket)));
         } else {
-            output = socket.getOutputStream();
+            output = getDataOutputStream(socket);
+        }
+        if (fileTransferMode == BLOCK_TRANSFER_MODE) {
+            return new DataConnectionOutputStream(socket, output);
         }
         return new SocketOutputStream(socket, output);
     }
@@ -681,6 +787,32 @@ public class FTPClient extends FTP implements Configurable {
             return null;
         }
 
+        dataConnectionReused = false;
+        if (pendingDataSocket != null) {
+            // the previous transfer was not completed using completePendingCommand()
+            Util.closeQuietly(pendingDataSocket);
+            pendingDataSocket = null;
+        }
+        if (blockDataSocket != null) {
+            Socket socket = blockDataSocket;
+            blockDataSocket = null;
+            if (fileTransferMode == BLOCK_TRANSFER_MODE && !socket.isClosed()) {
+                // the server kept the data connection open, so the command can be sent without PORT or PASV
+                if ((restartOffset > 0) && !restart(restartOffset)) {
+                    blockDataSocket = socket;
+                    return null;
+                }
+                if (!FTPReply.isPositivePreliminary(sendCommand(command, arg))) {
+                    // it is not known whether or not the server still uses the data connection
+                    socket.close();
+                    return null;
+                }
+                dataConnectionReused = true;
+                return socket;
+            }
+            socket.close();
+        }
+
         final boolean isInet6Address = getRemoteAddress() instanceof Inet6Address;
 
         Socket socket;
@@ -688,7 +820,19 @@ public class FTPClient extends FTP implements Configurable {
         if (dataConnectionMode == ACTIVE_LOCAL_DATA_CONNECTION_MODE) {
             // if no activePortRange was set (correctly) -> getActivePort() = 0
             // -> new ServerSocket(0) -> bind to any free local port
-            ServerSocket server = serverSocketFactory.createServerSocket(getActivePort(), 1, getHostAddress());
+            ServerSocket server;
+            if (dataChannelRequested && isDefaultServerSocketFactory()) {
+                // sockets accepted by the channel are backed by channels as well
+                server = ServerSocketChannel.open().socket();
+                try {
+                    server.bind(new InetSocketAddress(getHostAddress(), getActivePort()), 1);
+                } catch (IOException e) {
+                    server.close();
+                    throw e;
+                }
+            } else {
+                server = serverSocketFactory.createServerSocket(getActivePort(), 1, getHostAddress());
+            }
 
             try {
                 // Try EPRT only if remote server is over IPv6, if not use PORT,
@@ -761,7 +905,11 @@ public class FTPClient extends FTP implements Configurable {
                 _parsePassiveModeReply(replyLines.get(0));
             }
 
-            socket = socketFactory.createSocket();
+            if (dataChannelRequested && isDefaultSocketFactory()) {
+                socket = SocketChannel.open().socket();
+            } else {
+                socket = socketFactory.createSocket();
+            }
             if (receiveDataSocketBufferSize > 0) {
                 socket.setReceiveBufferSize(receiveDataSocketBufferSize);
             }
@@ -819,20 +967,15 @@ public class FTPClient extends FTP implements Configurable {
         // must be after super._connectAction_(), because otherwise we get an
         // Exception claiming we're not connected
         if (__autodetectEncoding) {
-            ArrayList<String> oldReplyLines = new ArrayList<String>(replyLines);
+            String[] oldReplyLines = getReplyStrings();
             int oldReplyCode = replyCode;
             if (hasFeature("UTF8") || hasFeature("UTF-8")) {
                 setControlEncoding("UTF-8");
-                bufferedReader =
-                        new CRLFLineReader(new InputStreamReader(inputStream, getControlEncoding()));
-                bufferedWriter =
-                        new BufferedWriter(new OutputStreamWriter(outputStream, getControlEncoding()));
+                setControlInput(inputStream);
+                setControlOutput(outputStream);
             }
             // restore the original reply (server greeting)
-            replyLines.clear();
-            replyLines.addAll(oldReplyLines);
-            replyCode = oldReplyCode;
-            newReplyString = true;
+            setReply(oldReplyCode, oldReplyLines);
         }
     }
 
@@ -1424,6 +1567,13 @@ public class FTPClient extends FTP implements Configurable {
      * Sets the transfer mode.  The default transfer mode
      * <code> FTP.STREAM_TRANSFER_MODE </code> if this method is never called
      * or if a connect method is called.
+     * <p>
+     * In block mode <code> FTP.BLOCK_TRANSFER_MODE </code>, the end of a file is
+     * marked within the data connection, so the server may keep the data connection
+     * open after a transfer.  If it does so, i.e. if it replies with
+     * <code> FTPReply.FILE_ACTION_OK </code> or <code> FTPReply.DATA_CONNECTION_OPEN </code>
+     * instead of <code> FTPReply.CLOSING_DATA_CONNECTION </code>, the next transfer uses
+     * the same data connection.
      *
      * @param mode The new transfer mode to use (one of the FTP class
      *             <code>_TRANSFER_MODE</code> constants).
@@ -1437,11 +1587,82 @@ public class FTPClient extends FTP implements Configurable {
      */
     public boolean setFileTransferMode(int mode) throws IOException {
         if (FTPReply.isPositiveCompletion(mode(mode))) {
+            fileTransferMode = mode;
+            if (mode != BLOCK_TRANSFER_MODE && blockDataSocket != null) {
+                // only block mode can keep a data connection open across transfers
+                Util.closeQuietly(blockDataSocket);
+                blockDataSocket = null;
+            }
             return true;
         }
         return false;
     }
 
+    /**
+     * Returns the current transfer mode, as set by {@link #setFileTransferMode(int)}.
+     *
+     * @return The current transfer mode (one of the FTP class
+     * <code>_TRANSFER_MODE</code> constants).
+     */
+    public int getFileTransferMode() {
+        return fileTransferMode;
+    }
+
+    /**
+     * Returns whether or not the server supports the deflate transfer mode
+     * <code> FTP.DEFLATE_TRANSFER_MODE </code>, i.e. whether or not it announces
+     * {@code MODE Z} in its reply to the FEAT command.
+     *
+     * @return True if the server supports the deflate transfer mode, false if not.
+     * @throws IOException If an I/O error occurs while either sending a
+     *                     command to the server or receiving a reply from the server.
+     */
+    public boolean isDeflateTransferModeSupported() throws IOException {
+        return hasFeature(FTPCmd.MODE.getCommand(), "Z");
+    }
+
+    /**
+     * Sets the compression level for the deflate transfer mode
+     * <code> FTP.DEFLATE_TRANSFER_MODE </code>.  The level is used to compress
+     * data that is stored, and it is sent to the server using
+     * {@code OPTS MODE Z LEVEL}, so the server uses it to compress data that
+     * is retrieved.  Servers need not support setting the level; if the
+     * server rejects it, it uses a level of its own choosing.
+     * The default level <code> Deflater.DEFAULT_COMPRESSION </code> is
+     * restored if a connect method is called.
+     *
+     * @param level The compression level, from 0 (no compression) to 9
+     *              (best compression), or -1 for the default level.
+     * @return True if the server accepted the level, false if not.
+     * @throws IllegalArgumentException  If the level is not valid.
+     * @throws ConnectionClosedException If the FTP server prematurely closes the connection as a result
+     *                                      of the client being idle or some other reason causing the server
+     *                                      to send FTP reply code 421.  This exception may be caught either
+     *                                      as an IOException or independently as itself.
+     * @throws IOException                  If an I/O error occurs while either sending a
+     *                                      command to the server or receiving a reply from the server.
+     */
+    public boolean setDeflateLevel(int level) throws IOException {
+        if (level < Deflater.DEFAULT_COMPRESSION || level > Deflater.BEST_COMPRESSION) {
+            throw new IllegalArgumentException("Invalid deflate level: " + level);
+        }
+        deflateLevel = level;
+        if (level == Deflater.DEFAULT_COMPRESSION) {
+            // the server's default level need not be the same as zlib's, so there is nothing to send
+            return true;
+        }
+        return FTPReply.isPositiveCompletion(sendCommand(FTPCmd.OPTS, "MODE Z LEVEL " + level));
+    }
+
+    /**
+     * Returns the compression level for the deflate transfer mode.
+     *
+     * @return The compression level.
+     */
+    public int getDeflateLevel() {
+        return deflateLevel;
+    }
+
     /**
      * Initiate a server to server file transfer.  This method tells the
      * server to which the client is connected to retrieve a given file from
@@ -1608,7 +1829,159 @@ public class FTPClient extends FTP implements Configurable {
      *                                      command to the server or receiving a reply from the server.
      */
     public boolean completePendingCommand() throws IOException {
-        return FTPReply.isPositiveCompletion(getReply());
+        Socket socket = pendingDataSocket;
+        pendingDataSocket = null;
+        boolean completed;
+        try {
+            stopControlKeepAlive();
+            completed = FTPReply.isPositiveCompletion(getTransferReply());
+            drainControlKeepAliveReplies();
+        } catch (IOException e) {
+            Util.closeQuietly(socket);
+            throw e;
+        }
+        if (socket != null) {
+            if (completed && (replyCode == FTPReply.FILE_ACTION_OK || replyCode == FTPReply.DATA_CONNECTION_OPEN)) {
+                // block mode, and the server keeps the data connection open; with 226, it closes it
+                blockDataSocket = socket;
+            } else {
+                socket.close();
+            }
+        }
+        return completed;
+    }
+
+    /**
+     * Reads the reply to a transfer command. The replies to keep-alive NOOPs that were sent during
+     * the transfer may arrive before it; they are read without being reported. A reply is taken
+     * for the reply to the transfer command if {@link #isTransferReply(int)}; any other reply,
+     * e.g. 200, or 500 or 502 from a server that rejects NOOP, is counted as the reply to a NOOP.
+     */
+    private int getTransferReply() throws IOException {
+        while (pendingNoopReplies > 0) {
+            __getReplyNoReport();
+            if (isTransferReply(replyCode)) {
+                if (getCommandSupport().getListenerCount() > 0) {
+                    fireReplyReceived(replyCode, getReplyString());
+                }
+                return replyCode;
+            }
+            pendingNoopReplies--;
+        }
+        return getReply();
+    }
+
+    /**
+     * Returns whether a reply can be the final reply to a transfer command: 225, 226 and 250 end
+     * a transfer, and 4xx and 55x replies report a failed one. None of these is a reply to NOOP.
+     */
+    private static boolean isTransferReply(int reply) {
+        return reply == FTPReply.DATA_CONNECTION_OPEN || reply == FTPReply.CLOSING_DATA_CONNECTION
+                || reply == FTPReply.FILE_ACTION_OK || FTPReply.isNegativeTransient(reply)
+                || (reply >= 550 && reply < 560);
+    }
+
+    /**
+     * Ends the keep-alive of a transfer whose data connection failed. The reply to the transfer
+     * command may come before, between or after the replies to the NOOPs, so it is read first,
+     * after which the remaining NOOP replies are drained. If that fails, the control connection
+     * is closed, since it is not known which reply the next command would get.
+     *
+     * @param cause The failure of the transfer, to which any further failures are added as suppressed.
+     */
+    private void abortControlKeepAlive(IOException cause) {
+        stopControlKeepAlive();
+        if (pendingNoopReplies == 0) {
+            // the reply to the transfer command is left to the caller, as without keep-alive
+            return;
+        }
+        try {
+            getTransferReply();
+            drainControlKeepAliveReplies();
+        } catch (IOException e) {
+            cause.addSuppressed(e);
+            try {
+                disconnect();
+            } catch (IOException e2) {
+                cause.addSuppressed(e2);
+            }
+        }
+    }
+
+    /**
+     * Starts sending keep-alive NOOPs over the control connection while a transfer is in progress,
+     * if enabled with {@link #setControlKeepAliveTimeout(long)}.
+     */
+    private void startControlKeepAlive() {
+        if (controlKeepAliveTimeout > 0) {
+            controlKeepAlive = new ControlKeepAlive();
+            controlKeepAlive.schedule(controlKeepAliveTimeout);
+        }
+    }
+
+    /**
+     * Stops sending keep-alive NOOPs. When this returns, no NOOP is being sent,
+     * and the NOOPs that were sent are counted as pending replies.
+     */
+    private void stopControlKeepAlive() {
+        if (controlKeepAlive != null) {
+            pendingNoopReplies += controlKeepAlive.stop();
+            controlKeepAlive = null;
+        }
+    }
+
+    /**
+     * Stops sending keep-alive NOOPs, and reads the replies to the NOOPs that are still pending,
+     * waiting at most {@link #getControlKeepAliveReplyTimeout()} for each. The last reply is kept.
+     */
+    private void drainControlKeepAliveReplies() throws IOException {
+        stopControlKeepAlive();
+        if (pendingNoopReplies == 0) {
+            return;
+        }
+        String[] oldReplyLines = getReplyStrings();
+        int oldReplyCode = replyCode;
+        int soTimeout = getSoTimeout();
+        setSoTimeout(controlKeepAliveReplyTimeout);
+        try {
+            while (pendingNoopReplies > 0) {
+                __getReplyNoReport();
+                pendingNoopReplies--; // only decrement if actually received
+            }
+        } catch (SocketTimeoutException e) { // NET-584
+            pendingNoopReplies = 0;
+        } finally {
+            setSoTimeout(soTimeout);
+            setReply(oldReplyCode, oldReplyLines);
+        }
+    }
+
+    /**
+     * Ends the use of a data connection after a successful transfer. In block mode, the end of the
+     * data is marked within the data connection, so the connection is kept until the server's reply
+     * to the transfer command tells whether it can be used for the next transfer; see
+     * {@link #completePendingCommand()}. Otherwise, the connection is closed.
+     *
+     * @param socket The data connection.
+     * @throws IOException If the data connection cannot be closed.
+     */
+    private void closeDataConnection(Socket socket) throws IOException {
+        if (fileTransferMode == BLOCK_TRANSFER_MODE && !socket.isClosed() && !socket.isInputShutdown()) {
+            pendingDataSocket = socket;
+        } else {
+            socket.close();
+        }
+    }
+
+    /**
+     * Returns whether or not the data connection returned by the last call to
+     * {@link #_openDataConnection_(String, String)} was kept open from a previous
+     * transfer in block mode. Such a connection is already fully set up.
+     *
+     * @return True if the last data connection was reused, false if it was newly established.
+     */
+    protected boolean isDataConnectionReused() {
+        return dataConnectionReused;
     }
 
     /**
@@ -1640,6 +2013,214 @@ public class FTPClient extends FTP implements Configurable {
         return _retrieveFile(FTPCmd.RETR.getCommand(), remote, local);
     }
 
+    /**
+     * Retrieves a named file from the server and writes it to the given
+     * local file.
+     * <p>
+     * If a restart offset has been set with {@link #setRestartOffset(long)},
+     * the file data is written to the local file starting at that offset,
+     * so an interrupted download can be resumed. Otherwise the local file is
+     * replaced. In both cases, the local file ends after the last byte received.
+     * See {@link #retrieveFile(String, FileChannel)} for details on how the file is transferred.
+     *
+     * @param remote The name of the remote file.
+     * @param local  The local file to write.
+     * @return True if successfully completed, false if not.
+     * @throws ConnectionClosedException If the FTP server prematurely closes the connection.
+     * @throws CopyStreamException       If an I/O error occurs while actually
+     *                                   transferring the file.
+     * @throws IOException               If an I/O error occurs while either writing the local file,
+     *                                   sending a command to the server or receiving a reply from the server.
+     */
+    public boolean retrieveFile(String remote, Path local)
+            throws IOException {
+        long offset = restartOffset;
+        try (FileChannel channel = FileChannel.open(local, StandardOpenOption.WRITE, StandardOpenOption.CREATE)) {
+            channel.position(offset);
+            boolean result = retrieveFile(remote, channel);
+            if (result) {
+                channel.truncate(channel.position());
+            }
+            return result;
+        }
+    }
+
+    /**
+     * Retrieves a named file from the server and writes it to the given
+     * FileChannel, starting at its current position.
+     * This method does NOT close the given FileChannel.
+     * <p>
+     * If the current file type is binary and the data connection is not encrypted,
+     * the file is received using {@link FileChannel#transferFrom(java.nio.channels.ReadableByteChannel, long, long)}
+     * from the channel of the data connection, without copying it through arrays on the heap.
+     * Because a channel cannot apply the data timeout, the data is read through the socket's
+     * stream if a data timeout has been set with {@link #setDataTimeout(int)}.
+     * ASCII transfers behave like {@link #retrieveFile(String, OutputStream)}.
+     * <p>
+     * Note: if you have used {@link #setRestartOffset(long)},
+     * the file data will start from the selected offset.
+     *
+     * @param remote The name of the remote file.
+     * @param local  The local FileChannel to which to write the file.
+     * @return True if successfully completed, false if not.
+     * @throws ConnectionClosedException If the FTP server prematurely closes the connection.
+     * @throws CopyStreamException       If an I/O error occurs while actually
+     *                                   transferring the file.
+     * @throws IOException               If an I/O error occurs while either sending a
+     *                                   command to the server or receiving a reply from the server.
+     */
+    public boolean retrieveFile(String remote, FileChannel local)
+            throws IOException {
+        if (fileType == ASCII_FILE_TYPE) {
+            // line separators need to be converted, so the data must pass through the JVM
+            return _retrieveFile(FTPCmd.RETR.getCommand(), remote, Channels.newOutputStream(local));
+        }
+
+        Socket socket = _openDataChannelConnection_(FTPCmd.RETR.getCommand(), remote);
+
+        if (socket == null) {
+            return false;
+        }
+
+        startControlKeepAlive();
+
+        try {
+            SocketChannel channel = socket.getChannel();
+            if (channel != null && dataTimeout <= 0) {
+                Util.copyFromChannel(channel, local, copyStreamListener);
+            } else {
+                // e.g. an encrypted data connection, or a custom socket factory
+                copyStreamEngine.copy(Channels.newChannel(getDataInputStream(socket)), local, getBufferSize(),
+                        CopyStreamEvent.UNKNOWN_STREAM_SIZE, copyStreamListener);
+            }
+            closeDataConnection(socket);
+
+            // Get the transfer response
+            return completePendingCommand();
+        } catch (IOException e) {
+            Util.closeQuietly(socket);
+            abortControlKeepAlive(e);
+            throw e;
+        } finally {
+            drainControlKeepAliveReplies(); // fetch any outstanding keepalive replies
+        }
+    }
+
+    /**
+     * Retrieves a part of a named file from the server and writes it to the
+     * given FileChannel at the same offset. The part is requested using a REST
+     * command with the given offset, so the server must support restarting
+     * stream transfers. Once the requested number of bytes has been received,
+     * the transfer is aborted using ABOR.
+     * <p>
+     * The position of the FileChannel is not changed, so several clients can
+     * write different parts of the same FileChannel concurrently; see
+     * {@link Util#copyFromChannel(java.nio.channels.ReadableByteChannel, FileChannel, long, long, CopyStreamListener)}.
+     * The data is written as it is received, i.e. the file type should be binary.
+     * Any restart offset set with {@link #setRestartOffset(long)} is replaced.
+     * If the data connection fails, the transfer is aborted using ABOR as well,
+     * so the replies to the transfer are not left behind for later commands.
+     *
+     * @param remote The name of the remote file.
+     * @param local  The local FileChannel to which to write the part of the file.
+     * @param offset The offset of the part, both in the remote file and in the FileChannel.
+     * @param length The length of the part, or a negative value to retrieve the rest of the file.
+     * @return The number of bytes written, or -1 if the transfer could not be started
+     * or did not complete successfully (in which case you may check the reply code).
+     * This is less than the requested length if the remote file ended before.
+     * @throws ConnectionClosedException If the FTP server prematurely closes the connection.
+     * @throws CopyStreamException       If an I/O error occurs while actually
+     *                                   transferring the file.
+     * @throws IOException               If an I/O error occurs while either sending a
+     *                                   command to the server or receiving a reply from the server.
+     */
+    public long retrieveFileRange(String remote, FileChannel local, long offset, long length)
+            throws IOException {
+        restartOffset = offset;
+
+        Socket socket = _openDataChannelConnection_(FTPCmd.RETR.getCommand(), remote);
+
+        if (socket == null) {
+            return -1;
+        }
+
+        long count;
+        boolean completed;
+        rangeDataSocket = socket;
+        try {
+            SocketChannel channel = socket.getChannel();
+            if (channel != null && dataTimeout <= 0) {
+                count = Util.copyFromChannel(channel, local, offset, length, copyStreamListener);
+            } else {
+                // e.g. an encrypted data connection, or a custom socket factory
+                count = copyStreamEngine.copy(Channels.newChannel(getDataInputStream(socket)), local,
+                        offset, length, getBufferSize(), copyStreamListener);
+            }
+        } catch (IOException e) {
+            abortTransfer(socket, e);
+            throw e;
+        } finally {
+            rangeDataSocket = null;
+        }
+        socket.close();
+        if (length >= 0 && count == length) {
+            // the rest of the file is not needed; the server replies to the aborted command first
+            // (usually with 426, or with 226 if it had already sent the whole file), then to ABOR
+            abor();
+            completed = FTPReply.isPositiveCompletion(getReply());
+        } else {
+            completed = completePendingCommand();
+        }
+        return completed ? count : -1;
+    }
+
+    /**
+     * Aborts a transfer after its data connection failed. The data connection
+     * is closed and ABOR is sent, after which both the reply to the transfer
+     * command (usually 426, or 226 if the server had already completed it) and
+     * the reply to ABOR are read. If that fails as well, the control connection
+     * is no longer in a known state, so it is closed; the failure is added to
+     * the cause as a suppressed exception.
+     *
+     * @param socket the data connection
+     * @param cause  the failure of the data connection
+     */
+    private void abortTransfer(Socket socket, IOException cause) {
+        Util.closeQuietly(socket);
+        try {
+            abor();
+            getReply();
+        } catch (IOException e) {
+            cause.addSuppressed(e);
+            try {
+                disconnect();
+            } catch (IOException e2) {
+                cause.addSuppressed(e2);
+            }
+        }
+    }
+
+    /**
+     * Cancels a call to {@link #retrieveFileRange(String, FileChannel, long, long)} or
+     * {@link #storeFileRange(String, FileChannel, long, long)} that is in progress
+     * in another thread. Unlike all other methods, this method may be called
+     * concurrently. It shuts down and closes the data connection, so the
+     * transfer in the other thread fails; it is aborted like any other failed
+     * transfer. If no such call is in progress, nothing happens.
+     */
+    public void cancelTransfer() {
+        Socket socket = rangeDataSocket;
+        if (socket != null) {
+            // closing alone does not wake up a thread that is blocked sending a file using FileChannel.transferTo
+            try {
+                socket.shutdownOutput();
+            } catch (IOException e) {
+                // the socket is closed below anyway
+            }
+            Util.closeQuietly(socket);
+        }
+    }
+
     /**
      * @param command the command to get
      * @param remote  the remote file name
@@ -1657,30 +2238,29 @@ public class FTPClient extends FTP implements Configurable {
 
         final InputStream input;
         if (fileType == ASCII_FILE_TYPE) {
-            input = new FromNetASCIIInputStream(getBufferedInputStream(socket.getInputStream()));
+            input = new FromNetASCIIInputStream(getBufferedInputStream(getDataInputStream(socket)));
         } else {
-            input = getBufferedInputStream(socket.getInputStream());
+            input = getBufferedInputStream(getDataInputStream(socket));
         }
 
-        CSL csl = null;
-        if (controlKeepAliveTimeout > 0) {
-            csl = new CSL(this, controlKeepAliveTimeout, controlKeepAliveReplyTimeout);
-        }
+        startControlKeepAlive();
 
         // Treat everything else as binary for now
         try {
-            Util.copyStream(input, local, getBufferSize(),
-                    CopyStreamEvent.UNKNOWN_STREAM_SIZE, __mergeListeners(csl),
-                    false);
+            copyStreamEngine.copy(input, local, getBufferSize(),
+                    CopyStreamEvent.UNKNOWN_STREAM_SIZE, copyStreamListener);
+            input.close();
+            closeDataConnection(socket);
 
             // Get the transfer response
             return completePendingCommand();
-        } finally {
+        } catch (IOException e) {
             Util.closeQuietly(input);
             Util.closeQuietly(socket);
-            if (csl != null) {
-                csl.cleanUp(); // fetch any outstanding keepalive replies
-            }
+            abortControlKeepAlive(e);
+            throw e;
+        } finally {
+            drainControlKeepAliveReplies(); // fetch any outstanding keepalive replies
         }
     }
 
@@ -1714,6 +2294,48 @@ public class FTPClient extends FTP implements Configurable {
         return _retrieveFileStream(FTPCmd.RETR.getCommand(), remote);
     }
 
+    /**
+     * Returns a publisher of the content of a named file. The RETR command is sent when the subscriber
+     * first requests data, and the data connection is read only as far as buffers have been requested,
+     * on the thread that requests them, so a slow subscriber slows down the server through TCP flow
+     * control. Each buffer holds at most {@link #getBufferSize()} bytes, and belongs to the subscriber.
+     * Until the subscriber has completed, failed or cancelled, no other commands can be sent to the
+     * server. If the transfer fails, the subscriber receives an {@link FTPReplyException}.
+     *
+     * @param remote The name of the remote file.
+     * @return A publisher of the content of the file, which can be subscribed to once.
+     */
+    public FTPFlow.Publisher<ByteBuffer> retrieveFilePublisher(String remote) {
+        return new FTPPublisher<>(() -> {
+            String command = FTPCmd.RETR.getCommand();
+            InputStream input = _retrieveFileStream(command, remote);
+            if (input == null) {
+                throw new FTPReplyException(new FTPCommandReply(command, remote, getReplyCode(), getReplyStrings()));
+            }
+            int size = getBufferSize() > 0 ? getBufferSize() : Util.DEFAULT_COPY_BUFFER_SIZE;
+            return new FTPPublisher.Source<ByteBuffer>() {
+                @Override
+                public ByteBuffer next() throws IOException {
+                    byte[] buffer = new byte[size];
+                    int n;
+                    do {
+                        n = input.read(buffer);
+                    } while (n == 0);
+                    return n < 0 ? null : ByteBuffer.wrap(buffer, 0, n);
+                }
+
+                @Override
+                public void close() throws IOException {
+                    input.close();
+                    if (!completePendingCommand()) {
+                        throw new FTPReplyException(
+                                new FTPCommandReply(command, remote, getReplyCode(), getReplyStrings()));
+                    }
+                }
+            };
+        });
+    }
+
     /**
      * @param command the command to send
      * @param remote  the remote file name
@@ -1737,9 +2359,12 @@ public class FTPClient extends FTP implements Configurable {
             // programmer if possible.  Programmers can decide on their
             // own if they want to wrap the SocketInputStream we return
             // for file types other than ASCII.
-            input = new FromNetASCIIInputStream(getBufferedInputStream(socket.getInputStream()));
+            input = new FromNetASCIIInputStream(getBufferedInputStream(getDataInputStream(socket)));
         } else {
-            input = socket.getInputStream();
+            input = getDataInputStream(socket);
+        }
+        if (fileTransferMode == BLOCK_TRANSFER_MODE) {
+            return new DataConnectionInputStream(socket, input);
         }
         return new SocketInputStream(socket, input);
     }
@@ -1771,6 +2396,109 @@ public class FTPClient extends FTP implements Configurable {
         return __storeFile(FTPCmd.STOR, remote, local);
     }
 
+    /**
+     * Stores a file on the server using the given name, taking input
+     * from the given local file.
+     * See {@link #storeFile(String, FileChannel)} for details.
+     *
+     * @param remote The name to give the remote file.
+     * @param local  The local file to store.
+     * @return True if successfully completed, false if not.
+     * @throws ConnectionClosedException If the FTP server prematurely closes the connection.
+     * @throws CopyStreamException       If an I/O error occurs while actually
+     *                                   transferring the file.
+     * @throws IOException               If an I/O error occurs while either reading the local file,
+     *                                   sending a command to the server or receiving a reply from the server.
+     */
+    public boolean storeFile(String remote, Path local)
+            throws IOException {
+        try (FileChannel channel = FileChannel.open(local, StandardOpenOption.READ)) {
+            return storeFile(remote, channel);
+        }
+    }
+
+    /**
+     * Stores a file on the server using the given name, taking input
+     * from the given FileChannel, starting at its current position.
+     * This method does NOT close the given FileChannel.
+     * <p>
+     * If the current file type is binary and the data connection is not encrypted,
+     * the file is sent using {@link FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)},
+     * so the operating system can send the file directly without copying it into
+     * the JVM. Otherwise this method behaves like {@link #storeFile(String, InputStream)}.
+     *
+     * @param remote The name to give the remote file.
+     * @param local  The local FileChannel from which to read the file.
+     * @return True if successfully completed, false if not.
+     * @throws ConnectionClosedException If the FTP server prematurely closes the connection.
+     * @throws CopyStreamException       If an I/O error occurs while actually
+     *                                   transferring the file.
+     * @throws IOException               If an I/O error occurs while either sending a
+     *                                   command to the server or receiving a reply from the server.
+     */
+    public boolean storeFile(String remote, FileChannel local)
+            throws IOException {
+        return __storeFile(FTPCmd.STOR, remote, local);
+    }
+
+    /**
+     * Stores a part of a local file in a file on the server at the same offset.
+     * For an offset larger than 0, a REST command with the offset is sent before
+     * the STOR command, so the server must support restarting stream transfers.
+     * Servers differ in what happens to the rest of the remote file; most leave
+     * it unchanged. For offset 0, the remote file is created or replaced.
+     * <p>
+     * The part is read from the FileChannel like {@link #storeFile(String, FileChannel)}
+     * does, but the position of the FileChannel is not changed, so several clients
+     * can store different parts of the same FileChannel concurrently.
+     * The data is sent as it is read, i.e. the file type should be binary.
+     * Any restart offset set with {@link #setRestartOffset(long)} is replaced.
+     * If the data connection fails, the transfer is aborted using ABOR,
+     * so the replies to the transfer are not left behind for later commands.
+     *
+     * @param remote The name of the remote file.
+     * @param local  The local FileChannel from which to read the part of the file.
+     * @param offset The offset of the part, both in the FileChannel and in the remote file.
+     * @param length The length of the part. Fewer bytes are sent if the local file ends before.
+     * @return True if successfully completed, false if not.
+     * @throws ConnectionClosedException If the FTP server prematurely closes the connection.
+     * @throws CopyStreamException       If an I/O error occurs while actually
+     *                                   transferring the file.
+     * @throws IOException               If an I/O error occurs while either sending a
+     *                                   command to the server or receiving a reply from the server.
+     */
+    public boolean storeFileRange(String remote, FileChannel local, long offset, long length)
+            throws IOException {
+        restartOffset = offset;
+
+        Socket socket = _openDataChannelConnection_(FTPCmd.STOR.getCommand(), remote);
+
+        if (socket == null) {
+            return false;
+        }
+
+        rangeDataSocket = socket;
+        try {
+            WritableByteChannel channel = socket.getChannel();
+            if (channel != null) {
+                Util.copyChannel(local, channel, offset, length, copyStreamListener);
+            } else {
+                // e.g. an encrypted data connection, or a custom socket factory
+                channel = Channels.newChannel(getBufferedOutputStream(getDataOutputStream(socket)));
+                copyStreamEngine.copy(local, offset, length, channel, getBufferSize(), copyStreamListener);
+            }
+            // flushes the buffered stream, if any
+            channel.close();
+            closeDataConnection(socket);
+        } catch (IOException e) {
+            abortTransfer(socket, e);
+            throw e;
+        } finally {
+            rangeDataSocket = null;
+        }
+        return completePendingCommand();
+    }
+
     /**
      * Returns an OutputStream through which data can be written to store
      * a file on the server using the given name.  If the current file type
@@ -2205,21 +2933,81 @@ public class FTPClient extends FTP implements Configurable {
     public FTPFile mlistFile(String pathname) throws IOException {
         boolean success = FTPReply.isPositiveCompletion(sendCommand(FTPCmd.MLST, pathname));
         if (success) {
-            String reply = getReplyStrings()[1];
-            /* check the response makes sense.
-             * Must have space before fact(s) and between fact(s) and filename
-             * Fact(s) can be absent, so at least 3 chars are needed.
-             */
-            if (reply.length() < 3 || reply.charAt(0) != ' ') {
-                throw new MalformedServerReplyException("Invalid server reply (MLST): '" + reply + "'");
-            }
-            String entry = reply.substring(1); // skip leading space for parser
-            return MLSxEntryParser.parseEntry(entry);
+            return parseMlistReply(getReplyStrings());
         } else {
             return null;
         }
     }
 
+    /**
+     * Get file details for several files using the MLST command.
+     * The commands are pipelined; see {@link #setMaxCommandsInFlight(int)}.
+     *
+     * @param pathnames the files or directories to list
+     * @return the file details, by path name, in the iteration order of the given path names;
+     * path names for which the command failed are not contained
+     * @throws IOException on error
+     * @see #mlistFile(String)
+     */
+    public Map<String, FTPFile> mlistFiles(Collection<String> pathnames) throws IOException {
+        Map<String, FTPFile> files = new LinkedHashMap<>();
+        for (Map.Entry<String, FTPCommandReply> entry : sendPipelined(FTPCmd.MLST, pathnames).entrySet()) {
+            FTPCommandReply reply = entry.getValue();
+            if (reply.isPositiveCompletion()) {
+                files.put(entry.getKey(), parseMlistReply(reply.getReplyStrings()));
+            }
+        }
+        return files;
+    }
+
+    static FTPFile parseMlistReply(String[] replyStrings) throws MalformedServerReplyException {
+        if (replyStrings.length < 2) {
+            throw new MalformedServerReplyException("Invalid server reply (MLST): '" + replyStrings[0] + "'");
+        }
+        String reply = replyStrings[1];
+        /* check the response makes sense.
+         * Must have space before fact(s) and between fact(s) and filename
+         * Fact(s) can be absent, so at least 3 chars are needed.
+         */
+        if (reply.length() < 3 || reply.charAt(0) != ' ') {
+            throw new MalformedServerReplyException("Invalid server reply (MLST): '" + reply + "'");
+        }
+        String entry = reply.substring(1); // skip leading space for parser
+        return MLSxEntryParser.parseEntry(entry);
+    }
+
+    /**
+     * Sends a command once for each argument through a pipeline, and returns the replies by argument.
+     * Duplicate arguments are sent only once.
+     */
+    private Map<String, FTPCommandReply> sendPipelined(FTPCmd command, Collection<String> args) throws IOException {
+        Map<String, CompletableFuture<FTPCommandReply>> futures = new LinkedHashMap<>();
+        try (FTPCommandPipeline pipeline = pipeline(maxCommandsInFlight)) {
+            for (String arg : args) {
+                if (!futures.containsKey(arg)) {
+                    futures.put(arg, pipeline.submit(command, arg));
+                }
+            }
+        }
+        // all replies have been read when the pipeline is closed
+        Map<String, FTPCommandReply> replies = new LinkedHashMap<>();
+        for (Map.Entry<String, CompletableFuture<FTPCommandReply>> entry : futures.entrySet()) {
+            replies.put(entry.getKey(), entry.getValue().join());
+        }
+        return replies;
+    }
+
+    private Map<String, String> sendPipelinedForReplyText(FTPCmd command, Collection<String> args) throws IOException {
+        Map<String, String> texts = new LinkedHashMap<>();
+        for (Map.Entry<String, FTPCommandReply> entry : sendPipelined(command, args).entrySet()) {
+            FTPCommandReply reply = entry.getValue();
+            if (reply.isPositiveCompletion() && reply.getReplyText() != null) {
+                texts.put(entry.getKey(), reply.getReplyText());
+            }
+        }
+        return texts;
+    }
+
     /**
      * Generate a directory listing for the current directory using the MLSD command.
      *
@@ -2255,6 +3043,66 @@ public class FTPClient extends FTP implements Configurable {
         return engine.getFiles(filter);
     }
 
+    /**
+     * Version of {@link #mlistDir(String)} that parses the listing while it is being received.
+     * The returned iterator keeps the data connection open, and must be closed to complete the
+     * MLSD command before any other command is sent. See {@link FTPFileIterator} for details.
+     *
+     * @param pathname the directory name, may be {@code null}
+     * @return an iterator over the file entries. If a data connection cannot be opened, the iterator has no entries.
+     * @throws IOException on error
+     */
+    public FTPFileIterator mlistDirIterator(String pathname) throws IOException {
+        return mlistDirIterator(pathname, FTPFileFilters.NON_NULL);
+    }
+
+    /**
+     * Version of {@link #mlistDirIterator(String)} which allows a filter to be provided.
+     *
+     * @param pathname the directory name, may be {@code null}
+     * @param filter   the filter to apply to the responses
+     * @return an iterator over the file entries that are accepted by the filter.
+     * If a data connection cannot be opened, the iterator has no entries.
+     * @throws IOException on error
+     */
+    public FTPFileIterator mlistDirIterator(String pathname, FTPFileFilter filter) throws IOException {
+        return initiateListIteration(FTPCmd.MLSD, pathname,
+                new FTPListParseEngine(MLSxEntryParser.getInstance(), ftpClientConfig), filter);
+    }
+
+    /**
+     * Version of {@link #mlistDirIterator(String)} that publishes the entries to a subscriber.
+     * See {@link #listFilesPublisher(String)} for details.
+     *
+     * @param pathname the directory name, may be {@code null}
+     * @return a publisher of the file entries, which can be subscribed to once
+     */
+    public FTPFlow.Publisher<FTPFile> mlistDirPublisher(String pathname) {
+        return new FTPPublisher<>(() -> newListSource(mlistDirIterator(pathname),
+                FTPCmd.MLSD.getCommand(), pathname));
+    }
+
+    private FTPPublisher.Source<FTPFile> newListSource(FTPFileIterator iterator, String command, String arg) {
+        return new FTPPublisher.Source<FTPFile>() {
+            @Override
+            public FTPFile next() throws IOException {
+                try {
+                    return iterator.hasNext() ? iterator.next() : null;
+                } catch (UncheckedIOException e) {
+                    throw e.getCause();
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                iterator.close();
+                if (!FTPReply.isPositiveCompletion(getReplyCode())) {
+                    throw new FTPReplyException(new FTPCommandReply(command, arg, getReplyCode(), getReplyStrings()));
+                }
+            }
+        };
+    }
+
     /**
      * Restart a <code>STREAM_TRANSFER_MODE</code> file transfer starting
      * from the given offset.  This will only work on FTP servers supporting
@@ -2563,7 +3411,7 @@ public class FTPClient extends FTP implements Configurable {
         }
 
         BufferedReader reader =
-                new BufferedReader(new InputStreamReader(socket.getInputStream(), getControlEncoding()));
+                new BufferedReader(new InputStreamReader(getDataInputStream(socket), getControlEncoding()));
 
         ArrayList<String> results = new ArrayList<String>();
         String line;
@@ -2572,7 +3420,7 @@ public class FTPClient extends FTP implements Configurable {
         }
 
         reader.close();
-        socket.close();
+        closeDataConnection(socket);
 
         if (completePendingCommand()) {
             String[] names = new String[results.size()];
@@ -2724,6 +3572,50 @@ public class FTPClient extends FTP implements Configurable {
 
     }
 
+    /**
+     * Version of {@link #listFiles(String)} that parses the listing while it is being received.
+     * The returned iterator keeps the data connection open, and must be closed to complete the
+     * LIST command before any other command is sent. See {@link FTPFileIterator} for details.
+     *
+     * @param pathname the initial path, may be null
+     * @return an iterator over the file information in the given path. If a data connection
+     * cannot be opened, the iterator has no entries.
+     * @throws IOException on error
+     */
+    public FTPFileIterator listFilesIterator(String pathname) throws IOException {
+        return listFilesIterator(pathname, FTPFileFilters.NON_NULL);
+    }
+
+    /**
+     * Version of {@link #listFilesIterator(String)} which allows a filter to be provided.
+     *
+     * @param pathname the initial path, may be null
+     * @param filter   the filter, non-null
+     * @return an iterator over the file information in the given path that is accepted by the filter.
+     * If a data connection cannot be opened, the iterator has no entries.
+     * @throws IOException on error
+     */
+    public FTPFileIterator listFilesIterator(String pathname, FTPFileFilter filter) throws IOException {
+        createParser(null); // create and cache parser
+        return initiateListIteration(FTPCmd.LIST, getListArguments(pathname),
+                new FTPListParseEngine(fileEntryParser, ftpClientConfig), filter);
+    }
+
+    /**
+     * Version of {@link #listFilesIterator(String)} that publishes the entries to a subscriber.
+     * The LIST command is sent when the subscriber first requests entries, and the listing is read
+     * and parsed only as far as entries have been requested, on the thread that requests them.
+     * Until the subscriber has completed, failed or cancelled, no other commands can be sent to the
+     * server. If the listing fails, the subscriber receives an {@link FTPReplyException}.
+     *
+     * @param pathname the initial path, may be null
+     * @return a publisher of the file information in the given path, which can be subscribed to once
+     */
+    public FTPFlow.Publisher<FTPFile> listFilesPublisher(String pathname) {
+        return new FTPPublisher<>(() -> newListSource(listFilesIterator(pathname),
+                FTPCmd.LIST.getCommand(), getListArguments(pathname)));
+    }
+
     /**
      * Using the default system autodetect mechanism, obtain a
      * list of directories contained in the current working directory.
@@ -3022,9 +3914,11 @@ public class FTPClient extends FTP implements Configurable {
         }
 
         try {
-            engine.readServerList(socket.getInputStream(), getControlEncoding());
-        } finally {
+            engine.readServerList(getDataInputStream(socket), getControlEncoding());
+            closeDataConnection(socket);
+        } catch (IOException | RuntimeException e) {
             Util.closeQuietly(socket);
+            throw e;
         }
 
         completePendingCommand();
@@ -3046,14 +3940,47 @@ public class FTPClient extends FTP implements Configurable {
         }
 
         try {
-            engine.readServerList(socket.getInputStream(), getControlEncoding());
-        } finally {
+            engine.readServerList(getDataInputStream(socket), getControlEncoding());
+            closeDataConnection(socket);
+        } catch (IOException | RuntimeException e) {
             Util.closeQuietly(socket);
             completePendingCommand();
+            throw e;
         }
+        completePendingCommand();
         return engine;
     }
 
+    /**
+     * Initiate list parsing that is performed while the listing is being received.
+     * The data connection is closed and the pending command is completed when the returned iterator is closed.
+     *
+     * @param command the listing command
+     * @param arg     the argument to the command, may be {@code null}
+     * @param engine  the engine that provides the parser
+     * @param filter  the filter to apply to the entries
+     * @return the iterator
+     * @throws IOException
+     */
+    private FTPFileIterator initiateListIteration(FTPCmd command, String arg, FTPListParseEngine engine,
+                                                  FTPFileFilter filter) throws IOException {
+        final Socket socket = _openDataConnection_(command, arg);
+        if (socket == null) {
+            return engine.iterateServerList(null, getControlEncoding(), filter, null);
+        }
+
+        try {
+            return engine.iterateServerList(getDataInputStream(socket), getControlEncoding(), filter, () -> {
+                Util.closeQuietly(socket);
+                completePendingCommand();
+            });
+        } catch (IOException | RuntimeException e) {
+            Util.closeQuietly(socket);
+            completePendingCommand();
+            throw e;
+        }
+    }
+
     /**
      * @param pathname the initial pathname
      * @return the adjusted string with "-a" added if necessary
@@ -3148,6 +4075,38 @@ public class FTPClient extends FTP implements Configurable {
         return null;
     }
 
+    /**
+     * Issue the FTP SIZE command to the server for several pathnames.
+     * The commands are pipelined, so the server is queried without waiting for the reply to each command;
+     * see {@link #setMaxCommandsInFlight(int)}.
+     *
+     * @param pathnames the filenames
+     * @return The size information returned by the server, by pathname, in the iteration order of the
+     * given pathnames; pathnames for which there was an error are not contained
+     * @throws IOException If an I/O error occurs while either sending a
+     *                     command to the server or receiving a reply from the server.
+     * @see #getSize(String)
+     */
+    public Map<String, String> getSizes(Collection<String> pathnames) throws IOException {
+        return sendPipelinedForReplyText(FTPCmd.SIZE, pathnames);
+    }
+
+    /**
+     * Issue the FTP MDTM command (not supported by all servers) for several pathnames.
+     * The commands are pipelined, so the server is queried without waiting for the reply to each command;
+     * see {@link #setMaxCommandsInFlight(int)}.
+     *
+     * @param pathnames The file paths to query.
+     * @return Strings representing the last file modification times in <code>YYYYMMDDhhmmss</code> format,
+     * by pathname, in the iteration order of the given pathnames; pathnames for which there was an error
+     * are not contained.
+     * @throws IOException if an I/O error occurs.
+     * @see #getModificationTime(String)
+     */
+    public Map<String, String> getModificationTimes(Collection<String> pathnames) throws IOException {
+        return sendPipelinedForReplyText(FTPCmd.MDTM, pathnames);
+    }
+
     /**
      * Issue the FTP MDTM command (not supported by all servers) to retrieve the last
      * modification time of a file. The modification string should be in the
@@ -3200,6 +4159,32 @@ public class FTPClient extends FTP implements Configurable {
         return bufferSize;
     }
 
+    /**
+     * Retrieve the maximum number of commands that methods querying several files at once,
+     * such as {@link #getSizes(Collection)}, send before reading their replies.
+     *
+     * @return The maximum number of commands in flight.
+     */
+    public int getMaxCommandsInFlight() {
+        return maxCommandsInFlight;
+    }
+
+    /**
+     * Set the maximum number of commands that methods querying several files at once,
+     * such as {@link #getSizes(Collection)}, send before reading their replies.
+     * The default is {@link FTPCommandPipeline#DEFAULT_MAX_IN_FLIGHT}.
+     *
+     * @param maxCommandsInFlight The maximum number of commands in flight. Use 1 to disable pipelining.
+     * @throws IllegalArgumentException If the maximum number of commands in flight is not positive.
+     * @see FTPCommandPipeline
+     */
+    public void setMaxCommandsInFlight(int maxCommandsInFlight) {
+        if (maxCommandsInFlight <= 0) {
+            throw new IllegalArgumentException(maxCommandsInFlight + " <= 0");
+        }
+        this.maxCommandsInFlight = maxCommandsInFlight;
+    }
+
     /**
      * Set the internal buffer size for buffered data streams.
      *
@@ -3326,6 +4311,29 @@ public class FTPClient extends FTP implements Configurable {
         copyStreamListener = listener;
     }
 
+    /**
+     * Obtain the engine that copies the data of store/retrieve operations.
+     *
+     * @return the engine, by default {@link CopyStreamEngine#getDefault()}
+     */
+    public CopyStreamEngine getCopyStreamEngine() {
+        return copyStreamEngine;
+    }
+
+    /**
+     * Set the engine that copies the data of store/retrieve operations between the data connection
+     * and the local stream. The engine determines the buffers and chunk sizes, unless a buffer size
+     * has been set with {@link #setBufferSize(int)}, and how often the {@link CopyStreamListener} is notified.
+     * Transfers from and to a FileChannel use {@link FileChannel#transferTo(long, long, WritableByteChannel)}
+     * and {@link FileChannel#transferFrom(java.nio.channels.ReadableByteChannel, long, long)} instead, unless
+     * the data passes through the socket's streams, e.g. for an encrypted data connection.
+     *
+     * @param engine the engine, may be {@code null} to use {@link CopyStreamEngine#getDefault()}
+     */
+    public void setCopyStreamEngine(CopyStreamEngine engine) {
+        copyStreamEngine = engine != null ? engine : CopyStreamEngine.getDefault();
+    }
+
     /**
      * Get the time to wait between sending control connection keepalive messages
      * when processing file upload or download.
@@ -3362,6 +4370,8 @@ public class FTPClient extends FTP implements Configurable {
 
     /**
      * Set how long to wait for control keep-alive message replies.
+     * The replies are read after the transfer, so this only limits how long completing a transfer waits
+     * for replies that are still outstanding.
      *
      * @param timeout number of milliseconds to wait (defaults to 1000)
      * @see #setControlKeepAliveTimeout(long)
@@ -3384,6 +4394,37 @@ public class FTPClient extends FTP implements Configurable {
         this.__passiveNatWorkaroundStrategy = resolver;
     }
 
+    /**
+     * Returns the stream to read the data of a data connection from.
+     * In deflate transfer mode, the data is decompressed; in block mode, the block headers are removed.
+     */
+    private InputStream getDataInputStream(Socket socket) throws IOException {
+        InputStream input = socket.getInputStream();
+        if (fileTransferMode == DEFLATE_TRANSFER_MODE) {
+            input = new FromNetDeflateInputStream(input, getBufferSize() > 0 ? getBufferSize() : Util.DEFAULT_COPY_BUFFER_SIZE);
+        } else if (fileTransferMode == BLOCK_TRANSFER_MODE) {
+            input = new FromNetBlockInputStream(input);
+        }
+        return input;
+    }
+
+    /**
+     * Returns the stream to write the data of a data connection to.
+     * In deflate transfer mode, the data is compressed; in block mode, it is sent in blocks.
+     * In both modes, the stream must be closed to finish the transfer.
+     */
+    private OutputStream getDataOutputStream(Socket socket) throws IOException {
+        OutputStream output = socket.getOutputStream();
+        if (fileTransferMode == DEFLATE_TRANSFER_MODE) {
+            output = new ToNetDeflateOutputStream(output, deflateLevel,
+                    getBufferSize() > 0 ? getBufferSize() : Util.DEFAULT_COPY_BUFFER_SIZE);
+        } else if (fileTransferMode == BLOCK_TRANSFER_MODE) {
+            output = new ToNetBlockOutputStream(output,
+                    getBufferSize() > 0 ? getBufferSize() : FromNetBlockInputStream.MAX_BLOCK_SIZE);
+        }
+        return output;
+    }
+
     private OutputStream getBufferedOutputStream(OutputStream outputStream) {
         if (bufferSize > 0) {
             return new BufferedOutputStream(outputStream, bufferSize);
@@ -3398,26 +4439,6 @@ public class FTPClient extends FTP implements Configurable {
         return new BufferedInputStream(inputStream);
     }
 
-    /**
-     * Merge two copystream listeners, either or both of which may be null.
-     *
-     * @param local the listener used by this class, may be null
-     * @return a merged listener or a single listener or null
-     */
-    private CopyStreamListener __mergeListeners(CopyStreamListener local) {
-        if (local == null) {
-            return copyStreamListener;
-        }
-        if (copyStreamListener == null) {
-            return local;
-        }
-        // Both are non-null
-        CopyStreamAdapter merged = new CopyStreamAdapter();
-        merged.addCopyStreamListener(local);
-        merged.addCopyStreamListener(copyStreamListener);
-        return merged;
-    }
-
     /**
      * Tells if automatic server encoding detection is enabled or disabled.
      *
@@ -3498,61 +4519,113 @@ public class FTPClient extends FTP implements Configurable {
         }
     }
 
-    private static class CSL implements CopyStreamListener {
+    /**
+     * The stream returned for retrieving a file in block mode. Closing it keeps the data connection for the
+     * next transfer, instead of closing it like {@link SocketInputStream} does.
+     */
+    private final class DataConnectionInputStream extends FilterInputStream {
+
+        private final Socket socket;
+
+        DataConnectionInputStream(Socket socket, InputStream input) {
+            super(input);
+            this.socket = socket;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } catch (IOException e) {
+                Util.closeQuietly(socket);
+                throw e;
+            }
+            closeDataConnection(socket);
+        }
+    }
 
-        private final FTPClient parent;
-        private final long idle;
-        private final int currentSoTimeout;
+    /**
+     * The stream returned for storing a file in block mode. Closing it keeps the data connection for the
+     * next transfer, instead of closing it like {@link SocketOutputStream} does.
+     */
+    private final class DataConnectionOutputStream extends FilterOutputStream {
 
-        private long time = System.currentTimeMillis();
-        private int notAcked;
-        private int acksAcked;
-        private int ioErrors;
+        private final Socket socket;
 
-        CSL(FTPClient parent, long idleTime, int maxWait) throws SocketException {
-            this.idle = idleTime;
-            this.parent = parent;
-            this.currentSoTimeout = parent.getSoTimeout();
-            parent.setSoTimeout(maxWait);
+        DataConnectionOutputStream(Socket socket, OutputStream output) {
+            super(output);
+            this.socket = socket;
         }
 
         @Override
-        public void bytesTransferred(CopyStreamEvent event) {
-            bytesTransferred(event.getTotalBytesTransferred(), event.getBytesTransferred(), event.getStreamSize());
+        public void write(byte[] buffer, int offset, int length) throws IOException {
+            out.write(buffer, offset, length);
         }
 
         @Override
-        public void bytesTransferred(long totalBytesTransferred,
-                                     int bytesTransferred, long streamSize) {
-            long now = System.currentTimeMillis();
-            if (now - time > idle) {
-                try {
-                    parent.__noop();
-                    acksAcked++;
-                } catch (SocketTimeoutException e) {
-                    notAcked++;
-                } catch (IOException e) {
-                    ioErrors++;
-                    // Ignored
-                }
-                time = now;
+        public void close() throws IOException {
+            try {
+                super.close();
+            } catch (IOException e) {
+                Util.closeQuietly(socket);
+                throw e;
             }
+            closeDataConnection(socket);
+        }
+    }
+
+    /**
+     * Sends NOOPs over the control connection at a fixed rate on a shared scheduler thread,
+     * so the transfer does not have to. Replies are not read here, but counted by
+     * {@link #stop()} and read by {@link #completePendingCommand()} after the transfer.
+     */
+    private final class ControlKeepAlive implements Runnable {
+
+        private ScheduledFuture<?> future;
+        private boolean stopped;
+        private int sent;
+
+        void schedule(long period) {
+            future = KeepAliveScheduler.INSTANCE.scheduleAtFixedRate(this, period, period, TimeUnit.MILLISECONDS);
         }
 
-        int[] cleanUp() throws IOException {
-            int remain = notAcked;
+        @Override
+        public synchronized void run() {
+            if (stopped) {
+                return;
+            }
             try {
-                while (notAcked > 0) {
-                    parent.getReply(); // we do want to see these
-                    notAcked--; // only decrement if actually received
-                }
-            } catch (SocketTimeoutException e) { // NET-584
-                // ignored
-            } finally {
-                parent.setSoTimeout(currentSoTimeout);
+                __sendNoop();
+                sent++;
+            } catch (IOException e) {
+                // the transfer will notice a broken connection
+                stopped = true;
             }
-            return new int[]{acksAcked, remain, notAcked, ioErrors}; // debug counts
         }
 
+        /**
+         * @return the number of NOOPs that were sent
+         */
+        synchronized int stop() {
+            stopped = true;
+            future.cancel(false);
+            return sent;
+        }
+    }
+
+    /**
+     * Holds the scheduler of the keep-alive, which is only created if keep-alive is used.
+     */
+    private static final class KeepAliveScheduler {
+
+        private static final ScheduledThreadPoolExecutor INSTANCE = new ScheduledThreadPoolExecutor(1, r -> {
+            Thread thread = new Thread(r, "ftp-control-keepalive");
+            thread.setDaemon(true);
+            return thread;
+        });
+
+        static {
+            INSTANCE.setRemoveOnCancelPolicy(true);
+        }
     }
 }
@@ -23,6 +23,7 @@ public enum FTPCmd {
     MODE,
     NLST,
     NOOP,
+    OPTS,
     PASS,
     PASV,
     PORT,
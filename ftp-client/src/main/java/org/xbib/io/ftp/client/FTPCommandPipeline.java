@@ -0,0 +1,212 @@
+package org.xbib.io.ftp.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Sends commands over the control connection without waiting for the reply to each command first.
+ * <p>
+ * {@link FTP#sendCommand(String, String)} writes a command and then blocks until its reply has been read, so a
+ * batch of commands costs one round trip per command. A pipeline writes up to a maximum number of commands
+ * back-to-back, and reads the replies afterwards. Since an FTP server handles the commands on a control
+ * connection one after another, the replies arrive in the order in which the commands were sent, and each reply
+ * is matched to its command in that order.
+ * <p>
+ * Each submitted command returns a future for its reply. A reply is read when the maximum number of commands
+ * is in flight and another command is submitted, or when {@link #sync()} or {@link #close()} is called; the
+ * future is completed at that time, in the thread that reads the reply. Calling {@link CompletableFuture#get()}
+ * for a command whose reply has not been read yet blocks forever, so call {@link #sync()} first. Negative
+ * replies complete the future normally; the reply code tells whether the command succeeded. If the
+ * connection fails, the futures of all commands whose replies have not been read are completed exceptionally
+ * with the same exception, and the pipeline cannot be used anymore.
+ * <p>
+ * Only commands that are answered with a single reply on the control connection, such as {@code SIZE},
+ * {@code MDTM}, {@code MLST} or {@code DELE}, should be pipelined. Commands that open a data connection must not
+ * be pipelined. Preliminary replies are skipped, and the future is completed with the reply that follows.
+ * <p>
+ * Not all servers read commands ahead while they are still handling an earlier command; these servers
+ * simply handle the commands one at a time. The maximum number of commands in flight should stay moderate
+ * though, since neither the client nor the server reads replies while it is blocked writing commands.
+ * <p>
+ * While a pipeline has commands in flight, no other commands must be sent over the same connection.
+ * A pipeline is not thread-safe.
+ * <p>
+ * Example:
+ * <pre>
+ *    List&lt;CompletableFuture&lt;FTPCommandReply&gt;&gt; replies = new ArrayList&lt;&gt;();
+ *    try (FTPCommandPipeline pipeline = ftp.pipeline()) {
+ *        for (String path : paths) {
+ *            replies.add(pipeline.submit(FTPCmd.SIZE, path));
+ *        }
+ *    }
+ *    // all replies have been read
+ * </pre>
+ *
+ * @see FTP#pipeline(int)
+ */
+public final class FTPCommandPipeline implements Closeable {
+
+    /**
+     * The default maximum number of commands in flight.
+     */
+    public static final int DEFAULT_MAX_IN_FLIGHT = 32;
+
+    private final FTP ftp;
+    private final int maxInFlight;
+    private final Deque<PendingCommand> pending;
+
+    private boolean flushed = true;
+    private IOException failure;
+    private boolean closed;
+
+    FTPCommandPipeline(FTP ftp, int maxInFlight) {
+        if (maxInFlight <= 0) {
+            throw new IllegalArgumentException(maxInFlight + " <= 0");
+        }
+        this.ftp = ftp;
+        this.maxInFlight = maxInFlight;
+        this.pending = new ArrayDeque<>(maxInFlight);
+    }
+
+    /**
+     * @return The maximum number of commands in flight.
+     */
+    public int getMaxInFlight() {
+        return maxInFlight;
+    }
+
+    /**
+     * @return The number of commands that have been sent but whose replies have not been read yet.
+     */
+    public int getInFlight() {
+        return pending.size();
+    }
+
+    /**
+     * Sends a command. If the maximum number of commands is already in flight, the reply to the oldest command
+     * is read first.
+     *
+     * @param command The FTPCmd enum corresponding to the FTP command to send.
+     * @param args    The arguments to the FTP command. If this parameter is set to null, then the command is
+     *                sent with no argument.
+     * @return A future for the reply to the command.
+     * @throws IOException If the pipeline has been closed or has failed, or if an I/O error occurs while sending
+     *                     the command or while reading an earlier reply.
+     */
+    public CompletableFuture<FTPCommandReply> submit(FTPCmd command, String args) throws IOException {
+        return submit(command.getCommand(), args);
+    }
+
+    /**
+     * Sends a command. If the maximum number of commands is already in flight, the reply to the oldest command
+     * is read first.
+     *
+     * @param command The text representation of the FTP command to send.
+     * @param args    The arguments to the FTP command. If this parameter is set to null, then the command is
+     *                sent with no argument.
+     * @return A future for the reply to the command.
+     * @throws IOException If the pipeline has been closed or has failed, or if an I/O error occurs while sending
+     *                     the command or while reading an earlier reply.
+     */
+    public CompletableFuture<FTPCommandReply> submit(String command, String args) throws IOException {
+        ensureUsable();
+        while (pending.size() >= maxInFlight) {
+            readReply();
+        }
+        PendingCommand pendingCommand = new PendingCommand(command, args);
+        try {
+            ftp.sendCommandWithoutReply(command, args, false);
+        } catch (IOException e) {
+            fail(e);
+            throw e;
+        }
+        flushed = false;
+        pending.add(pendingCommand);
+        return pendingCommand.future;
+    }
+
+    /**
+     * Reads the replies to all commands in flight, completing their futures.
+     *
+     * @throws IOException If the pipeline has been closed or has failed, or if an I/O error occurs while
+     *                     reading a reply.
+     */
+    public void sync() throws IOException {
+        ensureUsable();
+        while (!pending.isEmpty()) {
+            readReply();
+        }
+    }
+
+    /**
+     * Reads the replies to all commands in flight, and closes the pipeline.
+     * The connection itself is not closed. If the pipeline has failed, this method does nothing.
+     *
+     * @throws IOException If an I/O error occurs while reading a reply.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        try {
+            if (failure == null) {
+                sync();
+            }
+        } finally {
+            closed = true;
+        }
+    }
+
+    private void ensureUsable() throws IOException {
+        if (failure != null) {
+            throw new IOException("pipeline failed", failure);
+        }
+        if (closed) {
+            throw new IOException("pipeline closed");
+        }
+    }
+
+    private void readReply() throws IOException {
+        PendingCommand pendingCommand = pending.peek();
+        int replyCode;
+        try {
+            if (!flushed) {
+                ftp.flushCommands();
+                flushed = true;
+            }
+            do {
+                replyCode = ftp.getReply();
+            } while (FTPReply.isPositivePreliminary(replyCode));
+        } catch (IOException e) {
+            fail(e);
+            throw e;
+        }
+        pending.remove();
+        pendingCommand.future.complete(new FTPCommandReply(pendingCommand.command, pendingCommand.args,
+                replyCode, ftp.getReplyStrings()));
+    }
+
+    private void fail(IOException e) {
+        failure = e;
+        while (!pending.isEmpty()) {
+            pending.remove().future.completeExceptionally(e);
+        }
+    }
+
+    private static final class PendingCommand {
+
+        private final String command;
+        private final String args;
+        private final CompletableFuture<FTPCommandReply> future;
+
+        private PendingCommand(String command, String args) {
+            this.command = command;
+            this.args = args;
+            this.future = new CompletableFuture<>();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package org.xbib.io.ftp.client;
+
+import java.util.Arrays;
+
+/**
+ * The reply to a command that was sent through an {@link FTPCommandPipeline} or an {@link FTPControlConnection}.
+ * <p>
+ * Since the replies to pipelined commands are read one after another, {@link FTP#getReplyCode()} and
+ * {@link FTP#getReplyStrings()} only describe the last reply that was read. This class keeps the reply to
+ * one command, together with the command it belongs to.
+ */
+public final class FTPCommandReply {
+
+    private final String command;
+    private final String args;
+    private final int replyCode;
+    private final String[] replyStrings;
+
+    FTPCommandReply(String command, String args, int replyCode, String[] replyStrings) {
+        this.command = command;
+        this.args = args;
+        this.replyCode = replyCode;
+        this.replyStrings = replyStrings;
+    }
+
+    /**
+     * @return The command this is the reply to, or null for the greeting of the server.
+     */
+    public String getCommand() {
+        return command;
+    }
+
+    /**
+     * @return The arguments of the command this is the reply to, or null if it was sent without arguments.
+     */
+    public String getArguments() {
+        return args;
+    }
+
+    /**
+     * @return The integer value of the reply code.
+     */
+    public int getReplyCode() {
+        return replyCode;
+    }
+
+    /**
+     * Returns the lines of text of the reply, one entry per line, without end of line markers.
+     * For a multi-line reply this includes the first and the last line.
+     *
+     * @return The lines of text of the reply.
+     */
+    public String[] getReplyStrings() {
+        return replyStrings.clone();
+    }
+
+    /**
+     * Returns the text of the reply after the reply code, if the reply consists of a single line.
+     * For a reply such as {@code 213 1234} this returns {@code 1234}.
+     *
+     * @return The text of the reply after the reply code, or null if the reply consists of multiple lines.
+     */
+    public String getReplyText() {
+        if (replyStrings.length != 1) {
+            return null;
+        }
+        String line = replyStrings[0];
+        return line.length() > FTP.REPLY_CODE_LEN ? line.substring(FTP.REPLY_CODE_LEN + 1) : "";
+    }
+
+    /**
+     * @return Whether the reply code indicates a positive completion.
+     * @see FTPReply#isPositiveCompletion(int)
+     */
+    public boolean isPositiveCompletion() {
+        return FTPReply.isPositiveCompletion(replyCode);
+    }
+
+    @Override
+    public String toString() {
+        if (command == null) {
+            return Arrays.toString(replyStrings);
+        }
+        return (args == null ? command : command + " " + args) + " -> " + Arrays.toString(replyStrings);
+    }
+}
@@ -0,0 +1,168 @@
+package org.xbib.io.ftp.client;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Writes commands to the control connection.
+ * <p>
+ * Each command line is assembled in a reused character buffer and encoded with a cached encoder into a reused
+ * byte buffer, which is written to the connection when it is flushed or full. Once the buffers have grown to the
+ * size of the longest command, writing a command does not allocate any objects.
+ * <p>
+ * Like {@link java.io.OutputStreamWriter}, characters that cannot be encoded are replaced.
+ * <p>
+ * Commands can also be written to a non-blocking channel. The byte buffer then grows to hold all commands
+ * that have not been written yet, and {@link #flush()} writes as many bytes as the channel accepts.
+ */
+final class FTPCommandWriter {
+
+    private static final int BUFFER_SIZE = 1024;
+
+    private OutputStream output;
+    private WritableByteChannel channel;
+    private Charset charset;
+    private CharsetEncoder encoder;
+
+    private CharBuffer chars = CharBuffer.allocate(BUFFER_SIZE);
+    private ByteBuffer bytes = ByteBuffer.allocate(BUFFER_SIZE * 4);
+
+    FTPCommandWriter(Charset charset) {
+        setCharset(charset);
+    }
+
+    /**
+     * Sets the stream to write commands to. Commands that were written to a different stream but not flushed are discarded.
+     */
+    void setOutput(OutputStream output) {
+        if (output != this.output || channel != null) {
+            this.output = output;
+            this.channel = null;
+            bytes.clear();
+        }
+    }
+
+    /**
+     * Sets the channel to write commands to, which may be in non-blocking mode.
+     * Commands that were written to a different stream or channel but not flushed are discarded.
+     */
+    void setOutput(WritableByteChannel channel) {
+        if (channel != this.channel || output != null) {
+            this.output = null;
+            this.channel = channel;
+            bytes.clear();
+        }
+    }
+
+    /**
+     * Sets the encoding used for the following commands.
+     */
+    void setCharset(Charset charset) {
+        if (!charset.equals(this.charset)) {
+            this.charset = charset;
+            this.encoder = charset.newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        }
+    }
+
+    boolean isOpen() {
+        return output != null || channel != null;
+    }
+
+    /**
+     * Writes a command line, consisting of the command, a space and the arguments if not null, and CRLF.
+     * The command is buffered until {@link #flush()} is called or the buffer is full.
+     */
+    void write(String command, String args) throws IOException {
+        if (!isOpen()) {
+            throw new IOException("Connection is not open");
+        }
+        int length = command.length() + 2;
+        if (args != null) {
+            length += args.length() + 1;
+        }
+        if (length > chars.capacity()) {
+            chars = CharBuffer.allocate(Math.max(length, chars.capacity() * 2));
+        }
+        chars.clear();
+        char[] array = chars.array();
+        int position = 0;
+        command.getChars(0, command.length(), array, position);
+        position += command.length();
+        if (args != null) {
+            array[position++] = ' ';
+            args.getChars(0, args.length(), array, position);
+            position += args.length();
+        }
+        array[position++] = '\r';
+        array[position++] = '\n';
+        chars.limit(position);
+
+        encoder.reset();
+        CoderResult result;
+        while ((result = encoder.encode(chars, bytes, true)).isOverflow()) {
+            overflow();
+        }
+        while (encoder.flush(bytes).isOverflow()) {
+            overflow();
+        }
+        if (result.isError()) {
+            result.throwException();
+        }
+    }
+
+    /**
+     * Writes all buffered commands to the connection, and flushes it.
+     *
+     * @return Whether all commands have been written; false if a non-blocking channel did not accept all bytes.
+     */
+    boolean flush() throws IOException {
+        if (channel != null) {
+            bytes.flip();
+            try {
+                while (bytes.hasRemaining() && channel.write(bytes) > 0) {
+                    continue;
+                }
+            } finally {
+                bytes.compact();
+            }
+            return bytes.position() == 0;
+        }
+        if (output == null) {
+            throw new IOException("Connection is not open");
+        }
+        writeBytes();
+        output.flush();
+        return true;
+    }
+
+    private void overflow() throws IOException {
+        if (channel != null) {
+            // keep the bytes until the channel accepts them
+            ByteBuffer grown = ByteBuffer.allocate(bytes.capacity() * 2);
+            bytes.flip();
+            grown.put(bytes);
+            bytes = grown;
+        } else {
+            writeBytes();
+        }
+    }
+
+    private void writeBytes() throws IOException {
+        if (bytes.position() > 0) {
+            try {
+                output.write(bytes.array(), 0, bytes.position());
+            } finally {
+                bytes.clear();
+            }
+        }
+    }
+}
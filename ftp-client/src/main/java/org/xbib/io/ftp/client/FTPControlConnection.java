@@ -0,0 +1,682 @@
+package org.xbib.io.ftp.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A non-blocking FTP control connection that is driven by an event loop of a {@link FTPEventLoopGroup}.
+ * <p>
+ * {@link FTP} blocks the calling thread while it waits for a reply, so every session needs a thread of its own.
+ * This class sends the same commands and parses the replies the same way as {@link FTP}, but over a non-blocking
+ * {@link SocketChannel}, so a few event loop threads can serve thousands of sessions. Each operation returns
+ * a future for the reply; nothing blocks the calling thread.
+ * <p>
+ * The connection moves through the states of {@link State}. Commands are sent one at a time, in the order in
+ * which they were submitted; a command that is submitted while another command waits for its reply, or while
+ * the connection waits for the greeting of the server, is queued. The future of a command is completed with the
+ * final reply to it; preliminary replies are skipped. Negative replies complete the future normally, as with
+ * {@link FTP#sendCommand(String, String)} the reply code tells whether the command succeeded. If the server
+ * replies with 421, or the connection fails or times out, the connection is closed, and the futures of all
+ * commands that have not been answered yet are completed exceptionally. A {@link SocketTimeoutException} is used
+ * for timeouts, and a {@link ConnectionClosedException} for the 421 reply.
+ * <p>
+ * The futures are completed, and the {@link ProtocolCommandListener}s are called, on the event loop thread of
+ * the connection. Dependent actions that block must therefore run asynchronously, e.g. with
+ * {@link CompletableFuture#thenApplyAsync(java.util.function.Function)}, since they would otherwise stall all
+ * connections of the event loop. {@link #login(String, String)} queues the password right behind the user name, so
+ * no command that is submitted after it is sent in between.
+ * <p>
+ * This class only handles the control connection. Commands that open a data connection, such as {@code RETR} or
+ * {@code LIST}, need a data connection that is opened separately. The settings must be configured before
+ * {@link #connect(InetSocketAddress)} is called. A connection can only be connected once.
+ * <p>
+ * Example:
+ * <pre>
+ *    FTPControlConnection connection = new FTPControlConnection(group);
+ *    connection.connect("ftp.example.com", FTP.DEFAULT_PORT)
+ *        .thenCompose(greeting -&gt; connection.login("anonymous", "guest"))
+ *        .thenCompose(loggedIn -&gt; connection.sendCommand(FTPCmd.MDTM, "/pub/README"))
+ *        .whenComplete((reply, e) -&gt; connection.close());
+ * </pre>
+ *
+ * @see FTPEventLoopGroup
+ */
+public final class FTPControlConnection implements Closeable {
+
+    private static final Logger logger = Logger.getLogger(FTPControlConnection.class.getName());
+
+    /**
+     * The states of a control connection.
+     */
+    public enum State {
+        /**
+         * {@link #connect(InetSocketAddress)} has not been called yet.
+         */
+        NEW,
+        /**
+         * The TCP connection is being established.
+         */
+        CONNECTING,
+        /**
+         * The connection waits for the greeting of the server.
+         */
+        GREETING,
+        /**
+         * The connection is idle.
+         */
+        READY,
+        /**
+         * A command has been sent, and the connection waits for the reply.
+         */
+        AWAITING_REPLY,
+        /**
+         * The connection is closed.
+         */
+        CLOSED
+    }
+
+    private final FTPEventLoop loop;
+    private final ProtocolCommandSupport commandSupport;
+    private final AtomicInteger pendingCommands = new AtomicInteger();
+
+    private String controlEncoding = FTP.DEFAULT_CONTROL_ENCODING;
+    private boolean strictMultilineParsing = false;
+    private boolean strictReplyParsing = true;
+    private int connectTimeout = 0;
+    private int replyTimeout = 0;
+
+    private volatile State state = State.NEW;
+    private CompletableFuture<FTPCommandReply> greeting;
+    private InetSocketAddress remoteAddress;
+
+    // only accessed on the event loop thread
+    private final FTPReplyReader replyReader;
+    private final FTPCommandWriter commandWriter;
+    private final Deque<Command> commands = new ArrayDeque<>();
+    private SocketChannel channel;
+    private SelectionKey key;
+    private Command current;
+    private boolean deadlineSet;
+    private long deadline;
+    private int activeTransfers;
+
+    /**
+     * Creates a connection that is driven by one of the event loops of the given group.
+     *
+     * @param group The event loop group.
+     */
+    public FTPControlConnection(FTPEventLoopGroup group) {
+        this.loop = group.next();
+        this.commandSupport = new ProtocolCommandSupport(this);
+        Charset charset = Charset.forName(FTP.DEFAULT_CONTROL_ENCODING);
+        this.replyReader = new FTPReplyReader(charset);
+        this.commandWriter = new FTPCommandWriter(charset);
+    }
+
+    /**
+     * @return The character encoding used to communicate over the control connection.
+     */
+    public String getControlEncoding() {
+        return controlEncoding;
+    }
+
+    /**
+     * Sets the character encoding to be used by the control connection.
+     *
+     * @param encoding The new character encoding for the control connection.
+     * @see FTP#setControlEncoding(String)
+     */
+    public void setControlEncoding(String encoding) {
+        this.controlEncoding = encoding;
+    }
+
+    /**
+     * @return True if strict (RFC-compliant) multi-line reply parsing is enabled.
+     */
+    public boolean isStrictMultilineParsing() {
+        return strictMultilineParsing;
+    }
+
+    /**
+     * Sets strict multi-line reply parsing.
+     *
+     * @param strictMultilineParsing the setting
+     * @see FTP#setStrictMultilineParsing(boolean)
+     */
+    public void setStrictMultilineParsing(boolean strictMultilineParsing) {
+        this.strictMultilineParsing = strictMultilineParsing;
+    }
+
+    /**
+     * @return True if strict non-multiline reply parsing is enabled.
+     */
+    public boolean isStrictReplyParsing() {
+        return strictReplyParsing;
+    }
+
+    /**
+     * Sets strict non-multiline reply parsing.
+     *
+     * @param strictReplyParsing the setting
+     * @see FTP#setStrictReplyParsing(boolean)
+     */
+    public void setStrictReplyParsing(boolean strictReplyParsing) {
+        this.strictReplyParsing = strictReplyParsing;
+    }
+
+    /**
+     * @return The timeout in milliseconds for establishing the connection and receiving the greeting.
+     */
+    public int getConnectTimeout() {
+        return connectTimeout;
+    }
+
+    /**
+     * Sets the timeout for establishing the connection and receiving the greeting of the server.
+     *
+     * @param connectTimeout The timeout in milliseconds; 0 means no timeout.
+     */
+    public void setConnectTimeout(int connectTimeout) {
+        this.connectTimeout = connectTimeout;
+    }
+
+    /**
+     * @return The timeout in milliseconds for waiting for a reply.
+     */
+    public int getReplyTimeout() {
+        return replyTimeout;
+    }
+
+    /**
+     * Sets the timeout for waiting for the reply to a command, and between a preliminary reply and the reply that
+     * follows it. The timeout is checked in intervals of a tenth of a second. It is paused while data is
+     * transferred over a data connection, which has a timeout of its own.
+     *
+     * @param replyTimeout The timeout in milliseconds; 0 means no timeout.
+     */
+    public void setReplyTimeout(int replyTimeout) {
+        this.replyTimeout = replyTimeout;
+    }
+
+    /**
+     * Adds a listener that is notified of the commands sent and replies received, on the event loop thread.
+     *
+     * @param listener The listener to add.
+     */
+    public void addProtocolCommandListener(ProtocolCommandListener listener) {
+        commandSupport.addProtocolCommandListener(listener);
+    }
+
+    /**
+     * Removes a listener.
+     *
+     * @param listener The listener to remove.
+     */
+    public void removeProtocolCommandListener(ProtocolCommandListener listener) {
+        commandSupport.removeProtocolCommandListener(listener);
+    }
+
+    /**
+     * @return The current state of the connection.
+     */
+    public State getState() {
+        return state;
+    }
+
+    /**
+     * @return Whether the TCP connection has been established and has not been closed yet.
+     */
+    public boolean isConnected() {
+        State s = state;
+        return s == State.GREETING || s == State.READY || s == State.AWAITING_REPLY;
+    }
+
+    /**
+     * @return The number of commands that have been submitted and not been answered yet.
+     */
+    public int getPendingCommandCount() {
+        return pendingCommands.get();
+    }
+
+    /**
+     * Connects to the given host. The host name is resolved by the calling thread.
+     *
+     * @param host The name of the host.
+     * @param port The port.
+     * @return A future for the greeting of the server.
+     * @see #connect(InetSocketAddress)
+     */
+    public CompletableFuture<FTPCommandReply> connect(String host, int port) {
+        return connect(new InetSocketAddress(host, port));
+    }
+
+    /**
+     * Connects to the given address. The future is completed with the greeting of the server, which is the reply
+     * that follows a preliminary 120 reply if the server sends one. The reply has no command. Like with
+     * {@link FTP}, a negative greeting does not fail the future; its reply code tells whether the server accepts
+     * the session.
+     *
+     * @param address The address of the server.
+     * @return A future for the greeting of the server.
+     * @throws IllegalStateException If this method has been called before.
+     */
+    public CompletableFuture<FTPCommandReply> connect(InetSocketAddress address) {
+        CompletableFuture<FTPCommandReply> future = new CompletableFuture<>();
+        Charset charset;
+        try {
+            charset = Charset.forName(controlEncoding);
+        } catch (IllegalArgumentException e) {
+            future.completeExceptionally(new UnsupportedEncodingException(controlEncoding));
+            return future;
+        }
+        synchronized (this) {
+            if (state != State.NEW) {
+                throw new IllegalStateException("connection is " + state);
+            }
+            greeting = future;
+            remoteAddress = address;
+            state = State.CONNECTING;
+        }
+        if (!execute(() -> open(address, charset))) {
+            future.completeExceptionally(new IOException("event loop closed"));
+        }
+        return future;
+    }
+
+    /**
+     * Sends a command.
+     *
+     * @param command The FTP command to send.
+     * @param args    The arguments to the FTP command, or null.
+     * @return A future for the final reply to the command.
+     */
+    public CompletableFuture<FTPCommandReply> sendCommand(FTPCmd command, String args) {
+        return sendCommand(command.getCommand(), args);
+    }
+
+    /**
+     * Sends a command without arguments.
+     *
+     * @param command The text representation of the FTP command to send.
+     * @return A future for the final reply to the command.
+     */
+    public CompletableFuture<FTPCommandReply> sendCommand(String command) {
+        return sendCommand(command, null);
+    }
+
+    /**
+     * Sends a command. The command is queued if the connection is waiting for a reply or the greeting.
+     * If the connection has not been connected, or is closed, the future fails with an {@link IOException}.
+     *
+     * @param command The text representation of the FTP command to send.
+     * @param args    The arguments to the FTP command, or null.
+     * @return A future for the final reply to the command.
+     */
+    public CompletableFuture<FTPCommandReply> sendCommand(String command, String args) {
+        return send(new Command(command, args));
+    }
+
+    /**
+     * Logs in with the given user name and password, like {@link FTPClient#login(String, String)}.
+     *
+     * @param username The user name.
+     * @param password The password.
+     * @return A future that is completed with true if the login was successful.
+     */
+    public CompletableFuture<Boolean> login(String username, String password) {
+        Command user = new Command(FTPCmd.USER.getCommand(), username);
+        // queued right behind USER, so that no other command can be sent in between
+        Command pass = new Command(FTPCmd.PASS.getCommand(), password, user);
+        return send(user, pass).thenCompose(reply -> {
+            if (reply.isPositiveCompletion()) {
+                return CompletableFuture.completedFuture(true);
+            }
+            // If we get here, we either have an error code, or an intermediate
+            // reply requesting password.
+            if (!FTPReply.isPositiveIntermediate(reply.getReplyCode())) {
+                return CompletableFuture.completedFuture(false);
+            }
+            return pass.future.thenApply(FTPCommandReply::isPositiveCompletion);
+        });
+    }
+
+    /**
+     * Logs out by sending the {@code QUIT} command. The server then closes the connection.
+     *
+     * @return A future that is completed with true if the logout was successful.
+     */
+    public CompletableFuture<Boolean> logout() {
+        return sendCommand(FTPCmd.QUIT, null).thenApply(FTPCommandReply::isPositiveCompletion);
+    }
+
+    /**
+     * Closes the connection. Commands that have not been answered yet fail with an {@link IOException}.
+     * The connection is closed on the event loop thread, so it may not be closed yet when this method returns.
+     */
+    @Override
+    public void close() {
+        IOException cause = new IOException("connection closed");
+        if (loop.inEventLoop()) {
+            close(cause);
+        } else {
+            execute(() -> close(cause));
+        }
+    }
+
+    FTPEventLoop eventLoop() {
+        return loop;
+    }
+
+    /**
+     * Pauses the reply timeout until {@link #transferEnded()} is called. The final reply to a transfer command
+     * only comes after the data has been transferred, which may take longer than the reply timeout.
+     */
+    void transferStarted() {
+        if (loop.inEventLoop()) {
+            activeTransfers++;
+        } else {
+            execute(() -> activeTransfers++);
+        }
+    }
+
+    /**
+     * Resumes the reply timeout, which starts over for the final reply to the transfer command.
+     */
+    void transferEnded() {
+        Runnable task = () -> {
+            activeTransfers--;
+            if (deadlineSet) {
+                setDeadline(replyTimeout);
+            }
+        };
+        if (loop.inEventLoop()) {
+            task.run();
+        } else {
+            execute(task);
+        }
+    }
+
+    /**
+     * @return The address the connection was connected to, or null if it has not been connected.
+     */
+    InetSocketAddress getRemoteAddress() {
+        return remoteAddress;
+    }
+
+    @Override
+    public String toString() {
+        return "FTPControlConnection[" + state + (channel != null ? ", " + channel : "") + "]";
+    }
+
+    /**
+     * Queues the given commands one after the other, and returns the future for the first one.
+     */
+    private CompletableFuture<FTPCommandReply> send(Command... cs) {
+        pendingCommands.addAndGet(cs.length);
+        if (loop.inEventLoop()) {
+            enqueue(cs);
+        } else if (!execute(() -> enqueue(cs))) {
+            IOException cause = new IOException("event loop closed");
+            for (Command c : cs) {
+                fail(c, cause);
+            }
+        }
+        return cs[0].future;
+    }
+
+    private boolean execute(Runnable task) {
+        try {
+            loop.execute(task);
+            return true;
+        } catch (RejectedExecutionException e) {
+            // the event loop has closed all connections
+            state = State.CLOSED;
+            return false;
+        }
+    }
+
+    private void complete(Command c, FTPCommandReply reply) {
+        pendingCommands.decrementAndGet();
+        c.future.complete(reply);
+    }
+
+    private void fail(Command c, IOException cause) {
+        pendingCommands.decrementAndGet();
+        c.future.completeExceptionally(cause);
+    }
+
+    // the following methods run on the event loop thread
+
+    private void open(InetSocketAddress address, Charset charset) {
+        if (state == State.CLOSED) {
+            greeting.completeExceptionally(new IOException("connection closed"));
+            return;
+        }
+        replyReader.setCharset(charset);
+        commandWriter.setCharset(charset);
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            key = channel.register(loop.selector(), 0, new Handler());
+            setDeadline(connectTimeout);
+            if (channel.connect(address)) {
+                connected();
+            } else {
+                key.interestOps(SelectionKey.OP_CONNECT);
+            }
+        } catch (IOException e) {
+            close(e);
+        }
+    }
+
+    private void connected() {
+        replyReader.setInput(channel);
+        commandWriter.setOutput(channel);
+        state = State.GREETING;
+        key.interestOps(SelectionKey.OP_READ);
+    }
+
+    private void enqueue(Command... cs) {
+        if (state == State.NEW || state == State.CLOSED) {
+            IOException cause = new IOException("Connection is not open");
+            for (Command c : cs) {
+                fail(c, cause);
+            }
+            return;
+        }
+        Collections.addAll(commands, cs);
+        if (state == State.READY) {
+            sendNext();
+        }
+    }
+
+    private void sendNext() {
+        Command c;
+        while ((c = commands.poll()) != null && c.isUnneeded()) {
+            // the reply to the previous command makes this one unnecessary, e.g. PASS after 230 to USER
+            complete(c, c.previous.future.join());
+        }
+        if (c == null) {
+            return;
+        }
+        current = c;
+        state = State.AWAITING_REPLY;
+        try {
+            commandWriter.write(c.command, c.args);
+            if (!commandWriter.flush()) {
+                key.interestOps(SelectionKey.OP_READ | SelectionKey.OP_WRITE);
+            }
+        } catch (IOException e) {
+            close(e);
+            return;
+        }
+        // only build the message text if someone is listening
+        if (commandSupport.getListenerCount() > 0) {
+            commandSupport.fireCommandSent(c.command, c.args == null ? c.command + "\r\n"
+                    : c.command + " " + c.args + "\r\n");
+        }
+        setDeadline(replyTimeout);
+    }
+
+    private void read() throws IOException {
+        int code;
+        while (state != State.CLOSED
+                && (code = replyReader.readReply(strictMultilineParsing, strictReplyParsing)) != FTPReplyReader.NO_REPLY) {
+            reply(code);
+        }
+    }
+
+    private void reply(int code) {
+        if (commandSupport.getListenerCount() > 0) {
+            commandSupport.fireReplyReceived(code, replyReader.getReplyString());
+        }
+        if (code == FTPReply.SERVICE_NOT_AVAILABLE) {
+            close(new ConnectionClosedException("server closed connection"));
+            return;
+        }
+        if (FTPReply.isPositivePreliminary(code)) {
+            // wait for the reply that follows
+            if (state == State.GREETING) {
+                setDeadline(connectTimeout);
+            } else if (state == State.AWAITING_REPLY) {
+                setDeadline(replyTimeout);
+            }
+            return;
+        }
+        if (state == State.GREETING) {
+            state = State.READY;
+            deadlineSet = false;
+            greeting.complete(new FTPCommandReply(null, null, code, replyReader.getLines()));
+        } else if (state == State.AWAITING_REPLY) {
+            Command c = current;
+            current = null;
+            state = State.READY;
+            deadlineSet = false;
+            complete(c, new FTPCommandReply(c.command, c.args, code, replyReader.getLines()));
+        } else {
+            logger.log(Level.FINE, "unexpected reply: {0}", replyReader.getReplyString());
+            return;
+        }
+        // a dependent action may already have sent the next command
+        if (state == State.READY) {
+            sendNext();
+        }
+    }
+
+    private void setDeadline(int millis) {
+        deadlineSet = millis > 0;
+        deadline = System.nanoTime() + millis * 1000000L;
+    }
+
+    private void close(IOException cause) {
+        synchronized (this) {
+            if (state == State.CLOSED) {
+                return;
+            }
+            state = State.CLOSED;
+        }
+        if (key != null) {
+            key.cancel();
+        }
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.log(Level.FINE, e.getMessage(), e);
+            }
+        }
+        replyReader.setInput((InputStream) null);
+        commandWriter.setOutput((OutputStream) null);
+        if (greeting != null) {
+            greeting.completeExceptionally(cause);
+        }
+        if (current != null) {
+            fail(current, cause);
+            current = null;
+        }
+        Command c;
+        while ((c = commands.poll()) != null) {
+            fail(c, cause);
+        }
+    }
+
+    private final class Handler implements FTPEventLoop.Handler {
+
+        @Override
+        public void handle(SelectionKey key) throws IOException {
+            if (key.isConnectable()) {
+                if (channel.finishConnect()) {
+                    connected();
+                }
+                return;
+            }
+            if (key.isWritable() && commandWriter.flush()) {
+                key.interestOps(SelectionKey.OP_READ);
+            }
+            if (key.isReadable()) {
+                read();
+            }
+        }
+
+        @Override
+        public void checkTimeout(long now) {
+            if (deadlineSet && activeTransfers == 0 && now - deadline >= 0) {
+                switch (state) {
+                    case CONNECTING:
+                        close(new SocketTimeoutException("connect timed out"));
+                        break;
+                    case GREETING:
+                        close(new SocketTimeoutException("Timed out waiting for initial connect reply"));
+                        break;
+                    default:
+                        close(new SocketTimeoutException("Timed out waiting for reply"));
+                        break;
+                }
+            }
+        }
+
+        @Override
+        public void close(IOException cause) {
+            FTPControlConnection.this.close(cause);
+        }
+    }
+
+    private static final class Command {
+
+        private final String command;
+        private final String args;
+        private final CompletableFuture<FTPCommandReply> future = new CompletableFuture<>();
+        // if not null, the command is only sent if the reply to this command is a positive intermediate reply
+        private final Command previous;
+
+        private Command(String command, String args) {
+            this(command, args, null);
+        }
+
+        private Command(String command, String args, Command previous) {
+            this.command = command;
+            this.args = args;
+            this.previous = previous;
+        }
+
+        private boolean isUnneeded() {
+            return previous != null && !FTPReply.isPositiveIntermediate(previous.future.join().getReplyCode());
+        }
+    }
+}
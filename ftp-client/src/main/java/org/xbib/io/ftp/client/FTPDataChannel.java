@@ -0,0 +1,243 @@
+package org.xbib.io.ftp.client;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A non-blocking data connection in passive mode, driven by an event loop.
+ * <p>
+ * The data connection either receives data, which is handed to a {@link Sink}, or sends data, which is taken from
+ * a {@link Source}, until the end of the transfer. Since the transfer mode is stream mode, the end of the transfer
+ * is the end of the connection. The sink and the source are called on the event loop thread.
+ */
+final class FTPDataChannel {
+
+    private static final Logger logger = Logger.getLogger(FTPDataChannel.class.getName());
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    // the maximum number of reads or writes per event, so other channels of the event loop are not starved
+    private static final int MAX_OPERATIONS_PER_EVENT = 16;
+
+    /**
+     * Receives the data of a transfer.
+     */
+    interface Sink {
+
+        /**
+         * Consumes all remaining bytes of the buffer.
+         */
+        void write(ByteBuffer data) throws IOException;
+    }
+
+    /**
+     * Supplies the data of a transfer.
+     */
+    interface Source {
+
+        /**
+         * Reads bytes into the buffer.
+         *
+         * @return The number of bytes read, or -1 at the end of the data.
+         */
+        int read(ByteBuffer data) throws IOException;
+    }
+
+    private final FTPEventLoop loop;
+    private final Sink sink;
+    private final Source source;
+    private final int timeout;
+    private final CompletableFuture<Long> future = new CompletableFuture<>();
+    private final ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+
+    // only accessed on the event loop thread
+    private SocketChannel channel;
+    private SelectionKey key;
+    private boolean endOfSource;
+    private long count;
+    private long deadline;
+
+    private FTPDataChannel(FTPEventLoop loop, Sink sink, Source source, int timeout) {
+        this.loop = loop;
+        this.sink = sink;
+        this.source = source;
+        this.timeout = timeout;
+        buffer.flip();
+    }
+
+    /**
+     * Opens a data connection that receives data.
+     *
+     * @param timeout The time in milliseconds the connection may be idle; 0 means no timeout.
+     */
+    static FTPDataChannel receive(FTPEventLoop loop, InetSocketAddress address, Sink sink, int timeout) {
+        FTPDataChannel dataChannel = new FTPDataChannel(loop, sink, null, timeout);
+        dataChannel.open(address);
+        return dataChannel;
+    }
+
+    /**
+     * Opens a data connection that sends data.
+     *
+     * @param timeout The time in milliseconds the connection may be idle; 0 means no timeout.
+     */
+    static FTPDataChannel send(FTPEventLoop loop, InetSocketAddress address, Source source, int timeout) {
+        FTPDataChannel dataChannel = new FTPDataChannel(loop, null, source, timeout);
+        dataChannel.open(address);
+        return dataChannel;
+    }
+
+    /**
+     * @return A future that is completed with the number of bytes transferred when the transfer is complete.
+     */
+    CompletableFuture<Long> future() {
+        return future;
+    }
+
+    /**
+     * Aborts the transfer, and fails the future with the given exception if the transfer is not complete yet.
+     */
+    void abort(IOException cause) {
+        if (loop.inEventLoop()) {
+            close(cause);
+        } else {
+            try {
+                loop.execute(() -> close(cause));
+            } catch (RejectedExecutionException e) {
+                // the event loop has closed all channels
+            }
+        }
+    }
+
+    private void open(InetSocketAddress address) {
+        if (!loop.inEventLoop()) {
+            try {
+                loop.execute(() -> open(address));
+            } catch (RejectedExecutionException e) {
+                future.completeExceptionally(new IOException("event loop closed", e));
+            }
+            return;
+        }
+        try {
+            channel = SocketChannel.open();
+            channel.configureBlocking(false);
+            key = channel.register(loop.selector(), 0, new Handler());
+            touch();
+            if (channel.connect(address)) {
+                connected();
+            } else {
+                key.interestOps(SelectionKey.OP_CONNECT);
+            }
+        } catch (IOException e) {
+            close(e);
+        }
+    }
+
+    private void connected() {
+        key.interestOps(sink != null ? SelectionKey.OP_READ : SelectionKey.OP_WRITE);
+    }
+
+    private void touch() {
+        deadline = System.nanoTime() + timeout * 1000000L;
+    }
+
+    private void read() throws IOException {
+        for (int i = 0; i < MAX_OPERATIONS_PER_EVENT; i++) {
+            buffer.clear();
+            int n = channel.read(buffer);
+            if (n < 0) {
+                finish();
+                return;
+            }
+            if (n == 0) {
+                return;
+            }
+            touch();
+            count += n;
+            buffer.flip();
+            sink.write(buffer);
+        }
+    }
+
+    private void write() throws IOException {
+        for (int i = 0; i < MAX_OPERATIONS_PER_EVENT; i++) {
+            if (!buffer.hasRemaining()) {
+                if (endOfSource) {
+                    finish();
+                    return;
+                }
+                buffer.clear();
+                endOfSource = source.read(buffer) < 0;
+                buffer.flip();
+                continue;
+            }
+            int n = channel.write(buffer);
+            if (n == 0) {
+                return;
+            }
+            touch();
+            count += n;
+        }
+    }
+
+    private void finish() {
+        closeChannel();
+        future.complete(count);
+    }
+
+    private void close(IOException cause) {
+        closeChannel();
+        future.completeExceptionally(cause);
+    }
+
+    private void closeChannel() {
+        if (key != null) {
+            key.cancel();
+        }
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                logger.log(Level.FINE, e.getMessage(), e);
+            }
+        }
+    }
+
+    private final class Handler implements FTPEventLoop.Handler {
+
+        @Override
+        public void handle(SelectionKey key) throws IOException {
+            if (key.isConnectable()) {
+                if (channel.finishConnect()) {
+                    connected();
+                }
+                return;
+            }
+            if (key.isReadable()) {
+                read();
+            } else if (key.isWritable()) {
+                write();
+            }
+        }
+
+        @Override
+        public void checkTimeout(long now) {
+            if (timeout > 0 && now - deadline >= 0) {
+                close(new SocketTimeoutException("Timed out waiting for data"));
+            }
+        }
+
+        @Override
+        public void close(IOException cause) {
+            FTPDataChannel.this.close(cause);
+        }
+    }
+}
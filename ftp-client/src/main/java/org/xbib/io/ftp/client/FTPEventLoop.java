@@ -0,0 +1,198 @@
+package org.xbib.io.ftp.client;
+
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A thread that drives the channels registered with its selector.
+ * <p>
+ * All work for a channel runs on the thread of the event loop the channel is registered with, so the handlers
+ * of the channels need no synchronization. Other threads hand work to the event loop with {@link #execute(Runnable)}.
+ * Timeouts are checked by the event loop in intervals of {@link #TIMEOUT_CHECK_INTERVAL} milliseconds.
+ */
+final class FTPEventLoop implements Runnable {
+
+    private static final Logger logger = Logger.getLogger(FTPEventLoop.class.getName());
+
+    /**
+     * The interval in milliseconds in which the timeouts of the channels are checked.
+     */
+    static final long TIMEOUT_CHECK_INTERVAL = 100L;
+
+    /**
+     * Handles the events of a channel registered with an event loop. The handler is the attachment of the
+     * selection key of the channel, and is only called on the thread of the event loop.
+     */
+    interface Handler {
+
+        /**
+         * Handles the operations the channel is ready for.
+         *
+         * @throws IOException If an I/O error occurs; the handler is closed with the exception.
+         */
+        void handle(SelectionKey key) throws IOException;
+
+        /**
+         * Checks whether a timeout has expired.
+         *
+         * @param now The current time, as returned by {@link System#nanoTime()}.
+         */
+        void checkTimeout(long now);
+
+        /**
+         * Closes the channel, and fails all pending operations with the given exception.
+         */
+        void close(IOException cause);
+    }
+
+    private final Selector selector;
+    private final Thread thread;
+    private final Queue<Runnable> tasks = new ConcurrentLinkedQueue<>();
+
+    private volatile boolean closed;
+    private volatile boolean terminated;
+
+    FTPEventLoop(String name) throws IOException {
+        this.selector = Selector.open();
+        this.thread = new Thread(this, name);
+        thread.setDaemon(true);
+    }
+
+    void start() {
+        thread.start();
+    }
+
+    Selector selector() {
+        return selector;
+    }
+
+    boolean inEventLoop() {
+        return Thread.currentThread() == thread;
+    }
+
+    /**
+     * Runs a task on the thread of the event loop.
+     *
+     * @throws RejectedExecutionException If the event loop has been closed.
+     */
+    void execute(Runnable task) {
+        if (closed) {
+            throw new RejectedExecutionException("event loop closed");
+        }
+        tasks.add(task);
+        // the loop may have run its last tasks before the task was added
+        if (terminated && tasks.remove(task)) {
+            throw new RejectedExecutionException("event loop closed");
+        }
+        if (!inEventLoop()) {
+            selector.wakeup();
+        }
+    }
+
+    /**
+     * Stops the event loop. The handlers of all registered channels are closed.
+     */
+    void close() {
+        closed = true;
+        selector.wakeup();
+    }
+
+    void awaitTermination(long millis) throws InterruptedException {
+        if (!inEventLoop()) {
+            thread.join(millis);
+        }
+    }
+
+    @Override
+    public void run() {
+        long nextTimeoutCheck = System.nanoTime();
+        try {
+            while (!closed) {
+                long wait = (nextTimeoutCheck - System.nanoTime()) / 1000000L;
+                if (wait > 0 && tasks.isEmpty()) {
+                    selector.select(wait);
+                } else {
+                    selector.selectNow();
+                }
+                Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+                while (keys.hasNext()) {
+                    SelectionKey key = keys.next();
+                    keys.remove();
+                    handle(key);
+                }
+                runTasks();
+                long now = System.nanoTime();
+                if (now - nextTimeoutCheck >= 0) {
+                    checkTimeouts(now);
+                    nextTimeoutCheck = now + TIMEOUT_CHECK_INTERVAL * 1000000L;
+                }
+            }
+        } catch (IOException | ClosedSelectorException e) {
+            logger.log(Level.SEVERE, "event loop failed", e);
+        } finally {
+            closed = true;
+            shutdown();
+        }
+    }
+
+    private void handle(SelectionKey key) {
+        Handler handler = (Handler) key.attachment();
+        try {
+            if (key.isValid()) {
+                handler.handle(key);
+            }
+        } catch (IOException e) {
+            handler.close(e);
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, e.getMessage(), e);
+            handler.close(new IOException(e));
+        }
+    }
+
+    private void runTasks() {
+        Runnable task;
+        while ((task = tasks.poll()) != null) {
+            try {
+                task.run();
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, e.getMessage(), e);
+            }
+        }
+    }
+
+    private void checkTimeouts(long now) {
+        for (SelectionKey key : selector.keys()) {
+            if (key.isValid()) {
+                ((Handler) key.attachment()).checkTimeout(now);
+            }
+        }
+    }
+
+    private void shutdown() {
+        IOException cause = new IOException("event loop closed");
+        try {
+            for (SelectionKey key : selector.keys()) {
+                ((Handler) key.attachment()).close(cause);
+            }
+        } catch (ClosedSelectorException e) {
+            // nothing left to close
+        }
+        // tasks that were added before the loop stopped fail because their channels are closed
+        runTasks();
+        terminated = true;
+        runTasks();
+        try {
+            selector.close();
+        } catch (IOException e) {
+            logger.log(Level.FINE, e.getMessage(), e);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package org.xbib.io.ftp.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A fixed number of event loop threads that drive non-blocking control connections.
+ * <p>
+ * Each {@link FTPControlConnection} is assigned to one event loop of the group when it is created, and all of its
+ * I/O, reply handling and callbacks run on the thread of that event loop. A few threads can thus serve thousands
+ * of control connections. Connections are assigned to the event loops in turn.
+ * <p>
+ * The threads are daemon threads. Closing the group stops the threads and closes all connections of the group.
+ *
+ * @see FTPControlConnection
+ */
+public final class FTPEventLoopGroup implements Closeable {
+
+    private static final AtomicInteger groupCount = new AtomicInteger();
+
+    private final FTPEventLoop[] loops;
+    private final AtomicInteger next = new AtomicInteger();
+
+    /**
+     * Creates a group with one event loop per available processor, but no more than four.
+     *
+     * @throws IOException If a selector cannot be opened.
+     */
+    public FTPEventLoopGroup() throws IOException {
+        this(Math.min(Runtime.getRuntime().availableProcessors(), 4));
+    }
+
+    /**
+     * Creates a group with the given number of event loops.
+     *
+     * @param threads The number of event loop threads.
+     * @throws IOException If a selector cannot be opened.
+     */
+    public FTPEventLoopGroup(int threads) throws IOException {
+        if (threads <= 0) {
+            throw new IllegalArgumentException(threads + " <= 0");
+        }
+        int group = groupCount.incrementAndGet();
+        loops = new FTPEventLoop[threads];
+        try {
+            for (int i = 0; i < threads; i++) {
+                loops[i] = new FTPEventLoop("ftp-event-loop-" + group + "-" + (i + 1));
+            }
+        } catch (IOException e) {
+            for (FTPEventLoop loop : loops) {
+                if (loop != null) {
+                    loop.selector().close();
+                }
+            }
+            throw e;
+        }
+        for (FTPEventLoop loop : loops) {
+            loop.start();
+        }
+    }
+
+    /**
+     * @return The number of event loop threads.
+     */
+    public int getThreadCount() {
+        return loops.length;
+    }
+
+    FTPEventLoop next() {
+        return loops[Math.floorMod(next.getAndIncrement(), loops.length)];
+    }
+
+    /**
+     * Stops the event loops, and closes all connections of the group. Commands that have not been answered yet
+     * fail with an {@link IOException}. Waits up to a second for the threads to stop, unless called on one of them.
+     */
+    @Override
+    public void close() {
+        for (FTPEventLoop loop : loops) {
+            loop.close();
+        }
+        try {
+            for (FTPEventLoop loop : loops) {
+                loop.awaitTermination(1000L);
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package org.xbib.io.ftp.client;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * An iterator over a file listing that is parsed while it is being read from the server.
+ * <p>
+ * Unlike {@link FTPListParseEngine#readServerList(java.io.InputStream, String)}, the listing is not
+ * read into memory first. Each entry is read and parsed only when it is requested, so only one entry
+ * is held at a time, and the first entry is available as soon as it has been received.
+ * <p>
+ * The data connection remains open while the iterator is in use. The iterator must be closed to
+ * complete the pending command, even if it has been exhausted; until then no other commands can be
+ * sent to the server. Closing the iterator before it has been exhausted aborts the listing.
+ * <p>
+ * Because the listing is not available as a whole, {@link FTPFileEntryParser#preParse(List)} is called
+ * with the first entry only. This removes header lines such as the "total" line of Unix listings,
+ * but not the duplicate versions that {@link org.xbib.io.ftp.client.parser.VMSVersioningFTPEntryParser}
+ * removes.
+ * <p>
+ * Since {@link Iterator} does not allow checked exceptions, I/O errors that occur while reading the
+ * listing are thrown as {@link UncheckedIOException}.
+ * <p>
+ * Example:
+ * <pre>
+ *    try (FTPFileIterator iterator = ftp.listFilesIterator(directory)) {
+ *        while (iterator.hasNext()) {
+ *            FTPFile file = iterator.next();
+ *            // only this entry has been parsed so far
+ *        }
+ *    }
+ * </pre>
+ */
+public class FTPFileIterator implements Iterator<FTPFile>, Closeable {
+
+    private final FTPFileEntryParser parser;
+    private final boolean saveUnparseableEntries;
+    private final FTPFileFilter filter;
+    private final BufferedReader reader;
+    private final Closeable completion;
+
+    private boolean first = true;
+    private boolean exhausted;
+    private boolean closed;
+    private FTPFile next;
+
+    FTPFileIterator(FTPFileEntryParser parser, boolean saveUnparseableEntries, FTPFileFilter filter,
+                    BufferedReader reader, Closeable completion) {
+        this.parser = parser;
+        this.saveUnparseableEntries = saveUnparseableEntries;
+        this.filter = filter;
+        this.reader = reader;
+        this.completion = completion;
+        this.exhausted = reader == null;
+    }
+
+    @Override
+    public boolean hasNext() {
+        if (next != null) {
+            return true;
+        }
+        if (exhausted || closed) {
+            return false;
+        }
+        try {
+            next = readNext();
+        } catch (IOException e) {
+            exhausted = true;
+            throw new UncheckedIOException(e);
+        }
+        if (next == null) {
+            exhausted = true;
+        }
+        return next != null;
+    }
+
+    @Override
+    public FTPFile next() {
+        if (!hasNext()) {
+            throw new NoSuchElementException();
+        }
+        FTPFile result = next;
+        next = null;
+        return result;
+    }
+
+    private FTPFile readNext() throws IOException {
+        String entry;
+        while ((entry = readNextEntry()) != null) {
+            FTPFile file = parser.parseFTPEntry(entry);
+            if (file == null && saveUnparseableEntries) {
+                file = new FTPFile(entry);
+            }
+            // null entries are always skipped, as null marks the end of the listing
+            if (file != null && filter.accept(file)) {
+                return file;
+            }
+        }
+        return null;
+    }
+
+    private String readNextEntry() throws IOException {
+        if (!first) {
+            return parser.readNextEntry(reader);
+        }
+        first = false;
+        String entry = parser.readNextEntry(reader);
+        while (entry != null) {
+            List<String> entries = new ArrayList<>(1);
+            entries.add(entry);
+            entries = parser.preParse(entries);
+            if (!entries.isEmpty()) {
+                return entries.get(0);
+            }
+            // the first entry was a header line, the next one is the actual first entry
+            entry = parser.readNextEntry(reader);
+        }
+        return null;
+    }
+
+    /**
+     * Returns whether or not the listing has been read completely.
+     *
+     * @return {@code true} if all entries of the listing have been read, or {@code false} otherwise.
+     */
+    public boolean isExhausted() {
+        return exhausted;
+    }
+
+    /**
+     * Returns a sequential stream over the remaining entries of this iterator.
+     * Closing the stream closes this iterator.
+     *
+     * @return A stream over the remaining entries of this iterator.
+     */
+    public Stream<FTPFile> stream() {
+        Spliterator<FTPFile> spliterator = Spliterators.spliteratorUnknownSize(this,
+                Spliterator.ORDERED | Spliterator.NONNULL);
+        return StreamSupport.stream(spliterator, false).onClose(() -> {
+            try {
+                close();
+            } catch (IOException e) {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    /**
+     * Closes the data connection and completes the pending command.
+     * Afterwards the reply code of the client can be used to check whether or not the listing succeeded.
+     * This method has no effect if this iterator is already closed.
+     *
+     * @throws IOException If the pending command could not be completed.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        next = null;
+        if (reader != null) {
+            Util.closeQuietly(reader);
+        }
+        if (completion != null) {
+            completion.close();
+        }
+    }
+}
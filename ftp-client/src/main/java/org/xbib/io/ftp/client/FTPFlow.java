@@ -0,0 +1,88 @@
+package org.xbib.io.ftp.client;
+
+/**
+ * Interfaces for publishing the results of transfers as reactive streams with backpressure.
+ * <p>
+ * The interfaces have the same methods, and the same contract, as those of {@code java.util.concurrent.Flow},
+ * which is not available in Java 8. On later versions they can be adapted to each other with method references,
+ * for example a {@code Flow.Subscriber} with {@code subscriber::onSubscribe} and so on.
+ *
+ * @see FTPClient#listFilesPublisher(String)
+ * @see FTPClient#mlistDirPublisher(String)
+ * @see FTPClient#retrieveFilePublisher(String)
+ */
+public final class FTPFlow {
+
+    private FTPFlow() {
+    }
+
+    /**
+     * A producer of items that are received by subscribers, as requested by them.
+     *
+     * @param <T> The type of the items.
+     */
+    @FunctionalInterface
+    public interface Publisher<T> {
+
+        /**
+         * Adds the given subscriber. {@link Subscriber#onSubscribe(Subscription)} is called first; if the
+         * subscriber cannot be added, {@link Subscriber#onError(Throwable)} follows.
+         *
+         * @param subscriber The subscriber.
+         */
+        void subscribe(Subscriber<? super T> subscriber);
+    }
+
+    /**
+     * A receiver of items. The methods are called one at a time, in order.
+     *
+     * @param <T> The type of the items.
+     */
+    public interface Subscriber<T> {
+
+        /**
+         * Called before any other method, with the subscription that requests items.
+         *
+         * @param subscription The subscription.
+         */
+        void onSubscribe(Subscription subscription);
+
+        /**
+         * Called with the next item, at most as often as items have been requested.
+         *
+         * @param item The item.
+         */
+        void onNext(T item);
+
+        /**
+         * Called when the subscription has failed; no other method is called afterwards.
+         *
+         * @param throwable The failure.
+         */
+        void onError(Throwable throwable);
+
+        /**
+         * Called when all items have been received; no other method is called afterwards.
+         */
+        void onComplete();
+    }
+
+    /**
+     * The link between a publisher and a subscriber.
+     */
+    public interface Subscription {
+
+        /**
+         * Requests more items. A non-positive number fails the subscription with an
+         * {@link IllegalArgumentException}.
+         *
+         * @param n The number of additional items.
+         */
+        void request(long n);
+
+        /**
+         * Stops the delivery of items. Items that have been requested may still be delivered.
+         */
+        void cancel();
+    }
+}
@@ -1,6 +1,7 @@
 package org.xbib.io.ftp.client;
 
 import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
@@ -54,6 +55,10 @@ import java.util.ListIterator;
  * <p>
  * For unpaged access, simply use FTPClient.listFiles().  That method
  * uses this class transparently.
+ * <p>
+ * For large listings, {@link #iterateServerList(InputStream, String, FTPFileFilter, Closeable)}
+ * parses the entries while they are being read, without storing the list.
+ * FTPClient.listFilesIterator() and FTPClient.mlistDirIterator() use that method.
  */
 public class FTPListParseEngine {
     private final FTPFileEntryParser parser;
@@ -97,6 +102,24 @@ public class FTPListParseEngine {
         resetIterator();
     }
 
+    /**
+     * Returns an iterator that reads and parses the list returned by the server one entry at a time.
+     * Unlike {@link #readServerList(InputStream, String)} the list is not stored in this object;
+     * see {@link FTPFileIterator} for details.
+     *
+     * @param stream     input stream provided by the server socket.
+     * @param encoding   the encoding to be used for reading the stream
+     * @param filter     the filter to apply to the parsed entries, must not be <code>null</code>.
+     * @param completion called when the iterator is closed, after the stream has been closed; may be <code>null</code>.
+     * @return an iterator over the entries in the list returned by the server.
+     */
+    public FTPFileIterator iterateServerList(InputStream stream, String encoding, FTPFileFilter filter,
+                                             Closeable completion) {
+        Charset charset = encoding == null ? Charset.defaultCharset() : Charset.forName(encoding);
+        BufferedReader reader = stream == null ? null : new BufferedReader(new InputStreamReader(stream, charset));
+        return new FTPFileIterator(parser, saveUnparseableEntries, filter, reader, completion);
+    }
+
     /**
      * Internal method for reading the input into the <code>entries</code> list.
      * After this method has completed, <code>entries</code> will contain a
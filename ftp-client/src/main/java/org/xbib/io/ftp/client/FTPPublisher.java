@@ -0,0 +1,194 @@
+package org.xbib.io.ftp.client;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A publisher that reads its items from a transfer only as far as they have been requested.
+ * <p>
+ * The transfer is started by the first request, and each item is read on the thread that requests it; while no
+ * items are requested, nothing is read from the data connection, so a slow subscriber slows down the server
+ * through TCP flow control. A request made from within {@link FTPFlow.Subscriber#onNext(Object)} does not
+ * recurse, but is served after {@code onNext} has returned. Concurrent requests are served by the thread that
+ * is already reading. Since the end of the transfer is only detected by reading, {@code onComplete} may need one
+ * more item to be requested than there are items.
+ * <p>
+ * A publisher can be subscribed to once, as the transfer occupies the client until it is complete or cancelled.
+ *
+ * @param <T> The type of the items.
+ */
+final class FTPPublisher<T> implements FTPFlow.Publisher<T> {
+
+    private static final Logger logger = Logger.getLogger(FTPPublisher.class.getName());
+
+    /**
+     * Starts a transfer.
+     */
+    interface Opener<T> {
+
+        Source<T> open() throws IOException;
+    }
+
+    /**
+     * The items of a transfer. Closing the source completes the transfer, and fails if the transfer failed.
+     */
+    interface Source<T> extends Closeable {
+
+        /**
+         * @return The next item, or null at the end of the transfer.
+         */
+        T next() throws IOException;
+    }
+
+    private final Opener<T> opener;
+    private final AtomicBoolean subscribed = new AtomicBoolean();
+
+    FTPPublisher(Opener<T> opener) {
+        this.opener = opener;
+    }
+
+    @Override
+    public void subscribe(FTPFlow.Subscriber<? super T> subscriber) {
+        if (subscriber == null) {
+            throw new NullPointerException("subscriber");
+        }
+        if (!subscribed.compareAndSet(false, true)) {
+            subscriber.onSubscribe(new FTPFlow.Subscription() {
+                @Override
+                public void request(long n) {
+                }
+
+                @Override
+                public void cancel() {
+                }
+            });
+            subscriber.onError(new IllegalStateException("publisher already subscribed to"));
+            return;
+        }
+        Subscription subscription = new Subscription(subscriber);
+        subscriber.onSubscribe(subscription);
+    }
+
+    private final class Subscription implements FTPFlow.Subscription {
+
+        private final FTPFlow.Subscriber<? super T> subscriber;
+        private final AtomicLong requested = new AtomicLong();
+        private final AtomicInteger wip = new AtomicInteger();
+        private volatile boolean cancelled;
+        private volatile Throwable invalidRequest;
+
+        // only accessed by the thread that drains
+        private Source<T> source;
+        private boolean done;
+
+        private Subscription(FTPFlow.Subscriber<? super T> subscriber) {
+            this.subscriber = subscriber;
+        }
+
+        @Override
+        public void request(long n) {
+            if (n <= 0) {
+                invalidRequest = new IllegalArgumentException("non-positive request: " + n);
+            } else {
+                long current;
+                long next;
+                do {
+                    current = requested.get();
+                    next = current + n < 0 ? Long.MAX_VALUE : current + n;
+                } while (!requested.compareAndSet(current, next));
+            }
+            drain();
+        }
+
+        @Override
+        public void cancel() {
+            cancelled = true;
+            drain();
+        }
+
+        private void drain() {
+            if (wip.getAndIncrement() != 0) {
+                return;
+            }
+            int missed = 1;
+            do {
+                if (!done) {
+                    emit();
+                }
+                missed = wip.addAndGet(-missed);
+            } while (missed != 0);
+        }
+
+        private void emit() {
+            while (true) {
+                if (cancelled) {
+                    done = true;
+                    abort();
+                    return;
+                }
+                Throwable error = invalidRequest;
+                if (error != null) {
+                    fail(error);
+                    return;
+                }
+                if (requested.get() == 0) {
+                    return;
+                }
+                T item;
+                try {
+                    if (source == null) {
+                        source = opener.open();
+                    }
+                    item = source.next();
+                } catch (IOException | RuntimeException e) {
+                    fail(e);
+                    return;
+                }
+                if (item == null) {
+                    complete();
+                    return;
+                }
+                requested.decrementAndGet();
+                try {
+                    subscriber.onNext(item);
+                } catch (RuntimeException e) {
+                    fail(e);
+                    return;
+                }
+            }
+        }
+
+        private void complete() {
+            done = true;
+            try {
+                source.close();
+            } catch (IOException | RuntimeException e) {
+                subscriber.onError(e);
+                return;
+            }
+            subscriber.onComplete();
+        }
+
+        private void fail(Throwable error) {
+            done = true;
+            abort();
+            subscriber.onError(error);
+        }
+
+        private void abort() {
+            if (source != null) {
+                try {
+                    source.close();
+                } catch (IOException | RuntimeException e) {
+                    // the transfer has been aborted, so the reply is negative
+                    logger.log(Level.FINE, e.getMessage(), e);
+                }
+            }
+        }
+    }
+}
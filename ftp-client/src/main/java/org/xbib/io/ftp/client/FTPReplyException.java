@@ -0,0 +1,68 @@
+package org.xbib.io.ftp.client;
+
+import java.io.IOException;
+
+/**
+ * FTPReplyException is used by {@link AsyncFTPClient} and the publishers of {@link FTPClient} to indicate that
+ * the server answered a command with a negative reply. It keeps the command and the reply, so callers do not have to check reply codes themselves.
+ * This exception is derived from IOException and therefore may be caught either as an IOException or
+ * specifically as an FTPReplyException.
+ *
+ * @see AsyncFTPClient
+ */
+public class FTPReplyException extends IOException {
+
+    private static final long serialVersionUID = -2146406101387286567L;
+
+    private final String command;
+    private final int replyCode;
+    private final String[] replyStrings;
+
+    /**
+     * Constructs an FTPReplyException for the given reply.
+     *
+     * @param reply The negative reply.
+     */
+    public FTPReplyException(FTPCommandReply reply) {
+        super(message(reply));
+        this.command = reply.getCommand();
+        this.replyCode = reply.getReplyCode();
+        this.replyStrings = reply.getReplyStrings();
+    }
+
+    private static String message(FTPCommandReply reply) {
+        String[] lines = reply.getReplyStrings();
+        StringBuilder sb = new StringBuilder();
+        if (reply.getCommand() != null) {
+            sb.append(reply.getCommand()).append(": ");
+        }
+        for (int i = 0; i < lines.length; i++) {
+            if (i > 0) {
+                sb.append(' ');
+            }
+            sb.append(lines[i]);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * @return The command the reply belongs to, or null for the greeting of the server.
+     */
+    public String getCommand() {
+        return command;
+    }
+
+    /**
+     * @return The integer value of the reply code.
+     */
+    public int getReplyCode() {
+        return replyCode;
+    }
+
+    /**
+     * @return The lines of text of the reply.
+     */
+    public String[] getReplyStrings() {
+        return replyStrings.clone();
+    }
+}
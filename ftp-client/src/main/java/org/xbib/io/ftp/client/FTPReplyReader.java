@@ -0,0 +1,464 @@
+package org.xbib.io.ftp.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetEncoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.AbstractList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Reads replies from the control connection.
+ * <p>
+ * Bytes are read into a buffer that is reused for all replies, and scanned for the CRLF sequence that terminates
+ * each line; a bare CR or LF is part of the line. The reply code is parsed from the bytes of the first line, so
+ * reading a reply does not create any strings. The lines of the reply are only decoded when they are requested,
+ * and are then cached until the next reply is read.
+ * <p>
+ * This requires the control encoding to be ASCII compatible, which holds for the encodings used on FTP
+ * control connections, such as ISO-8859-1 and UTF-8: the reply code, separators and line terminators are
+ * single bytes, which cannot occur within a multi-byte character.
+ * <p>
+ * Replies can also be read from a non-blocking channel. Reading then stops when no more bytes are available,
+ * and continues with the partial reply when it is called again.
+ */
+final class FTPReplyReader {
+
+    /**
+     * Returned by {@link #readReply(boolean, boolean)} if a non-blocking channel has no more bytes available
+     * before the reply is complete.
+     */
+    static final int NO_REPLY = -1;
+
+    private static final byte CR = '\r';
+    private static final byte LF = '\n';
+
+    private static final int BUFFER_SIZE = 4096;
+
+    // results of readLine()
+    private static final int LINE = 0;
+    private static final int END_OF_INPUT = 1;
+    private static final int NO_INPUT = 2;
+
+    private InputStream input;
+    private ReadableByteChannel channel;
+    private Charset charset;
+    // the encoding that was in effect when the current reply was read
+    private Charset replyCharset;
+
+    private final byte[] buffer = new byte[BUFFER_SIZE];
+    private final ByteBuffer channelBuffer = ByteBuffer.wrap(buffer);
+    private int position;
+    private int limit;
+
+    // the lines of the current reply, without line terminators, one after another
+    private byte[] reply = new byte[256];
+    private int replyLength;
+    private int[] lineEnds = new int[4];
+    private int lineCount;
+    private int replyCode;
+    // whether a partial reply has been read from a non-blocking channel
+    private boolean partial;
+
+    // decoded lazily
+    private String[] lines = new String[4];
+    private String replyString;
+
+    private final List<String> lineList = new LineList();
+
+    FTPReplyReader(Charset charset) {
+        this.charset = charset;
+        this.replyCharset = charset;
+    }
+
+    /**
+     * Sets the stream to read replies from. Bytes that were read from a different stream but not consumed are discarded.
+     */
+    void setInput(InputStream input) {
+        if (input != this.input || channel != null) {
+            this.input = input;
+            this.channel = null;
+            reset();
+        }
+    }
+
+    /**
+     * Sets a channel to read replies from, which may be in non-blocking mode.
+     * Bytes that were read from a different stream or channel but not consumed are discarded.
+     */
+    void setInput(ReadableByteChannel channel) {
+        if (channel != this.channel || input != null) {
+            this.input = null;
+            this.channel = channel;
+            reset();
+        }
+    }
+
+    private void reset() {
+        position = 0;
+        limit = 0;
+        partial = false;
+    }
+
+    /**
+     * Sets a reader to read replies from, e.g. one that has already consumed data from the connection.
+     * The characters are encoded again using the current encoding, so this is slower than reading from a stream.
+     */
+    void setInput(Reader reader) {
+        setInput(new ReaderInputStream(reader, charset));
+    }
+
+    /**
+     * Sets the encoding used to decode the lines of the following replies. Bytes that have been read but not consumed
+     * are kept.
+     */
+    void setCharset(Charset charset) {
+        this.charset = charset;
+    }
+
+    /**
+     * Reads the next reply.
+     *
+     * @param strictMultilineParsing Whether a multi-line reply must be terminated by a line that starts with the same
+     *                               reply code as its first line.
+     * @param strictReplyParsing     Whether a single-line reply must have a space and text after the reply code.
+     * @return The reply code, or {@link #NO_REPLY} if the input is a non-blocking channel that has no more bytes
+     * available before the reply is complete.
+     * @throws ConnectionClosedException     If the connection is closed before the reply is complete.
+     * @throws MalformedServerReplyException If the reply cannot be parsed.
+     * @throws IOException                   If an I/O error occurs.
+     */
+    int readReply(boolean strictMultilineParsing, boolean strictReplyParsing) throws IOException {
+        if (input == null && channel == null) {
+            throw new IOException("Connection is not open");
+        }
+        if (!partial) {
+            clearDecoded();
+            replyLength = 0;
+            lineCount = 0;
+            replyCharset = charset;
+            partial = true;
+        }
+        try {
+            if (lineCount == 0) {
+                int result = readLine();
+                if (result == NO_INPUT) {
+                    return NO_REPLY;
+                }
+                if (result == END_OF_INPUT) {
+                    throw new ConnectionClosedException("connection closed without indication");
+                }
+                if (!parseFirstLine(strictReplyParsing)) {
+                    partial = false;
+                    return replyCode;
+                }
+            }
+            // Get extra lines if message continues.
+            do {
+                int result = readLine();
+                if (result == NO_INPUT) {
+                    return NO_REPLY;
+                }
+                if (result == END_OF_INPUT) {
+                    throw new ConnectionClosedException("connection closed without indication");
+                }
+            } while (strictMultilineParsing ? !isStrictEnd(lineCount - 1) : !isLenientEnd(lineCount - 1));
+            partial = false;
+            return replyCode;
+        } catch (IOException e) {
+            partial = false;
+            throw e;
+        }
+    }
+
+    /**
+     * Parses the reply code from the first line of a reply.
+     *
+     * @return Whether the reply continues with more lines.
+     */
+    private boolean parseFirstLine(boolean strictReplyParsing) throws MalformedServerReplyException {
+        // In case we run into an anomaly we don't want fatal index exceptions to be thrown.
+        int length = lineEnds[0];
+        if (length < FTP.REPLY_CODE_LEN) {
+            throw new MalformedServerReplyException("Truncated server reply: " + getLine(0));
+        }
+        int code = digit(reply[0]) * 100 + digit(reply[1]) * 10 + digit(reply[2]);
+        if (code < 0) {
+            throw new MalformedServerReplyException("Could not parse response code.\nServer Reply: " + getLine(0));
+        }
+        replyCode = code;
+        // Check the server reply type
+        if (length > FTP.REPLY_CODE_LEN) {
+            byte sep = reply[FTP.REPLY_CODE_LEN];
+            if (sep == '-') {
+                return true;
+            } else if (strictReplyParsing) {
+                if (length == FTP.REPLY_CODE_LEN + 1) { // expecting some text
+                    throw new MalformedServerReplyException("Truncated server reply: '" + getLine(0) + "'");
+                } else if (sep != ' ') {
+                    throw new MalformedServerReplyException("Invalid server reply: '" + getLine(0) + "'");
+                }
+            }
+        } else if (strictReplyParsing) {
+            throw new MalformedServerReplyException("Truncated server reply: '" + getLine(0) + "'");
+        }
+        return false;
+    }
+
+    private static int digit(byte b) {
+        // a negative result for a non-digit makes the entire code negative
+        return b >= '0' && b <= '9' ? b - '0' : -1000;
+    }
+
+    // The RFC-compliant multiline termination check
+    private boolean isStrictEnd(int line) {
+        int start = lineStart(line);
+        return lineEnds[line] - start > FTP.REPLY_CODE_LEN
+                && reply[start] == reply[0] && reply[start + 1] == reply[1] && reply[start + 2] == reply[2]
+                && reply[start + FTP.REPLY_CODE_LEN] == ' ';
+    }
+
+    // The strict check is too strong a condition because of non-conforming ftp
+    // servers like ftp.funet.fi which sent 226 as the last line of a
+    // 426 multi-line reply in response to ls /.  We relax the condition to
+    // test that the line starts with a digit rather than starting with
+    // the code.
+    private boolean isLenientEnd(int line) {
+        int start = lineStart(line);
+        return lineEnds[line] - start > FTP.REPLY_CODE_LEN
+                && reply[start + FTP.REPLY_CODE_LEN] != '-'
+                && reply[start] >= '0' && reply[start] <= '9';
+    }
+
+    /**
+     * Reads a line that is terminated by CRLF, and appends it to the current reply without the CRLF.
+     * The bytes of a line that is read partially from a non-blocking channel stay appended, and reading the
+     * line continues with the next call.
+     *
+     * @return {@link #LINE} if a line was read, {@link #END_OF_INPUT} if the end of the input was reached before
+     * any byte of the line was read, or {@link #NO_INPUT} if a non-blocking channel has no bytes available.
+     */
+    private int readLine() throws IOException {
+        int start = lineStart(lineCount);
+        while (true) {
+            if (position == limit) {
+                int n = fill();
+                if (n == 0) {
+                    return NO_INPUT;
+                }
+                if (n < 0) {
+                    if (replyLength == start) {
+                        return END_OF_INPUT;
+                    }
+                    // return an unterminated last line as it is
+                    endLine();
+                    return LINE;
+                }
+            }
+            int i = position;
+            while (i < limit && buffer[i] != LF) {
+                i++;
+            }
+            if (i == limit) {
+                append(position, limit - position);
+                position = limit;
+            } else {
+                append(position, i + 1 - position);
+                position = i + 1;
+                if (replyLength - start >= 2 && reply[replyLength - 2] == CR) {
+                    replyLength -= 2;
+                    endLine();
+                    return LINE;
+                }
+                // a bare LF is part of the line
+            }
+        }
+    }
+
+    /**
+     * @return The number of bytes read into the buffer, 0 if a non-blocking channel has no bytes available,
+     * or -1 at the end of the input.
+     */
+    private int fill() throws IOException {
+        int n;
+        if (channel != null) {
+            channelBuffer.clear();
+            n = channel.read(channelBuffer);
+        } else {
+            do {
+                n = input.read(buffer, 0, buffer.length);
+            } while (n == 0);
+        }
+        if (n > 0) {
+            position = 0;
+            limit = n;
+        }
+        return n;
+    }
+
+    private void append(int offset, int length) {
+        if (replyLength + length > reply.length) {
+            reply = Arrays.copyOf(reply, Math.max(reply.length * 2, replyLength + length));
+        }
+        System.arraycopy(buffer, offset, reply, replyLength, length);
+        replyLength += length;
+    }
+
+    private void endLine() {
+        if (lineCount == lineEnds.length) {
+            lineEnds = Arrays.copyOf(lineEnds, lineCount * 2);
+            lines = Arrays.copyOf(lines, lineCount * 2);
+        }
+        lineEnds[lineCount++] = replyLength;
+    }
+
+    private int lineStart(int line) {
+        return line == 0 ? 0 : lineEnds[line - 1];
+    }
+
+    private void clearDecoded() {
+        Arrays.fill(lines, 0, lineCount, null);
+        replyString = null;
+    }
+
+    /**
+     * Replaces the current reply, e.g. to restore a reply that was saved before other commands were sent.
+     */
+    void setReply(int replyCode, String[] replyLines) {
+        this.replyCode = replyCode;
+        partial = false;
+        replyLength = 0;
+        lineCount = 0;
+        lines = new String[Math.max(replyLines.length, 4)];
+        lineEnds = new int[lines.length];
+        for (String line : replyLines) {
+            lines[lineCount] = line;
+            lineEnds[lineCount++] = 0;
+        }
+        replyString = null;
+    }
+
+    int getReplyCode() {
+        return replyCode;
+    }
+
+    int getLineCount() {
+        return lineCount;
+    }
+
+    String getLine(int line) {
+        if (line < 0 || line >= lineCount) {
+            throw new IndexOutOfBoundsException("Index: " + line + ", Size: " + lineCount);
+        }
+        String decoded = lines[line];
+        if (decoded == null) {
+            int start = lineStart(line);
+            decoded = new String(reply, start, lineEnds[line] - start, replyCharset);
+            lines[line] = decoded;
+        }
+        return decoded;
+    }
+
+    String[] getLines() {
+        String[] result = new String[lineCount];
+        for (int i = 0; i < lineCount; i++) {
+            result[i] = getLine(i);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the entire text of the reply, with each line terminated by CRLF.
+     */
+    String getReplyString() {
+        if (replyString == null) {
+            StringBuilder sb = new StringBuilder(replyLength + 2 * lineCount);
+            for (int i = 0; i < lineCount; i++) {
+                sb.append(getLine(i)).append("\r\n");
+            }
+            replyString = sb.toString();
+        }
+        return replyString;
+    }
+
+    /**
+     * Returns a read-only view of the lines of the current reply, which are decoded when they are accessed.
+     */
+    List<String> lines() {
+        return lineList;
+    }
+
+    private final class LineList extends AbstractList<String> {
+
+        @Override
+        public String get(int index) {
+            return getLine(index);
+        }
+
+        @Override
+        public int size() {
+            return lineCount;
+        }
+    }
+
+    /**
+     * An input stream that encodes the characters of a reader.
+     */
+    private static final class ReaderInputStream extends InputStream {
+
+        private final Reader reader;
+        private final CharsetEncoder encoder;
+        private final CharBuffer chars = CharBuffer.allocate(1024);
+        private final ByteBuffer bytes = ByteBuffer.allocate(4096);
+        private boolean endOfInput;
+
+        private ReaderInputStream(Reader reader, Charset charset) {
+            this.reader = reader;
+            this.encoder = charset.newEncoder()
+                    .onMalformedInput(CodingErrorAction.REPLACE)
+                    .onUnmappableCharacter(CodingErrorAction.REPLACE);
+            chars.flip();
+            bytes.flip();
+        }
+
+        @Override
+        public int read() throws IOException {
+            byte[] b = new byte[1];
+            return read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF;
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            while (!bytes.hasRemaining()) {
+                if (endOfInput && !chars.hasRemaining()) {
+                    return -1;
+                }
+                chars.compact();
+                if (reader.read(chars) < 0) {
+                    endOfInput = true;
+                }
+                chars.flip();
+                bytes.clear();
+                encoder.encode(chars, bytes, endOfInput);
+                bytes.flip();
+            }
+            int n = Math.min(len, bytes.remaining());
+            bytes.get(b, off, n);
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            reader.close();
+        }
+    }
+}
@@ -10,11 +10,7 @@ import javax.net.ssl.SSLSocketFactory;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.TrustManagerFactory;
 import javax.net.ssl.X509TrustManager;
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
 import java.io.IOException;
-import java.io.InputStreamReader;
-import java.io.OutputStreamWriter;
 import java.net.Socket;
 import java.security.GeneralSecurityException;
 import java.security.KeyStore;
@@ -323,10 +319,8 @@ public class FTPSClient extends FTPClient {
 
         // TODO the following setup appears to duplicate that in the super class methods
         this.socket = socket;
-        bufferedReader = new BufferedReader(new InputStreamReader(
-                socket.getInputStream(), getControlEncoding()));
-        bufferedWriter = new BufferedWriter(new OutputStreamWriter(
-                socket.getOutputStream(), getControlEncoding()));
+        setControlInput(socket.getInputStream());
+        setControlOutput(socket.getOutputStream());
 
         if (isClientMode) {
             if (hostnameVerifier != null && !hostnameVerifier.verify(host, socket.getSession())) {
@@ -617,12 +611,8 @@ public class FTPSClient extends FTPClient {
             if (FTPReply.COMMAND_OK == repCode) {
                 socket.close();
                 socket = plainSocket;
-                bufferedReader = new BufferedReader(
-                        new InputStreamReader(
-                                socket.getInputStream(), getControlEncoding()));
-                bufferedWriter = new BufferedWriter(
-                        new OutputStreamWriter(
-                                socket.getOutputStream(), getControlEncoding()));
+                setControlInput(socket.getInputStream());
+                setControlOutput(socket.getOutputStream());
             } else {
                 throw new SSLException(getReplyString());
             }
@@ -647,6 +637,10 @@ public class FTPSClient extends FTPClient {
     protected Socket _openDataConnection_(String command, String arg)
             throws IOException {
         Socket socket = super._openDataConnection_(command, arg);
+        if (isDataConnectionReused()) {
+            // the TLS session of the data connection was established for a previous transfer
+            return socket;
+        }
         _prepareDataSocket_(socket);
         if (socket instanceof SSLSocket) {
             SSLSocket sslSocket = (SSLSocket) socket;
@@ -0,0 +1,167 @@
+package org.xbib.io.ftp.client;
+
+import java.io.EOFException;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * This class wraps an input stream, removing the block headers of data
+ * transferred in the block transfer mode ({@code MODE B}).  Each block
+ * starts with a descriptor byte and a two-byte big-endian byte count.
+ * The stream ends at the block whose descriptor has the end-of-file flag
+ * set; the wrapped stream may continue after it, so it can be used for
+ * the next transfer.  Restart marker blocks are skipped.
+ * If the wrapped stream ends before the end-of-file block, an
+ * {@link EOFException} is thrown, so an incomplete transfer is not
+ * mistaken for a complete one.
+ * <p>
+ * Closing the stream at the end of the file does not close the wrapped
+ * stream.  Closing it before that does close the wrapped stream, because
+ * the rest of the transfer could only be skipped by reading it.
+ */
+public final class FromNetBlockInputStream extends FilterInputStream {
+
+    /**
+     * The descriptor flag for the end of a record.
+     */
+    public static final int DESCRIPTOR_EOR = 128;
+
+    /**
+     * The descriptor flag for the end of a file.
+     */
+    public static final int DESCRIPTOR_EOF = 64;
+
+    /**
+     * The descriptor flag for a block that contains a restart marker.
+     */
+    public static final int DESCRIPTOR_RESTART_MARKER = 16;
+
+    /**
+     * The maximum number of bytes in a block.
+     */
+    public static final int MAX_BLOCK_SIZE = 0xFFFF;
+
+    private int remaining = 0;
+    private boolean lastBlock = false;
+    private boolean eof = false;
+
+    /**
+     * Creates a FromNetBlockInputStream instance that wraps an existing
+     * InputStream.
+     *
+     * @param input  The InputStream to wrap.
+     */
+    public FromNetBlockInputStream(InputStream input) {
+        super(input);
+    }
+
+    /**
+     * Reads the next block header, if the current block has been read completely.
+     *
+     * @return False if the end of the file has been reached, true otherwise.
+     */
+    private boolean nextBlock() throws IOException {
+        while (remaining == 0) {
+            if (eof || lastBlock) {
+                eof = true;
+                return false;
+            }
+            int descriptor = readHeaderByte();
+            int count = readHeaderByte() << 8 | readHeaderByte();
+            lastBlock = (descriptor & DESCRIPTOR_EOF) != 0;
+            if ((descriptor & DESCRIPTOR_RESTART_MARKER) != 0) {
+                skipFully(count);
+            } else {
+                remaining = count;
+            }
+        }
+        return true;
+    }
+
+    private int readHeaderByte() throws IOException {
+        int b = in.read();
+        if (b < 0) {
+            throw new EOFException("Unexpected end of block mode data");
+        }
+        return b;
+    }
+
+    private void skipFully(int count) throws IOException {
+        for (int i = 0; i < count; i++) {
+            readHeaderByte();
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        if (!nextBlock()) {
+            return -1;
+        }
+        int b = in.read();
+        if (b < 0) {
+            throw new EOFException("Unexpected end of block mode data");
+        }
+        remaining--;
+        return b;
+    }
+
+    @Override
+    public int read(byte[] buffer, int offset, int length) throws IOException {
+        if (length == 0) {
+            return 0;
+        }
+        if (!nextBlock()) {
+            return -1;
+        }
+        int n = in.read(buffer, offset, Math.min(length, remaining));
+        if (n < 0) {
+            throw new EOFException("Unexpected end of block mode data");
+        }
+        remaining -= n;
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        byte[] buffer = new byte[(int) Math.min(Util.DEFAULT_COPY_BUFFER_SIZE, Math.max(n, 0))];
+        long skipped = 0;
+        int count;
+        while (skipped < n && (count = read(buffer, 0, (int) Math.min(buffer.length, n - skipped))) > 0) {
+            skipped += count;
+        }
+        return skipped;
+    }
+
+    @Override
+    public int available() throws IOException {
+        return eof ? 0 : Math.min(remaining, in.available());
+    }
+
+    @Override
+    public boolean markSupported() {
+        return false;
+    }
+
+    /**
+     * Returns whether or not all data of the file has been read.
+     *
+     * @return True if the end of the file has been reached, false if not.
+     */
+    public boolean isEndOfFile() {
+        return eof || (lastBlock && remaining == 0);
+    }
+
+    /**
+     * Closes the wrapped stream, unless the end of the file has been reached.
+     *
+     * @throws IOException If an error occurs while closing the wrapped stream.
+     */
+    @Override
+    public void close() throws IOException {
+        if (!isEndOfFile()) {
+            eof = true;
+            in.close();
+        }
+    }
+}
@@ -0,0 +1,43 @@
+package org.xbib.io.ftp.client;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * This class wraps an input stream, decompressing the zlib stream that is
+ * the representation of data transferred in the deflate transfer mode
+ * ({@code MODE Z}).  If the wrapped stream ends before the zlib stream,
+ * an {@link java.io.EOFException} is thrown, so an incomplete transfer is
+ * not mistaken for a complete one.
+ * Closing the stream closes the wrapped stream and releases the native
+ * resources of the decompressor.
+ */
+public final class FromNetDeflateInputStream extends InflaterInputStream {
+
+    /**
+     * Creates a FromNetDeflateInputStream instance that wraps an existing
+     * InputStream.
+     *
+     * @param input  The InputStream to wrap.
+     * @param bufferSize  The size of the buffer for compressed data.
+     */
+    public FromNetDeflateInputStream(InputStream input, int bufferSize) {
+        super(input, new Inflater(), bufferSize);
+    }
+
+    /**
+     * Closes the wrapped stream.
+     *
+     * @throws IOException If an error occurs while closing the wrapped stream.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            super.close();
+        } finally {
+            inf.end();
+        }
+    }
+}
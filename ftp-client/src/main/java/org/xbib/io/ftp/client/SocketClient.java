@@ -722,6 +722,25 @@ public abstract class SocketClient {
         return serverSocketFactory;
     }
 
+    /**
+     * Returns whether or not sockets are created by the default SocketFactory,
+     * i.e. whether neither a custom factory nor a proxy has been set.
+     *
+     * @return true if sockets are created by the default SocketFactory.
+     */
+    protected boolean isDefaultSocketFactory() {
+        return socketFactory == DEFAULT_SOCKET_FACTORY;
+    }
+
+    /**
+     * Returns whether or not server sockets are created by the default ServerSocketFactory.
+     *
+     * @return true if server sockets are created by the default ServerSocketFactory.
+     */
+    protected boolean isDefaultServerSocketFactory() {
+        return serverSocketFactory == DEFAULT_SERVER_SOCKET_FACTORY;
+    }
+
     /**
      * Sets the ServerSocketFactory used by the SocketClient to open ServerSocket
      * connections.  If the factory value is null, then a default
@@ -0,0 +1,103 @@
+package org.xbib.io.ftp.client;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+/**
+ * This class wraps an output stream, sending all data written to it as
+ * blocks of the block transfer mode ({@code MODE B}).  Data is collected
+ * in a buffer, and each time the buffer is full or flushed, it is sent as
+ * a block with a header.  Closing the stream sends the remaining data in
+ * a block with the end-of-file flag set, and flushes the wrapped stream,
+ * but does not close it, so it can be used for the next transfer.
+ *
+ * @see FromNetBlockInputStream
+ */
+public final class ToNetBlockOutputStream extends FilterOutputStream {
+
+    private final byte[] buffer;
+    private int count = 0;
+    private boolean closed = false;
+
+    /**
+     * Creates a ToNetBlockOutputStream instance that wraps an existing
+     * OutputStream.
+     *
+     * @param output  The OutputStream to wrap.
+     * @param blockSize  The maximum size of blocks; this is limited to
+     *      {@link FromNetBlockInputStream#MAX_BLOCK_SIZE}.
+     */
+    public ToNetBlockOutputStream(OutputStream output, int blockSize) {
+        super(output);
+        this.buffer = new byte[Math.max(1, Math.min(blockSize, FromNetBlockInputStream.MAX_BLOCK_SIZE))];
+    }
+
+    private void writeBlock(int descriptor) throws IOException {
+        out.write(descriptor);
+        out.write(count >> 8);
+        out.write(count);
+        out.write(buffer, 0, count);
+        count = 0;
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("Stream closed");
+        }
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        ensureOpen();
+        if (count == buffer.length) {
+            writeBlock(0);
+        }
+        buffer[count++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] data, int offset, int length) throws IOException {
+        ensureOpen();
+        while (length > 0) {
+            if (count == buffer.length) {
+                writeBlock(0);
+            }
+            int n = Math.min(length, buffer.length - count);
+            System.arraycopy(data, offset, buffer, count, n);
+            count += n;
+            offset += n;
+            length -= n;
+        }
+    }
+
+    /**
+     * Sends the buffered data as a block, and flushes the wrapped stream.
+     *
+     * @throws IOException If an error occurs while writing to the wrapped stream.
+     */
+    @Override
+    public void flush() throws IOException {
+        ensureOpen();
+        if (count > 0) {
+            writeBlock(0);
+        }
+        out.flush();
+    }
+
+    /**
+     * Sends the buffered data as the final block of the file, and flushes
+     * the wrapped stream without closing it.
+     *
+     * @throws IOException If an error occurs while writing to the wrapped stream.
+     */
+    @Override
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        writeBlock(FromNetBlockInputStream.DESCRIPTOR_EOF);
+        out.flush();
+    }
+}
@@ -0,0 +1,43 @@
+package org.xbib.io.ftp.client;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * This class wraps an output stream, compressing all data written to it
+ * as a zlib stream, which is the representation of data transferred in
+ * the deflate transfer mode ({@code MODE Z}).
+ * Closing the stream finishes the zlib stream, closes the wrapped stream,
+ * and releases the native resources of the compressor.
+ */
+public final class ToNetDeflateOutputStream extends DeflaterOutputStream {
+
+    /**
+     * Creates a ToNetDeflateOutputStream instance that wraps an existing
+     * OutputStream.
+     *
+     * @param output  The OutputStream to wrap.
+     * @param level  The compression level, from 0 to 9, or -1 for the default level.
+     * @param bufferSize  The size of the buffer for compressed data.
+     */
+    public ToNetDeflateOutputStream(OutputStream output, int level, int bufferSize) {
+        super(output, new Deflater(level), bufferSize);
+    }
+
+    /**
+     * Writes the remaining compressed data to the wrapped stream and closes it.
+     *
+     * @throws IOException If an error occurs while writing to or closing the
+     *            wrapped stream.
+     */
+    @Override
+    public void close() throws IOException {
+        try {
+            super.close();
+        } finally {
+            def.end();
+        }
+    }
+}
@@ -7,6 +7,10 @@ import java.io.OutputStream;
 import java.io.Reader;
 import java.io.Writer;
 import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
 
 /**
  * The Util class cannot be instantiated and stores short static convenience
@@ -23,11 +27,196 @@ public final class Util {
      */
     public static final int DEFAULT_COPY_BUFFER_SIZE = 4096;
 
+    /**
+     * The maximum number of bytes ({@value}) that {@link #copyChannel copyChannel}
+     * and {@link #copyFromChannel copyFromChannel} transfer at once, i.e. between two notifications of the CopyStreamListener.
+     */
+    public static final int DEFAULT_TRANSFER_CHUNK_SIZE = 1024 * 1024;
+
     // Cannot be instantiated
     private Util() {
     }
 
 
+    /**
+     * Copies the contents of a FileChannel to a WritableByteChannel using
+     * {@link FileChannel#transferTo(long, long, WritableByteChannel)}, so that
+     * the operating system can send the file without copying it into the JVM,
+     * e.g. if the destination is a SocketChannel.
+     * The provided CopyStreamListener is notified after each chunk of at most
+     * {@link #DEFAULT_TRANSFER_CHUNK_SIZE} bytes.
+     * <p>
+     * The contents of the FileChannel are copied from its current position until
+     * the end of the file as it was when the copy started. Afterwards the position
+     * of the FileChannel is after the last byte copied. Neither the source nor the
+     * destination are closed.  The number of bytes copied is returned.
+     *
+     * @param source  The source FileChannel.
+     * @param dest    The destination channel.
+     * @param listener  The CopyStreamListener to notify of progress.  If
+     *      this parameter is null, notification is not attempted.
+     * @return number of bytes copied
+     * @throws CopyStreamException  If an error occurs while reading from the
+     *            source or writing to the destination.  The CopyStreamException
+     *            will contain the number of bytes confirmed to have been
+     *            transferred before an IOException occurred, and it will also
+     *            contain the IOException that caused the error.
+     */
+    public static long copyChannel(FileChannel source, WritableByteChannel dest,
+                                   CopyStreamListener listener)
+            throws CopyStreamException {
+        long position;
+        long size;
+        try {
+            position = source.position();
+            size = source.size();
+        } catch (IOException e) {
+            throw new CopyStreamException("IOException caught while copying.", 0, e);
+        }
+        long total = copyChannel(source, dest, position, Math.max(0, size - position), listener);
+        try {
+            source.position(position + total);
+        } catch (IOException e) {
+            throw new CopyStreamException("IOException caught while copying.", total, e);
+        }
+        return total;
+    }
+
+    /**
+     * Copies a given number of bytes from a given position of a FileChannel to a
+     * WritableByteChannel, like
+     * {@link #copyChannel(FileChannel, WritableByteChannel, CopyStreamListener)}.
+     * The position of the FileChannel is not changed, so several threads can
+     * read different parts of the same FileChannel concurrently.
+     *
+     * @param source  The source FileChannel.
+     * @param dest    The destination channel.
+     * @param position  The position in the FileChannel at which to start reading.
+     * @param count  The maximum number of bytes to copy; fewer bytes are copied
+     *      if the end of the file is reached before.
+     * @param listener  The CopyStreamListener to notify of progress.  If
+     *      this parameter is null, notification is not attempted.
+     * @return number of bytes copied
+     * @throws CopyStreamException  If an error occurs while reading from the
+     *            source or writing to the destination.
+     */
+    public static long copyChannel(FileChannel source, WritableByteChannel dest,
+                                   long position, long count,
+                                   CopyStreamListener listener)
+            throws CopyStreamException {
+        long total = 0;
+        try {
+            while (total < count) {
+                long numBytes = source.transferTo(position + total,
+                        Math.min(count - total, DEFAULT_TRANSFER_CHUNK_SIZE), dest);
+                if (numBytes <= 0) {
+                    // the end of the file has been reached
+                    break;
+                }
+                total += numBytes;
+                if (listener != null) {
+                    listener.bytesTransferred(total, (int) numBytes, count);
+                }
+            }
+        } catch (IOException e) {
+            throw new CopyStreamException("IOException caught while copying.",
+                    total, e);
+        }
+        return total;
+    }
+
+    /**
+     * Copies the contents of a ReadableByteChannel to a FileChannel using
+     * {@link FileChannel#transferFrom(ReadableByteChannel, long, long)}, so that
+     * the data does not need to be copied into arrays on the heap.
+     * The provided CopyStreamListener is notified after each chunk of at most
+     * {@link #DEFAULT_TRANSFER_CHUNK_SIZE} bytes.
+     * <p>
+     * The source is read until the end of the stream is reached. The data is written
+     * to the FileChannel starting at its current position, which may be beyond the
+     * end of the file. Afterwards the position
+     * of the FileChannel is after the last byte written. Neither the source nor the
+     * destination are closed.  The number of bytes copied is returned.
+     *
+     * @param source  The source channel. It must be in blocking mode.
+     * @param dest    The destination FileChannel.
+     * @param listener  The CopyStreamListener to notify of progress.  If
+     *      this parameter is null, notification is not attempted.
+     * @return number of bytes copied
+     * @throws CopyStreamException  If an error occurs while reading from the
+     *            source or writing to the destination.  The CopyStreamException
+     *            will contain the number of bytes confirmed to have been
+     *            transferred before an IOException occurred, and it will also
+     *            contain the IOException that caused the error.
+     */
+    public static long copyFromChannel(ReadableByteChannel source, FileChannel dest,
+                                       CopyStreamListener listener)
+            throws CopyStreamException {
+        long position;
+        try {
+            position = dest.position();
+        } catch (IOException e) {
+            throw new CopyStreamException("IOException caught while copying.", 0, e);
+        }
+        long total = copyFromChannel(source, dest, position, -1, listener);
+        try {
+            dest.position(position + total);
+        } catch (IOException e) {
+            throw new CopyStreamException("IOException caught while copying.", total, e);
+        }
+        return total;
+    }
+
+    /**
+     * Copies at most a given number of bytes from a ReadableByteChannel to a
+     * given position of a FileChannel, like
+     * {@link #copyFromChannel(ReadableByteChannel, FileChannel, CopyStreamListener)}.
+     * The position of the FileChannel is not changed, so several threads can
+     * write different parts of the same FileChannel concurrently. In that case the
+     * file should already be large enough, because a file that needs to be grown
+     * to reach the position is grown by writing to the byte before the position.
+     *
+     * @param source  The source channel. It must be in blocking mode.
+     * @param dest    The destination FileChannel.
+     * @param position  The position in the FileChannel at which to start writing.
+     * @param count  The maximum number of bytes to copy, or a negative value to
+     *      copy until the end of the stream is reached.
+     * @param listener  The CopyStreamListener to notify of progress.  If
+     *      this parameter is null, notification is not attempted.
+     * @return number of bytes copied
+     * @throws CopyStreamException  If an error occurs while reading from the
+     *            source or writing to the destination.
+     */
+    public static long copyFromChannel(ReadableByteChannel source, FileChannel dest,
+                                       long position, long count,
+                                       CopyStreamListener listener)
+            throws CopyStreamException {
+        long total = 0;
+        long remaining = count < 0 ? Long.MAX_VALUE : count;
+        try {
+            if (position > dest.size()) {
+                // transferFrom does not write beyond the end of the file, so grow the file first,
+                // like a write at that position would
+                dest.write(ByteBuffer.allocate(1), position - 1);
+            }
+            long numBytes;
+            // for a blocking source, 0 bytes are only transferred at the end of the stream
+            while (remaining > 0
+                    && (numBytes = dest.transferFrom(source, position + total,
+                    Math.min(remaining, DEFAULT_TRANSFER_CHUNK_SIZE))) > 0) {
+                total += numBytes;
+                remaining -= numBytes;
+                if (listener != null) {
+                    listener.bytesTransferred(total, (int) numBytes, count < 0 ? CopyStreamEvent.UNKNOWN_STREAM_SIZE : count);
+                }
+            }
+        } catch (IOException e) {
+            throw new CopyStreamException("IOException caught while copying.",
+                    total, e);
+        }
+        return total;
+    }
+
     /**
      * Copies the contents of an InputStream to an OutputStream using a
      * copy buffer of a given size and notifies the provided
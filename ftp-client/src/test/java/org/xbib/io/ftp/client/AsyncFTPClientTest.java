@@ -0,0 +1,349 @@
+package org.xbib.io.ftp.client;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import junit.framework.TestCase;
+
+public class AsyncFTPClientTest extends TestCase {
+
+    private ServerSocket serverSocket;
+    private Thread serverThread;
+    private final List<Socket> sockets = Collections.synchronizedList(new ArrayList<>());
+    private final Map<String, byte[]> files = new ConcurrentHashMap<>();
+    private final AtomicInteger active = new AtomicInteger();
+    private final AtomicInteger maxActive = new AtomicInteger();
+    private volatile long chunkDelay = 0;
+    private FTPEventLoopGroup group;
+    private AsyncFTPClient client;
+
+    @Override
+    protected void setUp() throws Exception {
+        serverSocket = new ServerSocket(0, 100, InetAddress.getLoopbackAddress());
+        serverThread = new Thread(() -> {
+            try {
+                while (true) {
+                    Socket socket = serverSocket.accept();
+                    sockets.add(socket);
+                    Thread session = new Thread(() -> serve(socket));
+                    session.setDaemon(true);
+                    session.start();
+                }
+            } catch (IOException e) {
+                // closed
+            }
+        });
+        serverThread.start();
+        files.put("a.txt", "hello".getBytes(StandardCharsets.UTF_8));
+        group = new FTPEventLoopGroup(2);
+        client = new AsyncFTPClient(group);
+        client.setConnectTimeout(5000);
+        client.setReplyTimeout(5000);
+        client.setDataTimeout(5000);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        client.close();
+        group.close();
+        serverSocket.close();
+        serverThread.join(5000);
+        synchronized (sockets) {
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+        }
+    }
+
+    /**
+     * A minimal server with passive mode; data connections are served after the transfer command has been received.
+     */
+    private void serve(Socket socket) {
+        ServerSocket passive = null;
+        String renameFrom = null;
+        boolean loggedIn = false;
+        try {
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            Writer writer = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8);
+            reply(writer, "220 ready");
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int space = line.indexOf(' ');
+                String command = space < 0 ? line : line.substring(0, space);
+                String argument = space < 0 ? null : line.substring(space + 1);
+                if (command.equals("USER")) {
+                    reply(writer, "331 password required");
+                } else if (command.equals("PASS")) {
+                    loggedIn = "secret".equals(argument);
+                    reply(writer, loggedIn ? "230 logged in" : "530 login incorrect");
+                } else if (!loggedIn) {
+                    reply(writer, "530 not logged in");
+                } else if (command.equals("TYPE") || command.equals("NOOP")) {
+                    reply(writer, "200 ok");
+                } else if (command.equals("SYST")) {
+                    reply(writer, "215 UNIX Type: L8");
+                } else if (command.equals("PASV")) {
+                    passive = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+                    int port = passive.getLocalPort();
+                    reply(writer, "227 Entering Passive Mode (127,0,0,1," + (port >> 8) + "," + (port & 0xff) + ")");
+                } else if (command.equals("RETR") || command.equals("LIST") || command.equals("STOR")) {
+                    byte[] content = command.equals("RETR") ? files.get(argument) : null;
+                    if (command.equals("RETR") && content == null) {
+                        passive.close();
+                        reply(writer, "550 " + argument + ": No such file");
+                        continue;
+                    }
+                    reply(writer, "150 opening data connection");
+                    int current = active.incrementAndGet();
+                    maxActive.accumulateAndGet(current, Math::max);
+                    try (Socket data = passive.accept()) {
+                        if (command.equals("STOR")) {
+                            files.put(argument, readFully(data.getInputStream()));
+                        } else {
+                            if (command.equals("LIST")) {
+                                StringBuilder sb = new StringBuilder();
+                                for (Map.Entry<String, byte[]> file : files.entrySet()) {
+                                    sb.append("-rw-r--r--   1 user     group    ")
+                                            .append(file.getValue().length)
+                                            .append(" Jan  1 00:00 ").append(file.getKey()).append("\r\n");
+                                }
+                                content = sb.toString().getBytes(StandardCharsets.UTF_8);
+                            }
+                            // slow down so the transfers overlap
+                            Thread.sleep(20);
+                            for (int offset = 0; offset < content.length; offset += 8192) {
+                                data.getOutputStream().write(content, offset, Math.min(8192, content.length - offset));
+                                Thread.sleep(chunkDelay);
+                            }
+                        }
+                    } finally {
+                        active.decrementAndGet();
+                        passive.close();
+                    }
+                    reply(writer, "226 transfer complete");
+                } else if (command.equals("RNFR")) {
+                    renameFrom = argument;
+                    reply(writer, files.containsKey(argument) ? "350 ready for RNTO" : "550 no such file");
+                } else if (command.equals("RNTO")) {
+                    files.put(argument, files.remove(renameFrom));
+                    reply(writer, "250 renamed");
+                } else if (command.equals("DELE")) {
+                    reply(writer, files.remove(argument) != null ? "250 deleted" : "550 no such file");
+                } else if (command.equals("MLST")) {
+                    byte[] content = files.get(argument);
+                    if (content == null) {
+                        reply(writer, "550 no such file");
+                    } else {
+                        reply(writer, "250-Listing " + argument + "\r\n type=file;size=" + content.length
+                                + "; " + argument + "\r\n250 End");
+                    }
+                } else if (command.equals("QUIT")) {
+                    reply(writer, "221 bye");
+                    return;
+                } else {
+                    reply(writer, "502 not implemented");
+                }
+            }
+        } catch (IOException | InterruptedException e) {
+            // the test fails on the client side
+        } finally {
+            try {
+                if (passive != null) {
+                    passive.close();
+                }
+                socket.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private static void reply(Writer writer, String reply) throws IOException {
+        writer.write(reply + "\r\n");
+        writer.flush();
+    }
+
+    private static byte[] readFully(InputStream input) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        byte[] buffer = new byte[8192];
+        int n;
+        while ((n = input.read(buffer)) > 0) {
+            output.write(buffer, 0, n);
+        }
+        return output.toByteArray();
+    }
+
+    private void connect() throws Exception {
+        assertEquals(220, client.connect("127.0.0.1", serverSocket.getLocalPort())
+                .get(10, TimeUnit.SECONDS).getReplyCode());
+        assertTrue(client.login("user", "secret").get(10, TimeUnit.SECONDS));
+    }
+
+    public void testLogin() throws Exception {
+        client.connect("127.0.0.1", serverSocket.getLocalPort()).get(10, TimeUnit.SECONDS);
+        assertFalse(client.login("user", "wrong").get(10, TimeUnit.SECONDS));
+        assertTrue(client.login("user", "secret").get(10, TimeUnit.SECONDS));
+        assertEquals(1, client.getConnectionCount());
+        try {
+            client.connect("127.0.0.1", serverSocket.getLocalPort());
+            fail("expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    public void testTransfers() throws Exception {
+        connect();
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        assertEquals(5L, (long) client.retrieveFile("a.txt", content).get(10, TimeUnit.SECONDS));
+        assertEquals("hello", content.toString("UTF-8"));
+
+        byte[] data = new byte[300000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) i;
+        }
+        assertEquals((long) data.length,
+                (long) client.storeFile("b.bin", new ByteArrayInputStream(data)).get(10, TimeUnit.SECONDS));
+        assertEquals(data.length, files.get("b.bin").length);
+
+        Path local = Files.createTempFile("async", ".bin");
+        try {
+            assertEquals((long) data.length, (long) client.retrieveFile("b.bin", local).get(10, TimeUnit.SECONDS));
+            assertTrue(Arrays.equals(data, Files.readAllBytes(local)));
+            assertEquals((long) data.length, (long) client.storeFile("c.bin", local).get(10, TimeUnit.SECONDS));
+            assertTrue(Arrays.equals(data, files.get("c.bin")));
+        } finally {
+            Files.delete(local);
+        }
+
+        List<FTPFile> list = client.listFiles(null).get(10, TimeUnit.SECONDS);
+        assertEquals(3, list.size());
+
+        FTPFile file = client.mlistFile("a.txt").get(10, TimeUnit.SECONDS);
+        assertEquals("a.txt", file.getName());
+        assertEquals(5, file.getSize());
+
+        client.rename("a.txt", "d.txt").get(10, TimeUnit.SECONDS);
+        client.deleteFile("d.txt").get(10, TimeUnit.SECONDS);
+        assertFalse(files.containsKey("a.txt"));
+        assertFalse(files.containsKey("d.txt"));
+    }
+
+    public void testTransferLongerThanReplyTimeout() throws Exception {
+        client.setReplyTimeout(500);
+        connect();
+        files.put("slow.bin", new byte[10 * 8192]);
+        // the transfer takes a second, but data keeps arriving
+        chunkDelay = 100;
+        ByteArrayOutputStream content = new ByteArrayOutputStream();
+        assertEquals(10L * 8192, (long) client.retrieveFile("slow.bin", content).get(10, TimeUnit.SECONDS));
+        assertEquals(10 * 8192, content.size());
+        // the connection is still usable
+        assertEquals(5, client.mlistFile("a.txt").get(10, TimeUnit.SECONDS).getSize());
+    }
+
+    public void testRetrieveFileFailureKeepsLocalFile() throws Exception {
+        connect();
+        Path directory = Files.createTempDirectory("async");
+        Path local = directory.resolve("local.txt");
+        Files.write(local, "old".getBytes(StandardCharsets.UTF_8));
+        try {
+            assertEquals(550, assertReply(client.retrieveFile("missing", local)).getReplyCode());
+            assertEquals("old", new String(Files.readAllBytes(local), StandardCharsets.UTF_8));
+            // no temporary file is left behind
+            try (Stream<Path> paths = Files.list(directory)) {
+                assertEquals(Collections.singletonList(local), paths.collect(Collectors.toList()));
+            }
+
+            assertEquals(5L, (long) client.retrieveFile("a.txt", local).get(10, TimeUnit.SECONDS));
+            assertEquals("hello", new String(Files.readAllBytes(local), StandardCharsets.UTF_8));
+            try (Stream<Path> paths = Files.list(directory)) {
+                assertEquals(Collections.singletonList(local), paths.collect(Collectors.toList()));
+            }
+        } finally {
+            Files.delete(local);
+            Files.delete(directory);
+        }
+    }
+
+    public void testNegativeReplies() throws Exception {
+        connect();
+        FTPReplyException e = assertReply(client.retrieveFile("missing", new ByteArrayOutputStream()));
+        assertEquals(550, e.getReplyCode());
+        assertEquals("RETR", e.getCommand());
+        assertEquals(550, assertReply(client.rename("missing", "other")).getReplyCode());
+        assertEquals(550, assertReply(client.deleteFile("missing")).getReplyCode());
+        // the connection is still usable
+        assertEquals(5, client.mlistFile("a.txt").get(10, TimeUnit.SECONDS).getSize());
+    }
+
+    public void testPool() throws Exception {
+        client.setMaxConnections(3);
+        connect();
+        List<CompletableFuture<Long>> transfers = new ArrayList<>();
+        List<ByteArrayOutputStream> contents = new ArrayList<>();
+        for (int i = 0; i < 30; i++) {
+            ByteArrayOutputStream content = new ByteArrayOutputStream();
+            contents.add(content);
+            transfers.add(client.retrieveFile("a.txt", content));
+        }
+        for (int i = 0; i < 30; i++) {
+            assertEquals(5L, (long) transfers.get(i).get(30, TimeUnit.SECONDS));
+            assertEquals("hello", contents.get(i).toString("UTF-8"));
+        }
+        assertEquals(3, client.getConnectionCount());
+        assertTrue(String.valueOf(maxActive.get()), maxActive.get() > 1 && maxActive.get() <= 3);
+    }
+
+    public void testNotConnected() throws Exception {
+        try {
+            client.deleteFile("a.txt").get(10, TimeUnit.SECONDS);
+            fail("expected IOException");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        client.close();
+        try {
+            client.connect("127.0.0.1", serverSocket.getLocalPort());
+            fail("expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    private static FTPReplyException assertReply(CompletableFuture<?> future) throws Exception {
+        try {
+            future.get(10, TimeUnit.SECONDS);
+            fail("expected FTPReplyException");
+            return null;
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause().toString(), e.getCause() instanceof FTPReplyException);
+            return (FTPReplyException) e.getCause();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+package org.xbib.io.ftp.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class BlockStreamTest extends TestCase {
+
+    private static byte[] content(int length) {
+        byte[] content = new byte[length];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) i;
+        }
+        return content;
+    }
+
+    public void testRoundTrip() throws IOException {
+        byte[] first = content(250);
+        byte[] second = content(17);
+        ByteArrayOutputStream blocks = new ByteArrayOutputStream();
+        OutputStream output = new ToNetBlockOutputStream(blocks, 100);
+        output.write(first);
+        output.close();
+        output = new ToNetBlockOutputStream(blocks, 100);
+        output.write(second);
+        output.close();
+        // 3 blocks for the first file and 1 for the second, each with a 3 byte header
+        assertEquals(first.length + second.length + 4 * 3, blocks.size());
+
+        // two consecutive transfers over the same connection
+        InputStream connection = new ByteArrayInputStream(blocks.toByteArray());
+        FromNetBlockInputStream input = new FromNetBlockInputStream(connection);
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        Util.copyStream(input, received);
+        assertTrue(input.isEndOfFile());
+        input.close();
+        assertTrue(Arrays.equals(first, received.toByteArray()));
+
+        input = new FromNetBlockInputStream(connection);
+        received.reset();
+        Util.copyStream(input, received);
+        assertTrue(Arrays.equals(second, received.toByteArray()));
+        assertEquals(-1, connection.read());
+    }
+
+    public void testRestartMarker() throws IOException {
+        byte[] blocks = {
+                0, 0, 2, 'a', 'b',
+                FromNetBlockInputStream.DESCRIPTOR_RESTART_MARKER, 0, 3, '1', '2', '3',
+                FromNetBlockInputStream.DESCRIPTOR_EOF, 0, 1, 'c',
+        };
+        ByteArrayOutputStream received = new ByteArrayOutputStream();
+        Util.copyStream(new FromNetBlockInputStream(new ByteArrayInputStream(blocks)), received);
+        assertEquals("abc", received.toString("US-ASCII"));
+    }
+
+    public void testEmptyFile() throws IOException {
+        ByteArrayOutputStream blocks = new ByteArrayOutputStream();
+        new ToNetBlockOutputStream(blocks, 100).close();
+        assertTrue(Arrays.equals(new byte[]{FromNetBlockInputStream.DESCRIPTOR_EOF, 0, 0}, blocks.toByteArray()));
+
+        FromNetBlockInputStream input = new FromNetBlockInputStream(new ByteArrayInputStream(blocks.toByteArray()));
+        assertEquals(-1, input.read());
+        assertTrue(input.isEndOfFile());
+    }
+
+    public void testTruncated() throws IOException {
+        ByteArrayOutputStream blocks = new ByteArrayOutputStream();
+        try (OutputStream output = new ToNetBlockOutputStream(blocks, 100)) {
+            output.write(content(150));
+        }
+        byte[] truncated = Arrays.copyOf(blocks.toByteArray(), blocks.size() - 10);
+        try {
+            Util.copyStream(new FromNetBlockInputStream(new ByteArrayInputStream(truncated)), new ByteArrayOutputStream());
+            fail("Expected an exception");
+        } catch (CopyStreamException e) {
+            assertTrue(e.getIOException() instanceof EOFException);
+        }
+    }
+}
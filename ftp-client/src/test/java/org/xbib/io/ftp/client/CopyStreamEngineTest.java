@@ -0,0 +1,212 @@
+package org.xbib.io.ftp.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class CopyStreamEngineTest extends TestCase {
+
+    private static byte[] data(int size) {
+        byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (i * 31);
+        }
+        return data;
+    }
+
+    /**
+     * Records the lengths that are asked for by the reads.
+     */
+    private static final class RecordingInputStream extends ByteArrayInputStream {
+
+        private final List<Integer> lengths = new ArrayList<>();
+
+        private RecordingInputStream(byte[] data) {
+            super(data);
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            lengths.add(len);
+            return super.read(b, off, len);
+        }
+    }
+
+    private static final class RecordingListener implements CopyStreamListener {
+
+        private final List<Long> totals = new ArrayList<>();
+        private long sum;
+
+        @Override
+        public void bytesTransferred(CopyStreamEvent event) {
+            bytesTransferred(event.getTotalBytesTransferred(), event.getBytesTransferred(), event.getStreamSize());
+        }
+
+        @Override
+        public void bytesTransferred(long totalBytesTransferred, int bytesTransferred, long streamSize) {
+            totals.add(totalBytesTransferred);
+            sum += bytesTransferred;
+        }
+    }
+
+    public void testCopyStream() throws IOException {
+        CopyStreamEngine engine = new CopyStreamEngine();
+        byte[] data = data(1000000);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        assertEquals(data.length, engine.copy(new ByteArrayInputStream(data), output, 0,
+                CopyStreamEvent.UNKNOWN_STREAM_SIZE, null));
+        assertTrue(Arrays.equals(data, output.toByteArray()));
+    }
+
+    public void testCopyChannel() throws IOException {
+        CopyStreamEngine engine = new CopyStreamEngine(1024, 65536, 4, true, 0);
+        byte[] data = data(300000);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        assertEquals(data.length, engine.copy(Channels.newChannel(new ByteArrayInputStream(data)),
+                Channels.newChannel(output), 0, data.length, null));
+        assertTrue(Arrays.equals(data, output.toByteArray()));
+    }
+
+    public void testCopyFileChannelRange() throws IOException {
+        CopyStreamEngine engine = new CopyStreamEngine(1024, 65536, 4, true, 0);
+        byte[] data = data(300000);
+        Path file = Files.createTempFile("copyFileChannelRange", ".bin");
+        try {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                channel.write(ByteBuffer.wrap(data));
+                channel.position(0);
+
+                RecordingListener listener = new RecordingListener();
+                ByteArrayOutputStream output = new ByteArrayOutputStream();
+                assertEquals(100000, engine.copy(channel, 1000, 100000, Channels.newChannel(output), 0, listener));
+                assertTrue(Arrays.equals(Arrays.copyOfRange(data, 1000, 101000), output.toByteArray()));
+                assertEquals(100000, listener.sum);
+                // the end of the file is reached before
+                output.reset();
+                assertEquals(1000, engine.copy(channel, data.length - 1000, 5000, Channels.newChannel(output), 0, null));
+                assertEquals(0, channel.position());
+
+                byte[] part = data(50000);
+                assertEquals(20000, engine.copy(Channels.newChannel(new ByteArrayInputStream(part)), channel, 5000, 20000,
+                        0, null));
+                // until the end of the source, beyond the end of the file
+                assertEquals(50000, engine.copy(Channels.newChannel(new ByteArrayInputStream(part)), channel,
+                        data.length + 100, -1, 0, null));
+                assertEquals(0, channel.position());
+            }
+            byte[] expected = Arrays.copyOf(data, data.length + 100 + 50000);
+            System.arraycopy(data(50000), 0, expected, 5000, 20000);
+            System.arraycopy(data(50000), 0, expected, data.length + 100, 50000);
+            assertTrue(Arrays.equals(expected, Files.readAllBytes(file)));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    public void testAdaptiveChunkSize() throws IOException {
+        CopyStreamEngine engine = new CopyStreamEngine(4096, 65536, 4, false, 0);
+        RecordingInputStream input = new RecordingInputStream(data(1000000));
+        engine.copy(input, new ByteArrayOutputStream(), 0, CopyStreamEvent.UNKNOWN_STREAM_SIZE, null);
+        // fast reads that fill the chunks let the chunk size grow to the maximum
+        assertEquals(4096, (int) input.lengths.get(0));
+        assertEquals(65536, (int) input.lengths.get(input.lengths.size() - 1));
+    }
+
+    public void testFixedChunkSize() throws IOException {
+        CopyStreamEngine engine = new CopyStreamEngine(4096, 65536, 4, false, 0);
+        RecordingInputStream input = new RecordingInputStream(data(100000));
+        engine.copy(input, new ByteArrayOutputStream(), 1000, CopyStreamEvent.UNKNOWN_STREAM_SIZE, null);
+        for (int length : input.lengths) {
+            assertEquals(1000, length);
+        }
+        // larger than the pooled buffers
+        input = new RecordingInputStream(data(300000));
+        engine.copy(input, new ByteArrayOutputStream(), 100000, CopyStreamEvent.UNKNOWN_STREAM_SIZE, null);
+        assertEquals(100000, (int) input.lengths.get(0));
+    }
+
+    public void testSampledNotifications() throws IOException {
+        CopyStreamEngine engine = new CopyStreamEngine(1000, 1000, 4, false, 10000);
+        RecordingListener listener = new RecordingListener();
+        engine.copy(new ByteArrayInputStream(data(25500)), new ByteArrayOutputStream(), 0, 25500, listener);
+        // every 10 chunks, and once for the remaining bytes
+        assertEquals(Arrays.asList(10000L, 20000L, 25500L), listener.totals);
+        assertEquals(25500, listener.sum);
+
+        engine = new CopyStreamEngine(1000, 1000, 4, false, 0);
+        listener = new RecordingListener();
+        engine.copy(new ByteArrayInputStream(data(5000)), new ByteArrayOutputStream(), 0, 5000, listener);
+        assertEquals(5, listener.totals.size());
+        assertEquals(5000, listener.sum);
+    }
+
+    public void testBufferPool() throws IOException {
+        CopyStreamEngine engine = new CopyStreamEngine(1024, 4096, 1, true, 0);
+        assertEquals(0, engine.getPooledBufferCount());
+        for (int i = 0; i < 3; i++) {
+            engine.copy(new ByteArrayInputStream(data(10000)), new ByteArrayOutputStream(), 0,
+                    CopyStreamEvent.UNKNOWN_STREAM_SIZE, null);
+        }
+        assertEquals(1, engine.getPooledBufferCount());
+        engine.copy(Channels.newChannel(new ByteArrayInputStream(data(10000))),
+                Channels.newChannel(new ByteArrayOutputStream()), 0, CopyStreamEvent.UNKNOWN_STREAM_SIZE, null);
+        // one heap and one direct buffer
+        assertEquals(2, engine.getPooledBufferCount());
+    }
+
+    public void testZeroLengthReads() throws IOException {
+        byte[] data = data(10);
+        InputStream input = new ByteArrayInputStream(data) {
+            private boolean zero;
+
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                zero = !zero;
+                return zero ? 0 : super.read(b, off, len);
+            }
+        };
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        assertEquals(10, new CopyStreamEngine().copy(input, output, 0, CopyStreamEvent.UNKNOWN_STREAM_SIZE, null));
+        assertTrue(Arrays.equals(data, output.toByteArray()));
+    }
+
+    public void testFailure() {
+        CopyStreamEngine engine = new CopyStreamEngine(1000, 1000, 4, false, 0);
+        OutputStream output = new OutputStream() {
+            private int count;
+
+            @Override
+            public void write(int b) throws IOException {
+                throw new IOException();
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                if (++count > 3) {
+                    throw new IOException("disk full");
+                }
+            }
+        };
+        try {
+            engine.copy(new ByteArrayInputStream(data(10000)), output, 0, CopyStreamEvent.UNKNOWN_STREAM_SIZE, null);
+            fail("expected CopyStreamException");
+        } catch (CopyStreamException e) {
+            assertEquals(3000, e.getTotalBytesTransferred());
+            assertEquals("disk full", e.getIOException().getMessage());
+        }
+        assertEquals(1, engine.getPooledBufferCount());
+    }
+}
@@ -0,0 +1,64 @@
+package org.xbib.io.ftp.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class DeflateStreamTest extends TestCase {
+
+    private static byte[] content() {
+        byte[] content = new byte[100000];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) (i % 10 == 0 ? '\n' : 'a' + i % 7);
+        }
+        return content;
+    }
+
+    private static byte[] deflate(byte[] content) throws IOException {
+        ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+        try (OutputStream output = new ToNetDeflateOutputStream(compressed, 9, 1024)) {
+            output.write(content);
+        }
+        return compressed.toByteArray();
+    }
+
+    public void testRoundTrip() throws IOException {
+        byte[] content = content();
+        byte[] compressed = deflate(content);
+        assertTrue(compressed.length < content.length / 10);
+
+        ByteArrayOutputStream decompressed = new ByteArrayOutputStream();
+        try (InputStream input = new FromNetDeflateInputStream(new ByteArrayInputStream(compressed), 1024)) {
+            Util.copyStream(input, decompressed);
+        }
+        assertTrue(Arrays.equals(content, decompressed.toByteArray()));
+    }
+
+    public void testTruncated() throws IOException {
+        byte[] compressed = deflate(content());
+
+        InputStream truncated = new ByteArrayInputStream(Arrays.copyOf(compressed, compressed.length - 4));
+        try (InputStream input = new FromNetDeflateInputStream(truncated, 1024)) {
+            Util.copyStream(input, new ByteArrayOutputStream());
+            fail("Expected an exception");
+        } catch (CopyStreamException e) {
+            assertTrue(e.getIOException() instanceof EOFException);
+        }
+    }
+
+    public void testInvalidLevel() throws IOException {
+        FTPClient client = new FTPClient();
+        try {
+            client.setDeflateLevel(10);
+            fail("Expected an exception");
+        } catch (IllegalArgumentException e) {
+            assertEquals(-1, client.getDeflateLevel());
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package org.xbib.io.ftp.client;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import junit.framework.TestCase;
+
+public class FTPClientBlockModeTest extends TestCase {
+
+    private ServerSocket serverSocket;
+    private Thread serverThread;
+    private FTPClient client;
+
+    private final List<String> commands = new CopyOnWriteArrayList<>();
+    private volatile String transferReply;
+    private volatile int dataConnections;
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (client != null && client.isConnected()) {
+            client.disconnect();
+        }
+        if (serverSocket != null) {
+            serverSocket.close();
+        }
+        if (serverThread != null) {
+            serverThread.join(5000);
+        }
+    }
+
+    private static byte[] data() {
+        byte[] data = new byte[100000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i % 251);
+        }
+        return data;
+    }
+
+    /**
+     * Starts a server that sends files in block mode, and replies to transfers with the given reply. Unless that reply is
+     * {@code 226}, the server keeps the data connection open for the next transfer.
+     */
+    private void startServer(String reply) throws IOException {
+        transferReply = reply;
+        serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        serverThread = new Thread(() -> {
+            ServerSocket dataServer = null;
+            Socket data = null;
+            try (Socket socket = serverSocket.accept()) {
+                BufferedReader reader = new BufferedReader(
+                        new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+                Writer writer = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.US_ASCII);
+                reply(writer, "220 ready\r\n");
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    commands.add(line);
+                    if (line.equals("PASV")) {
+                        closeQuietly(data);
+                        data = null;
+                        dataServer = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+                        int port = dataServer.getLocalPort();
+                        reply(writer, "227 Entering Passive Mode (127,0,0,1," + (port >> 8) + "," + (port & 0xff) + ")\r\n");
+                    } else if (line.startsWith("RETR ")) {
+                        if (data == null && dataServer == null) {
+                            reply(writer, "425 no data connection\r\n");
+                            continue;
+                        }
+                        reply(writer, data == null ? "150 sending\r\n" : "125 sending\r\n");
+                        if (data == null) {
+                            try (ServerSocket server = dataServer) {
+                                data = server.accept();
+                            }
+                            dataServer = null;
+                            dataConnections++;
+                        }
+                        writeBlocks(data.getOutputStream(), data());
+                        if (transferReply.startsWith("226")) {
+                            data.close();
+                            data = null;
+                        }
+                        reply(writer, transferReply + "\r\n");
+                    } else {
+                        reply(writer, "200 ok\r\n");
+                    }
+                }
+            } catch (IOException e) {
+                // the test fails on the client side
+            } finally {
+                closeQuietly(data);
+                closeQuietly(dataServer);
+            }
+        });
+        serverThread.start();
+        client = new FTPClient();
+        client.setDefaultTimeout(5000);
+        client.connect(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+        client.enterLocalPassiveMode();
+        assertTrue(client.setFileType(FTP.BINARY_FILE_TYPE));
+        assertTrue(client.setFileTransferMode(FTP.BLOCK_TRANSFER_MODE));
+    }
+
+    private static void reply(Writer writer, String reply) throws IOException {
+        writer.write(reply);
+        writer.flush();
+    }
+
+    private static void writeBlocks(OutputStream output, byte[] data) throws IOException {
+        for (int offset = 0; offset < data.length; offset += FromNetBlockInputStream.MAX_BLOCK_SIZE) {
+            int length = Math.min(FromNetBlockInputStream.MAX_BLOCK_SIZE, data.length - offset);
+            output.write(new byte[]{0, (byte) (length >> 8), (byte) length});
+            output.write(data, offset, length);
+        }
+        output.write(new byte[]{(byte) FromNetBlockInputStream.DESCRIPTOR_EOF, 0, 0});
+        output.flush();
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private long count(String command) {
+        return commands.stream().filter(command::equals).count();
+    }
+
+    private void retrieveTwice() throws IOException {
+        for (int i = 0; i < 2; i++) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            assertTrue(client.retrieveFile("file", output));
+            assertTrue(Arrays.equals(data(), output.toByteArray()));
+        }
+    }
+
+    public void testDataConnectionKeptOpenWith250() throws Exception {
+        startServer("250 done, data connection open");
+        retrieveTwice();
+        assertEquals(1, count("PASV"));
+        assertEquals(1, dataConnections);
+    }
+
+    public void testDataConnectionKeptOpenWith225() throws Exception {
+        startServer("225 data connection open");
+        retrieveTwice();
+        assertEquals(1, count("PASV"));
+        assertEquals(1, dataConnections);
+    }
+
+    public void testDataConnectionClosedWith226() throws Exception {
+        startServer("226 done, closing data connection");
+        retrieveTwice();
+        assertEquals(2, count("PASV"));
+        assertEquals(2, dataConnections);
+    }
+}
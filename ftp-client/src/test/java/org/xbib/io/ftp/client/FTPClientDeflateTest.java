@@ -0,0 +1,215 @@
+package org.xbib.io.ftp.client;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.InflaterInputStream;
+
+import junit.framework.TestCase;
+
+public class FTPClientDeflateTest extends TestCase {
+
+    private ServerSocket serverSocket;
+    private Thread serverThread;
+    private FTPClient client;
+
+    private final List<String> commands = new CopyOnWriteArrayList<>();
+    private volatile boolean deflateSupported = true;
+    private volatile boolean deflating;
+    private volatile int bytesOnWire;
+    private volatile byte[] stored;
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (client != null && client.isConnected()) {
+            client.disconnect();
+        }
+        if (serverSocket != null) {
+            serverSocket.close();
+        }
+        if (serverThread != null) {
+            serverThread.join(5000);
+        }
+    }
+
+    private static byte[] data() {
+        // repetitive, so it compresses well
+        byte[] data = new byte[100000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i % 100);
+        }
+        return data;
+    }
+
+    /**
+     * Starts a server that supports {@code MODE Z} unless told otherwise. In that mode, it compresses the data it sends,
+     * and decompresses the data it receives.
+     */
+    private void startServer() throws IOException {
+        serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        serverThread = new Thread(() -> {
+            try (Socket socket = serverSocket.accept()) {
+                BufferedReader reader = new BufferedReader(
+                        new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+                Writer writer = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.US_ASCII);
+                reply(writer, "220 ready\r\n");
+                ServerSocket dataServer = null;
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    commands.add(line);
+                    if (line.equals("PASV")) {
+                        dataServer = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+                        int port = dataServer.getLocalPort();
+                        reply(writer, "227 Entering Passive Mode (127,0,0,1," + (port >> 8) + "," + (port & 0xff) + ")\r\n");
+                    } else if (line.equals("FEAT")) {
+                        reply(writer, deflateSupported ? "211-Features:\r\n MODE Z\r\n211 End\r\n" : "211-Features:\r\n SIZE\r\n211 End\r\n");
+                    } else if (line.startsWith("MODE ")) {
+                        boolean deflate = line.equals("MODE Z");
+                        if (deflate && !deflateSupported) {
+                            reply(writer, "504 unsupported mode\r\n");
+                        } else {
+                            deflating = deflate;
+                            reply(writer, "200 ok\r\n");
+                        }
+                    } else if (line.startsWith("RETR ")) {
+                        reply(writer, "150 sending\r\n");
+                        try (ServerSocket server = dataServer;
+                             Socket data = server.accept()) {
+                            CountingOutputStream counter = new CountingOutputStream(data.getOutputStream());
+                            try (OutputStream output = deflating ? new DeflaterOutputStream(counter) : counter) {
+                                output.write(data());
+                            }
+                            bytesOnWire = counter.count;
+                        }
+                        reply(writer, "226 done\r\n");
+                    } else if (line.startsWith("STOR ")) {
+                        reply(writer, "150 receiving\r\n");
+                        try (ServerSocket server = dataServer;
+                             Socket data = server.accept()) {
+                            ByteArrayOutputStream received = new ByteArrayOutputStream();
+                            copy(data.getInputStream(), received);
+                            bytesOnWire = received.size();
+                            byte[] bytes = received.toByteArray();
+                            if (deflating) {
+                                received.reset();
+                                copy(new InflaterInputStream(new ByteArrayInputStream(bytes)), received);
+                                bytes = received.toByteArray();
+                            }
+                            stored = bytes;
+                        }
+                        reply(writer, "226 done\r\n");
+                    } else {
+                        reply(writer, "200 ok\r\n");
+                    }
+                }
+            } catch (IOException e) {
+                // the test fails on the client side
+            }
+        });
+        serverThread.start();
+        client = new FTPClient();
+        client.setDefaultTimeout(5000);
+        client.connect(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+        client.enterLocalPassiveMode();
+        assertTrue(client.setFileType(FTP.BINARY_FILE_TYPE));
+    }
+
+    private static void reply(Writer writer, String reply) throws IOException {
+        writer.write(reply);
+        writer.flush();
+    }
+
+    private static void copy(InputStream input, OutputStream output) throws IOException {
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = input.read(buffer)) != -1) {
+            output.write(buffer, 0, n);
+        }
+    }
+
+    public void testRetrieveFile() throws Exception {
+        startServer();
+        assertTrue(client.isDeflateTransferModeSupported());
+        assertTrue(client.setFileTransferMode(FTP.DEFLATE_TRANSFER_MODE));
+        assertEquals(FTP.DEFLATE_TRANSFER_MODE, client.getFileTransferMode());
+
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        assertTrue(client.retrieveFile("file", output));
+        assertTrue(Arrays.equals(data(), output.toByteArray()));
+        assertTrue(commands.contains("MODE Z"));
+        assertTrue(bytesOnWire < data().length / 10);
+    }
+
+    public void testStoreFile() throws Exception {
+        startServer();
+        assertTrue(client.setFileTransferMode(FTP.DEFLATE_TRANSFER_MODE));
+        assertTrue(client.setDeflateLevel(9));
+        assertTrue(commands.contains("OPTS MODE Z LEVEL 9"));
+
+        assertTrue(client.storeFile("file", new ByteArrayInputStream(data())));
+        assertTrue(Arrays.equals(data(), stored));
+        assertTrue(bytesOnWire < data().length / 10);
+    }
+
+    public void testDeflateModeRejected() throws Exception {
+        deflateSupported = false;
+        startServer();
+        assertFalse(client.isDeflateTransferModeSupported());
+        assertFalse(client.setFileTransferMode(FTP.DEFLATE_TRANSFER_MODE));
+        assertEquals(FTP.STREAM_TRANSFER_MODE, client.getFileTransferMode());
+
+        // the data is neither decompressed nor compressed
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        assertTrue(client.retrieveFile("file", output));
+        assertTrue(Arrays.equals(data(), output.toByteArray()));
+        assertTrue(client.storeFile("file", new ByteArrayInputStream(data())));
+        assertTrue(Arrays.equals(data(), stored));
+        assertEquals(data().length, bytesOnWire);
+    }
+
+    private static final class CountingOutputStream extends OutputStream {
+
+        private final OutputStream out;
+        private int count;
+
+        private CountingOutputStream(OutputStream out) {
+            this.out = out;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            out.write(b);
+            count++;
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            out.write(b, off, len);
+            count += len;
+        }
+
+        @Override
+        public void flush() throws IOException {
+            out.flush();
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+}
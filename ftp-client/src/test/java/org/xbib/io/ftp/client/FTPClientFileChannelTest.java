@@ -0,0 +1,297 @@
+package org.xbib.io.ftp.client;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class FTPClientFileChannelTest extends TestCase {
+
+    private ServerSocket serverSocket;
+    private Thread serverThread;
+    private FTPClient client;
+    private File file;
+
+    private volatile long restartOffset;
+    private volatile byte[] stored;
+
+    @Override
+    protected void setUp() throws Exception {
+        file = File.createTempFile("ftp", ".dat");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (client != null && client.isConnected()) {
+            client.disconnect();
+        }
+        if (serverSocket != null) {
+            serverSocket.close();
+        }
+        if (serverThread != null) {
+            serverThread.join(5000);
+        }
+        Files.deleteIfExists(file.toPath());
+    }
+
+    private static byte[] data() {
+        byte[] data = new byte[100000];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i % 251);
+        }
+        return data;
+    }
+
+    /**
+     * Starts a server that sends the data from the restart offset on, and remembers the data it receives.
+     */
+    private void startServer() throws IOException {
+        serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        serverThread = new Thread(() -> {
+            try (Socket socket = serverSocket.accept()) {
+                BufferedReader reader = new BufferedReader(
+                        new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+                Writer writer = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.US_ASCII);
+                reply(writer, "220 ready\r\n");
+                ServerSocket dataServer = null;
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.equals("PASV")) {
+                        dataServer = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+                        int port = dataServer.getLocalPort();
+                        reply(writer, "227 Entering Passive Mode (127,0,0,1," + (port >> 8) + "," + (port & 0xff) + ")\r\n");
+                    } else if (line.startsWith("REST ")) {
+                        restartOffset = Long.parseLong(line.substring(5));
+                        reply(writer, "350 restarting\r\n");
+                    } else if (line.startsWith("RETR ")) {
+                        reply(writer, "150 sending\r\n");
+                        try (ServerSocket server = dataServer;
+                             Socket data = server.accept();
+                             OutputStream output = data.getOutputStream()) {
+                            int offset = (int) restartOffset;
+                            output.write(data(), offset, data().length - offset);
+                        }
+                        restartOffset = 0;
+                        reply(writer, "226 done\r\n");
+                    } else if (line.startsWith("STOR ")) {
+                        reply(writer, "150 receiving\r\n");
+                        try (ServerSocket server = dataServer;
+                             Socket data = server.accept()) {
+                            ByteArrayOutputStream received = new ByteArrayOutputStream();
+                            copy(data.getInputStream(), received);
+                            stored = received.toByteArray();
+                        }
+                        reply(writer, "226 done\r\n");
+                    } else {
+                        reply(writer, "200 ok\r\n");
+                    }
+                }
+            } catch (IOException e) {
+                // the test fails on the client side
+            }
+        });
+        serverThread.start();
+        client = new FTPClient();
+        client.setDefaultTimeout(5000);
+        client.connect(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+        client.enterLocalPassiveMode();
+        assertTrue(client.setFileType(FTP.BINARY_FILE_TYPE));
+    }
+
+    private static void reply(Writer writer, String reply) throws IOException {
+        writer.write(reply);
+        writer.flush();
+    }
+
+    private static void copy(InputStream input, OutputStream output) throws IOException {
+        byte[] buffer = new byte[4096];
+        int n;
+        while ((n = input.read(buffer)) != -1) {
+            output.write(buffer, 0, n);
+        }
+    }
+
+    private RecordingFileChannel open() throws IOException {
+        return new RecordingFileChannel(FileChannel.open(file.toPath(),
+                StandardOpenOption.READ, StandardOpenOption.WRITE));
+    }
+
+    public void testStoreFileUsesTransferTo() throws Exception {
+        Files.write(file.toPath(), data());
+        startServer();
+        try (RecordingFileChannel channel = open()) {
+            assertTrue(client.storeFile("file", channel));
+            assertTrue(Arrays.equals(data(), stored));
+            assertEquals(data().length, channel.position());
+
+            assertTrue(client.storeFileRange("file", channel, 1000, 2000));
+            assertTrue(Arrays.equals(Arrays.copyOfRange(data(), 1000, 3000), stored));
+            assertEquals(data().length, channel.position());
+
+            assertTrue(channel.transfers > 0);
+            assertEquals(0, channel.copies);
+        }
+    }
+
+    public void testRetrieveFileUsesTransferFrom() throws Exception {
+        startServer();
+        try (RecordingFileChannel channel = open()) {
+            assertTrue(client.retrieveFile("file", channel));
+            assertEquals(data().length, channel.position());
+
+            channel.truncate(1000);
+            assertEquals(data().length - 1000, client.retrieveFileRange("file", channel, 1000, -1));
+            assertEquals(1000, channel.position());
+
+            assertTrue(channel.transfers > 0);
+            assertEquals(0, channel.copies);
+        }
+        assertTrue(Arrays.equals(data(), Files.readAllBytes(file.toPath())));
+    }
+
+    public void testRetrieveFileWithDataTimeoutUsesEngine() throws Exception {
+        startServer();
+        CopyStreamEngine engine = new CopyStreamEngine(1024, 4096, 4, false, 0);
+        client.setCopyStreamEngine(engine);
+        // a channel cannot apply the timeout, so the data is read through the socket's stream
+        client.setDataTimeout(5000);
+        try (RecordingFileChannel channel = open()) {
+            assertTrue(client.retrieveFile("file", channel));
+            assertEquals(data().length, channel.position());
+
+            assertEquals(0, channel.transfers);
+            assertTrue(channel.copies > 0);
+        }
+        assertTrue(engine.getPooledBufferCount() > 0);
+        assertTrue(Arrays.equals(data(), Files.readAllBytes(file.toPath())));
+    }
+
+    /**
+     * A FileChannel that counts transfers and the reads or writes that copy the data through buffers.
+     */
+    private static final class RecordingFileChannel extends FileChannel {
+
+        private final FileChannel channel;
+        private int transfers;
+        private int copies;
+
+        private RecordingFileChannel(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        @Override
+        public int read(ByteBuffer dst) throws IOException {
+            copies++;
+            return channel.read(dst);
+        }
+
+        @Override
+        public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+            copies++;
+            return channel.read(dsts, offset, length);
+        }
+
+        @Override
+        public int read(ByteBuffer dst, long position) throws IOException {
+            copies++;
+            return channel.read(dst, position);
+        }
+
+        @Override
+        public int write(ByteBuffer src) throws IOException {
+            copies++;
+            return channel.write(src);
+        }
+
+        @Override
+        public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+            copies++;
+            return channel.write(srcs, offset, length);
+        }
+
+        @Override
+        public int write(ByteBuffer src, long position) throws IOException {
+            copies++;
+            return channel.write(src, position);
+        }
+
+        @Override
+        public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+            transfers++;
+            return channel.transferTo(position, count, target);
+        }
+
+        @Override
+        public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+            transfers++;
+            return channel.transferFrom(src, position, count);
+        }
+
+        @Override
+        public long position() throws IOException {
+            return channel.position();
+        }
+
+        @Override
+        public FileChannel position(long newPosition) throws IOException {
+            channel.position(newPosition);
+            return this;
+        }
+
+        @Override
+        public long size() throws IOException {
+            return channel.size();
+        }
+
+        @Override
+        public FileChannel truncate(long size) throws IOException {
+            channel.truncate(size);
+            return this;
+        }
+
+        @Override
+        public void force(boolean metaData) throws IOException {
+            channel.force(metaData);
+        }
+
+        @Override
+        public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+            return channel.map(mode, position, size);
+        }
+
+        @Override
+        public FileLock lock(long position, long size, boolean shared) throws IOException {
+            return channel.lock(position, size, shared);
+        }
+
+        @Override
+        public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+            return channel.tryLock(position, size, shared);
+        }
+
+        @Override
+        protected void implCloseChannel() throws IOException {
+            channel.close();
+        }
+    }
+}
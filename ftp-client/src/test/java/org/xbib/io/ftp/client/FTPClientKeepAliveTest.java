@@ -0,0 +1,241 @@
+package org.xbib.io.ftp.client;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+public class FTPClientKeepAliveTest extends TestCase {
+
+    private static final int CHUNKS = 6;
+    private static final int CHUNK_SIZE = 1000;
+
+    private ServerSocket serverSocket;
+    private Thread serverThread;
+    private FTPClient client;
+
+    // guarded by this
+    private Writer writer;
+    private boolean transferring;
+    private int noops;
+    private String noopReply = "200 ok\r\n";
+    private final List<String> heldReplies = new ArrayList<>();
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (client != null && client.isConnected()) {
+            client.disconnect();
+        }
+        if (serverSocket != null) {
+            serverSocket.close();
+        }
+        if (serverThread != null) {
+            serverThread.join(5000);
+        }
+    }
+
+    private static byte[] data() {
+        byte[] data = new byte[CHUNKS * CHUNK_SIZE];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i * 31);
+        }
+        return data;
+    }
+
+    /**
+     * Starts a server that sends a file slowly. It answers the first NOOP during the transfer right away,
+     * but holds back the replies to later NOOPs until it has sent the reply to the transfer. If the client
+     * closes the data connection early, the reply to the transfer is 426.
+     */
+    private void startServer() throws IOException {
+        serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        serverThread = new Thread(() -> {
+            try (Socket socket = serverSocket.accept()) {
+                BufferedReader reader = new BufferedReader(
+                        new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+                synchronized (this) {
+                    writer = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.US_ASCII);
+                }
+                reply("220 ready\r\n");
+                ServerSocket dataServer = null;
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    if (line.equals("PASV")) {
+                        dataServer = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+                        int port = dataServer.getLocalPort();
+                        reply("227 Entering Passive Mode (127,0,0,1," + (port >> 8) + "," + (port & 0xff) + ")\r\n");
+                    } else if (line.startsWith("RETR ")) {
+                        synchronized (this) {
+                            transferring = true;
+                        }
+                        reply("150 sending\r\n");
+                        startTransfer(dataServer);
+                    } else if (line.equals("NOOP")) {
+                        synchronized (this) {
+                            noops++;
+                            if (transferring && noops > 1) {
+                                heldReplies.add(noopReply);
+                                continue;
+                            }
+                        }
+                        reply(noopReply);
+                    } else if (line.startsWith("SIZE ")) {
+                        reply("213 " + (line.length() - 5) + "\r\n");
+                    } else {
+                        reply("200 ok\r\n");
+                    }
+                }
+            } catch (IOException e) {
+                // the test fails on the client side
+            }
+        });
+        serverThread.start();
+        client = new FTPClient();
+        client.setDefaultTimeout(5000);
+        client.connect(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+        client.enterLocalPassiveMode();
+    }
+
+    private synchronized void reply(String reply) throws IOException {
+        writer.write(reply);
+        writer.flush();
+    }
+
+    private void startTransfer(ServerSocket dataServer) {
+        Thread thread = new Thread(() -> {
+            try {
+                String transferReply = "226 done\r\n";
+                try (ServerSocket server = dataServer;
+                     Socket data = server.accept()) {
+                    OutputStream output = data.getOutputStream();
+                    byte[] bytes = data();
+                    for (int i = 0; i < CHUNKS; i++) {
+                        output.write(bytes, i * CHUNK_SIZE, CHUNK_SIZE);
+                        output.flush();
+                        Thread.sleep(500);
+                    }
+                } catch (IOException e) {
+                    transferReply = "426 aborted\r\n";
+                }
+                synchronized (this) {
+                    transferring = false;
+                    writer.write(transferReply);
+                    for (String reply : heldReplies) {
+                        writer.write(reply);
+                    }
+                    heldReplies.clear();
+                    writer.flush();
+                }
+            } catch (IOException | InterruptedException e) {
+                // the test fails on the client side
+            }
+        });
+        thread.start();
+    }
+
+    public void testKeepAliveDuringTransfer() throws Exception {
+        startServer();
+        client.setControlKeepAliveTimeout(1);
+        List<Integer> reportedReplies = new ArrayList<>();
+        client.addProtocolCommandListener(new ProtocolCommandListener() {
+            @Override
+            public void protocolCommandSent(ProtocolCommandEvent event) {
+            }
+
+            @Override
+            public void protocolReplyReceived(ProtocolCommandEvent event) {
+                reportedReplies.add(event.getReplyCode());
+            }
+        });
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        assertTrue(client.retrieveFile("file", output));
+        assertTrue(Arrays.equals(data(), output.toByteArray()));
+        assertEquals(226, client.getReplyCode());
+        synchronized (this) {
+            // the transfer takes about three seconds
+            assertTrue(noops >= 2);
+        }
+        // the replies to the NOOPs are not reported, and do not get mixed up with later replies
+        assertEquals(Arrays.asList(227, 150, 226), reportedReplies);
+        assertEquals(213, client.sendCommand("SIZE abcd"));
+        assertEquals("4", client.getReplyString().substring(4).trim());
+    }
+
+    public void testTransferFailsWithKeepAlive() throws Exception {
+        startServer();
+        assertTrue(client.setFileType(FTP.BINARY_FILE_TYPE));
+        client.setControlKeepAliveTimeout(1);
+        // fails after most of the data, so that NOOPs have been sent, and the replies to some are held back
+        OutputStream output = new OutputStream() {
+            private int count;
+
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[]{(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                count += len;
+                if (count > (CHUNKS - 1) * CHUNK_SIZE) {
+                    throw new IOException("disk full");
+                }
+            }
+        };
+        try {
+            client.retrieveFile("file", output);
+            fail("expected CopyStreamException");
+        } catch (CopyStreamException e) {
+            assertEquals("disk full", e.getIOException().getMessage());
+        }
+        synchronized (this) {
+            assertTrue(noops >= 2);
+        }
+        // neither the reply to the transfer nor the replies to the NOOPs are left for the next command
+        assertTrue(client.isConnected());
+        assertEquals(213, client.sendCommand("SIZE abcd"));
+        assertEquals("4", client.getReplyString().substring(4).trim());
+        assertEquals(200, client.sendCommand("TYPE I"));
+    }
+
+    public void testNoopRejectedDuringTransfer() throws Exception {
+        synchronized (this) {
+            noopReply = "502 not during a transfer\r\n";
+        }
+        startServer();
+        client.setControlKeepAliveTimeout(1);
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        // the rejections are replies to the NOOPs, not to the transfer
+        assertTrue(client.retrieveFile("file", output));
+        assertTrue(Arrays.equals(data(), output.toByteArray()));
+        assertEquals(226, client.getReplyCode());
+        synchronized (this) {
+            assertTrue(noops >= 2);
+        }
+        assertEquals(213, client.sendCommand("SIZE abcd"));
+        assertEquals("4", client.getReplyString().substring(4).trim());
+    }
+
+    public void testNoKeepAlive() throws Exception {
+        startServer();
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        assertTrue(client.retrieveFile("file", output));
+        assertTrue(Arrays.equals(data(), output.toByteArray()));
+        synchronized (this) {
+            assertEquals(0, noops);
+        }
+        assertEquals(213, client.sendCommand("SIZE abc"));
+    }
+}
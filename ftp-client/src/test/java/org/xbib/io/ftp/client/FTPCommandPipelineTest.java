@@ -0,0 +1,186 @@
+package org.xbib.io.ftp.client;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import junit.framework.TestCase;
+
+public class FTPCommandPipelineTest extends TestCase {
+
+    private ServerSocket serverSocket;
+    private Thread serverThread;
+    private FTP ftp;
+
+    @Override
+    protected void tearDown() throws Exception {
+        if (ftp != null && ftp.isConnected()) {
+            ftp.disconnect();
+        }
+        if (serverSocket != null) {
+            serverSocket.close();
+        }
+        if (serverThread != null) {
+            serverThread.join(5000);
+        }
+    }
+
+    /**
+     * Starts a server that does not reply before it has received {@code batch} commands, so a client that
+     * waits for each reply before sending the next command times out. The server closes the connection
+     * without replying when it receives command number {@code maxCommands}.
+     */
+    private void startServer(int batch, int maxCommands) throws IOException {
+        serverSocket = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        serverThread = new Thread(() -> {
+            try (Socket socket = serverSocket.accept()) {
+                BufferedReader reader = new BufferedReader(
+                        new InputStreamReader(socket.getInputStream(), StandardCharsets.US_ASCII));
+                Writer writer = new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.US_ASCII);
+                writer.write("220 ready\r\n");
+                writer.flush();
+                List<String> held = new ArrayList<>();
+                int count = 0;
+                String line;
+                while ((line = reader.readLine()) != null && ++count < maxCommands) {
+                    held.add(line);
+                    if (count >= batch) {
+                        for (String command : held) {
+                            writer.write(reply(command));
+                        }
+                        writer.flush();
+                        held.clear();
+                    }
+                }
+            } catch (IOException e) {
+                // the test fails on the client side
+            }
+        });
+        serverThread.start();
+        ftp = new FTP();
+        ftp.setDefaultTimeout(5000);
+        ftp.connect(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+    }
+
+    private static String reply(String command) {
+        if (command.equals("SIZE missing")) {
+            return "550 missing: No such file\r\n";
+        }
+        if (command.startsWith("SIZE ")) {
+            return "213 " + (command.length() - 5) + "\r\n";
+        }
+        if (command.equals("STAT")) {
+            return "211-status\r\n connected\r\n211 End\r\n";
+        }
+        if (command.equals("DELE slow")) {
+            return "150 working\r\n250 deleted\r\n";
+        }
+        return "200 ok\r\n";
+    }
+
+    public void testRepliesMatchCommands() throws Exception {
+        startServer(4, Integer.MAX_VALUE);
+        List<CompletableFuture<FTPCommandReply>> replies = new ArrayList<>();
+        try (FTPCommandPipeline pipeline = ftp.pipeline(4)) {
+            replies.add(pipeline.submit(FTPCmd.SIZE, "abc"));
+            replies.add(pipeline.submit(FTPCmd.SIZE, "missing"));
+            replies.add(pipeline.submit("STAT", null));
+            replies.add(pipeline.submit(FTPCmd.DELE, "slow"));
+            assertEquals(4, pipeline.getInFlight());
+            assertFalse(replies.get(0).isDone());
+        }
+        assertEquals(213, replies.get(0).get().getReplyCode());
+        assertEquals("3", replies.get(0).get().getReplyText());
+        assertEquals("abc", replies.get(0).get().getArguments());
+
+        assertEquals(550, replies.get(1).get().getReplyCode());
+        assertFalse(replies.get(1).get().isPositiveCompletion());
+
+        FTPCommandReply status = replies.get(2).get();
+        assertEquals(211, status.getReplyCode());
+        assertEquals(3, status.getReplyStrings().length);
+        assertNull(status.getReplyText());
+
+        // the preliminary reply is skipped
+        assertEquals(250, replies.get(3).get().getReplyCode());
+        assertEquals("DELE", replies.get(3).get().getCommand());
+
+        // the connection can be used normally again
+        assertEquals(213, sendBatch("SIZE abcd"));
+    }
+
+    private int sendBatch(String command) throws IOException {
+        // the server replies once it has received 4 commands
+        try (FTPCommandPipeline pipeline = ftp.pipeline()) {
+            CompletableFuture<FTPCommandReply> reply = pipeline.submit(command, null);
+            for (int i = 0; i < 3; i++) {
+                pipeline.submit(FTPCmd.NOOP, null);
+            }
+            pipeline.sync();
+            return reply.join().getReplyCode();
+        }
+    }
+
+    public void testMaxInFlight() throws Exception {
+        startServer(1, Integer.MAX_VALUE);
+        try (FTPCommandPipeline pipeline = ftp.pipeline(2)) {
+            CompletableFuture<FTPCommandReply> first = pipeline.submit(FTPCmd.SIZE, "a");
+            pipeline.submit(FTPCmd.SIZE, "ab");
+            assertFalse(first.isDone());
+            CompletableFuture<FTPCommandReply> third = pipeline.submit(FTPCmd.SIZE, "abc");
+            assertTrue(first.isDone());
+            assertEquals(2, pipeline.getInFlight());
+            pipeline.sync();
+            assertEquals(0, pipeline.getInFlight());
+            assertEquals("1", first.get().getReplyText());
+            assertEquals("3", third.get().getReplyText());
+        }
+    }
+
+    public void testConnectionClosed() throws Exception {
+        // the server closes the connection after the second command, without replying to it
+        startServer(1, 2);
+        FTPCommandPipeline pipeline = ftp.pipeline(3);
+        CompletableFuture<FTPCommandReply> first = pipeline.submit(FTPCmd.SIZE, "a");
+        CompletableFuture<FTPCommandReply> second = pipeline.submit(FTPCmd.SIZE, "ab");
+        try {
+            pipeline.sync();
+            fail("expected IOException");
+        } catch (IOException e) {
+            // expected
+        }
+        assertEquals(213, first.get().getReplyCode());
+        try {
+            second.get();
+            fail("expected ExecutionException");
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause() instanceof IOException);
+        }
+        try {
+            pipeline.submit(FTPCmd.NOOP, null);
+            fail("expected IOException");
+        } catch (IOException e) {
+            // expected
+        }
+        pipeline.close();
+    }
+
+    public void testInvalidMaxInFlight() {
+        try {
+            new FTP().pipeline(0);
+            fail("expected IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package org.xbib.io.ftp.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+
+import junit.framework.TestCase;
+
+public class FTPCommandWriterTest extends TestCase {
+
+    public void testWrite() throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        FTPCommandWriter writer = new FTPCommandWriter(StandardCharsets.ISO_8859_1);
+        writer.setOutput(output);
+        writer.write("PWD", null);
+        writer.write("CWD", "/pub");
+        // nothing is written until the writer is flushed
+        assertEquals(0, output.size());
+        writer.flush();
+        assertEquals("PWD\r\nCWD /pub\r\n", new String(output.toByteArray(), StandardCharsets.ISO_8859_1));
+    }
+
+    public void testEncoding() throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        FTPCommandWriter writer = new FTPCommandWriter(StandardCharsets.UTF_8);
+        writer.setOutput(output);
+        writer.write("MKD", "/\u00e4\u20ac");
+        writer.setCharset(StandardCharsets.ISO_8859_1);
+        // characters that cannot be encoded are replaced
+        writer.write("MKD", "/\u00e4\u20ac");
+        writer.flush();
+        byte[] expected = concat("MKD /\u00e4\u20ac\r\n".getBytes(StandardCharsets.UTF_8),
+                "MKD /\u00e4?\r\n".getBytes(StandardCharsets.ISO_8859_1));
+        assertEquals(new String(expected, StandardCharsets.ISO_8859_1),
+                new String(output.toByteArray(), StandardCharsets.ISO_8859_1));
+    }
+
+    public void testLongCommands() throws IOException {
+        StringBuilder path = new StringBuilder();
+        for (int i = 0; i < 3000; i++) {
+            path.append('\u00e4');
+        }
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        FTPCommandWriter writer = new FTPCommandWriter(StandardCharsets.UTF_8);
+        writer.setOutput(output);
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 5; i++) {
+            writer.write("STOR", path.toString());
+            expected.append("STOR ").append(path).append("\r\n");
+        }
+        writer.flush();
+        assertEquals(expected.toString(), new String(output.toByteArray(), StandardCharsets.UTF_8));
+    }
+
+    public void testNonBlockingChannel() throws IOException {
+        // a channel that accepts at most 100 bytes per call to flush
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        int[] accepted = new int[1];
+        WritableByteChannel channel = new WritableByteChannel() {
+            @Override
+            public int write(ByteBuffer src) {
+                int n = Math.min(src.remaining(), 100 - accepted[0]);
+                for (int i = 0; i < n; i++) {
+                    output.write(src.get());
+                }
+                accepted[0] += n;
+                return n;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        FTPCommandWriter writer = new FTPCommandWriter(StandardCharsets.US_ASCII);
+        writer.setOutput(channel);
+        StringBuilder expected = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            writer.write("SIZE", "file" + i);
+            expected.append("SIZE file").append(i).append("\r\n");
+        }
+        int flushes = 1;
+        while (!writer.flush()) {
+            accepted[0] = 0;
+            flushes++;
+        }
+        assertTrue(flushes > 100);
+        assertEquals(expected.toString(), new String(output.toByteArray(), StandardCharsets.US_ASCII));
+    }
+
+    public void testNotOpen() throws IOException {
+        FTPCommandWriter writer = new FTPCommandWriter(StandardCharsets.UTF_8);
+        assertFalse(writer.isOpen());
+        try {
+            writer.write("NOOP", null);
+            fail("expected IOException");
+        } catch (IOException e) {
+            // expected
+        }
+        writer.setOutput(new ByteArrayOutputStream());
+        assertTrue(writer.isOpen());
+        writer.setOutput((OutputStream) null);
+        assertFalse(writer.isOpen());
+    }
+
+    public void testNoAllocationInSteadyState() throws Exception {
+        // the management API is not part of the compact1 profile, so it is looked up reflectively
+        Object threads;
+        Method allocatedBytes;
+        try {
+            threads = Class.forName("java.lang.management.ManagementFactory")
+                    .getMethod("getThreadMXBean").invoke(null);
+            Class<?> type = Class.forName("com.sun.management.ThreadMXBean");
+            if (!type.isInstance(threads)
+                    || !(Boolean) type.getMethod("isThreadAllocatedMemoryEnabled").invoke(threads)) {
+                return;
+            }
+            allocatedBytes = type.getMethod("getThreadAllocatedBytes", long.class);
+        } catch (ClassNotFoundException | UnsupportedOperationException e) {
+            return;
+        }
+        OutputStream output = new OutputStream() {
+            @Override
+            public void write(int b) {
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) {
+            }
+        };
+        FTPCommandWriter writer = new FTPCommandWriter(StandardCharsets.UTF_8);
+        writer.setOutput(output);
+        String path = "/pub/\u00e4rger/file.txt";
+        // warm up, so the measured loop runs compiled code
+        for (int i = 0; i < 100000; i++) {
+            writer.write("SIZE", path);
+            writer.flush();
+        }
+        long threadId = Thread.currentThread().getId();
+        long before = (Long) allocatedBytes.invoke(threads, threadId);
+        for (int i = 0; i < 100000; i++) {
+            writer.write("SIZE", path);
+            writer.flush();
+        }
+        long allocated = (Long) allocatedBytes.invoke(threads, threadId) - before;
+        // allow for the measurement itself, but not for a single object per command
+        assertTrue("allocated " + allocated + " bytes", allocated < 100000);
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] result = new byte[a.length + b.length];
+        System.arraycopy(a, 0, result, 0, a.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+}
@@ -0,0 +1,317 @@
+package org.xbib.io.ftp.client;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.TestCase;
+
+public class FTPControlConnectionTest extends TestCase {
+
+    private ServerSocket serverSocket;
+    private Thread serverThread;
+    private final List<Socket> sockets = Collections.synchronizedList(new ArrayList<>());
+    private FTPEventLoopGroup group;
+
+    @Override
+    protected void setUp() throws Exception {
+        serverSocket = new ServerSocket(0, 1000, InetAddress.getLoopbackAddress());
+        serverThread = new Thread(() -> {
+            try {
+                while (true) {
+                    Socket socket = serverSocket.accept();
+                    sockets.add(socket);
+                    Thread session = new Thread(() -> serve(socket));
+                    session.setDaemon(true);
+                    session.start();
+                }
+            } catch (IOException e) {
+                // closed
+            }
+        });
+        serverThread.start();
+        group = new FTPEventLoopGroup(2);
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        group.close();
+        serverSocket.close();
+        serverThread.join(5000);
+        synchronized (sockets) {
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+        }
+    }
+
+    /**
+     * A server that writes its replies one byte at a time, so the client reads partial replies.
+     */
+    private static void serve(Socket socket) {
+        try {
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            OutputStream output = socket.getOutputStream();
+            write(output, "120 wait\r\n220-welcome\r\n220 ready\r\n");
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.equals("SLEEP")) {
+                    continue;
+                }
+                if (line.equals("BYE")) {
+                    write(output, "421 closing\r\n");
+                    return;
+                }
+                write(output, reply(line));
+                if (line.equals("QUIT")) {
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            // the test fails on the client side
+        } finally {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    private static void write(OutputStream output, String reply) throws IOException {
+        for (byte b : reply.getBytes(StandardCharsets.UTF_8)) {
+            output.write(b);
+            output.flush();
+        }
+    }
+
+    private static String reply(String command) {
+        if (command.equals("USER guest")) {
+            return "230 logged in\r\n";
+        }
+        if (command.startsWith("USER ")) {
+            return "331 password required\r\n";
+        }
+        if (command.equals("PASS secret")) {
+            return "230 logged in\r\n";
+        }
+        if (command.startsWith("PASS ")) {
+            return "530 login incorrect\r\n";
+        }
+        if (command.equals("STAT")) {
+            return "211-status\r\n connected\r\n211 End\r\n";
+        }
+        if (command.equals("DELE slow")) {
+            return "150 working\r\n250 deleted\r\n";
+        }
+        if (command.startsWith("MKD ")) {
+            return "257 \"" + command.substring(4) + "\" created\r\n";
+        }
+        if (command.equals("QUIT")) {
+            return "221 bye\r\n";
+        }
+        return "200 ok\r\n";
+    }
+
+    private FTPControlConnection connection() {
+        FTPControlConnection connection = new FTPControlConnection(group);
+        connection.setConnectTimeout(5000);
+        connection.setReplyTimeout(5000);
+        return connection;
+    }
+
+    private InetSocketAddress address() {
+        return new InetSocketAddress(InetAddress.getLoopbackAddress(), serverSocket.getLocalPort());
+    }
+
+    public void testSession() throws Exception {
+        FTPControlConnection connection = connection();
+        assertEquals(FTPControlConnection.State.NEW, connection.getState());
+        FTPCommandReply greeting = connection.connect(address()).get(10, TimeUnit.SECONDS);
+        // the preliminary greeting is skipped
+        assertEquals(220, greeting.getReplyCode());
+        assertEquals(2, greeting.getReplyStrings().length);
+        assertNull(greeting.getCommand());
+        assertTrue(connection.isConnected());
+
+        assertFalse(connection.login("user", "wrong").get(10, TimeUnit.SECONDS));
+        assertTrue(connection.login("user", "secret").get(10, TimeUnit.SECONDS));
+
+        FTPCommandReply status = connection.sendCommand("STAT").get(10, TimeUnit.SECONDS);
+        assertEquals(211, status.getReplyCode());
+        assertEquals(3, status.getReplyStrings().length);
+
+        FTPCommandReply delete = connection.sendCommand(FTPCmd.DELE, "slow").get(10, TimeUnit.SECONDS);
+        assertEquals(250, delete.getReplyCode());
+        assertEquals("DELE", delete.getCommand());
+        assertEquals("slow", delete.getArguments());
+
+        assertTrue(connection.logout().get(10, TimeUnit.SECONDS));
+        connection.close();
+    }
+
+    public void testQueuedCommands() throws Exception {
+        FTPControlConnection connection = connection();
+        connection.setControlEncoding("UTF-8");
+        List<String> sent = Collections.synchronizedList(new ArrayList<>());
+        connection.addProtocolCommandListener(new ProtocolCommandListener() {
+            @Override
+            public void protocolCommandSent(ProtocolCommandEvent event) {
+                sent.add(event.getMessage());
+            }
+
+            @Override
+            public void protocolReplyReceived(ProtocolCommandEvent event) {
+            }
+        });
+        // commands are queued until the greeting has been received
+        CompletableFuture<FTPCommandReply> greeting = connection.connect(address());
+        List<CompletableFuture<FTPCommandReply>> replies = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            replies.add(connection.sendCommand(FTPCmd.MKD, "d\u00e9j\u00e0 " + i));
+        }
+        CompletableFuture<Boolean> login = connection.login("user", "secret");
+        assertEquals(220, greeting.get(10, TimeUnit.SECONDS).getReplyCode());
+        for (int i = 0; i < 20; i++) {
+            FTPCommandReply reply = replies.get(i).get(10, TimeUnit.SECONDS);
+            assertEquals(257, reply.getReplyCode());
+            assertEquals("\"d\u00e9j\u00e0 " + i + "\" created", reply.getReplyText());
+        }
+        assertTrue(login.get(10, TimeUnit.SECONDS));
+        assertEquals(0, connection.getPendingCommandCount());
+        assertEquals(22, sent.size());
+        assertEquals("MKD d\u00e9j\u00e0 0\r\n", sent.get(0));
+        assertEquals("PASS secret\r\n", sent.get(21));
+        connection.close();
+    }
+
+    public void testCommandsAfterLogin() throws Exception {
+        FTPControlConnection connection = connection();
+        List<String> sent = Collections.synchronizedList(new ArrayList<>());
+        connection.addProtocolCommandListener(new ProtocolCommandListener() {
+            @Override
+            public void protocolCommandSent(ProtocolCommandEvent event) {
+                sent.add(event.getMessage());
+            }
+
+            @Override
+            public void protocolReplyReceived(ProtocolCommandEvent event) {
+            }
+        });
+        assertEquals(220, connection.connect(address()).get(10, TimeUnit.SECONDS).getReplyCode());
+        CompletableFuture<Boolean> login = connection.login("user", "secret");
+        List<CompletableFuture<FTPCommandReply>> replies = new ArrayList<>();
+        for (int i = 0; i < 20; i++) {
+            replies.add(connection.sendCommand(FTPCmd.MKD, "d" + i));
+        }
+        // the password is sent right after the user name, even though the other commands were submitted before the reply to it
+        assertTrue(login.get(10, TimeUnit.SECONDS));
+        for (CompletableFuture<FTPCommandReply> reply : replies) {
+            assertEquals(257, reply.get(10, TimeUnit.SECONDS).getReplyCode());
+        }
+        assertEquals("USER user\r\n", sent.get(0));
+        assertEquals("PASS secret\r\n", sent.get(1));
+        assertEquals("MKD d0\r\n", sent.get(2));
+
+        // no password is needed, so none is sent
+        sent.clear();
+        assertTrue(connection.login("guest", "secret").get(10, TimeUnit.SECONDS));
+        assertEquals(200, connection.sendCommand("NOOP").get(10, TimeUnit.SECONDS).getReplyCode());
+        assertEquals(2, sent.size());
+        assertEquals("NOOP\r\n", sent.get(1));
+        assertEquals(0, connection.getPendingCommandCount());
+        connection.close();
+    }
+
+    public void testManyConnections() throws Exception {
+        List<FTPControlConnection> connections = new ArrayList<>();
+        List<CompletableFuture<FTPCommandReply>> replies = new ArrayList<>();
+        for (int i = 0; i < 200; i++) {
+            FTPControlConnection connection = connection();
+            connections.add(connection);
+            connection.connect(address());
+            replies.add(connection.login("user", "secret")
+                    .thenCompose(loggedIn -> connection.sendCommand(FTPCmd.NOOP, null)));
+        }
+        for (CompletableFuture<FTPCommandReply> reply : replies) {
+            assertEquals(200, reply.get(30, TimeUnit.SECONDS).getReplyCode());
+        }
+        for (FTPControlConnection connection : connections) {
+            connection.close();
+        }
+    }
+
+    public void testReplyTimeout() throws Exception {
+        FTPControlConnection connection = connection();
+        connection.setReplyTimeout(200);
+        connection.connect(address()).get(10, TimeUnit.SECONDS);
+        CompletableFuture<FTPCommandReply> sleep = connection.sendCommand("SLEEP");
+        CompletableFuture<FTPCommandReply> queued = connection.sendCommand(FTPCmd.NOOP, null);
+        assertCause(sleep, SocketTimeoutException.class);
+        assertCause(queued, SocketTimeoutException.class);
+        assertEquals(FTPControlConnection.State.CLOSED, connection.getState());
+    }
+
+    public void testServiceNotAvailable() throws Exception {
+        FTPControlConnection connection = connection();
+        connection.connect(address()).get(10, TimeUnit.SECONDS);
+        assertCause(connection.sendCommand("BYE"), ConnectionClosedException.class);
+        assertFalse(connection.isConnected());
+        assertCause(connection.sendCommand(FTPCmd.NOOP, null), IOException.class);
+    }
+
+    public void testNotConnected() throws Exception {
+        FTPControlConnection connection = connection();
+        assertCause(connection.sendCommand(FTPCmd.NOOP, null), IOException.class);
+        connection.connect(address()).get(10, TimeUnit.SECONDS);
+        try {
+            connection.connect(address());
+            fail("expected IllegalStateException");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+        connection.close();
+    }
+
+    public void testConnectionRefused() throws Exception {
+        ServerSocket unused = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+        int port = unused.getLocalPort();
+        unused.close();
+        FTPControlConnection connection = connection();
+        assertCause(connection.connect(new InetSocketAddress(InetAddress.getLoopbackAddress(), port)),
+                IOException.class);
+        assertEquals(FTPControlConnection.State.CLOSED, connection.getState());
+    }
+
+    public void testCloseGroup() throws Exception {
+        FTPControlConnection connection = connection();
+        connection.connect(address()).get(10, TimeUnit.SECONDS);
+        CompletableFuture<FTPCommandReply> sleep = connection.sendCommand("SLEEP");
+        group.close();
+        assertCause(sleep, IOException.class);
+        assertCause(connection.sendCommand(FTPCmd.NOOP, null), IOException.class);
+    }
+
+    private static void assertCause(CompletableFuture<?> future, Class<? extends Throwable> type) throws Exception {
+        try {
+            future.get(10, TimeUnit.SECONDS);
+            fail("expected " + type.getName());
+        } catch (ExecutionException e) {
+            assertTrue(e.getCause().toString(), type.isInstance(e.getCause()));
+        }
+    }
+}
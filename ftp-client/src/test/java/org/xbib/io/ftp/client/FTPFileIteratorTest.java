@@ -0,0 +1,113 @@
+package org.xbib.io.ftp.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import junit.framework.TestCase;
+import org.xbib.io.ftp.client.parser.UnixFTPEntryParser;
+
+public class FTPFileIteratorTest extends TestCase {
+
+    private static final String LISTING = "total 12\r\n"
+            + "drwxr-xr-x   2 user     group        4096 Jan  1  2017 dir\r\n"
+            + "-rw-r--r--   1 user     group          10 Jan  1  2017 file1\r\n"
+            + "this is not a listing entry\r\n"
+            + "-rw-r--r--   1 user     group          20 Jan  1  2017 file2\r\n";
+
+    public void testIterateSkipsHeaderAndUnparseableEntries() throws IOException {
+        AtomicInteger completed = new AtomicInteger();
+        FTPFileIterator iterator = newIterator(stream(LISTING), FTPFileFilters.NON_NULL, completed);
+
+        assertTrue(iterator.hasNext());
+        assertEquals("dir", iterator.next().getName());
+        assertEquals("file1", iterator.next().getName());
+        FTPFile file2 = iterator.next();
+        assertEquals("file2", file2.getName());
+        assertEquals(20, file2.getSize());
+        assertFalse(iterator.hasNext());
+        assertTrue(iterator.isExhausted());
+        try {
+            iterator.next();
+            fail("expected NoSuchElementException");
+        } catch (NoSuchElementException e) {
+            // expected
+        }
+
+        assertEquals(0, completed.get());
+        iterator.close();
+        assertEquals(1, completed.get());
+        iterator.close();
+        assertEquals(1, completed.get());
+    }
+
+    public void testIterateReadsLazily() throws IOException {
+        CountingInputStream input = new CountingInputStream(stream(LISTING));
+        FTPFileIterator iterator = newIterator(input, FTPFileFilters.NON_NULL, new AtomicInteger());
+
+        assertEquals(0, input.count);
+        assertEquals("dir", iterator.next().getName());
+        assertFalse(iterator.isExhausted());
+        iterator.close();
+        assertFalse(iterator.hasNext());
+    }
+
+    public void testIterateWithFilter() throws IOException {
+        AtomicInteger completed = new AtomicInteger();
+        FTPFileIterator iterator = newIterator(stream(LISTING), FTPFileFilters.DIRECTORIES, completed);
+
+        List<String> names;
+        try (Stream<FTPFile> stream = iterator.stream()) {
+            names = stream.map(FTPFile::getName).collect(Collectors.toList());
+        }
+        assertEquals(1, names.size());
+        assertEquals("dir", names.get(0));
+        assertEquals(1, completed.get());
+    }
+
+    public void testIterateWithoutStream() throws IOException {
+        FTPListParseEngine engine = new FTPListParseEngine(new UnixFTPEntryParser());
+        FTPFileIterator iterator = engine.iterateServerList(null, "UTF-8", FTPFileFilters.NON_NULL, null);
+
+        assertFalse(iterator.hasNext());
+        assertTrue(iterator.isExhausted());
+        iterator.close();
+    }
+
+    private static FTPFileIterator newIterator(InputStream input, FTPFileFilter filter, AtomicInteger completed) {
+        FTPListParseEngine engine = new FTPListParseEngine(new UnixFTPEntryParser());
+        return engine.iterateServerList(input, "UTF-8", filter, completed::incrementAndGet);
+    }
+
+    private static InputStream stream(String listing) {
+        return new ByteArrayInputStream(listing.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static final class CountingInputStream extends InputStream {
+
+        private final InputStream in;
+        private int count;
+
+        private CountingInputStream(InputStream in) {
+            this.in = in;
+        }
+
+        @Override
+        public int read() throws IOException {
+            count++;
+            return in.read();
+        }
+
+        @Override
+        public int read(byte[] b, int off, int len) throws IOException {
+            count++;
+            return in.read(b, off, len);
+        }
+    }
+}
@@ -0,0 +1,191 @@
+package org.xbib.io.ftp.client;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+public class FTPPublisherTest extends TestCase {
+
+    /**
+     * A source of the numbers 1 to {@code count}, which counts reads and closes.
+     */
+    private static final class CountingSource implements FTPPublisher.Source<Integer> {
+
+        private final int count;
+        private final IOException closeFailure;
+        private int reads;
+        private int closes;
+
+        private CountingSource(int count, IOException closeFailure) {
+            this.count = count;
+            this.closeFailure = closeFailure;
+        }
+
+        @Override
+        public Integer next() {
+            return reads < count ? ++reads : null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            closes++;
+            if (closeFailure != null) {
+                throw closeFailure;
+            }
+        }
+    }
+
+    private static class RecordingSubscriber implements FTPFlow.Subscriber<Integer> {
+
+        final List<Integer> items = new ArrayList<>();
+        FTPFlow.Subscription subscription;
+        Throwable error;
+        int completions;
+
+        @Override
+        public void onSubscribe(FTPFlow.Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(Integer item) {
+            items.add(item);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            error = throwable;
+        }
+
+        @Override
+        public void onComplete() {
+            completions++;
+        }
+    }
+
+    public void testReadsOnDemand() {
+        AtomicInteger opens = new AtomicInteger();
+        CountingSource source = new CountingSource(5, null);
+        FTPPublisher<Integer> publisher = new FTPPublisher<>(() -> {
+            opens.incrementAndGet();
+            return source;
+        });
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        publisher.subscribe(subscriber);
+        // the transfer is started by the first request
+        assertEquals(0, opens.get());
+
+        subscriber.subscription.request(2);
+        assertEquals(1, opens.get());
+        assertEquals(2, source.reads);
+        assertEquals(2, subscriber.items.size());
+
+        subscriber.subscription.request(2);
+        assertEquals(4, source.reads);
+        assertEquals(0, subscriber.completions);
+
+        subscriber.subscription.request(Long.MAX_VALUE);
+        assertEquals(5, subscriber.items.size());
+        assertEquals(1, subscriber.completions);
+        assertEquals(1, source.closes);
+        assertNull(subscriber.error);
+        assertEquals(1, opens.get());
+    }
+
+    public void testRequestFromOnNext() {
+        CountingSource source = new CountingSource(10000, null);
+        FTPPublisher<Integer> publisher = new FTPPublisher<>(() -> source);
+        AtomicInteger depth = new AtomicInteger();
+        AtomicInteger maxDepth = new AtomicInteger();
+        RecordingSubscriber subscriber = new RecordingSubscriber() {
+            @Override
+            public void onNext(Integer item) {
+                maxDepth.accumulateAndGet(depth.incrementAndGet(), Math::max);
+                super.onNext(item);
+                subscription.request(1);
+                depth.decrementAndGet();
+            }
+        };
+        publisher.subscribe(subscriber);
+        subscriber.subscription.request(1);
+        // requests made from onNext do not recurse
+        assertEquals(1, maxDepth.get());
+        assertEquals(10000, subscriber.items.size());
+        assertEquals(1, subscriber.completions);
+    }
+
+    public void testCancel() {
+        CountingSource source = new CountingSource(5, new IOException("aborted"));
+        FTPPublisher<Integer> publisher = new FTPPublisher<>(() -> source);
+        RecordingSubscriber subscriber = new RecordingSubscriber() {
+            @Override
+            public void onNext(Integer item) {
+                super.onNext(item);
+                if (item == 2) {
+                    subscription.cancel();
+                }
+            }
+        };
+        publisher.subscribe(subscriber);
+        subscriber.subscription.request(10);
+        assertEquals(2, subscriber.items.size());
+        assertEquals(2, source.reads);
+        // the transfer is aborted, and its failure is not reported
+        assertEquals(1, source.closes);
+        assertNull(subscriber.error);
+        assertEquals(0, subscriber.completions);
+
+        subscriber.subscription.request(10);
+        assertEquals(2, subscriber.items.size());
+        assertEquals(1, source.closes);
+    }
+
+    public void testFailures() {
+        IOException failure = new IOException("550 no such file");
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        new FTPPublisher<Integer>(() -> {
+            throw failure;
+        }).subscribe(subscriber);
+        subscriber.subscription.request(1);
+        assertSame(failure, subscriber.error);
+
+        IOException closeFailure = new IOException("426 connection closed");
+        CountingSource source = new CountingSource(1, closeFailure);
+        subscriber = new RecordingSubscriber();
+        new FTPPublisher<>(() -> source).subscribe(subscriber);
+        subscriber.subscription.request(5);
+        assertEquals(1, subscriber.items.size());
+        assertSame(closeFailure, subscriber.error);
+        assertEquals(0, subscriber.completions);
+    }
+
+    public void testInvalidRequest() {
+        CountingSource source = new CountingSource(5, null);
+        RecordingSubscriber subscriber = new RecordingSubscriber();
+        new FTPPublisher<>(() -> source).subscribe(subscriber);
+        subscriber.subscription.request(1);
+        subscriber.subscription.request(0);
+        assertTrue(subscriber.error instanceof IllegalArgumentException);
+        assertEquals(1, source.closes);
+        assertEquals(1, subscriber.items.size());
+    }
+
+    public void testSubscribeOnce() {
+        FTPPublisher<Integer> publisher = new FTPPublisher<>(() -> new CountingSource(1, null));
+        RecordingSubscriber first = new RecordingSubscriber();
+        publisher.subscribe(first);
+        RecordingSubscriber second = new RecordingSubscriber();
+        publisher.subscribe(second);
+        assertNotNull(second.subscription);
+        assertTrue(second.error instanceof IllegalStateException);
+        first.subscription.request(1);
+        assertEquals(1, first.items.size());
+        // the end of the transfer is only read on demand
+        assertEquals(0, first.completions);
+        first.subscription.request(1);
+        assertEquals(1, first.completions);
+    }
+}
@@ -0,0 +1,215 @@
+package org.xbib.io.ftp.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.StringReader;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import junit.framework.TestCase;
+
+public class FTPReplyReaderTest extends TestCase {
+
+    private static FTPReplyReader reader(String replies) {
+        FTPReplyReader reader = new FTPReplyReader(StandardCharsets.UTF_8);
+        reader.setInput(new ByteArrayInputStream(replies.getBytes(StandardCharsets.UTF_8)));
+        return reader;
+    }
+
+    public void testSingleLine() throws IOException {
+        FTPReplyReader reader = reader("213 1234\r\n200 ok\r\n");
+        assertEquals(213, reader.readReply(false, true));
+        assertEquals(1, reader.getLineCount());
+        assertEquals("213 1234", reader.getLine(0));
+        assertEquals("213 1234\r\n", reader.getReplyString());
+
+        assertEquals(200, reader.readReply(false, true));
+        assertTrue(Arrays.equals(new String[]{"200 ok"}, reader.getLines()));
+        assertEquals(Arrays.asList("200 ok"), reader.lines());
+    }
+
+    public void testMultiLine() throws IOException {
+        FTPReplyReader reader = reader("211-Features:\r\n MLST size*;\r\n211 End\r\n250 next\r\n");
+        assertEquals(211, reader.readReply(true, true));
+        assertEquals(Arrays.asList("211-Features:", " MLST size*;", "211 End"), reader.lines());
+        assertEquals("211-Features:\r\n MLST size*;\r\n211 End\r\n", reader.getReplyString());
+        assertEquals(250, reader.readReply(true, true));
+    }
+
+    public void testMultiLineStrictAndLenient() throws IOException {
+        // a 426 reply that is terminated by a 226 line
+        String replies = "426-aborted\r\n226 done\r\n426 end\r\n";
+        FTPReplyReader reader = reader(replies);
+        assertEquals(426, reader.readReply(true, true));
+        assertEquals(3, reader.getLineCount());
+
+        reader = reader(replies);
+        assertEquals(426, reader.readReply(false, true));
+        assertEquals(2, reader.getLineCount());
+        assertEquals(426, reader.readReply(false, true));
+    }
+
+    public void testBareCarriageReturnAndLineFeed() throws IOException {
+        FTPReplyReader reader = reader("200 a\rb\nc\r\r\n");
+        assertEquals(200, reader.readReply(false, true));
+        assertEquals(Arrays.asList("200 a\rb\nc\r"), reader.lines());
+    }
+
+    public void testSplitInput() throws IOException {
+        // deliver one byte at a time, so CR and LF arrive in separate reads
+        byte[] bytes = "150-first\r\n150 second\r\n226 ok\r\n".getBytes(StandardCharsets.US_ASCII);
+        InputStream input = new ByteArrayInputStream(bytes) {
+            @Override
+            public synchronized int read(byte[] b, int off, int len) {
+                return super.read(b, off, Math.min(len, 1));
+            }
+        };
+        FTPReplyReader reader = new FTPReplyReader(StandardCharsets.US_ASCII);
+        reader.setInput(input);
+        assertEquals(150, reader.readReply(false, true));
+        assertEquals(Arrays.asList("150-first", "150 second"), reader.lines());
+        assertEquals(226, reader.readReply(false, true));
+        assertEquals("226 ok", reader.getLine(0));
+    }
+
+    public void testLongReply() throws IOException {
+        StringBuilder replies = new StringBuilder("250-listing\r\n");
+        for (int i = 0; i < 1000; i++) {
+            replies.append(" line ").append(i).append("\r\n");
+        }
+        replies.append("250 End\r\n");
+        FTPReplyReader reader = reader(replies.toString());
+        assertEquals(250, reader.readReply(true, true));
+        assertEquals(1002, reader.getLineCount());
+        assertEquals(" line 999", reader.getLine(1000));
+        assertEquals(replies.toString(), reader.getReplyString());
+    }
+
+    public void testEncoding() throws IOException {
+        FTPReplyReader reader = reader("257 \"/\u00e4\u00f6\u00fc\" created\r\n257 \"/\u00e4\" created\r\n");
+        assertEquals(257, reader.readReply(false, true));
+        assertEquals("257 \"/\u00e4\u00f6\u00fc\" created", reader.getLine(0));
+
+        // the lines of a reply are decoded using the encoding in effect when it was read
+        reader.setCharset(StandardCharsets.ISO_8859_1);
+        assertEquals(257, reader.readReply(false, true));
+        assertEquals("257 \"/\u00c3\u00a4\" created", reader.getLine(0));
+    }
+
+    public void testReader() throws IOException {
+        FTPReplyReader reader = new FTPReplyReader(StandardCharsets.UTF_8);
+        reader.setInput(new StringReader("220 caf\u00e9\r\n"));
+        assertEquals(220, reader.readReply(false, true));
+        assertEquals("220 caf\u00e9", reader.getLine(0));
+    }
+
+    public void testMalformedCode() throws IOException {
+        FTPReplyReader reader = reader("2x0 ok\r\n");
+        try {
+            reader.readReply(false, true);
+            fail("expected MalformedServerReplyException");
+        } catch (MalformedServerReplyException e) {
+            assertTrue(e.getMessage().contains("2x0 ok"));
+        }
+    }
+
+    public void testTruncated() throws IOException {
+        try {
+            reader("20\r\n").readReply(false, true);
+            fail("expected MalformedServerReplyException");
+        } catch (MalformedServerReplyException e) {
+            // expected
+        }
+        try {
+            reader("200\r\n").readReply(false, true);
+            fail("expected MalformedServerReplyException");
+        } catch (MalformedServerReplyException e) {
+            // expected
+        }
+        assertEquals(200, reader("200\r\n").readReply(false, false));
+    }
+
+    public void testConnectionClosed() throws IOException {
+        try {
+            reader("").readReply(false, true);
+            fail("expected ConnectionClosedException");
+        } catch (ConnectionClosedException e) {
+            // expected
+        }
+        try {
+            reader("211-Features:\r\n MLST\r\n").readReply(false, true);
+            fail("expected ConnectionClosedException");
+        } catch (ConnectionClosedException e) {
+            // expected
+        }
+    }
+
+    public void testSetReply() throws IOException {
+        FTPReplyReader reader = reader("211-Features:\r\n UTF8\r\n211 End\r\n200 ok\r\n");
+        reader.readReply(false, true);
+        reader.setReply(220, new String[]{"220 welcome"});
+        assertEquals(220, reader.getReplyCode());
+        assertEquals(Arrays.asList("220 welcome"), reader.lines());
+        assertEquals("220 welcome\r\n", reader.getReplyString());
+
+        assertEquals(200, reader.readReply(false, true));
+        assertEquals("200 ok", reader.getLine(0));
+    }
+
+    public void testNonBlockingChannel() throws IOException {
+        // a channel that delivers three bytes at a time, with no bytes available in between
+        byte[] bytes = "220-hello\r\n220 ready\r\n331 password\r\n".getBytes(StandardCharsets.US_ASCII);
+        ReadableByteChannel channel = new ReadableByteChannel() {
+            private int position;
+            private boolean available;
+
+            @Override
+            public int read(ByteBuffer dst) {
+                if (position == bytes.length) {
+                    return -1;
+                }
+                available = !available;
+                if (!available) {
+                    return 0;
+                }
+                int n = Math.min(3, bytes.length - position);
+                dst.put(bytes, position, n);
+                position += n;
+                return n;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return true;
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+        FTPReplyReader reader = new FTPReplyReader(StandardCharsets.US_ASCII);
+        reader.setInput(channel);
+        int code;
+        int attempts = 0;
+        while ((code = reader.readReply(true, true)) == FTPReplyReader.NO_REPLY) {
+            attempts++;
+        }
+        assertTrue(attempts > 1);
+        assertEquals(220, code);
+        assertEquals(Arrays.asList("220-hello", "220 ready"), reader.lines());
+        while ((code = reader.readReply(true, true)) == FTPReplyReader.NO_REPLY) {
+            continue;
+        }
+        assertEquals(331, code);
+        assertEquals("331 password", reader.getLine(0));
+        try {
+            reader.readReply(true, true);
+            fail("expected ConnectionClosedException");
+        } catch (ConnectionClosedException e) {
+            // expected
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package org.xbib.io.ftp.client;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+
+import junit.framework.TestCase;
+
+public class UtilTest extends TestCase {
+
+    public void testCopyChannel() throws IOException {
+        byte[] content = new byte[Util.DEFAULT_TRANSFER_CHUNK_SIZE * 2 + 100];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) i;
+        }
+        Path file = Files.createTempFile("copyChannel", ".bin");
+        try {
+            Files.write(file, content);
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            AtomicLong notified = new AtomicLong();
+            CopyStreamListener listener = new CopyStreamListener() {
+                @Override
+                public void bytesTransferred(CopyStreamEvent event) {
+                    bytesTransferred(event.getTotalBytesTransferred(), event.getBytesTransferred(), event.getStreamSize());
+                }
+
+                @Override
+                public void bytesTransferred(long totalBytesTransferred, int bytesTransferred, long streamSize) {
+                    assertTrue(bytesTransferred <= Util.DEFAULT_TRANSFER_CHUNK_SIZE);
+                    assertEquals(content.length - 100, streamSize);
+                    notified.set(totalBytesTransferred);
+                }
+            };
+
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                channel.position(100);
+                long copied = Util.copyChannel(channel, Channels.newChannel(output), listener);
+                assertEquals(content.length - 100, copied);
+                assertEquals(content.length, channel.position());
+            }
+            assertEquals(content.length - 100, notified.get());
+            assertTrue(Arrays.equals(Arrays.copyOfRange(content, 100, content.length), output.toByteArray()));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    public void testCopyChannelRange() throws IOException {
+        byte[] content = new byte[Util.DEFAULT_TRANSFER_CHUNK_SIZE + 100];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) i;
+        }
+        Path file = Files.createTempFile("copyChannelRange", ".bin");
+        try {
+            Files.write(file, content);
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                long copied = Util.copyChannel(channel, Channels.newChannel(output), 10, 50, null);
+                assertEquals(50, copied);
+                assertEquals(0, channel.position());
+
+                // the count is limited by the end of the file
+                copied = Util.copyChannel(channel, Channels.newChannel(output), content.length - 20, 50, null);
+                assertEquals(20, copied);
+                assertEquals(0, channel.position());
+            }
+            byte[] expected = new byte[70];
+            System.arraycopy(content, 10, expected, 0, 50);
+            System.arraycopy(content, content.length - 20, expected, 50, 20);
+            assertTrue(Arrays.equals(expected, output.toByteArray()));
+        } finally {
+            Files.delete(file);
+        }
+    }
+
+    public void testCopyFromChannel() throws IOException {
+        byte[] content = new byte[Util.DEFAULT_TRANSFER_CHUNK_SIZE + 100];
+        for (int i = 0; i < content.length; i++) {
+            content[i] = (byte) i;
+        }
+        Path file = Files.createTempFile("copyFromChannel", ".bin");
+        try {
+            try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+                channel.position(10);
+                long copied = Util.copyFromChannel(Channels.newChannel(new ByteArrayInputStream(content)), channel, null);
+                assertEquals(content.length, copied);
+                assertEquals(content.length + 10, channel.position());
+            }
+            byte[] written = Files.readAllBytes(file);
+            assertEquals(content.length + 10, written.length);
+            assertTrue(Arrays.equals(content, Arrays.copyOfRange(written, 10, written.length)));
+        } finally {
+            Files.delete(file);
+        }
+    }
+}
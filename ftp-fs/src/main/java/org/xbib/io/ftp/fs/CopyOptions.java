@@ -17,14 +17,17 @@ final class CopyOptions extends TransferOptions {
 
     public final boolean replaceExisting;
 
+    public final SegmentedCopy segmentedCopy;
+
     public final Collection<? extends CopyOption> options;
 
-    private CopyOptions(boolean replaceExisting,
+    private CopyOptions(boolean replaceExisting, SegmentedCopy segmentedCopy,
                         FileType fileType, FileStructure fileStructure, FileTransferMode fileTransferMode,
                         Collection<? extends CopyOption> options) {
 
         super(fileType, fileStructure, fileTransferMode);
         this.replaceExisting = replaceExisting;
+        this.segmentedCopy = segmentedCopy;
 
         this.options = options;
     }
@@ -32,6 +35,7 @@ final class CopyOptions extends TransferOptions {
     static CopyOptions forCopy(CopyOption... options) {
 
         boolean replaceExisting = false;
+        SegmentedCopy segmentedCopy = null;
         FileType fileType = null;
         FileStructure fileStructure = null;
         FileTransferMode fileTransferMode = null;
@@ -39,6 +43,8 @@ final class CopyOptions extends TransferOptions {
         for (CopyOption option : options) {
             if (option == StandardCopyOption.REPLACE_EXISTING) {
                 replaceExisting = true;
+            } else if (option instanceof SegmentedCopy) {
+                segmentedCopy = setOnce((SegmentedCopy) option, segmentedCopy, options);
             } else if (option instanceof FileType) {
                 fileType = setOnce((FileType) option, fileType, options);
             } else if (option instanceof FileStructure) {
@@ -50,7 +56,7 @@ final class CopyOptions extends TransferOptions {
             }
         }
 
-        return new CopyOptions(replaceExisting, fileType, fileStructure, fileTransferMode, Arrays.asList(options));
+        return new CopyOptions(replaceExisting, segmentedCopy, fileType, fileStructure, fileTransferMode, Arrays.asList(options));
     }
 
     static CopyOptions forMove(boolean sameFileSystem, CopyOption... options) {
@@ -74,7 +80,7 @@ final class CopyOptions extends TransferOptions {
             }
         }
 
-        return new CopyOptions(replaceExisting, fileType, fileStructure, fileTransferMode, Arrays.asList(options));
+        return new CopyOptions(replaceExisting, null, fileType, fileStructure, fileTransferMode, Arrays.asList(options));
     }
 
     private static <T> T setOnce(T newValue, T existing, CopyOption... options) {
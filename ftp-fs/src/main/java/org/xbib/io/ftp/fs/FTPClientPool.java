@@ -3,22 +3,40 @@ package org.xbib.io.ftp.fs;
 import org.xbib.io.ftp.client.FTPClient;
 import org.xbib.io.ftp.client.FTPFile;
 import org.xbib.io.ftp.client.FTPFileFilter;
+import org.xbib.io.ftp.client.FTPFileIterator;
+import org.xbib.io.ftp.client.FTPReply;
+import org.xbib.io.ftp.client.parser.MLSxEntryParser;
 
 import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InterruptedIOException;
 import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystemException;
 import java.nio.file.OpenOption;
 import java.time.ZonedDateTime;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
-import java.util.concurrent.ArrayBlockingQueue;
-import java.util.concurrent.BlockingQueue;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
 
 /**
  * A pool of FTP clients, allowing multiple commands to be executed concurrently.
+ * The pool grows on demand up to a maximum number of connections, and shrinks again when connections are idle for too long.
+ * Connections needed to keep the minimum number of idle connections are created in the background.
  */
 final class FTPClientPool {
 
@@ -27,89 +45,318 @@ final class FTPClientPool {
 
     private final FTPEnvironment env;
     private final FileSystemExceptionFactory exceptionFactory;
+    private final long validationInterval;
 
-    private final BlockingQueue<Client> pool;
+    private final int minIdle;
+    private final int maxTotal;
+    private final int maxIdle;
+    private final long idleTimeout;
+    private final long maxWaitTime;
+    private final long keepAliveInterval;
+    private final KeepAliveListener keepAliveListener;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition available = lock.newCondition();
+
+    // most recently returned clients are at the head, the longest idle clients at the tail
+    private final Deque<Client> idleClients = new ArrayDeque<>();
+    // the number of pooled clients, including those that are borrowed or still being created
+    private int totalCount = 0;
+    private int pendingCount = 0;
+    private boolean open = true;
+
+    private final ExecutorService creator;
+    private final ScheduledExecutorService maintenance;
 
     FTPClientPool(String hostname, int port, FTPEnvironment env) throws IOException {
         this.hostname = hostname;
         this.port = port;
         this.env = env.clone();
         this.exceptionFactory = env.getExceptionFactory();
-        final int poolSize = env.getClientConnectionCount();
-        this.pool = new ArrayBlockingQueue<>(poolSize);
-
+        this.validationInterval = TimeUnit.MILLISECONDS.toNanos(env.getClientValidationInterval());
+
+        this.maxTotal = env.getClientConnectionCount();
+        this.minIdle = Math.min(env.getClientPoolMinIdle(), maxTotal);
+        this.maxIdle = Math.max(Math.max(minIdle, 1), Math.min(env.getClientPoolMaxIdle(), maxTotal));
+        this.idleTimeout = TimeUnit.MILLISECONDS.toNanos(env.getClientPoolIdleTimeout());
+        this.maxWaitTime = TimeUnit.MILLISECONDS.toNanos(env.getClientPoolMaxWaitTime());
+        this.keepAliveInterval = TimeUnit.MILLISECONDS.toNanos(env.getClientPoolKeepAliveInterval());
+        this.keepAliveListener = env.getClientPoolKeepAliveListener();
+
+        this.creator = Executors.newCachedThreadPool(new PoolThreadFactory("creator"));
+        this.maintenance = idleTimeout > 0 || keepAliveInterval > 0
+                ? Executors.newSingleThreadScheduledExecutor(new PoolThreadFactory("maintenance"))
+                : null;
+
+        // create one client up front, so invalid settings or credentials are reported immediately
+        Client client;
         try {
-            for (int i = 0; i < poolSize; i++) {
-                pool.add(new Client(true));
-            }
+            client = new Client(true);
         } catch (IOException e) {
-            // creating the pool failed, disconnect all clients
-            for (Client client : pool) {
-                try {
-                    client.disconnect();
-                } catch (IOException e2) {
-                    e.addSuppressed(e2);
-                }
+            creator.shutdown();
+            if (maintenance != null) {
+                maintenance.shutdown();
             }
             throw e;
         }
+        lock.lock();
+        try {
+            totalCount++;
+            idleClients.addFirst(client);
+        } finally {
+            lock.unlock();
+        }
+        ensureMinIdle();
+
+        if (idleTimeout > 0) {
+            long period = Math.max(idleTimeout / 2, TimeUnit.SECONDS.toNanos(1));
+            maintenance.scheduleWithFixedDelay(this::evictIdleClients, period, period, TimeUnit.NANOSECONDS);
+        }
+        if (keepAliveInterval > 0) {
+            long period = Math.max(keepAliveInterval / 2, TimeUnit.SECONDS.toNanos(1));
+            maintenance.scheduleWithFixedDelay(this::keepAliveIdleClients, period, period, TimeUnit.NANOSECONDS);
+        }
     }
 
     Client get() throws IOException {
+        Client client;
+        boolean create = false;
+
+        lock.lock();
         try {
-            Client client = pool.take();
-            try {
-                if (!client.isConnected()) {
-                    client = new Client(true);
+            long remaining = maxWaitTime;
+            while (true) {
+                checkOpen();
+                client = idleClients.pollFirst();
+                if (client != null) {
+                    break;
+                }
+                if (totalCount < maxTotal) {
+                    totalCount++;
+                    create = true;
+                    break;
+                }
+                if (maxWaitTime <= 0) {
+                    available.await();
+                } else {
+                    if (remaining <= 0) {
+                        throw new IOException(FTPMessages.clientConnectionWaitTimeoutExpired(TimeUnit.NANOSECONDS.toMillis(maxWaitTime)));
+                    }
+                    remaining = available.awaitNanos(remaining);
                 }
-            } catch (final Exception e) {
-                // could not create a new client; re-add the broken client to the pool to prevent pool starvation
-                pool.add(client);
-                throw e;
             }
-            client.increaseRefCount();
-            return client;
-
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
 
             InterruptedIOException iioe = new InterruptedIOException(e.getMessage());
             iioe.initCause(e);
             throw iioe;
+        } finally {
+            lock.unlock();
         }
+
+        client = create ? createClient() : validate(client);
+        ensureMinIdle();
+        client.increaseRefCount();
+        return client;
     }
 
     Client getOrCreate() throws IOException {
-        Client client = pool.poll();
-        if (client == null) {
-            // nothing was taken from the pool, so no risk of pool starvation if creating the client fails
+        Client client;
+        boolean create = false;
+
+        lock.lock();
+        try {
+            checkOpen();
+            client = idleClients.pollFirst();
+            if (client == null && totalCount < maxTotal) {
+                totalCount++;
+                create = true;
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        if (client == null && !create) {
+            // nothing was taken from the pool and the pool is at its maximum, so create an unpooled client
             return new Client(false);
         }
+        client = create ? createClient() : validate(client);
+        ensureMinIdle();
+        client.increaseRefCount();
+        return client;
+    }
+
+    /**
+     * Returns a client for an operation that keeps it for a longer time, like iterating over a directory listing.
+     * To prevent such operations from starving all others, a client is only returned if at least one other client
+     * remains available for other operations. This method never waits for a client to become available.
+     *
+     * @return A client, or {@code null} if taking a client would leave no client available for other operations.
+     * @throws IOException If the pool is closed, or a client could not be created.
+     */
+    Client getSpare() throws IOException {
+        Client client;
+        boolean create = false;
+
+        lock.lock();
         try {
-            if (!client.isConnected()) {
-                client = new Client(true);
+            checkOpen();
+            // clients that are still being created will become idle soon
+            int available = idleClients.size() + pendingCount + maxTotal - totalCount;
+            if (available < 2) {
+                return null;
             }
-        } catch (final Exception e) {
-            // could not create a new client; re-add the broken client to the pool to prevent pool starvation
-            pool.add(client);
-            throw e;
+            client = idleClients.pollFirst();
+            if (client == null) {
+                if (totalCount >= maxTotal) {
+                    return null;
+                }
+                totalCount++;
+                create = true;
+            }
+        } finally {
+            lock.unlock();
         }
+
+        client = create ? createClient() : validate(client);
+        ensureMinIdle();
         client.increaseRefCount();
         return client;
     }
 
-    void keepAlive() throws IOException {
-        List<Client> clients = new ArrayList<>();
-        pool.drainTo(clients);
+    private Client createClient() throws IOException {
+        // the caller has already reserved a slot for the client
+        try {
+            return new Client(true);
+        } catch (IOException | RuntimeException e) {
+            releaseSlot();
+            throw e;
+        }
+    }
+
+    private Client validate(Client client) throws IOException {
+        if (client.isValid()) {
+            return client;
+        }
+        // the broken client's slot is reused for its replacement
+        return createClient();
+    }
+
+    private void releaseSlot() {
+        lock.lock();
+        try {
+            totalCount--;
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void checkOpen() throws IOException {
+        if (!open) {
+            throw new IOException(FTPMessages.clientPoolClosed());
+        }
+    }
+
+    private void ensureMinIdle() {
+        int count;
+        lock.lock();
+        try {
+            if (!open) {
+                return;
+            }
+            count = Math.min(minIdle - idleClients.size() - pendingCount, maxTotal - totalCount);
+            if (count <= 0) {
+                return;
+            }
+            totalCount += count;
+            pendingCount += count;
+        } finally {
+            lock.unlock();
+        }
+        // create the clients in parallel
+        for (int i = 0; i < count; i++) {
+            creator.execute(this::createIdleClient);
+        }
+    }
+
+    private void createIdleClient() {
+        Client client = null;
+        try {
+            client = new Client(true);
+        } catch (IOException | RuntimeException e) {
+            // borrowers will create their own client and get the error
+        }
+        lock.lock();
+        try {
+            pendingCount--;
+            if (client == null) {
+                totalCount--;
+            } else if (open) {
+                idleClients.addFirst(client);
+                client = null;
+            } else {
+                totalCount--;
+            }
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+        if (client != null) {
+            // the pool was closed while the client was being created
+            client.disconnectQuietly();
+        }
+    }
+
+    private void evictIdleClients() {
+        List<Client> evicted = new ArrayList<>();
+        lock.lock();
+        try {
+            long now = System.nanoTime();
+            // the longest idle clients are usually at the tail, but clients that received a keep-alive signal are re-added there as well
+            for (Iterator<Client> i = idleClients.descendingIterator(); i.hasNext() && idleClients.size() > minIdle; ) {
+                Client client = i.next();
+                if (now - client.lastUsed < idleTimeout) {
+                    continue;
+                }
+                i.remove();
+                totalCount--;
+                evicted.add(client);
+            }
+        } finally {
+            lock.unlock();
+        }
+        for (Client client : evicted) {
+            client.disconnectQuietly();
+        }
+        ensureMinIdle();
+    }
+
+    private void keepAliveIdleClients() {
+        long now = System.nanoTime();
+        Client client;
+        while ((client = takeIdleClient(now)) != null) {
+            try {
+                keepAlive(client);
+            } catch (IOException e) {
+                if (keepAliveListener != null) {
+                    keepAliveListener.keepAliveFailed(hostname, port, e);
+                }
+            }
+        }
+    }
 
+    void keepAlive() throws IOException {
+        // only take one idle client at a time, so borrowers are not blocked while the keep-alive signals are sent
+        long now = System.nanoTime();
         IOException exception = null;
-        for (Client client : clients) {
+        Client client;
+        while ((client = takeIdleClient(now)) != null) {
             try {
-                client.keepAlive();
+                keepAlive(client);
             } catch (IOException e) {
                 exception = add(exception, e);
-            } finally {
-                returnToPool(client);
             }
         }
         if (exception != null) {
@@ -117,13 +364,92 @@ final class FTPClientPool {
         }
     }
 
+    private Client takeIdleClient(long checkedBefore) {
+        lock.lock();
+        try {
+            if (!open) {
+                return null;
+            }
+            for (Iterator<Client> i = idleClients.descendingIterator(); i.hasNext(); ) {
+                Client client = i.next();
+                if (checkedBefore - client.lastChecked() >= keepAliveInterval) {
+                    i.remove();
+                    return client;
+                }
+            }
+            return null;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private void keepAlive(Client client) throws IOException {
+        try {
+            client.keepAlive();
+        } catch (IOException e) {
+            // the connection is dead; replace it before it is needed
+            client.disconnectQuietly();
+            releaseSlot();
+            ensureMinIdle();
+            throw e;
+        }
+        boolean disconnect;
+        lock.lock();
+        try {
+            disconnect = !open;
+            if (disconnect) {
+                totalCount--;
+            } else {
+                // the client has not been used, so keep it near the longest idle clients
+                idleClients.addLast(client);
+            }
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+        if (disconnect) {
+            client.disconnectQuietly();
+        }
+    }
+
     boolean isSecure() {
         return env instanceof FTPSEnvironment;
     }
 
+    int getIdleCount() {
+        lock.lock();
+        try {
+            return idleClients.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    int getTotalCount() {
+        lock.lock();
+        try {
+            return totalCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
     void close() throws IOException {
-        List<Client> clients = new ArrayList<>();
-        pool.drainTo(clients);
+        List<Client> clients;
+        lock.lock();
+        try {
+            open = false;
+            clients = new ArrayList<>(idleClients);
+            totalCount -= idleClients.size();
+            idleClients.clear();
+            available.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        creator.shutdown();
+        if (maintenance != null) {
+            maintenance.shutdownNow();
+        }
 
         IOException exception = null;
         for (Client client : clients) {
@@ -149,7 +475,39 @@ final class FTPClientPool {
     private void returnToPool(Client client) {
         assert client.refCount == 0;
 
-        pool.add(client);
+        client.lastUsed = System.nanoTime();
+        boolean disconnect;
+        lock.lock();
+        try {
+            disconnect = !open || idleClients.size() >= maxIdle;
+            if (disconnect) {
+                totalCount--;
+            } else {
+                idleClients.addFirst(client);
+            }
+            available.signal();
+        } finally {
+            lock.unlock();
+        }
+        if (disconnect) {
+            client.disconnectQuietly();
+        }
+    }
+
+    private final class PoolThreadFactory implements ThreadFactory {
+
+        private final String name;
+
+        private PoolThreadFactory(String name) {
+            this.name = name;
+        }
+
+        @Override
+        public Thread newThread(Runnable r) {
+            Thread thread = new Thread(r, "ftp-client-pool-" + hostname + "-" + name);
+            thread.setDaemon(true);
+            return thread;
+        }
     }
 
     final class Client implements Closeable {
@@ -163,13 +521,19 @@ final class FTPClientPool {
 
         private int refCount = 0;
 
+        private long lastUsed;
+        private long lastKeepAlive;
+        private boolean ioErrorOccurred = false;
+
         private Client(boolean pooled) throws IOException {
             this.client = env.createClient(hostname, port);
             this.pooled = pooled;
+            this.lastUsed = System.nanoTime();
+            this.lastKeepAlive = lastUsed;
 
             this.fileType = env.getDefaultFileType();
             this.fileStructure = env.getDefaultFileStructure();
-            this.fileTransferMode = env.getDefaultFileTransferMode();
+            this.fileTransferMode = env.getDefaultFileTransferMode(client);
         }
 
         private void increaseRefCount() {
@@ -184,22 +548,46 @@ final class FTPClientPool {
         }
 
         private void keepAlive() throws IOException {
-            client.sendNoOp();
+            try {
+                client.sendNoOp();
+            } catch (IOException e) {
+                throw ioError(e);
+            }
+            ioErrorOccurred = false;
+            lastKeepAlive = System.nanoTime();
         }
 
-        private boolean isConnected() {
-            if (client.isConnected()) {
-                try {
-                    keepAlive();
-                    return true;
-                } catch (IOException e) {
-                    // the keep alive failed - treat as not connected, and actually disconnect quietly
-                    disconnectQuietly();
-                }
+        private long lastChecked() {
+            // compare instead of using Math.max, as nanoTime values may overflow
+            return lastKeepAlive - lastUsed > 0 ? lastKeepAlive : lastUsed;
+        }
+
+        private boolean isValid() {
+            if (!client.isConnected()) {
+                return false;
+            }
+            if (!ioErrorOccurred && System.nanoTime() - lastChecked() < validationInterval) {
+                // used recently enough without errors, don't bother the server
+                return true;
+            }
+            try {
+                keepAlive();
+                return true;
+            } catch (IOException e) {
+                // the keep alive failed - treat as not connected, and actually disconnect quietly
+                disconnectQuietly();
             }
             return false;
         }
 
+        private IOException ioError(IOException e) {
+            // file system exceptions are created from FTP replies; anything else may indicate a broken connection
+            if (!(e instanceof FileSystemException)) {
+                ioErrorOccurred = true;
+            }
+            return e;
+        }
+
         private void disconnect() throws IOException {
             client.disconnect();
         }
@@ -224,7 +612,12 @@ final class FTPClientPool {
         }
 
         String pwd() throws IOException {
-            String pwd = client.printWorkingDirectory();
+            String pwd;
+            try {
+                pwd = client.printWorkingDirectory();
+            } catch (IOException e) {
+                throw ioError(e);
+            }
             if (pwd == null) {
                 throw new FTPFileSystemException(client.getReplyCode(), client.getReplyString());
             }
@@ -232,17 +625,21 @@ final class FTPClientPool {
         }
 
         private void applyTransferOptions(TransferOptions options) throws IOException {
-            if (options.fileType != null && options.fileType != fileType) {
-                options.fileType.apply(client);
-                fileType = options.fileType;
-            }
-            if (options.fileStructure != null && options.fileStructure != fileStructure) {
-                options.fileStructure.apply(client);
-                fileStructure = options.fileStructure;
-            }
-            if (options.fileTransferMode != null && options.fileTransferMode != fileTransferMode) {
-                options.fileTransferMode.apply(client);
-                fileTransferMode = options.fileTransferMode;
+            try {
+                if (options.fileType != null && options.fileType != fileType) {
+                    options.fileType.apply(client);
+                    fileType = options.fileType;
+                }
+                if (options.fileStructure != null && options.fileStructure != fileStructure) {
+                    options.fileStructure.apply(client);
+                    fileStructure = options.fileStructure;
+                }
+                if (options.fileTransferMode != null && options.fileTransferMode != fileTransferMode) {
+                    options.fileTransferMode.apply(client);
+                    fileTransferMode = options.fileTransferMode;
+                }
+            } catch (IOException e) {
+                throw ioError(e);
             }
         }
 
@@ -251,7 +648,12 @@ final class FTPClientPool {
 
             applyTransferOptions(options);
 
-            InputStream in = client.retrieveFileStream(path);
+            InputStream in;
+            try {
+                in = client.retrieveFileStream(path);
+            } catch (IOException e) {
+                throw ioError(e);
+            }
             if (in == null) {
                 throw exceptionFactory.createNewInputStreamException(path, client.getReplyCode(), client.getReplyString());
             }
@@ -264,7 +666,12 @@ final class FTPClientPool {
 
             applyTransferOptions(options);
 
-            OutputStream out = options.append ? client.appendFileStream(path) : client.storeFileStream(path);
+            OutputStream out;
+            try {
+                out = options.append ? client.appendFileStream(path) : client.storeFileStream(path);
+            } catch (IOException e) {
+                throw ioError(e);
+            }
             if (out == null) {
                 throw exceptionFactory.createNewOutputStreamException(path, client.getReplyCode(), client.getReplyString(), options.options);
             }
@@ -275,7 +682,13 @@ final class FTPClientPool {
         private void finalizeStream() throws IOException {
             assert refCount > 0;
 
-            if (!client.completePendingCommand()) {
+            boolean completed;
+            try {
+                completed = client.completePendingCommand();
+            } catch (IOException e) {
+                throw ioError(e);
+            }
+            if (!completed) {
                 throw new FTPFileSystemException(client.getReplyCode(), client.getReplyString());
             }
             if (decreaseRefCount() == 0) {
@@ -290,17 +703,110 @@ final class FTPClientPool {
         void storeFile(String path, InputStream local, TransferOptions options, Collection<? extends OpenOption> openOptions) throws IOException {
             applyTransferOptions(options);
 
-            if (!client.storeFile(path, local)) {
+            boolean stored;
+            try {
+                stored = client.storeFile(path, local);
+            } catch (IOException e) {
+                throw ioError(e);
+            }
+            if (!stored) {
                 throw exceptionFactory.createNewOutputStreamException(path, client.getReplyCode(), client.getReplyString(), openOptions);
             }
         }
 
-        FTPFile[] listFiles(String path) throws IOException {
-            return client.listFiles(path);
+        void storeFile(String path, FileChannel local, TransferOptions options, Collection<? extends OpenOption> openOptions)
+                throws IOException {
+            applyTransferOptions(options);
+
+            boolean stored;
+            try {
+                stored = client.storeFile(path, local);
+            } catch (IOException e) {
+                throw ioError(e);
+            }
+            if (!stored) {
+                throw exceptionFactory.createNewOutputStreamException(path, client.getReplyCode(), client.getReplyString(), openOptions);
+            }
+        }
+
+        void storeFileRange(String path, FileChannel local, long offset, long length, TransferOptions options,
+                            Collection<? extends OpenOption> openOptions) throws IOException {
+            applyTransferOptions(options);
+
+            boolean stored;
+            try {
+                stored = client.storeFileRange(path, local, offset, length);
+            } catch (IOException e) {
+                throw ioError(e);
+            }
+            if (!stored) {
+                throw exceptionFactory.createNewOutputStreamException(path, client.getReplyCode(), client.getReplyString(), openOptions);
+            }
         }
 
         FTPFile[] listFiles(String path, FTPFileFilter filter) throws IOException {
-            return client.listFiles(path, filter);
+            try {
+                return client.listFiles(path, filter);
+            } catch (IOException e) {
+                throw ioError(e);
+            }
+        }
+
+        Listing listFilesIterator(String path) throws IOException {
+            FTPFileIterator iterator;
+            try {
+                iterator = client.listFilesIterator(path);
+            } catch (IOException e) {
+                throw ioError(e);
+            }
+            return new Listing(iterator, FTPReply.isPositivePreliminary(client.getReplyCode()));
+        }
+
+        FTPFile mlistFile(String path) throws IOException {
+            FTPFile ftpFile;
+            try {
+                ftpFile = client.mlistFile(path);
+            } catch (IOException e) {
+                throw ioError(e);
+            }
+            if (ftpFile == null) {
+                throw exceptionFactory.createGetFileException(path, client.getReplyCode(), client.getReplyString());
+            }
+            return ftpFile;
+        }
+
+        Map<String, FTPFile> mlistFiles(Collection<String> paths) throws IOException {
+            try {
+                return client.mlistFiles(paths);
+            } catch (IOException e) {
+                throw ioError(e);
+            }
+        }
+
+        Listing mlistDirIterator(String path) throws IOException {
+            FTPFileIterator iterator;
+            try {
+                iterator = client.mlistDirIterator(path);
+            } catch (IOException e) {
+                throw ioError(e);
+            }
+            return new Listing(iterator, FTPReply.isPositivePreliminary(client.getReplyCode()));
+        }
+
+        boolean hasFeature(String feature) throws IOException {
+            try {
+                return client.hasFeature(feature);
+            } catch (IOException e) {
+                throw ioError(e);
+            }
+        }
+
+        boolean hasFeature(String feature, String value) throws IOException {
+            try {
+                return client.hasFeature(feature, value);
+            } catch (IOException e) {
+                throw ioError(e);
+            }
         }
 
         void throwIfEmpty(String path, FTPFile[] ftpFiles) throws IOException {
@@ -310,29 +816,189 @@ final class FTPClientPool {
         }
 
         void mkdir(String path) throws IOException {
-            if (!client.makeDirectory(path)) {
+            boolean created;
+            try {
+                created = client.makeDirectory(path);
+            } catch (IOException e) {
+                throw ioError(e);
+            }
+            if (!created) {
                 throw exceptionFactory.createCreateDirectoryException(path, client.getReplyCode(), client.getReplyString());
             }
         }
 
         void delete(String path, boolean isDirectory) throws IOException {
-            boolean success = isDirectory ? client.removeDirectory(path) : client.deleteFile(path);
+            boolean success;
+            try {
+                success = isDirectory ? client.removeDirectory(path) : client.deleteFile(path);
+            } catch (IOException e) {
+                throw ioError(e);
+            }
             if (!success) {
                 throw exceptionFactory.createDeleteException(path, client.getReplyCode(), client.getReplyString(), isDirectory);
             }
         }
 
         void rename(String source, String target) throws IOException {
-            if (!client.rename(source, target)) {
+            boolean renamed;
+            try {
+                renamed = client.rename(source, target);
+            } catch (IOException e) {
+                throw ioError(e);
+            }
+            if (!renamed) {
                 throw exceptionFactory.createMoveException(source, target, client.getReplyCode(), client.getReplyString());
             }
         }
 
+        long size(String path) throws IOException {
+            String size;
+            try {
+                size = client.getSize(path);
+            } catch (IOException e) {
+                throw ioError(e);
+            }
+            if (size != null) {
+                try {
+                    return Long.parseLong(size.trim());
+                } catch (NumberFormatException e) {
+                    // treat as unknown
+                }
+            }
+            return -1;
+        }
+
+        Map<String, Long> sizes(Collection<String> paths) throws IOException {
+            Map<String, String> sizes;
+            try {
+                sizes = client.getSizes(paths);
+            } catch (IOException e) {
+                throw ioError(e);
+            }
+            Map<String, Long> result = new LinkedHashMap<>();
+            for (Map.Entry<String, String> entry : sizes.entrySet()) {
+                try {
+                    result.put(entry.getKey(), Long.parseLong(entry.getValue().trim()));
+                } catch (NumberFormatException e) {
+                    // treat as unknown
+                }
+            }
+            return result;
+        }
+
+        void retrieveFile(String path, FileChannel local, TransferOptions options) throws IOException {
+            applyTransferOptions(options);
+
+            boolean retrieved;
+            try {
+                retrieved = client.retrieveFile(path, local);
+            } catch (IOException e) {
+                throw ioError(e);
+            }
+            if (!retrieved) {
+                throw exceptionFactory.createNewInputStreamException(path, client.getReplyCode(), client.getReplyString());
+            }
+        }
+
+        long retrieveFileRange(String path, FileChannel local, long offset, long length, TransferOptions options) throws IOException {
+            applyTransferOptions(options);
+
+            long count;
+            try {
+                count = client.retrieveFileRange(path, local, offset, length);
+            } catch (IOException e) {
+                throw ioError(e);
+            }
+            if (count < 0) {
+                throw exceptionFactory.createNewInputStreamException(path, client.getReplyCode(), client.getReplyString());
+            }
+            return count;
+        }
+
+        /**
+         * Cancels a call to {@link #retrieveFileRange} or {@link #storeFileRange} that is in progress in another thread.
+         */
+        void cancelTransfer() {
+            client.cancelTransfer();
+        }
+
         ZonedDateTime mdtm(String path) throws IOException {
-            FTPFile file = client.mdtmFile(path);
+            FTPFile file;
+            try {
+                file = client.mdtmFile(path);
+            } catch (IOException e) {
+                throw ioError(e);
+            }
             return file == null ? null : file.getTimestamp();
         }
 
+        Map<String, ZonedDateTime> mdtms(Collection<String> paths) throws IOException {
+            Map<String, String> modificationTimes;
+            try {
+                modificationTimes = client.getModificationTimes(paths);
+            } catch (IOException e) {
+                throw ioError(e);
+            }
+            Map<String, ZonedDateTime> result = new LinkedHashMap<>();
+            for (Map.Entry<String, String> entry : modificationTimes.entrySet()) {
+                ZonedDateTime timestamp = MLSxEntryParser.parseGMTdateTime(entry.getValue());
+                if (timestamp != null) {
+                    result.put(entry.getKey(), timestamp);
+                }
+            }
+            return result;
+        }
+
+        /**
+         * A directory listing that is parsed while it is being received.
+         * The client cannot be used for anything else until the listing is closed.
+         */
+        final class Listing implements Closeable {
+
+            private final FTPFileIterator iterator;
+            private final boolean started;
+
+            private boolean open = true;
+
+            private Listing(FTPFileIterator iterator, boolean started) {
+                this.iterator = iterator;
+                this.started = started;
+            }
+
+            /**
+             * Returns whether or not the server started sending the listing.
+             * If not, the listing is empty and the reply of the client tells why.
+             */
+            boolean isStarted() {
+                return started;
+            }
+
+            FTPFile next() throws IOException {
+                try {
+                    return iterator.hasNext() ? iterator.next() : null;
+                } catch (UncheckedIOException e) {
+                    throw ioError(e.getCause());
+                }
+            }
+
+            @Override
+            public void close() throws IOException {
+                if (open) {
+                    open = false;
+                    boolean exhausted = iterator.isExhausted();
+                    try {
+                        iterator.close();
+                    } catch (IOException e) {
+                        throw ioError(e);
+                    }
+                    // a listing that is closed early is aborted, so only a completely read listing must succeed
+                    if (started && exhausted && !FTPReply.isPositiveCompletion(client.getReplyCode())) {
+                        throw new FTPFileSystemException(client.getReplyCode(), client.getReplyString());
+                    }
+                }
+            }
+        }
+
         private final class FTPInputStream extends InputStream {
 
             private final String path;
@@ -1,5 +1,6 @@
 package org.xbib.io.ftp.fs;
 
+import org.xbib.io.ftp.client.CopyStreamEngine;
 import org.xbib.io.ftp.client.FTP;
 import org.xbib.io.ftp.client.FTPClient;
 import org.xbib.io.ftp.client.FTPClientConfig;
@@ -70,6 +71,7 @@ public class FTPEnvironment implements Map<String, Object>, Cloneable {
     private static final String PARSER_FACTORY = "parserFactory";
     private static final String REMOTE_VERIFICATION_ENABLED = "remoteVerificationEnabled";
     private static final String DEFAULT_DIR = "defaultDir";
+    private static final String PREFER_BLOCK_TRANSFER_MODE = "preferBlockTransferMode";
     private static final String CONNECTION_MODE = "connectionMode";
     private static final String ACTIVE_PORT_RANGE_MIN = "activePortRange.min";
     private static final String ACTIVE_PORT_RANGE_MAX = "activePortRange.max";
@@ -80,6 +82,8 @@ public class FTPEnvironment implements Map<String, Object>, Cloneable {
     private static final String BUFFER_SIZE = "bufferSize";
     private static final String SEND_DATA_SOCKET_BUFFER_SIZE = "sendDataSocketBufferSize";
     private static final String RECEIVE_DATA_SOCKET_BUFFER_SIZE = "receiveDataSocketBufferSize";
+    private static final String COPY_STREAM_ENGINE = "copyStreamEngine";
+    private static final String DEFLATE_LEVEL = "deflateLevel";
     private static final String CLIENT_CONFIG = "clientConfig";
     private static final String USE_EPSV_WITH_IPV4 = "useEPSVwithIPv4";
     private static final String CONTROL_KEEP_ALIVE_TIMEOUT = "controlKeepAliveTimeout";
@@ -92,6 +96,22 @@ public class FTPEnvironment implements Map<String, Object>, Cloneable {
 
     private static final int DEFAULT_CLIENT_CONNECTION_COUNT = 1;
     private static final String CLIENT_CONNECTION_COUNT = "clientConnectionCount";
+    private static final String CLIENT_POOL_MIN_IDLE = "clientPool.minIdle";
+    private static final String CLIENT_POOL_MAX_IDLE = "clientPool.maxIdle";
+    private static final String CLIENT_POOL_IDLE_TIMEOUT = "clientPool.idleTimeout";
+    private static final String CLIENT_POOL_MAX_WAIT_TIME = "clientPool.maxWaitTime";
+    private static final String CLIENT_POOL_KEEP_ALIVE_INTERVAL = "clientPool.keepAliveInterval";
+    private static final String CLIENT_POOL_KEEP_ALIVE_LISTENER = "clientPool.keepAliveListener";
+    private static final long DEFAULT_CLIENT_VALIDATION_INTERVAL = 0L;
+    private static final String CLIENT_VALIDATION_INTERVAL = "clientValidationInterval";
+    private static final long DEFAULT_PREFETCHED_ATTRIBUTES_TIMEOUT = 5000L;
+    private static final String PREFETCHED_ATTRIBUTES_TIMEOUT = "prefetchedAttributesTimeout";
+    private static final long DEFAULT_CACHE_TIME_TO_LIVE = 0L;
+    private static final String CACHE_TIME_TO_LIVE = "cache.timeToLive";
+    private static final long DEFAULT_CACHE_NEGATIVE_TIME_TO_LIVE = 0L;
+    private static final String CACHE_NEGATIVE_TIME_TO_LIVE = "cache.negativeTimeToLive";
+    private static final int DEFAULT_CACHE_MAX_SIZE = 1000;
+    private static final String CACHE_MAX_SIZE = "cache.maxSize";
     private static final String FILE_SYSTEM_EXCEPTION_FACTORY = "fileSystemExceptionFactory";
     private static final String CALCULATE_ACTUAL_TOTAL_SPACE = "calculateActualTotalSpace";
 
@@ -372,6 +392,19 @@ public class FTPEnvironment implements Map<String, Object>, Cloneable {
         return this;
     }
 
+    /**
+     * Stores whether or not to use {@link FileTransferMode#BLOCK} if the server accepts it.
+     * In block mode, the server can keep the data connection open for the next transfer.
+     * If the server rejects block mode, it will default to {@link FileTransferMode#STREAM}.
+     *
+     * @param prefer {@code true} to use block mode if possible, or {@code false} otherwise.
+     * @return This object.
+     */
+    public FTPEnvironment withPreferBlockTransferMode(boolean prefer) {
+        put(PREFER_BLOCK_TRANSFER_MODE, prefer);
+        return this;
+    }
+
     /**
      * Stores the connection mode to use.
      * If the connection mode is not set, it will default to {@link ConnectionMode#ACTIVE}.
@@ -463,6 +496,29 @@ public class FTPEnvironment implements Map<String, Object>, Cloneable {
         return this;
     }
 
+    /**
+     * Stores the engine that copies the data of file transfers, including copies between file systems.
+     * Sharing one engine between file systems shares its pool of buffers. If not set, {@link CopyStreamEngine#getDefault()} is used.
+     *
+     * @param engine The engine to use.
+     * @return This object.
+     */
+    public FTPEnvironment withCopyStreamEngine(CopyStreamEngine engine) {
+        put(COPY_STREAM_ENGINE, engine);
+        return this;
+    }
+
+    /**
+     * Stores the compression level to use with {@link FileTransferMode#DEFLATE}. The level is also sent to servers that support it.
+     *
+     * @param level The compression level, from 0 (no compression) to 9 (best compression), or -1 for the default level.
+     * @return This object.
+     */
+    public FTPEnvironment withDeflateLevel(int level) {
+        put(DEFLATE_LEVEL, level);
+        return this;
+    }
+
     /**
      * Stores the FTP client config to use.
      *
@@ -540,6 +596,12 @@ public class FTPEnvironment implements Map<String, Object>, Cloneable {
 
     /**
      * Stores the number of client connections to use. This value influences the number of concurrent threads that can access an FTP file system.
+     * It is the maximum number of pooled connections; unless {@link #withClientPoolMinIdle(int)} is used, all of them are created when the
+     * file system is created.
+     * <p>
+     * Directory streams read directory listings while they are being iterated, using a connection of their own. This requires that at least
+     * one other connection remains available; otherwise, such as when only one connection is used, directory listings are read completely
+     * when the directory stream is created.
      *
      * @param count The number of client connection to use.
      * @return This object.
@@ -549,6 +611,155 @@ public class FTPEnvironment implements Map<String, Object>, Cloneable {
         return this;
     }
 
+    /**
+     * Stores the minimum number of idle client connections to keep. Missing connections are created in the background.
+     * If not set, it defaults to the {@link #withClientConnectionCount(int) client connection count}.
+     *
+     * @param minIdle The minimum number of idle client connections.
+     * @return This object.
+     */
+    public FTPEnvironment withClientPoolMinIdle(int minIdle) {
+        put(CLIENT_POOL_MIN_IDLE, minIdle);
+        return this;
+    }
+
+    /**
+     * Stores the maximum number of idle client connections to keep. Connections that are returned to a pool that already has this
+     * many idle connections are disconnected.
+     * If not set, it defaults to the {@link #withClientConnectionCount(int) client connection count}.
+     *
+     * @param maxIdle The maximum number of idle client connections.
+     * @return This object.
+     */
+    public FTPEnvironment withClientPoolMaxIdle(int maxIdle) {
+        put(CLIENT_POOL_MAX_IDLE, maxIdle);
+        return this;
+    }
+
+    /**
+     * Stores how long client connections may be idle before they are disconnected, as long as at least the
+     * {@link #withClientPoolMinIdle(int) minimum number of idle connections} remains. A value of {@code 0} (the default) disables eviction.
+     *
+     * @param timeout The idle timeout to use, in milliseconds.
+     * @return This object.
+     */
+    public FTPEnvironment withClientPoolIdleTimeout(long timeout) {
+        put(CLIENT_POOL_IDLE_TIMEOUT, timeout);
+        return this;
+    }
+
+    /**
+     * Stores how long to wait for a client connection if the maximum number of client connections is in use.
+     * If no connection becomes available in time, an {@link IOException} is thrown.
+     * A value of {@code 0} (the default) means to wait indefinitely.
+     *
+     * @param timeout The maximum wait time to use, in milliseconds.
+     * @return This object.
+     */
+    public FTPEnvironment withClientPoolMaxWaitTime(long timeout) {
+        put(CLIENT_POOL_MAX_WAIT_TIME, timeout);
+        return this;
+    }
+
+    /**
+     * Stores the interval for sending keep-alive signals over idle pooled client connections. Keep-alive signals are sent in the background,
+     * one connection at a time, and only to connections that are not in use. Connections for which the keep-alive signal fails are replaced.
+     * A value of {@code 0} (the default) disables sending keep-alive signals in the background.
+     *
+     * @param interval The keep-alive interval to use, in milliseconds.
+     * @return This object.
+     * @see FTPFileSystemProvider#keepAlive(java.nio.file.FileSystem)
+     */
+    public FTPEnvironment withClientPoolKeepAliveInterval(long interval) {
+        put(CLIENT_POOL_KEEP_ALIVE_INTERVAL, interval);
+        return this;
+    }
+
+    /**
+     * Stores the listener to notify when a background keep-alive signal fails.
+     *
+     * @param listener The listener to use.
+     * @return This object.
+     * @see #withClientPoolKeepAliveInterval(long)
+     */
+    public FTPEnvironment withClientPoolKeepAliveListener(KeepAliveListener listener) {
+        put(CLIENT_POOL_KEEP_ALIVE_LISTENER, listener);
+        return this;
+    }
+
+    /**
+     * Stores how long a pooled client connection may be left unused before it is validated with a {@code NOOP} when it is taken
+     * from the pool again. Connections that were used more recently are handed out without a round trip to the server, unless an
+     * I/O error occurred on them. A value of {@code 0} (the default) validates connections every time they are taken from the pool.
+     *
+     * @param interval The validation interval to use, in milliseconds.
+     * @return This object.
+     */
+    public FTPEnvironment withClientValidationInterval(long interval) {
+        put(CLIENT_VALIDATION_INTERVAL, interval);
+        return this;
+    }
+
+    /**
+     * Stores how long the file attributes that are returned as part of directory listings remain valid.
+     * Paths returned by directory streams carry these attributes, and reading the attributes of such a path within this time does not
+     * require any communication with the server. Note that the last modified time of these attributes may be less precise, as that is
+     * otherwise retrieved using the {@code MDTM} command. These attributes are no longer used once the path, or one of its parent
+     * directories, is modified through the same file system; modifications made by others are only noticed after the timeout.
+     * A value of {@code 0} disables the use of these attributes. The default is 5 seconds.
+     *
+     * @param timeout The timeout to use, in milliseconds.
+     * @return This object.
+     */
+    public FTPEnvironment withPrefetchedAttributesTimeout(long timeout) {
+        put(PREFETCHED_ATTRIBUTES_TIMEOUT, timeout);
+        return this;
+    }
+
+    /**
+     * Stores how long information about files and directories retrieved from the server is cached.
+     * Cached are the files found when checking whether paths exist, file attributes, and complete directory listings.
+     * Cached information is removed for paths that are modified through the same file system, and for their parent directories;
+     * modifications made by others are only noticed after the cached information has expired.
+     * A value of {@code 0} (the default) disables the cache.
+     *
+     * @param timeToLive The time to live to use, in milliseconds.
+     * @return This object.
+     */
+    public FTPEnvironment withCacheTimeToLive(long timeToLive) {
+        put(CACHE_TIME_TO_LIVE, timeToLive);
+        return this;
+    }
+
+    /**
+     * Stores how long it is cached that paths do not exist. Until this time has passed, checking whether such a path exists does not
+     * require any communication with the server. If directory listings are cached, paths that are not part of a cached listing of their
+     * parent directory are known not to exist as well. Creating or moving a file or directory through the same file system removes this
+     * information. This time to live should usually be short, as files added by others are not noticed before it has passed.
+     * A value of {@code 0} (the default) disables caching that paths do not exist.
+     *
+     * @param timeToLive The time to live to use, in milliseconds.
+     * @return This object.
+     * @see #withCacheTimeToLive(long)
+     */
+    public FTPEnvironment withCacheNegativeTimeToLive(long timeToLive) {
+        put(CACHE_NEGATIVE_TIME_TO_LIVE, timeToLive);
+        return this;
+    }
+
+    /**
+     * Stores the maximum number of files that are cached. Directory listings count for the number of files they contain.
+     * If the cache is full, the least recently used information is removed. The default is 1000.
+     *
+     * @param maxSize The maximum size to use.
+     * @return This object.
+     * @see #withCacheTimeToLive(long)
+     */
+    public FTPEnvironment withCacheMaxSize(int maxSize) {
+        put(CACHE_MAX_SIZE, maxSize);
+        return this;
+    }
+
     /**
      * Stores the file system exception factory to use.
      *
@@ -574,9 +785,9 @@ public class FTPEnvironment implements Map<String, Object>, Cloneable {
         return FileStructure.FILE;
     }
 
-    FileTransferMode getDefaultFileTransferMode() {
-        // as specified by FTPClient
-        return FileTransferMode.STREAM;
+    FileTransferMode getDefaultFileTransferMode(FTPClient client) {
+        // as specified by FTPClient, unless block mode was accepted in initializePostConnect
+        return client.getFileTransferMode() == FTP.BLOCK_TRANSFER_MODE ? FileTransferMode.BLOCK : FileTransferMode.STREAM;
     }
 
     int getClientConnectionCount() {
@@ -584,6 +795,60 @@ public class FTPEnvironment implements Map<String, Object>, Cloneable {
         return Math.max(1, count);
     }
 
+    int getClientPoolMinIdle() {
+        int minIdle = FileSystemProviderSupport.getIntValue(this, CLIENT_POOL_MIN_IDLE, getClientConnectionCount());
+        return Math.max(0, minIdle);
+    }
+
+    int getClientPoolMaxIdle() {
+        int maxIdle = FileSystemProviderSupport.getIntValue(this, CLIENT_POOL_MAX_IDLE, getClientConnectionCount());
+        return Math.max(1, maxIdle);
+    }
+
+    long getClientPoolIdleTimeout() {
+        long timeout = FileSystemProviderSupport.getLongValue(this, CLIENT_POOL_IDLE_TIMEOUT, 0L);
+        return Math.max(0L, timeout);
+    }
+
+    long getClientPoolMaxWaitTime() {
+        long timeout = FileSystemProviderSupport.getLongValue(this, CLIENT_POOL_MAX_WAIT_TIME, 0L);
+        return Math.max(0L, timeout);
+    }
+
+    long getClientPoolKeepAliveInterval() {
+        long interval = FileSystemProviderSupport.getLongValue(this, CLIENT_POOL_KEEP_ALIVE_INTERVAL, 0L);
+        return Math.max(0L, interval);
+    }
+
+    KeepAliveListener getClientPoolKeepAliveListener() {
+        return FileSystemProviderSupport.getValue(this, CLIENT_POOL_KEEP_ALIVE_LISTENER, KeepAliveListener.class, null);
+    }
+
+    long getClientValidationInterval() {
+        long interval = FileSystemProviderSupport.getLongValue(this, CLIENT_VALIDATION_INTERVAL, DEFAULT_CLIENT_VALIDATION_INTERVAL);
+        return Math.max(0L, interval);
+    }
+
+    long getPrefetchedAttributesTimeout() {
+        long timeout = FileSystemProviderSupport.getLongValue(this, PREFETCHED_ATTRIBUTES_TIMEOUT, DEFAULT_PREFETCHED_ATTRIBUTES_TIMEOUT);
+        return Math.max(0L, timeout);
+    }
+
+    long getCacheTimeToLive() {
+        long timeToLive = FileSystemProviderSupport.getLongValue(this, CACHE_TIME_TO_LIVE, DEFAULT_CACHE_TIME_TO_LIVE);
+        return Math.max(0L, timeToLive);
+    }
+
+    long getCacheNegativeTimeToLive() {
+        long timeToLive = FileSystemProviderSupport.getLongValue(this, CACHE_NEGATIVE_TIME_TO_LIVE, DEFAULT_CACHE_NEGATIVE_TIME_TO_LIVE);
+        return Math.max(0L, timeToLive);
+    }
+
+    int getCacheMaxSize() {
+        int maxSize = FileSystemProviderSupport.getIntValue(this, CACHE_MAX_SIZE, DEFAULT_CACHE_MAX_SIZE);
+        return Math.max(0, maxSize);
+    }
+
     FileSystemExceptionFactory getExceptionFactory() {
         return FileSystemProviderSupport.getValue(this, FILE_SYSTEM_EXCEPTION_FACTORY, FileSystemExceptionFactory.class,
                 DefaultFileSystemExceptionFactory.INSTANCE);
@@ -689,6 +954,10 @@ public class FTPEnvironment implements Map<String, Object>, Cloneable {
             int bufSize = FileSystemProviderSupport.getIntValue(this, RECEIVE_DATA_SOCKET_BUFFER_SIZE);
             client.setReceieveDataSocketBufferSize(bufSize);
         }
+        if (containsKey(COPY_STREAM_ENGINE)) {
+            CopyStreamEngine engine = FileSystemProviderSupport.getValue(this, COPY_STREAM_ENGINE, CopyStreamEngine.class, null);
+            client.setCopyStreamEngine(engine);
+        }
 
         if (containsKey(CLIENT_CONFIG)) {
             FTPClientConfig clientConfig = FileSystemProviderSupport.getValue(this, CLIENT_CONFIG, FTPClientConfig.class, null);
@@ -779,6 +1048,18 @@ public class FTPEnvironment implements Map<String, Object>, Cloneable {
         // default to binary
         client.setFileType(FTP.BINARY_FILE_TYPE);
 
+        if (FileSystemProviderSupport.getBooleanValue(this, PREFER_BLOCK_TRANSFER_MODE, false)) {
+            // if the server rejects block mode, stream mode remains in effect
+            client.setFileTransferMode(FTP.BLOCK_TRANSFER_MODE);
+        }
+        if (containsKey(DEFLATE_LEVEL)) {
+            int level = FileSystemProviderSupport.getIntValue(this, DEFLATE_LEVEL);
+            // only negotiate the level if the server announces the deflate transfer mode
+            if (client.isDeflateTransferModeSupported()) {
+                client.setDeflateLevel(level);
+            }
+        }
+
         String defaultDir = FileSystemProviderSupport.getValue(this, DEFAULT_DIR, String.class, null);
         if (defaultDir != null && !client.changeWorkingDirectory(defaultDir)) {
             throw getExceptionFactory().createChangeWorkingDirectoryException(defaultDir, client.getReplyCode(), client.getReplyString());
@@ -0,0 +1,262 @@
+package org.xbib.io.ftp.fs;
+
+import org.xbib.io.ftp.client.FTPFile;
+
+import java.nio.file.attribute.PosixFileAttributes;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A cache for FTP files, file attributes and directory listings, keyed by absolute path.
+ * It also caches which paths do not exist; these entries have their own, usually shorter, time to live.
+ * Entries expire after a fixed time to live. The cache holds a limited number of FTP files; when it is full, the least recently used
+ * entries are evicted. Each directory listing counts for the number of its children.
+ */
+final class FTPFileCache {
+
+    private final long timeToLive;
+    private final long negativeTimeToLive;
+    private final int maxSize;
+
+    private final LinkedHashMap<Key, Value> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private int size = 0;
+
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+
+    FTPFileCache(long timeToLive, long negativeTimeToLive, int maxSize) {
+        this.timeToLive = TimeUnit.MILLISECONDS.toNanos(timeToLive);
+        this.negativeTimeToLive = TimeUnit.MILLISECONDS.toNanos(negativeTimeToLive);
+        this.maxSize = maxSize;
+    }
+
+    boolean isEnabled() {
+        return (timeToLive > 0 || negativeTimeToLive > 0) && maxSize > 0;
+    }
+
+    private long timeToLive(Kind kind) {
+        return kind == Kind.ABSENT ? negativeTimeToLive : timeToLive;
+    }
+
+    int maxSize() {
+        return maxSize;
+    }
+
+    long hitCount() {
+        return hitCount.get();
+    }
+
+    long missCount() {
+        return missCount.get();
+    }
+
+    FTPFile getFTPFile(String path) {
+        return get(Kind.FILE, path, FTPFile.class);
+    }
+
+    void putFTPFile(String path, FTPFile ftpFile) {
+        put(Kind.FILE, path, ftpFile, 1);
+    }
+
+    PosixFileAttributes getAttributes(String path, boolean followLinks) {
+        return get(followLinks ? Kind.ATTRIBUTES : Kind.LINK_ATTRIBUTES, path, PosixFileAttributes.class);
+    }
+
+    void putAttributes(String path, boolean followLinks, PosixFileAttributes attributes) {
+        put(followLinks ? Kind.ATTRIBUTES : Kind.LINK_ATTRIBUTES, path, attributes, 1);
+    }
+
+    List<FTPFile> getChildren(String path) {
+        Listing listing = get(Kind.CHILDREN, path, Listing.class);
+        return listing == null ? null : listing.children;
+    }
+
+    void putChildren(String path, List<FTPFile> children) {
+        put(Kind.CHILDREN, path, new Listing(children), Math.max(1, children.size()));
+    }
+
+    /**
+     * Returns whether or not a path is known not to exist, either because that was found recently, or because a complete listing of its
+     * parent is cached that does not contain it. Only if so, this counts as a cache hit. If caching that paths do not exist is disabled,
+     * this always returns {@code false}.
+     *
+     * @param path       The absolute path to check.
+     * @param parentPath The absolute path of the parent, or {@code null} if the path is the root.
+     * @param fileName   The file name of the path, or {@code null} if the path is the root.
+     * @return {@code true} if the path is known not to exist, or {@code false} if it is not known whether or not the path exists.
+     */
+    boolean isAbsent(String path, String parentPath, String fileName) {
+        if (!isEnabled() || negativeTimeToLive <= 0) {
+            // a cached listing of the parent also says that a path does not exist, so it counts as negative caching too
+            return false;
+        }
+        synchronized (entries) {
+            boolean absent = getValue(new Key(Kind.ABSENT, path)) != null;
+            if (!absent && parentPath != null && fileName != null) {
+                Value value = getValue(new Key(Kind.CHILDREN, parentPath));
+                absent = value != null && !((Listing) value.value).names.contains(fileName);
+            }
+            if (absent) {
+                hitCount.incrementAndGet();
+            }
+            return absent;
+        }
+    }
+
+    void putAbsent(String path) {
+        put(Kind.ABSENT, path, Boolean.TRUE, 1);
+    }
+
+    private <T> T get(Kind kind, String path, Class<T> type) {
+        if (timeToLive(kind) <= 0) {
+            return null;
+        }
+        Key key = new Key(kind, path);
+        synchronized (entries) {
+            Value value = getValue(key);
+            if (value == null) {
+                missCount.incrementAndGet();
+                return null;
+            }
+            hitCount.incrementAndGet();
+            return type.cast(value.value);
+        }
+    }
+
+    private Value getValue(Key key) {
+        Value value = entries.get(key);
+        if (value != null && System.nanoTime() - value.created >= timeToLive(key.kind)) {
+            remove(key);
+            value = null;
+        }
+        return value;
+    }
+
+    private void put(Kind kind, String path, Object object, int weight) {
+        if (timeToLive(kind) <= 0 || weight > maxSize) {
+            return;
+        }
+        Key key = new Key(kind, path);
+        synchronized (entries) {
+            Value old = entries.put(key, new Value(object, weight));
+            size += weight;
+            if (old != null) {
+                size -= old.weight;
+            }
+            // the iterator returns the least recently used entries first
+            for (Iterator<Value> i = entries.values().iterator(); size > maxSize && i.hasNext(); ) {
+                size -= i.next().weight;
+                i.remove();
+            }
+        }
+    }
+
+    private void remove(Key key) {
+        Value value = entries.remove(key);
+        if (value != null) {
+            size -= value.weight;
+        }
+    }
+
+    /**
+     * Removes all cached information for a path that is about to be modified: the path itself, anything below it, and its parent,
+     * whose listing and modification time will change.
+     *
+     * @param path The absolute path that is modified.
+     * @param parentPath The absolute path of the parent, or {@code null} if the path is the root.
+     */
+    void invalidate(String path, String parentPath) {
+        if (!isEnabled()) {
+            return;
+        }
+        String prefix = path.endsWith("/") ? path : path + "/";
+        synchronized (entries) {
+            for (Iterator<Map.Entry<Key, Value>> i = entries.entrySet().iterator(); i.hasNext(); ) {
+                Map.Entry<Key, Value> entry = i.next();
+                String entryPath = entry.getKey().path;
+                if (entryPath.equals(path) || entryPath.startsWith(prefix) || entryPath.equals(parentPath)) {
+                    size -= entry.getValue().weight;
+                    i.remove();
+                }
+            }
+        }
+    }
+
+    void clear() {
+        synchronized (entries) {
+            entries.clear();
+            size = 0;
+        }
+    }
+
+    private enum Kind {
+        FILE,
+        ATTRIBUTES,
+        LINK_ATTRIBUTES,
+        CHILDREN,
+        ABSENT,
+    }
+
+    private static final class Key {
+
+        private final Kind kind;
+        private final String path;
+
+        private Key(Kind kind, String path) {
+            this.kind = kind;
+            this.path = path;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (o == null || o.getClass() != getClass()) {
+                return false;
+            }
+            Key other = (Key) o;
+            return kind == other.kind && path.equals(other.path);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(kind, path);
+        }
+    }
+
+    private static final class Listing {
+
+        private final List<FTPFile> children;
+        private final Set<String> names;
+
+        private Listing(List<FTPFile> children) {
+            this.children = Collections.unmodifiableList(children);
+            this.names = new HashSet<>(children.size());
+            for (FTPFile child : children) {
+                names.add(FTPFileSystem.getFileName(child));
+            }
+        }
+    }
+
+    private static final class Value {
+
+        private final Object value;
+        private final int weight;
+        private final long created;
+
+        private Value(Object value, int weight) {
+            this.value = value;
+            this.weight = weight;
+            this.created = System.nanoTime();
+        }
+    }
+}
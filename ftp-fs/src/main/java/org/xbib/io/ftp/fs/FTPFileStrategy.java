@@ -3,16 +3,25 @@ package org.xbib.io.ftp.fs;
 import org.xbib.io.ftp.client.FTPFile;
 import org.xbib.io.ftp.client.FTPFileFilter;
 
+import java.io.Closeable;
 import java.io.IOException;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.NotDirectoryException;
+import java.time.ZonedDateTime;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
 
 /**
  * A strategy for handling FTP files in an FTP server specific way.
  * This will help support FTP servers that return the current directory (.) when
  * listing directories, and FTP servers that don't.
+ * For FTP servers that support the MLST and MLSD commands, files and directory listings are retrieved using those commands.
  */
 abstract class FTPFileStrategy {
 
@@ -24,43 +33,84 @@ abstract class FTPFileStrategy {
                 return FTPFileSystem.CURRENT_DIR.equals(fileName);
             }
         });
-        return ftpFiles.length == 0 ? NonUnix.INSTANCE : Unix.INSTANCE;
+        FTPFileStrategy listStrategy = ftpFiles.length == 0 ? NonUnix.INSTANCE : Unix.INSTANCE;
+        // RFC 3659 defines MLSD as part of the MLST feature, but some servers advertise MLSD separately
+        return client.hasFeature("MLST") || client.hasFeature("MLSD") ? new MLSx(listStrategy) : listStrategy;
     }
 
-    abstract List<FTPFile> getChildren(FTPClientPool.Client client, FTPPath path) throws IOException;
+    /**
+     * Returns the children of a directory. The children are returned while the directory is being listed;
+     * only the entries needed to find out whether or not the path is a directory are read up front.
+     * The returned children must be closed before the client can be used for anything else.
+     */
+    abstract Children getChildren(FTPClientPool.Client client, FTPPath path) throws IOException;
 
     abstract FTPFile getFTPFile(FTPClientPool.Client client, FTPPath path) throws IOException;
 
     abstract FTPFile getLink(FTPClientPool.Client client, FTPFile ftpFile, FTPPath path) throws IOException;
 
+    /**
+     * Returns the files for several paths at once, without waiting for a reply per path.
+     * Paths that are not contained in the returned map must be retrieved using {@link #getFTPFile(FTPClientPool.Client, FTPPath)};
+     * this includes paths that do not exist.
+     * By default only regular files are returned, based on their size and last modification time.
+     */
+    Map<String, FTPFile> getFTPFiles(FTPClientPool.Client client, Collection<String> paths) throws IOException {
+        // SIZE fails for directories on most servers
+        Map<String, Long> sizes = client.sizes(paths);
+        Map<String, ZonedDateTime> lastModifiedTimes = client.mdtms(sizes.keySet());
+        Map<String, FTPFile> ftpFiles = new LinkedHashMap<>();
+        for (Map.Entry<String, Long> entry : sizes.entrySet()) {
+            ZonedDateTime lastModified = lastModifiedTimes.get(entry.getKey());
+            if (lastModified != null) {
+                FTPFile ftpFile = new FTPFile();
+                ftpFile.setName(entry.getKey());
+                ftpFile.setType(FTPFile.FILE_TYPE);
+                ftpFile.setSize(entry.getValue());
+                ftpFile.setTimestamp(lastModified);
+                ftpFiles.put(entry.getKey(), ftpFile);
+            }
+        }
+        return ftpFiles;
+    }
+
     private static final class Unix extends FTPFileStrategy {
 
         private static final FTPFileStrategy INSTANCE = new Unix();
 
         @Override
-        List<FTPFile> getChildren(FTPClientPool.Client client, FTPPath path) throws IOException {
+        Children getChildren(FTPClientPool.Client client, FTPPath path) throws IOException {
 
-            FTPFile[] ftpFiles = client.listFiles(path.path());
+            FTPClientPool.Client.Listing listing = client.listFilesIterator(path.path());
+            try {
+                // the . entry tells that the path is a directory; it is usually the first entry
+                boolean isEmpty = true;
+                boolean isDirectory = false;
+                List<FTPFile> children = new ArrayList<>();
+                FTPFile ftpFile;
+                while (!isDirectory && (ftpFile = listing.next()) != null) {
+                    isEmpty = false;
+                    String fileName = FTPFileSystem.getFileName(ftpFile);
+                    if (FTPFileSystem.CURRENT_DIR.equals(fileName)) {
+                        isDirectory = true;
+                    } else if (!FTPFileSystem.PARENT_DIR.equals(fileName)) {
+                        children.add(ftpFile);
+                    }
+                }
 
-            if (ftpFiles.length == 0) {
-                throw new NoSuchFileException(path.path());
-            }
-            boolean isDirectory = false;
-            List<FTPFile> children = new ArrayList<>(ftpFiles.length);
-            for (FTPFile ftpFile : ftpFiles) {
-                String fileName = FTPFileSystem.getFileName(ftpFile);
-                if (FTPFileSystem.CURRENT_DIR.equals(fileName)) {
-                    isDirectory = true;
-                } else if (!FTPFileSystem.PARENT_DIR.equals(fileName)) {
-                    children.add(ftpFile);
+                if (!isDirectory) {
+                    listing.close();
+                    if (isEmpty) {
+                        throw new NoSuchFileException(path.path());
+                    }
+                    throw new NotDirectoryException(path.path());
                 }
-            }
 
-            if (!isDirectory) {
-                throw new NotDirectoryException(path.path());
+                return new Children(children, listing, Children::isNotCurrentOrParentDirectory);
+            } catch (IOException | RuntimeException e) {
+                closeOnError(listing, e);
+                throw e;
             }
-
-            return children;
         }
 
         @Override
@@ -121,35 +171,43 @@ abstract class FTPFileStrategy {
         private static final FTPFileStrategy INSTANCE = new NonUnix();
 
         @Override
-        List<FTPFile> getChildren(FTPClientPool.Client client, FTPPath path) throws IOException {
-
-            FTPFile[] ftpFiles = client.listFiles(path.path());
+        Children getChildren(FTPClientPool.Client client, FTPPath path) throws IOException {
 
+            FTPClientPool.Client.Listing listing = client.listFilesIterator(path.path());
             boolean isDirectory = false;
-            List<FTPFile> children = new ArrayList<>(ftpFiles.length);
-            for (FTPFile ftpFile : ftpFiles) {
-                String fileName = FTPFileSystem.getFileName(ftpFile);
-                if (FTPFileSystem.CURRENT_DIR.equals(fileName)) {
-                    isDirectory = true;
-                } else if (!FTPFileSystem.PARENT_DIR.equals(fileName)) {
-                    children.add(ftpFile);
+            List<FTPFile> children = new ArrayList<>();
+            try {
+                // a . entry or more than one child tells that the path is a directory
+                FTPFile ftpFile;
+                while (!isDirectory && children.size() <= 1 && (ftpFile = listing.next()) != null) {
+                    String fileName = FTPFileSystem.getFileName(ftpFile);
+                    if (FTPFileSystem.CURRENT_DIR.equals(fileName)) {
+                        isDirectory = true;
+                    } else if (!FTPFileSystem.PARENT_DIR.equals(fileName)) {
+                        children.add(ftpFile);
+                    }
+                }
+                if (isDirectory || children.size() > 1) {
+                    return new Children(children, listing, Children::isNotCurrentOrParentDirectory);
                 }
+                listing.close();
+            } catch (IOException | RuntimeException e) {
+                closeOnError(listing, e);
+                throw e;
             }
 
-            if (!isDirectory && children.size() <= 1) {
-                // either zero or one, check the parent to see if the path exists and is a directory
-                FTPPath currentPath = path;
-                FTPFile currentFtpFile = getFTPFile(client, currentPath);
-                while (currentFtpFile.isSymbolicLink()) {
-                    currentPath = path.resolve(currentFtpFile.getLink());
-                    currentFtpFile = getFTPFile(client, currentPath);
-                }
-                if (!currentFtpFile.isDirectory()) {
-                    throw new NotDirectoryException(path.path());
-                }
+            // either zero or one, check the parent to see if the path exists and is a directory
+            FTPPath currentPath = path;
+            FTPFile currentFtpFile = getFTPFile(client, currentPath);
+            while (currentFtpFile.isSymbolicLink()) {
+                currentPath = path.resolve(currentFtpFile.getLink());
+                currentFtpFile = getFTPFile(client, currentPath);
+            }
+            if (!currentFtpFile.isDirectory()) {
+                throw new NotDirectoryException(path.path());
             }
 
-            return children;
+            return new Children(children, null, Children::isNotCurrentOrParentDirectory);
         }
 
         @Override
@@ -180,4 +238,138 @@ abstract class FTPFileStrategy {
             return ftpFile.getLink() == null ? null : ftpFile;
         }
     }
+
+    private static final class MLSx extends FTPFileStrategy {
+
+        private final FTPFileStrategy listStrategy;
+
+        private MLSx(FTPFileStrategy listStrategy) {
+            this.listStrategy = listStrategy;
+        }
+
+        @Override
+        Children getChildren(FTPClientPool.Client client, FTPPath path) throws IOException {
+
+            FTPClientPool.Client.Listing listing = client.mlistDirIterator(path.path());
+
+            if (!listing.isStarted()) {
+                listing.close();
+                // MLSD failed; find out whether the path does not exist or is not a directory
+                FTPFile ftpFile = getFTPFile(client, path);
+                if (!ftpFile.isDirectory() && !ftpFile.isSymbolicLink()) {
+                    throw new NotDirectoryException(path.path());
+                }
+                // a directory that cannot be listed using MLSD, or a link; let the listing handle it
+                return listStrategy.getChildren(client, path);
+            }
+
+            return new Children(Collections.<FTPFile>emptyList(), listing,
+                    ftpFile -> !isCurrentOrParentDirectory(ftpFile) && Children.isNotCurrentOrParentDirectory(ftpFile));
+        }
+
+        private boolean isCurrentOrParentDirectory(FTPFile ftpFile) {
+            String facts = getFacts(ftpFile);
+            return facts.contains("type=cdir;") || facts.contains("type=pdir;");
+        }
+
+        @Override
+        FTPFile getFTPFile(FTPClientPool.Client client, FTPPath path) throws IOException {
+            // MLST only needs the control connection, instead of listing the path or its parent
+            FTPFile ftpFile = client.mlistFile(path.path());
+            if (isPossibleSymbolicLink(ftpFile)) {
+                // MLST has no standard way of reporting symbolic links and their targets, so use the listing instead
+                return listStrategy.getFTPFile(client, path);
+            }
+            return ftpFile;
+        }
+
+        @Override
+        Map<String, FTPFile> getFTPFiles(FTPClientPool.Client client, Collection<String> paths) throws IOException {
+            Map<String, FTPFile> ftpFiles = client.mlistFiles(paths);
+            ftpFiles.values().removeIf(this::isPossibleSymbolicLink);
+            return ftpFiles;
+        }
+
+        private boolean isPossibleSymbolicLink(FTPFile ftpFile) {
+            if (ftpFile.getType() == FTPFile.UNKNOWN_TYPE) {
+                return true;
+            }
+            // some servers report links using a type fact like OS.unix=slink:target or OS.unix=symlink
+            String facts = getFacts(ftpFile);
+            return facts.contains("slink") || facts.contains("symlink");
+        }
+
+        private String getFacts(FTPFile ftpFile) {
+            // the raw listing is the list of facts, followed by a space and the file name
+            String rawListing = ftpFile.getRawListing();
+            if (rawListing == null) {
+                return "";
+            }
+            int index = rawListing.indexOf(' ');
+            return (index == -1 ? rawListing : rawListing.substring(0, index)).toLowerCase(Locale.ENGLISH);
+        }
+
+        @Override
+        FTPFile getLink(FTPClientPool.Client client, FTPFile ftpFile, FTPPath path) throws IOException {
+            return listStrategy.getLink(client, ftpFile, path);
+        }
+    }
+
+    private static void closeOnError(FTPClientPool.Client.Listing listing, Exception error) {
+        try {
+            listing.close();
+        } catch (IOException e) {
+            error.addSuppressed(e);
+        }
+    }
+
+    /**
+     * The children of a directory. Entries that were read to find out whether or not the path is a directory are
+     * returned first, followed by the entries that are still to be read from the listing.
+     */
+    static final class Children implements Closeable {
+
+        private final Iterator<FTPFile> readEntries;
+        private final FTPClientPool.Client.Listing listing;
+        private final FTPFileFilter filter;
+
+        Children(List<FTPFile> readEntries, FTPClientPool.Client.Listing listing, FTPFileFilter filter) {
+            this.readEntries = readEntries.iterator();
+            this.listing = listing;
+            this.filter = filter;
+        }
+
+        /**
+         * Returns the next child.
+         *
+         * @return The next child, or {@code null} if there are no more children.
+         * @throws IOException If the listing could not be read.
+         */
+        FTPFile next() throws IOException {
+            if (readEntries.hasNext()) {
+                return readEntries.next();
+            }
+            if (listing != null) {
+                FTPFile ftpFile;
+                while ((ftpFile = listing.next()) != null) {
+                    if (filter.accept(ftpFile)) {
+                        return ftpFile;
+                    }
+                }
+            }
+            return null;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (listing != null) {
+                listing.close();
+            }
+        }
+
+        private static boolean isNotCurrentOrParentDirectory(FTPFile ftpFile) {
+            String fileName = FTPFileSystem.getFileName(ftpFile);
+            return !FTPFileSystem.CURRENT_DIR.equals(fileName) && !FTPFileSystem.PARENT_DIR.equals(fileName);
+        }
+    }
 }
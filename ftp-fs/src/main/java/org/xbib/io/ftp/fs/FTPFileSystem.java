@@ -2,10 +2,13 @@ package org.xbib.io.ftp.fs;
 
 import org.xbib.io.ftp.client.FTPFile;
 
+import java.io.FilterInputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.URI;
+import java.nio.channels.FileChannel;
 import java.nio.channels.SeekableByteChannel;
 import java.nio.file.AccessDeniedException;
 import java.nio.file.AccessMode;
@@ -16,14 +19,17 @@ import java.nio.file.DirectoryStream.Filter;
 import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.FileStore;
 import java.nio.file.FileSystem;
+import java.nio.file.Files;
 import java.nio.file.LinkOption;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.NotLinkException;
 import java.nio.file.OpenOption;
 import java.nio.file.Path;
 import java.nio.file.PathMatcher;
+import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
 import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.FileAttribute;
 import java.nio.file.attribute.FileTime;
 import java.nio.file.attribute.GroupPrincipal;
@@ -32,17 +38,23 @@ import java.nio.file.attribute.PosixFilePermission;
 import java.nio.file.attribute.UserPrincipal;
 import java.nio.file.attribute.UserPrincipalLookupService;
 import java.time.ZonedDateTime;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.EnumSet;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.regex.Pattern;
 
 /**
@@ -72,6 +84,11 @@ class FTPFileSystem extends FileSystem {
     private final URI uri;
     private final String defaultDirectory;
     private final FTPFileStrategy ftpFileStrategy;
+    private final long prefetchedAttributesTimeout;
+    // when paths were last modified through this file system; attributes that paths carry from earlier listings are stale
+    private final Map<String, Long> modificationTimes = new ConcurrentHashMap<>();
+    private final AtomicLong lastModificationTimesPurge = new AtomicLong(System.nanoTime());
+    private final FTPFileCache cache;
     private final AtomicBoolean open = new AtomicBoolean(true);
 
     FTPFileSystem(FTPFileSystemProvider provider, URI uri, FTPEnvironment env) throws IOException {
@@ -82,11 +99,21 @@ class FTPFileSystem extends FileSystem {
 
         this.clientPool = new FTPClientPool(uri.getHost(), uri.getPort(), env);
         this.uri = Objects.requireNonNull(uri);
+        this.prefetchedAttributesTimeout = TimeUnit.MILLISECONDS.toNanos(env.getPrefetchedAttributesTimeout());
+        this.cache = new FTPFileCache(env.getCacheTimeToLive(), env.getCacheNegativeTimeToLive(), env.getCacheMaxSize());
 
         try (FTPClientPool.Client client = clientPool.get()) {
             this.defaultDirectory = client.pwd();
 
             this.ftpFileStrategy = FTPFileStrategy.getInstance(client);
+        } catch (IOException e) {
+            // don't leave connections that are being created in the background behind
+            try {
+                clientPool.close();
+            } catch (IOException e2) {
+                e.addSuppressed(e2);
+            }
+            throw e;
         }
     }
 
@@ -108,6 +135,7 @@ class FTPFileSystem extends FileSystem {
     public void close() throws IOException {
         if (open.getAndSet(false)) {
             provider.removeFileSystem(uri);
+            cache.clear();
             clientPool.close();
         }
     }
@@ -176,6 +204,14 @@ class FTPFileSystem extends FileSystem {
         clientPool.keepAlive();
     }
 
+    long getCacheHitCount() {
+        return cache.hitCount();
+    }
+
+    long getCacheMissCount() {
+        return cache.missCount();
+    }
+
     boolean isSecure() {
         return clientPool.isSecure();
     }
@@ -236,6 +272,10 @@ class FTPFileSystem extends FileSystem {
     private InputStream newInputStream(FTPClientPool.Client client, FTPPath path, OpenOptions options) throws IOException {
         assert options.read;
 
+        if (options.deleteOnClose && tracksModifications()) {
+            invalidate(path);
+            return new InvalidatingInputStream(client.newInputStream(path.path(), options), path);
+        }
         return client.newInputStream(path.path(), options);
     }
 
@@ -268,7 +308,11 @@ class FTPFileSystem extends FileSystem {
             ftpFile = findFTPFile(client, path);
         }
 
+        invalidate(path);
         OutputStream out = client.newOutputStream(path.path(), options);
+        if (tracksModifications()) {
+            out = new InvalidatingOutputStream(out, path);
+        }
         return new FTPFileAndOutputStreamPair(ftpFile, out);
     }
 
@@ -297,11 +341,39 @@ class FTPFileSystem extends FileSystem {
     }
 
     DirectoryStream<Path> newDirectoryStream(final FTPPath path, Filter<? super Path> filter) throws IOException {
-        List<FTPFile> children;
-        try (FTPClientPool.Client client = clientPool.get()) {
-            children = ftpFileStrategy.getChildren(client, path);
+        String cacheKey = cacheKey(path);
+        List<FTPFile> cachedChildren = cache.getChildren(cacheKey);
+        if (cachedChildren != null) {
+            return new FTPPathDirectoryStream(path, new FTPFileStrategy.Children(cachedChildren, null, null), null, null, filter);
+        }
+
+        FTPClientPool.Client client = clientPool.getSpare();
+        if (client == null) {
+            // keeping the client for the duration of the stream could block other operations, so read all children now
+            List<FTPFile> children = new ArrayList<>();
+            try (FTPClientPool.Client client2 = clientPool.get();
+                 FTPFileStrategy.Children iterator = ftpFileStrategy.getChildren(client2, path)) {
+                FTPFile child;
+                while ((child = iterator.next()) != null) {
+                    children.add(child);
+                }
+            }
+            cache.putChildren(cacheKey, children);
+            return new FTPPathDirectoryStream(path, new FTPFileStrategy.Children(children, null, null), null, null, filter);
+        }
+        try {
+            FTPFileStrategy.Children children = ftpFileStrategy.getChildren(client, path);
+            // collect the children for the cache while they are being returned, unless there are too many
+            ChildCollector collector = cache.isEnabled() ? new ChildCollector(cacheKey) : null;
+            return new FTPPathDirectoryStream(path, children, client, collector, filter);
+        } catch (IOException | RuntimeException e) {
+            try {
+                client.close();
+            } catch (IOException e2) {
+                e.addSuppressed(e2);
+            }
+            throw e;
         }
-        return new FTPPathDirectoryStream(path, children, filter);
     }
 
     void createDirectory(FTPPath path, FileAttribute<?>... attrs) throws IOException {
@@ -309,7 +381,12 @@ class FTPFileSystem extends FileSystem {
             throw Messages.fileSystemProvider().unsupportedCreateFileAttribute(attrs[0].name());
         }
         try (FTPClientPool.Client client = clientPool.get()) {
-            client.mkdir(path.path());
+            invalidate(path);
+            try {
+                client.mkdir(path.path());
+            } finally {
+                invalidate(path);
+            }
         }
     }
 
@@ -317,7 +394,12 @@ class FTPFileSystem extends FileSystem {
         try (FTPClientPool.Client client = clientPool.get()) {
             FTPFile ftpFile = getFTPFile(client, path);
             boolean isDirectory = ftpFile.isDirectory();
-            client.delete(path.path(), isDirectory);
+            invalidate(path);
+            try {
+                client.delete(path.path(), isDirectory);
+            } finally {
+                invalidate(path);
+            }
         }
     }
 
@@ -356,44 +438,156 @@ class FTPFileSystem extends FileSystem {
             }
 
             FTPFile targetFtpFile = findFTPFile(client, target);
+            invalidate(target);
+            try {
+                if (targetFtpFile != null) {
+                    if (copyOptions.replaceExisting) {
+                        client.delete(target.path(), targetFtpFile.isDirectory());
+                    } else {
+                        throw new FileAlreadyExistsException(target.path());
+                    }
+                }
 
-            if (targetFtpFile != null) {
-                if (copyOptions.replaceExisting) {
-                    client.delete(target.path(), targetFtpFile.isDirectory());
+                if (sourcePair.ftpFile.isDirectory()) {
+                    client.mkdir(target.path());
                 } else {
-                    throw new FileAlreadyExistsException(target.path());
+                    try (FTPClientPool.Client client2 = clientPool.getOrCreate()) {
+                        copyFile(client, source, client2, target, copyOptions);
+                    }
                 }
+            } finally {
+                invalidate(target);
             }
+        }
+    }
+
+    void download(FTPPath source, Path target, CopyOption... options) throws IOException {
+        CopyOptions copyOptions = CopyOptions.forCopy(options);
+        boolean segmented = isSegmented(copyOptions);
+
+        FTPPathAndFilePair sourcePair;
+        long size = -1;
+        try (FTPClientPool.Client client = clientPool.get()) {
+            // Files.copy specifies that for links, the final target must be copied
+            sourcePair = toRealPath(client, source, true);
+            if (segmented && !sourcePair.ftpFile.isDirectory()) {
+                size = client.size(sourcePair.ftpPath.path());
+            }
+        }
 
-            if (sourcePair.ftpFile.isDirectory()) {
-                client.mkdir(target.path());
+        if (sourcePair.ftpFile.isDirectory()) {
+            if (copyOptions.replaceExisting) {
+                Files.deleteIfExists(target);
+            }
+            Files.createDirectory(target);
+            return;
+        }
+        if (!copyOptions.replaceExisting && Files.exists(target, LinkOption.NOFOLLOW_LINKS)) {
+            throw new FileAlreadyExistsException(target.toString());
+        }
+
+        // download next to the target, so an existing target is only replaced once the whole file has been received
+        Path temp = Files.createTempFile(target.toAbsolutePath().getParent(), target.getFileName().toString(), ".part");
+        try {
+            try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE)) {
+                if (segmented && size >= 2 * copyOptions.segmentedCopy.minSegmentSize()) {
+                    TransferOptions segmentOptions = CopyOptions.forCopy(FileType.binary(), FileStructure.FILE, FileTransferMode.STREAM);
+                    // fails unless the downloaded file has the expected size
+                    new SegmentedDownload(clientPool, sourcePair.ftpPath.path(), channel, size, segmentOptions, copyOptions.segmentedCopy)
+                            .run();
+                } else {
+                    try (FTPClientPool.Client client = clientPool.get()) {
+                        client.retrieveFile(sourcePair.ftpPath.path(), channel, copyOptions);
+                    }
+                }
+            }
+            if (copyOptions.replaceExisting) {
+                Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
             } else {
-                try (FTPClientPool.Client client2 = clientPool.getOrCreate()) {
-                    copyFile(client, source, client2, target, copyOptions);
+                // fails if the target has been created in the meantime, in which case it must be left alone
+                Files.move(temp, target);
+            }
+        } finally {
+            // don't leave a partial file behind, especially not one that already has the full size
+            Files.deleteIfExists(temp);
+        }
+    }
+
+    void upload(Path source, FTPPath target, CopyOption... options) throws IOException {
+        CopyOptions copyOptions = CopyOptions.forCopy(options);
+
+        // Files.copy specifies that for links, the final target must be copied
+        BasicFileAttributes sourceAttributes = Files.readAttributes(source, BasicFileAttributes.class);
+
+        try {
+            try (FTPClientPool.Client client = clientPool.get()) {
+                FTPFile targetFtpFile = findFTPFile(client, target);
+                invalidate(target);
+
+                if (targetFtpFile != null) {
+                    if (copyOptions.replaceExisting) {
+                        client.delete(target.path(), targetFtpFile.isDirectory());
+                    } else {
+                        throw new FileAlreadyExistsException(target.path());
+                    }
+                }
+
+                if (sourceAttributes.isDirectory()) {
+                    client.mkdir(target.path());
+                    return;
                 }
             }
+
+            OpenOptions outOptions = OpenOptions
+                    .forNewOutputStream(copyOptions.toOpenOptions(StandardOpenOption.WRITE, StandardOpenOption.CREATE));
+            try (FileChannel channel = FileChannel.open(source, StandardOpenOption.READ)) {
+                long size = channel.size();
+                if (isSegmented(copyOptions) && size >= 2 * copyOptions.segmentedCopy.minSegmentSize()) {
+                    TransferOptions segmentOptions = CopyOptions.forCopy(FileType.binary(), FileStructure.FILE, FileTransferMode.STREAM);
+                    new SegmentedUpload(clientPool, target.path(), channel, size, segmentOptions, outOptions.options,
+                            copyOptions.segmentedCopy).run();
+                } else {
+                    try (FTPClientPool.Client client = clientPool.get()) {
+                        client.storeFile(target.path(), channel, copyOptions, outOptions.options);
+                    }
+                }
+            }
+        } finally {
+            invalidate(target);
         }
     }
 
+    private static boolean isSegmented(CopyOptions options) {
+        // REST offsets are only meaningful for binary files in stream mode
+        return options.segmentedCopy != null
+                && (options.fileType == null || options.fileType.equals(FileType.binary()))
+                && (options.fileStructure == null || options.fileStructure == FileStructure.FILE)
+                && (options.fileTransferMode == null || options.fileTransferMode == FileTransferMode.STREAM);
+    }
+
     private void copyAcrossFileSystems(FTPClientPool.Client sourceClient, FTPPath source, FTPFile sourceFtpFile, FTPPath target, CopyOptions options)
             throws IOException {
 
         try (FTPClientPool.Client targetClient = target.getFileSystem().clientPool.getOrCreate()) {
 
-            FTPFile targetFtpFile = findFTPFile(targetClient, target);
+            FTPFile targetFtpFile = target.getFileSystem().findFTPFile(targetClient, target);
+            target.getFileSystem().invalidate(target);
+            try {
+                if (targetFtpFile != null) {
+                    if (options.replaceExisting) {
+                        targetClient.delete(target.path(), targetFtpFile.isDirectory());
+                    } else {
+                        throw new FileAlreadyExistsException(target.path());
+                    }
+                }
 
-            if (targetFtpFile != null) {
-                if (options.replaceExisting) {
-                    targetClient.delete(target.path(), targetFtpFile.isDirectory());
+                if (sourceFtpFile.isDirectory()) {
+                    sourceClient.mkdir(target.path());
                 } else {
-                    throw new FileAlreadyExistsException(target.path());
+                    copyFile(sourceClient, source, targetClient, target, options);
                 }
-            }
-
-            if (sourceFtpFile.isDirectory()) {
-                sourceClient.mkdir(target.path());
-            } else {
-                copyFile(sourceClient, source, targetClient, target, options);
+            } finally {
+                target.getFileSystem().invalidate(target);
             }
         }
     }
@@ -418,7 +612,12 @@ class FTPFileSystem extends FileSystem {
                     throw new IOException(FTPMessages.copyOfSymbolicLinksAcrossFileSystemsNotSupported());
                 }
                 copyAcrossFileSystems(client, source, ftpFile, target, copyOptions);
-                client.delete(source.path(), ftpFile.isDirectory());
+                invalidate(source);
+                try {
+                    client.delete(source.path(), ftpFile.isDirectory());
+                } finally {
+                    invalidate(source);
+                }
                 return;
             }
 
@@ -440,11 +639,18 @@ class FTPFileSystem extends FileSystem {
             }
 
             FTPFile targetFTPFile = findFTPFile(client, target);
-            if (copyOptions.replaceExisting && targetFTPFile != null) {
-                client.delete(target.path(), targetFTPFile.isDirectory());
-            }
+            invalidate(source);
+            invalidate(target);
+            try {
+                if (copyOptions.replaceExisting && targetFTPFile != null) {
+                    client.delete(target.path(), targetFTPFile.isDirectory());
+                }
 
-            client.rename(source.path(), target.path());
+                client.rename(source.path(), target.path());
+            } finally {
+                invalidate(source);
+                invalidate(target);
+            }
         }
     }
 
@@ -469,28 +675,22 @@ class FTPFileSystem extends FileSystem {
 
     boolean isHidden(FTPPath path) throws IOException {
         // call getFTPFile to check for existence
-        try (FTPClientPool.Client client = clientPool.get()) {
-            getFTPFile(client, path);
-        }
+        getFTPFile(path);
         String fileName = path.fileName();
         return !CURRENT_DIR.equals(fileName) && !PARENT_DIR.equals(fileName) && fileName.startsWith(".");
     }
 
     FileStore getFileStore(FTPPath path) throws IOException {
         // call getFTPFile to check existence of the path
-        try (FTPClientPool.Client client = clientPool.get()) {
-            getFTPFile(client, path);
-        }
+        getFTPFile(path);
         return fileStore;
     }
 
     void checkAccess(FTPPath path, AccessMode... modes) throws IOException {
-        try (FTPClientPool.Client client = clientPool.get()) {
-            FTPFile ftpFile = getFTPFile(client, path);
-            for (AccessMode mode : modes) {
-                if (!hasAccess(ftpFile, mode)) {
-                    throw new AccessDeniedException(path.path());
-                }
+        FTPFile ftpFile = getFTPFile(path);
+        for (AccessMode mode : modes) {
+            if (!hasAccess(ftpFile, mode)) {
+                throw new AccessDeniedException(path.path());
             }
         }
     }
@@ -510,13 +710,51 @@ class FTPFileSystem extends FileSystem {
 
     PosixFileAttributes readAttributes(FTPPath path, LinkOption... options) throws IOException {
         boolean followLinks = LinkOptionSupport.followLinks(options);
+        FTPFile prefetched = getPrefetchedFTPFile(path);
+        if (prefetched != null && !(followLinks && prefetched.isSymbolicLink())) {
+            // the path came from a directory listing that already returned its attributes
+            return new FTPPathFileAttributes(prefetched, null);
+        }
+        String cacheKey = cacheKey(path);
+        PosixFileAttributes attributes = cache.getAttributes(cacheKey, followLinks);
+        if (attributes != null) {
+            return attributes;
+        }
         try (FTPClientPool.Client client = clientPool.get()) {
             FTPPathAndFilePair pair = toRealPath(client, path, followLinks);
             ZonedDateTime lastModified = client.mdtm(pair.ftpPath.path());
             FTPFile link = followLinks ? null : getLink(client, pair.ftpFile, path);
             FTPFile ftpFile = link == null ? pair.ftpFile : link;
-            return new FTPPathFileAttributes(ftpFile, lastModified);
+            attributes = new FTPPathFileAttributes(ftpFile, lastModified);
         }
+        cache.putAttributes(cacheKey, followLinks, attributes);
+        return attributes;
+    }
+
+    Map<Path, BasicFileAttributes> readAttributes(Collection<FTPPath> paths) throws IOException {
+        Set<String> keys = new LinkedHashSet<>();
+        for (FTPPath path : paths) {
+            keys.add(cacheKey(path));
+        }
+        Map<String, FTPFile> ftpFiles;
+        try (FTPClientPool.Client client = clientPool.get()) {
+            ftpFiles = ftpFileStrategy.getFTPFiles(client, keys);
+        }
+        Map<Path, BasicFileAttributes> result = new LinkedHashMap<>();
+        for (FTPPath path : paths) {
+            FTPFile ftpFile = ftpFiles.get(cacheKey(path));
+            if (ftpFile != null) {
+                result.put(path, new FTPPathFileAttributes(ftpFile, null));
+                continue;
+            }
+            // not returned in bulk, e.g. a directory, a link or a path that does not exist
+            try {
+                result.put(path, readAttributes(path));
+            } catch (NoSuchFileException e) {
+                // leave out
+            }
+        }
+        return result;
     }
 
     Map<String, Object> readAttributes(FTPPath path, String attributes, LinkOption... options) throws IOException {
@@ -628,13 +866,40 @@ class FTPFileSystem extends FileSystem {
     }
 
     FTPFile getFTPFile(FTPPath path) throws IOException {
+        // check the cache first, to not even take a client if possible
+        FTPFile ftpFile = getCachedFTPFile(path);
+        if (ftpFile != null) {
+            return ftpFile;
+        }
         try (FTPClientPool.Client client = clientPool.get()) {
-            return getFTPFile(client, path);
+            return loadFTPFile(client, path);
         }
     }
 
     private FTPFile getFTPFile(FTPClientPool.Client client, FTPPath path) throws IOException {
-        return ftpFileStrategy.getFTPFile(client, path);
+        FTPFile ftpFile = getCachedFTPFile(path);
+        return ftpFile != null ? ftpFile : loadFTPFile(client, path);
+    }
+
+    private FTPFile getCachedFTPFile(FTPPath path) throws NoSuchFileException {
+        FTPPath absPath = toAbsolutePath(path).normalize();
+        if (cache.isAbsent(absPath.path(), absPath.parentPath(), absPath.fileName())) {
+            throw new NoSuchFileException(path.path());
+        }
+        return cache.getFTPFile(absPath.path());
+    }
+
+    private FTPFile loadFTPFile(FTPClientPool.Client client, FTPPath path) throws IOException {
+        String cacheKey = cacheKey(path);
+        FTPFile ftpFile;
+        try {
+            ftpFile = ftpFileStrategy.getFTPFile(client, path);
+        } catch (NoSuchFileException e) {
+            cache.putAbsent(cacheKey);
+            throw e;
+        }
+        cache.putFTPFile(cacheKey, ftpFile);
+        return ftpFile;
     }
 
     private FTPFile findFTPFile(FTPClientPool.Client client, FTPPath path) throws IOException {
@@ -649,6 +914,62 @@ class FTPFileSystem extends FileSystem {
         return ftpFileStrategy.getLink(client, ftpFile, path);
     }
 
+    private String cacheKey(FTPPath path) {
+        return toAbsolutePath(path).normalize().path();
+    }
+
+    private boolean tracksModifications() {
+        return cache.isEnabled() || prefetchedAttributesTimeout > 0;
+    }
+
+    /**
+     * Removes all cached information about a path that is modified, and about its parent.
+     * Attributes that the path and its descendants carry from earlier directory listings are no longer used either.
+     * This is done both before and after the modification, as concurrent readers may cache the old state while it is being made.
+     */
+    private void invalidate(FTPPath path) {
+        if (!tracksModifications()) {
+            return;
+        }
+        FTPPath absPath = toAbsolutePath(path).normalize();
+        if (cache.isEnabled()) {
+            cache.invalidate(absPath.path(), absPath.parentPath());
+        }
+        if (prefetchedAttributesTimeout > 0) {
+            recordModification(absPath.path());
+        }
+    }
+
+    private void recordModification(String path) {
+        long now = System.nanoTime();
+        modificationTimes.put(path, now);
+        long lastPurge = lastModificationTimesPurge.get();
+        if (now - lastPurge >= prefetchedAttributesTimeout && lastModificationTimesPurge.compareAndSet(lastPurge, now)) {
+            // older modifications no longer matter, as attributes of that age are not used anyway
+            modificationTimes.values().removeIf(time -> now - time >= prefetchedAttributesTimeout);
+        }
+    }
+
+    /**
+     * Returns the FTP file that a path carries from a directory listing, unless it is too old, or the path or one of its parents
+     * has been modified through this file system since the listing.
+     */
+    private FTPFile getPrefetchedFTPFile(FTPPath path) {
+        FTPFile ftpFile = path.getFTPFile(prefetchedAttributesTimeout);
+        if (ftpFile == null) {
+            return null;
+        }
+        long timestamp = path.getFTPFileTimestamp();
+        String absPath = cacheKey(path);
+        for (int index = absPath.length(); index > 0; index = absPath.lastIndexOf('/', index - 1)) {
+            Long modificationTime = modificationTimes.get(absPath.substring(0, index));
+            if (modificationTime != null && modificationTime - timestamp >= 0) {
+                return null;
+            }
+        }
+        return ftpFile;
+    }
+
     long getTotalSpace() {
         // FTPClient does not support retrieving the total space
         return Long.MAX_VALUE;
@@ -685,26 +1006,136 @@ class FTPFileSystem extends FileSystem {
         }
     }
 
-    private static final class FTPPathDirectoryStream extends AbstractDirectoryStream<Path> {
+    private final class FTPPathDirectoryStream extends AbstractDirectoryStream<Path> {
 
         private final FTPPath path;
-        private final List<FTPFile> files;
-        private Iterator<FTPFile> iterator;
+        private final FTPFileStrategy.Children children;
+        private FTPClientPool.Client client;
+        private ChildCollector collector;
 
-        private FTPPathDirectoryStream(FTPPath path, List<FTPFile> files, Filter<? super Path> filter) {
+        private FTPPathDirectoryStream(FTPPath path, FTPFileStrategy.Children children, FTPClientPool.Client client,
+                                       ChildCollector collector, Filter<? super Path> filter) {
             super(filter);
             this.path = path;
-            this.files = files;
+            this.children = children;
+            this.client = client;
+            this.collector = collector;
+        }
+
+        @Override
+        protected synchronized Path getNext() throws IOException {
+            FTPFile child = children.next();
+            if (child == null) {
+                if (collector != null) {
+                    collector.complete();
+                    collector = null;
+                }
+                // give the client back as soon as possible
+                release();
+                return null;
+            }
+            if (collector != null && !collector.add(child)) {
+                collector = null;
+            }
+            return path.resolve(getFileName(child)).withFTPFile(child);
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            super.close();
+            // a listing that was not read completely is not cached
+            collector = null;
+            release();
+        }
+
+        private void release() throws IOException {
+            if (client == null) {
+                return;
+            }
+            FTPClientPool.Client toRelease = client;
+            client = null;
+            try {
+                children.close();
+            } finally {
+                toRelease.close();
+            }
+        }
+    }
+
+    /**
+     * Collects the children of a directory while they are being streamed, so the listing can be cached when it is complete.
+     * Collecting stops if the listing becomes too large for the cache.
+     */
+    private final class ChildCollector {
+
+        private final String cacheKey;
+        private final List<FTPFile> children = new ArrayList<>();
+
+        private ChildCollector(String cacheKey) {
+            this.cacheKey = cacheKey;
+        }
+
+        private boolean add(FTPFile child) {
+            if (children.size() >= cache.maxSize()) {
+                return false;
+            }
+            children.add(child);
+            return true;
+        }
+
+        private void complete() {
+            cache.putChildren(cacheKey, children);
+        }
+    }
+
+    /**
+     * An input stream that invalidates cached information about the file it reads when it is closed, for files that are deleted on close.
+     */
+    private final class InvalidatingInputStream extends FilterInputStream {
+
+        private final FTPPath path;
+
+        private InvalidatingInputStream(InputStream in, FTPPath path) {
+            super(in);
+            this.path = path;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                super.close();
+            } finally {
+                invalidate(path);
+            }
+        }
+    }
+
+    /**
+     * An output stream that invalidates cached information about the file it writes when it is closed.
+     */
+    private final class InvalidatingOutputStream extends FilterOutputStream {
+
+        private final FTPPath path;
+
+        private InvalidatingOutputStream(OutputStream out, FTPPath path) {
+            super(out);
+            this.path = path;
         }
 
         @Override
-        protected void setupIteration() {
-            iterator = files.iterator();
+        public void write(byte[] b, int off, int len) throws IOException {
+            // FilterOutputStream writes a single byte at a time
+            out.write(b, off, len);
         }
 
         @Override
-        protected Path getNext() throws IOException {
-            return iterator.hasNext() ? path.resolve(getFileName(iterator.next())) : null;
+        public void close() throws IOException {
+            try {
+                // FilterOutputStream.close also flushes, which is not necessary as out is closed directly
+                out.close();
+            } finally {
+                invalidate(path);
+            }
         }
     }
 
@@ -31,7 +31,10 @@ import java.nio.file.attribute.PosixFileAttributes;
 import java.nio.file.attribute.PosixFilePermission;
 import java.nio.file.attribute.UserPrincipal;
 import java.nio.file.spi.FileSystemProvider;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Objects;
 import java.util.Set;
@@ -53,6 +56,8 @@ public class FTPFileSystemProvider extends FileSystemProvider {
 
     /**
      * Send a keep-alive signal for an FTP file system.
+     * The signal is sent over each idle client connection in turn; connections that are in use are left alone.
+     * To send keep-alive signals automatically, use {@link FTPEnvironment#withClientPoolKeepAliveInterval(long)}.
      *
      * @param fs The FTP file system to send a keep-alive signal for.
      * @throws ProviderMismatchException If the given file system is not an FTP file system
@@ -62,6 +67,73 @@ public class FTPFileSystemProvider extends FileSystemProvider {
     public static void keepAlive(FileSystem fs) throws IOException {
         if (fs instanceof FTPFileSystem) {
             ((FTPFileSystem) fs).keepAlive();
+            return;
+        }
+        throw new ProviderMismatchException();
+    }
+
+    /**
+     * Reads the basic attributes of several files of an FTP file system at once.
+     * Instead of waiting for the reply to each command, the commands for all files are sent over one client connection
+     * without waiting; see {@link org.xbib.io.ftp.client.FTPCommandPipeline}.
+     * <p>
+     * If the server supports the {@code MLST} command, it is used for all files. Otherwise regular files are described using
+     * the {@code SIZE} and {@code MDTM} commands. Files that cannot be described this way, such as directories, links
+     * (if {@code MLST} is used) and files that do not exist, are looked up one by one as if by
+     * {@link #readAttributes(Path, Class, LinkOption...)}. Links are followed. Attributes that are returned by the bulk
+     * commands are not cached.
+     *
+     * @param fs    The FTP file system to read attributes from.
+     * @param paths The paths to read attributes for. They must all be associated with the given file system.
+     * @return The attributes by path, in the iteration order of the given paths. Paths that do not exist are not contained.
+     * @throws ProviderMismatchException If the given file system is not an FTP file system
+     * (not created by an {@code FTPFileSystemProvider}), or if one of the paths is not associated with it.
+     * @throws IOException               If an I/O error occurred.
+     */
+    public static Map<Path, BasicFileAttributes> readAttributes(FileSystem fs, Collection<? extends Path> paths) throws IOException {
+        if (fs instanceof FTPFileSystem) {
+            List<FTPPath> ftpPaths = new ArrayList<>(paths.size());
+            for (Path path : paths) {
+                FTPPath ftpPath = toFTPPath(path);
+                if (ftpPath.getFileSystem() != fs) {
+                    throw new ProviderMismatchException();
+                }
+                ftpPaths.add(ftpPath);
+            }
+            return ((FTPFileSystem) fs).readAttributes(ftpPaths);
+        }
+        throw new ProviderMismatchException();
+    }
+
+    /**
+     * Returns the number of times information about a file or directory was found in the cache of an FTP file system.
+     *
+     * @param fs The FTP file system to return the number of cache hits for.
+     * @return The number of cache hits for the given file system.
+     * @throws ProviderMismatchException If the given file system is not an FTP file system
+     * (not created by an {@code FTPFileSystemProvider}).
+     * @see FTPEnvironment#withCacheTimeToLive(long)
+     */
+    public static long getCacheHitCount(FileSystem fs) {
+        if (fs instanceof FTPFileSystem) {
+            return ((FTPFileSystem) fs).getCacheHitCount();
+        }
+        throw new ProviderMismatchException();
+    }
+
+    /**
+     * Returns the number of times information about a file or directory was not found in the cache of an FTP file system,
+     * and had to be retrieved from the server. If the cache is disabled, this is always {@code 0}.
+     *
+     * @param fs The FTP file system to return the number of cache misses for.
+     * @return The number of cache misses for the given file system.
+     * @throws ProviderMismatchException If the given file system is not an FTP file system
+     * (not created by an {@code FTPFileSystemProvider}).
+     * @see FTPEnvironment#withCacheTimeToLive(long)
+     */
+    public static long getCacheMissCount(FileSystem fs) {
+        if (fs instanceof FTPFileSystem) {
+            return ((FTPFileSystem) fs).getCacheMissCount();
         }
         throw new ProviderMismatchException();
     }
@@ -343,10 +415,22 @@ public class FTPFileSystemProvider extends FileSystemProvider {
      * </ul>
      * <p>
      * {@link StandardCopyOption#COPY_ATTRIBUTES} and {@link StandardCopyOption#ATOMIC_MOVE} are not supported though.
+     * <p>
+     * Unlike specified by {@link FileSystemProvider#copy(Path, Path, CopyOption...)}, either the source or the target
+     * may also be associated with another provider, e.g. a local file. Such a file is downloaded or uploaded, and
+     * {@link SegmentedCopy} can be used to transfer it over several connections in parallel.
      */
     @Override
     public void copy(Path source, Path target, CopyOption... options) throws IOException {
-        toFTPPath(source).copy(toFTPPath(target), options);
+        Objects.requireNonNull(source);
+        Objects.requireNonNull(target);
+        if (!(source instanceof FTPPath)) {
+            toFTPPath(target).upload(source, options);
+        } else if (target instanceof FTPPath) {
+            ((FTPPath) source).copy((FTPPath) target, options);
+        } else {
+            ((FTPPath) source).download(target, options);
+        }
     }
 
     /**
@@ -21,4 +21,20 @@ final class FTPMessages {
     public static String copyOfSymbolicLinksAcrossFileSystemsNotSupported() {
         return getMessage("copyOfSymbolicLinksAcrossFileSystemsNotSupported");
     }
+
+    public static String clientConnectionWaitTimeoutExpired(long timeout) {
+        return String.format(getMessage("clientConnectionWaitTimeoutExpired"), timeout);
+    }
+
+    public static String clientPoolClosed() {
+        return getMessage("clientPoolClosed");
+    }
+
+    public static String incompleteDownload(String path, long offset, long expected, long actual) {
+        return String.format(getMessage("incompleteDownload"), path, offset, expected, actual);
+    }
+
+    public static String incompleteUpload(String path, long expected, long actual) {
+        return String.format(getMessage("incompleteUpload"), path, expected, actual);
+    }
 }
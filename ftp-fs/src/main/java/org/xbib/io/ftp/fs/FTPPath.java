@@ -1,5 +1,7 @@
 package org.xbib.io.ftp.fs;
 
+import org.xbib.io.ftp.client.FTPFile;
+
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
@@ -30,14 +32,53 @@ class FTPPath extends SimpleAbstractPath {
 
     private final FTPFileSystem fs;
 
+    // attributes from the directory listing that returned this path, if any
+    private final FTPFile ftpFile;
+    private final long ftpFileTimestamp;
+
     FTPPath(FTPFileSystem fs, String path) {
         super(path);
         this.fs = Objects.requireNonNull(fs);
+        this.ftpFile = null;
+        this.ftpFileTimestamp = 0L;
     }
 
     private FTPPath(FTPFileSystem fs, String path, boolean normalized) {
         super(path, normalized);
         this.fs = Objects.requireNonNull(fs);
+        this.ftpFile = null;
+        this.ftpFileTimestamp = 0L;
+    }
+
+    private FTPPath(FTPFileSystem fs, String path, FTPFile ftpFile) {
+        super(path, true);
+        this.fs = Objects.requireNonNull(fs);
+        this.ftpFile = Objects.requireNonNull(ftpFile);
+        this.ftpFileTimestamp = System.nanoTime();
+    }
+
+    /**
+     * Returns a copy of this path that carries the given FTP file, as returned by a directory listing.
+     */
+    FTPPath withFTPFile(FTPFile ftpFile) {
+        return new FTPPath(fs, path(), ftpFile);
+    }
+
+    /**
+     * Returns the FTP file carried by this path, if it is not older than the given timeout.
+     *
+     * @param timeout The timeout, in nanoseconds.
+     * @return The FTP file carried by this path, or {@code null} if this path carries no FTP file or it is too old.
+     */
+    FTPFile getFTPFile(long timeout) {
+        return ftpFile != null && System.nanoTime() - ftpFileTimestamp < timeout ? ftpFile : null;
+    }
+
+    /**
+     * Returns when the FTP file carried by this path was retrieved, as returned by {@link System#nanoTime()}.
+     */
+    long getFTPFileTimestamp() {
+        return ftpFileTimestamp;
     }
 
     @Override
@@ -162,6 +203,14 @@ class FTPPath extends SimpleAbstractPath {
         fs.copy(this, target, options);
     }
 
+    void download(Path target, CopyOption... options) throws IOException {
+        fs.download(this, target, options);
+    }
+
+    void upload(Path source, CopyOption... options) throws IOException {
+        fs.upload(source, this, options);
+    }
+
     void move(FTPPath target, CopyOption... options) throws IOException {
         fs.move(this, target, options);
     }
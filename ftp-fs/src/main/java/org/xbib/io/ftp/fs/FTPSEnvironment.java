@@ -1,5 +1,6 @@
 package org.xbib.io.ftp.fs;
 
+import org.xbib.io.ftp.client.CopyStreamEngine;
 import org.xbib.io.ftp.client.FTPClient;
 import org.xbib.io.ftp.client.FTPClientConfig;
 import org.xbib.io.ftp.client.FTPSClient;
@@ -188,6 +189,12 @@ public class FTPSEnvironment extends FTPEnvironment {
         return this;
     }
 
+    @Override
+    public FTPSEnvironment withPreferBlockTransferMode(boolean prefer) {
+        super.withPreferBlockTransferMode(prefer);
+        return this;
+    }
+
     @Override
     public FTPSEnvironment withConnectionMode(ConnectionMode connectionMode) {
         super.withConnectionMode(connectionMode);
@@ -236,6 +243,18 @@ public class FTPSEnvironment extends FTPEnvironment {
         return this;
     }
 
+    @Override
+    public FTPSEnvironment withCopyStreamEngine(CopyStreamEngine engine) {
+        super.withCopyStreamEngine(engine);
+        return this;
+    }
+
+    @Override
+    public FTPSEnvironment withDeflateLevel(int level) {
+        super.withDeflateLevel(level);
+        return this;
+    }
+
     @Override
     public FTPSEnvironment withClientConfig(FTPClientConfig clientConfig) {
         super.withClientConfig(clientConfig);
@@ -278,6 +297,72 @@ public class FTPSEnvironment extends FTPEnvironment {
         return this;
     }
 
+    @Override
+    public FTPSEnvironment withClientPoolMinIdle(int minIdle) {
+        super.withClientPoolMinIdle(minIdle);
+        return this;
+    }
+
+    @Override
+    public FTPSEnvironment withClientPoolMaxIdle(int maxIdle) {
+        super.withClientPoolMaxIdle(maxIdle);
+        return this;
+    }
+
+    @Override
+    public FTPSEnvironment withClientPoolIdleTimeout(long timeout) {
+        super.withClientPoolIdleTimeout(timeout);
+        return this;
+    }
+
+    @Override
+    public FTPSEnvironment withClientPoolMaxWaitTime(long timeout) {
+        super.withClientPoolMaxWaitTime(timeout);
+        return this;
+    }
+
+    @Override
+    public FTPSEnvironment withClientPoolKeepAliveInterval(long interval) {
+        super.withClientPoolKeepAliveInterval(interval);
+        return this;
+    }
+
+    @Override
+    public FTPSEnvironment withClientPoolKeepAliveListener(KeepAliveListener listener) {
+        super.withClientPoolKeepAliveListener(listener);
+        return this;
+    }
+
+    @Override
+    public FTPSEnvironment withClientValidationInterval(long interval) {
+        super.withClientValidationInterval(interval);
+        return this;
+    }
+
+    @Override
+    public FTPSEnvironment withPrefetchedAttributesTimeout(long timeout) {
+        super.withPrefetchedAttributesTimeout(timeout);
+        return this;
+    }
+
+    @Override
+    public FTPSEnvironment withCacheTimeToLive(long timeToLive) {
+        super.withCacheTimeToLive(timeToLive);
+        return this;
+    }
+
+    @Override
+    public FTPSEnvironment withCacheNegativeTimeToLive(long timeToLive) {
+        super.withCacheNegativeTimeToLive(timeToLive);
+        return this;
+    }
+
+    @Override
+    public FTPSEnvironment withCacheMaxSize(int maxSize) {
+        super.withCacheMaxSize(maxSize);
+        return this;
+    }
+
     @Override
     public FTPSEnvironment withFileSystemExceptionFactory(FileSystemExceptionFactory factory) {
         super.withFileSystemExceptionFactory(factory);
@@ -22,7 +22,12 @@ public enum FileTransferMode implements OpenOption, CopyOption {
     /**
      * Indicate that files are to be transfered as FTP compressed data.
      */
-    COMPRESSED(FTP.COMPRESSED_TRANSFER_MODE),;
+    COMPRESSED(FTP.COMPRESSED_TRANSFER_MODE),
+    /**
+     * Indicates that files are to be transfered as zlib compressed streams of bytes ({@code MODE Z}).
+     * The server must support this; see {@link FTPEnvironment#withDeflateLevel(int)} for setting the compression level.
+     */
+    DEFLATE(FTP.DEFLATE_TRANSFER_MODE),;
 
     private final int mode;
 
@@ -0,0 +1,20 @@
+package org.xbib.io.ftp.fs;
+
+import java.io.IOException;
+
+/**
+ * A listener that is notified when a background keep-alive signal for a pooled client connection fails.
+ * Failed connections are disconnected and replaced by the pool; this listener only allows users to log or otherwise report the failure.
+ * Implementations are called from a background thread, and should therefore return quickly.
+ */
+public interface KeepAliveListener {
+
+    /**
+     * Called when sending a keep-alive signal over a pooled client connection failed.
+     *
+     * @param hostname  The host name of the FTP server the connection was made to.
+     * @param port      The port of the FTP server the connection was made to, or {@code -1} if the default port was used.
+     * @param exception The exception that caused the keep-alive signal to fail.
+     */
+    void keepAliveFailed(String hostname, int port, IOException exception);
+}
@@ -0,0 +1,128 @@
+package org.xbib.io.ftp.fs;
+
+import java.nio.file.CopyOption;
+import java.nio.file.Path;
+import java.nio.file.spi.FileSystemProvider;
+
+/**
+ * A copy option that downloads or uploads a file in several segments in parallel, each over its own client connection.
+ * This is useful if a single connection is limited by latency rather than by bandwidth.
+ * <p>
+ * When downloading, the file is split into byte ranges based on its size as reported by the server. Each range is retrieved
+ * using a {@code REST} command, and the transfer is aborted once the range has been received. The ranges are written into
+ * the target file at their positions.
+ * <p>
+ * When uploading, each range is stored using a {@code REST} command followed by {@code STOR}. Not all servers support this
+ * for uploads, so it is only done if the server announces {@code REST STREAM} and passes a probe that checks that a restarted
+ * upload overwrites the remote file in place. Otherwise the file is uploaded over a single connection.
+ * <p>
+ * A range that fails is retried, and afterwards it is checked that the entire file has been transferred.
+ * <p>
+ * Segments are only used when transferring a file in binary stream mode between an FTP path and a path of another file
+ * system provider, e.g. a local file. Because {@link java.nio.file.Files#copy(Path, Path, CopyOption...)} only delegates to
+ * a provider if both paths are associated with it, this option must be passed to
+ * {@link FileSystemProvider#copy(Path, Path, CopyOption...)} of the FTP file system provider directly:
+ * <pre>
+ * ftpPath.getFileSystem().provider().copy(ftpPath, localPath, SegmentedCopy.segments(4));
+ * ftpPath.getFileSystem().provider().copy(localPath, ftpPath, SegmentedCopy.segments(4));
+ * </pre>
+ * The number of connections used is limited by the connections that are available in the client pool; see
+ * {@link FTPEnvironment#withClientConnectionCount(int)}. Small files are not split into segments.
+ */
+public final class SegmentedCopy implements CopyOption {
+
+    private static final int DEFAULT_MAX_ATTEMPTS = 3;
+
+    /**
+     * The default minimum size of segments; smaller files are transferred in fewer segments.
+     */
+    static final long DEFAULT_MIN_SEGMENT_SIZE = 1024 * 1024;
+
+    private final int segmentCount;
+    private final int maxAttempts;
+    private final long minSegmentSize;
+
+    private SegmentedCopy(int segmentCount, int maxAttempts, long minSegmentSize) {
+        this.segmentCount = segmentCount;
+        this.maxAttempts = maxAttempts;
+        this.minSegmentSize = minSegmentSize;
+    }
+
+    /**
+     * Returns a copy option that transfers files in a number of segments. Each segment is attempted at most 3 times.
+     *
+     * @param segmentCount The maximum number of segments.
+     * @return A copy option that transfers files in the given number of segments.
+     * @throws IllegalArgumentException If the number of segments is not positive.
+     */
+    public static SegmentedCopy segments(int segmentCount) {
+        return segments(segmentCount, DEFAULT_MAX_ATTEMPTS);
+    }
+
+    /**
+     * Returns a copy option that transfers files in a number of segments.
+     *
+     * @param segmentCount The maximum number of segments.
+     * @param maxAttempts  The maximum number of times each segment is attempted.
+     * @return A copy option that transfers files in the given number of segments.
+     * @throws IllegalArgumentException If the number of segments or the maximum number of attempts is not positive.
+     */
+    public static SegmentedCopy segments(int segmentCount, int maxAttempts) {
+        if (segmentCount <= 0) {
+            throw new IllegalArgumentException(segmentCount + " <= 0");
+        }
+        if (maxAttempts <= 0) {
+            throw new IllegalArgumentException(maxAttempts + " <= 0");
+        }
+        return new SegmentedCopy(segmentCount, maxAttempts, DEFAULT_MIN_SEGMENT_SIZE);
+    }
+
+    /**
+     * Returns a copy of this option with a different minimum segment size. This allows small files to be split as well.
+     */
+    SegmentedCopy withMinSegmentSize(long minSegmentSize) {
+        if (minSegmentSize <= 0) {
+            throw new IllegalArgumentException(minSegmentSize + " <= 0");
+        }
+        return new SegmentedCopy(segmentCount, maxAttempts, minSegmentSize);
+    }
+
+    int segmentCount() {
+        return segmentCount;
+    }
+
+    int maxAttempts() {
+        return maxAttempts;
+    }
+
+    long minSegmentSize() {
+        return minSegmentSize;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) {
+            return true;
+        }
+        if (o == null || o.getClass() != getClass()) {
+            return false;
+        }
+        SegmentedCopy other = (SegmentedCopy) o;
+        return segmentCount == other.segmentCount
+                && maxAttempts == other.maxAttempts
+                && minSegmentSize == other.minSegmentSize;
+    }
+
+    @Override
+    public int hashCode() {
+        int hash = segmentCount;
+        hash = 31 * hash + maxAttempts;
+        hash = 31 * hash + Long.hashCode(minSegmentSize);
+        return hash;
+    }
+
+    @Override
+    public String toString() {
+        return getClass().getSimpleName() + ".segments(" + segmentCount + ", " + maxAttempts + ")";
+    }
+}
@@ -0,0 +1,37 @@
+package org.xbib.io.ftp.fs;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A download of a file in several segments, each of which is retrieved over its own client connection.
+ */
+final class SegmentedDownload extends SegmentedTransfer {
+
+    SegmentedDownload(FTPClientPool clientPool, String path, FileChannel channel, long size, TransferOptions options,
+                      SegmentedCopy segmentedCopy) {
+        super(clientPool, path, channel, size, 0, options, segmentedCopy, "ftp-segmented-download");
+    }
+
+    void run() throws IOException {
+        if (size > 0) {
+            // grow the file up front, so all segments can be written without growing it concurrently
+            channel.write(ByteBuffer.allocate(1), size - 1);
+        }
+
+        long received = transferSegments();
+        if (received != size || channel.size() != size) {
+            throw new IOException(FTPMessages.incompleteDownload(path, 0, size, received));
+        }
+    }
+
+    @Override
+    void transferSegment(FTPClientPool.Client client, long offset, long length, boolean last) throws IOException {
+        // retrieve the rest of the file for the last segment, so it does not need to be aborted
+        long count = client.retrieveFileRange(path, channel, offset, last ? -1 : length, options);
+        if (count != length) {
+            throw new IOException(FTPMessages.incompleteDownload(path, offset, length, count));
+        }
+    }
+}
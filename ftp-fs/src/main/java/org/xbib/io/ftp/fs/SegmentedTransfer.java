@@ -0,0 +1,233 @@
+package org.xbib.io.ftp.fs;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A transfer of a file in several segments, each of which is transferred over its own client connection.
+ * The calling thread transfers segments using a client that is taken from the pool as usual. Spare clients of the pool
+ * transfer segments in parallel, using threads that only live as long as the transfer.
+ * <p>
+ * Once a segment has failed too often, the segments that are still in progress are cancelled, instead of letting them
+ * complete for nothing. Their clients abort their transfers, so they can be returned to the pool.
+ */
+abstract class SegmentedTransfer {
+
+    final FTPClientPool clientPool;
+    final String path;
+    final FileChannel channel;
+    final long size;
+    final TransferOptions options;
+    private final String threadName;
+    private final int maxAttempts;
+
+    private final Queue<Segment> segments = new ConcurrentLinkedQueue<>();
+    private final Set<FTPClientPool.Client> activeClients = ConcurrentHashMap.newKeySet();
+    private final AtomicLong transferred = new AtomicLong();
+    private volatile boolean failed = false;
+
+    /**
+     * Creates a new transfer of the bytes from a start offset up to the size of a file.
+     */
+    SegmentedTransfer(FTPClientPool clientPool, String path, FileChannel channel, long size, long start, TransferOptions options,
+                      SegmentedCopy segmentedCopy, String threadName) {
+        this.clientPool = clientPool;
+        this.path = path;
+        this.channel = channel;
+        this.size = size;
+        this.options = options;
+        this.threadName = threadName;
+        this.maxAttempts = segmentedCopy.maxAttempts();
+
+        long remaining = size - start;
+        int segmentCount = (int) Math.max(1, Math.min(segmentedCopy.segmentCount(), remaining / segmentedCopy.minSegmentSize()));
+        long segmentSize = remaining / segmentCount;
+        for (int i = 0; i < segmentCount; i++) {
+            long offset = start + i * segmentSize;
+            boolean last = i == segmentCount - 1;
+            segments.add(new Segment(offset, last ? size - offset : segmentSize, last));
+        }
+    }
+
+    int segmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Transfers a single segment.
+     *
+     * @param client The client to use.
+     * @param offset The offset of the segment.
+     * @param length The length of the segment.
+     * @param last {@code true} if the segment is the last one, i.e. it ends at the end of the file.
+     * @throws IOException If the segment could not be transferred completely.
+     */
+    abstract void transferSegment(FTPClientPool.Client client, long offset, long length, boolean last) throws IOException;
+
+    /**
+     * Transfers all segments, and returns the total number of bytes transferred.
+     */
+    final long transferSegments() throws IOException {
+        List<FTPClientPool.Client> spareClients = new ArrayList<>();
+        try {
+            for (int i = 1; i < segments.size(); i++) {
+                FTPClientPool.Client client = clientPool.getSpare();
+                if (client == null) {
+                    break;
+                }
+                spareClients.add(client);
+            }
+        } catch (IOException e) {
+            closeAll(spareClients, e);
+            throw e;
+        }
+
+        ExecutorService executor = spareClients.isEmpty() ? null : Executors.newFixedThreadPool(spareClients.size(), r -> {
+            Thread thread = new Thread(r, threadName + "-" + path);
+            thread.setDaemon(true);
+            return thread;
+        });
+        List<Future<Void>> futures = new ArrayList<>(spareClients.size());
+        for (FTPClientPool.Client client : spareClients) {
+            futures.add(executor.submit(() -> {
+                transferSegments(client, true);
+                return null;
+            }));
+        }
+
+        IOException exception = null;
+        try {
+            transferSegments(clientPool.get(), false);
+        } catch (IOException e) {
+            exception = e;
+        } finally {
+            exception = await(futures, exception);
+            if (executor != null) {
+                executor.shutdown();
+            }
+        }
+        if (exception == null && !segments.isEmpty()) {
+            // segments that were given back by spare clients that could not be replaced
+            try {
+                transferSegments(clientPool.get(), false);
+            } catch (IOException e) {
+                exception = e;
+            }
+        }
+        if (exception != null) {
+            throw exception;
+        }
+        return transferred.get();
+    }
+
+    private void transferSegments(FTPClientPool.Client client, boolean spare) throws IOException {
+        try {
+            Segment segment;
+            while (!failed && (segment = segments.poll()) != null) {
+                activeClients.add(client);
+                try {
+                    transferSegment(client, segment.offset, segment.length, segment.last);
+                    transferred.addAndGet(segment.length);
+                } catch (IOException e) {
+                    if (failed) {
+                        // cancelled because another segment failed, which is reported instead
+                        return;
+                    }
+                    if (++segment.attempts >= maxAttempts) {
+                        fail(client);
+                        throw e;
+                    }
+                    segments.add(segment);
+                    // the connection may be broken, so let the pool validate it or replace it
+                    FTPClientPool.Client broken = client;
+                    client = null;
+                    activeClients.remove(broken);
+                    broken.close();
+                    client = spare ? clientPool.getSpare() : clientPool.get();
+                    if (client == null) {
+                        return;
+                    }
+                }
+            }
+        } finally {
+            if (client != null) {
+                activeClients.remove(client);
+                client.close();
+            }
+        }
+    }
+
+    private void fail(FTPClientPool.Client failedClient) {
+        failed = true;
+        for (FTPClientPool.Client client : activeClients) {
+            if (client != failedClient) {
+                client.cancelTransfer();
+            }
+        }
+    }
+
+    private IOException await(List<Future<Void>> futures, IOException exception) throws InterruptedIOException {
+        for (Future<Void> future : futures) {
+            try {
+                future.get();
+            } catch (InterruptedException e) {
+                fail(null);
+                Thread.currentThread().interrupt();
+
+                InterruptedIOException iioe = new InterruptedIOException(e.getMessage());
+                iioe.initCause(e);
+                throw iioe;
+            } catch (ExecutionException e) {
+                Throwable cause = e.getCause();
+                IOException ioe = cause instanceof IOException ? (IOException) cause : new IOException(cause);
+                exception = add(exception, ioe);
+            }
+        }
+        return exception;
+    }
+
+    private static void closeAll(List<FTPClientPool.Client> clients, IOException exception) {
+        for (FTPClientPool.Client client : clients) {
+            try {
+                client.close();
+            } catch (IOException e) {
+                exception.addSuppressed(e);
+            }
+        }
+    }
+
+    private static IOException add(IOException existing, IOException e) {
+        if (existing == null) {
+            return e;
+        }
+        existing.addSuppressed(e);
+        return existing;
+    }
+
+    private static final class Segment {
+
+        private final long offset;
+        private final long length;
+        private final boolean last;
+
+        private int attempts = 0;
+
+        private Segment(long offset, long length, boolean last) {
+            this.offset = offset;
+            this.length = length;
+            this.last = last;
+        }
+    }
+}
@@ -0,0 +1,68 @@
+package org.xbib.io.ftp.fs;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileSystemException;
+import java.nio.file.OpenOption;
+import java.util.Collection;
+
+/**
+ * An upload of a file in several segments, each of which is stored over its own client connection using {@code REST} and
+ * {@code STOR}.
+ * <p>
+ * Before any segments are stored in parallel, it is checked that the server actually supports this. It must announce
+ * {@code REST STREAM} in its {@code FEAT} reply, and it must pass a probe: the first bytes of the file are stored, and then
+ * a single byte in the middle of these is stored again using {@code REST}. Only if the remote file keeps its size, the
+ * server neither ignored the offset, nor truncated or appended to the file. Otherwise, the file is stored using a single
+ * stream. The segments cover the rest of the file, so the remote file is never truncated by a segment that starts at
+ * offset 0.
+ */
+final class SegmentedUpload extends SegmentedTransfer {
+
+    static final int PROBE_SIZE = 3;
+
+    private final Collection<? extends OpenOption> openOptions;
+
+    SegmentedUpload(FTPClientPool clientPool, String path, FileChannel channel, long size, TransferOptions options,
+                    Collection<? extends OpenOption> openOptions, SegmentedCopy segmentedCopy) {
+        super(clientPool, path, channel, size, PROBE_SIZE, options, segmentedCopy, "ftp-segmented-upload");
+        this.openOptions = openOptions;
+    }
+
+    void run() throws IOException {
+        try (FTPClientPool.Client client = clientPool.get()) {
+            if (!probe(client)) {
+                client.storeFile(path, channel, options, openOptions);
+                return;
+            }
+        }
+
+        long sent = transferSegments() + PROBE_SIZE;
+        long stored;
+        try (FTPClientPool.Client client = clientPool.get()) {
+            stored = client.size(path);
+        }
+        if (sent != size || stored != size) {
+            throw new IOException(FTPMessages.incompleteUpload(path, size, stored));
+        }
+    }
+
+    private boolean probe(FTPClientPool.Client client) throws IOException {
+        if (!client.hasFeature("REST", "STREAM")) {
+            return false;
+        }
+        client.storeFileRange(path, channel, 0, PROBE_SIZE, options, openOptions);
+        try {
+            client.storeFileRange(path, channel, 1, 1, options, openOptions);
+        } catch (FileSystemException e) {
+            // the REST command or the restarted STOR command was rejected
+            return false;
+        }
+        return client.size(path) == PROBE_SIZE;
+    }
+
+    @Override
+    void transferSegment(FTPClientPool.Client client, long offset, long length, boolean last) throws IOException {
+        client.storeFileRange(path, channel, offset, length, options, openOptions);
+    }
+}
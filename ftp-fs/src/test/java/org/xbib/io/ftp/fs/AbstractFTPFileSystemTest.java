@@ -15,6 +15,7 @@ import org.mockito.Mockito;
 import org.xbib.io.ftp.fs.server.ExtendedUnixFakeFileSystem;
 import org.xbib.io.ftp.fs.server.ListHiddenFilesCommandHandler;
 import org.xbib.io.ftp.fs.server.MDTMCommandHandler;
+import org.xbib.io.ftp.fs.server.SIZECommandHandler;
 import org.xbib.io.ftp.fs.server.SymbolicLinkEntry;
 
 import java.io.ByteArrayOutputStream;
@@ -75,8 +76,10 @@ public abstract class AbstractFTPFileSystemTest {
 
         unixFtpServer.setCommandHandler("LIST", new ListHiddenFilesCommandHandler(true));
         unixFtpServer.setCommandHandler("MDTM", new MDTMCommandHandler());
+        unixFtpServer.setCommandHandler("SIZE", new SIZECommandHandler());
         nonUnixFtpServer.setCommandHandler("LIST", new ListHiddenFilesCommandHandler(false));
         nonUnixFtpServer.setCommandHandler("MDTM", new MDTMCommandHandler());
+        nonUnixFtpServer.setCommandHandler("SIZE", new SIZECommandHandler());
 
         unixFtpServer.start();
         nonUnixFtpServer.start();
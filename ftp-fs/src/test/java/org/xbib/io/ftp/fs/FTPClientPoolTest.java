@@ -0,0 +1,368 @@
+package org.xbib.io.ftp.fs;
+
+import org.junit.After;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+import org.xbib.io.ftp.client.FTPClient;
+import org.xbib.io.ftp.client.ProtocolCommandEvent;
+import org.xbib.io.ftp.client.ProtocolCommandListener;
+
+import javax.net.SocketFactory;
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BooleanSupplier;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+@RunWith(Parameterized.class)
+public class FTPClientPoolTest extends AbstractFTPFileSystemTest {
+
+    private final List<FTPClientPool> pools = new ArrayList<>();
+
+    public FTPClientPoolTest(boolean useUnixFtpServer) {
+        super(useUnixFtpServer);
+    }
+
+    @Parameters(name = "Use UNIX FTP server: {0}")
+    public static List<Object[]> getParameters() {
+        Object[][] parameters = {
+                {true,},
+                {false,},
+        };
+        return Arrays.asList(parameters);
+    }
+
+    @After
+    public void closePools() throws IOException {
+        for (FTPClientPool pool : pools) {
+            pool.close();
+        }
+    }
+
+    private FTPClientPool createPool(RecordingEnvironment env) throws IOException {
+        FTPClientPool pool = new FTPClientPool(getURI().getHost(), getURI().getPort(), env);
+        pools.add(pool);
+        return pool;
+    }
+
+    // validation
+
+    @Test
+    public void testRecentlyUsedClientIsNotValidated() throws IOException {
+        RecordingEnvironment env = new RecordingEnvironment();
+        env.withClientValidationInterval(60000L);
+        FTPClientPool pool = createPool(env);
+
+        for (int i = 0; i < 3; i++) {
+            try (FTPClientPool.Client client = pool.get()) {
+                client.pwd();
+            }
+        }
+        assertEquals(0, env.noopCount.get());
+    }
+
+    @Test
+    public void testClientIsValidatedWithoutValidationInterval() throws IOException {
+        RecordingEnvironment env = new RecordingEnvironment();
+        FTPClientPool pool = createPool(env);
+
+        for (int i = 0; i < 3; i++) {
+            try (FTPClientPool.Client client = pool.get()) {
+                client.pwd();
+            }
+        }
+        assertEquals(3, env.noopCount.get());
+    }
+
+    @Test
+    public void testDeadClientIsReplacedWhenTaken() throws IOException {
+        RecordingEnvironment env = new RecordingEnvironment();
+        FTPClientPool pool = createPool(env);
+
+        FTPClientPool.Client first;
+        try (FTPClientPool.Client client = pool.get()) {
+            first = client;
+        }
+        env.killConnections();
+
+        try (FTPClientPool.Client client = pool.get()) {
+            assertNotSame(first, client);
+            client.pwd();
+        }
+        assertEquals(1, pool.getTotalCount());
+        assertEquals(1, pool.getIdleCount());
+        assertEquals(2, env.sockets.size());
+    }
+
+    @Test
+    public void testClientWithIOErrorIsValidated() throws IOException {
+        RecordingEnvironment env = new RecordingEnvironment();
+        env.withClientValidationInterval(60000L);
+        FTPClientPool pool = createPool(env);
+
+        FTPClientPool.Client first;
+        try (FTPClientPool.Client client = pool.get()) {
+            first = client;
+            env.killConnections();
+            try {
+                client.pwd();
+            } catch (IOException e) {
+                // expected, the connection is dead
+            }
+        }
+
+        // the validation interval has not passed, but the I/O error requires validation
+        try (FTPClientPool.Client client = pool.get()) {
+            assertNotSame(first, client);
+            client.pwd();
+        }
+        assertEquals(1, pool.getTotalCount());
+    }
+
+    // sizing
+
+    @Test
+    public void testConcurrentGetAndClose() throws Exception {
+        RecordingEnvironment env = new RecordingEnvironment();
+        env.withClientConnectionCount(3);
+        FTPClientPool pool = createPool(env);
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            AtomicInteger inUse = new AtomicInteger();
+            AtomicInteger maxInUse = new AtomicInteger();
+            for (int i = 0; i < 8; i++) {
+                futures.add(executor.submit(() -> {
+                    for (int j = 0; j < 25; j++) {
+                        try (FTPClientPool.Client client = pool.get()) {
+                            maxInUse.accumulateAndGet(inUse.incrementAndGet(), Math::max);
+                            client.pwd();
+                            inUse.decrementAndGet();
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+            assertTrue(maxInUse.get() <= 3);
+        } finally {
+            executor.shutdown();
+        }
+        assertEquals(3, pool.getTotalCount());
+        assertEquals(3, pool.getIdleCount());
+        assertEquals(3, env.sockets.size());
+    }
+
+    @Test
+    public void testGrowOnDemand() throws IOException {
+        RecordingEnvironment env = new RecordingEnvironment();
+        env.withClientConnectionCount(3)
+                .withClientPoolMinIdle(0)
+                .withClientPoolMaxWaitTime(100L);
+        FTPClientPool pool = createPool(env);
+        // one client is created up front
+        assertEquals(1, pool.getTotalCount());
+
+        List<FTPClientPool.Client> clients = new ArrayList<>();
+        try {
+            for (int i = 0; i < 3; i++) {
+                clients.add(pool.get());
+            }
+            assertEquals(3, pool.getTotalCount());
+            assertEquals(0, pool.getIdleCount());
+
+            try (FTPClientPool.Client client = pool.get()) {
+                fail("expected a timeout, got " + client);
+            } catch (IOException e) {
+                assertEquals(FTPMessages.clientConnectionWaitTimeoutExpired(100L), e.getMessage());
+            }
+        } finally {
+            for (FTPClientPool.Client client : clients) {
+                client.close();
+            }
+        }
+        assertEquals(3, pool.getIdleCount());
+    }
+
+    @Test
+    public void testShrinkToMaxIdle() throws IOException {
+        RecordingEnvironment env = new RecordingEnvironment();
+        env.withClientConnectionCount(3)
+                .withClientPoolMinIdle(0)
+                .withClientPoolMaxIdle(1);
+        FTPClientPool pool = createPool(env);
+
+        List<FTPClientPool.Client> clients = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            clients.add(pool.get());
+        }
+        for (FTPClientPool.Client client : clients) {
+            client.close();
+        }
+        assertEquals(1, pool.getTotalCount());
+        assertEquals(1, pool.getIdleCount());
+    }
+
+    @Test
+    public void testShrinkAfterIdleTimeout() throws Exception {
+        RecordingEnvironment env = new RecordingEnvironment();
+        env.withClientConnectionCount(3)
+                .withClientPoolMinIdle(1)
+                .withClientPoolIdleTimeout(100L);
+        FTPClientPool pool = createPool(env);
+
+        List<FTPClientPool.Client> clients = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            clients.add(pool.get());
+        }
+        for (FTPClientPool.Client client : clients) {
+            client.close();
+        }
+        assertEquals(3, pool.getIdleCount());
+
+        // idle clients are evicted periodically, but at least one second apart
+        waitUntil(() -> pool.getTotalCount() == 1, 5000L);
+        assertEquals(1, pool.getIdleCount());
+        try (FTPClientPool.Client client = pool.get()) {
+            client.pwd();
+        }
+    }
+
+    // keep-alive
+
+    @Test
+    public void testIdleClientsAreKeptAlive() throws Exception {
+        RecordingEnvironment env = new RecordingEnvironment();
+        env.withClientPoolKeepAliveInterval(100L);
+        FTPClientPool pool = createPool(env);
+
+        // keep-alive signals are sent periodically, but at least one second apart
+        waitUntil(() -> env.noopCount.get() >= 2, 5000L);
+        assertEquals(1, pool.getTotalCount());
+        assertEquals(1, env.sockets.size());
+    }
+
+    @Test
+    public void testDeadIdleClientIsReplaced() throws Exception {
+        List<IOException> failures = new CopyOnWriteArrayList<>();
+        RecordingEnvironment env = new RecordingEnvironment();
+        env.withClientPoolKeepAliveInterval(100L)
+                .withClientPoolKeepAliveListener((hostname, port, exception) -> failures.add(exception));
+        FTPClientPool pool = createPool(env);
+        env.killConnections();
+
+        waitUntil(() -> !failures.isEmpty(), 5000L);
+        assertEquals(1, failures.size());
+        // the dead client is replaced before it is needed
+        waitUntil(() -> env.sockets.size() == 2 && pool.getIdleCount() == 1, 5000L);
+        assertEquals(1, pool.getTotalCount());
+        try (FTPClientPool.Client client = pool.get()) {
+            client.pwd();
+        }
+    }
+
+    private static void waitUntil(BooleanSupplier condition, long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        while (!condition.getAsBoolean()) {
+            if (System.currentTimeMillis() > deadline) {
+                fail("condition not met within " + timeout + " ms");
+            }
+            Thread.sleep(50L);
+        }
+    }
+
+    /**
+     * An environment that keeps track of the control connections that pools create, and counts the {@code NOOP} commands they send.
+     */
+    static final class RecordingEnvironment extends FTPEnvironment {
+
+        final List<Socket> sockets = new CopyOnWriteArrayList<>();
+        final AtomicInteger noopCount = new AtomicInteger();
+
+        RecordingEnvironment() {
+            putAll(createEnv());
+            withSocketFactory(new RecordingSocketFactory(sockets));
+        }
+
+        @Override
+        FTPClient createClient(String hostname, int port) throws IOException {
+            FTPClient client = super.createClient(hostname, port);
+            client.addProtocolCommandListener(new ProtocolCommandListener() {
+                @Override
+                public void protocolCommandSent(ProtocolCommandEvent event) {
+                    if ("NOOP".equals(event.getCommand())) {
+                        noopCount.incrementAndGet();
+                    }
+                }
+
+                @Override
+                public void protocolReplyReceived(ProtocolCommandEvent event) {
+                    // not needed
+                }
+            });
+            return client;
+        }
+
+        /**
+         * Closes all control connections behind the back of their clients, like a server or a router that drops them.
+         */
+        void killConnections() throws IOException {
+            for (Socket socket : sockets) {
+                socket.close();
+            }
+        }
+    }
+
+    private static final class RecordingSocketFactory extends SocketFactory {
+
+        private final List<Socket> sockets;
+
+        private RecordingSocketFactory(List<Socket> sockets) {
+            this.sockets = sockets;
+        }
+
+        @Override
+        public Socket createSocket() {
+            Socket socket = new Socket();
+            sockets.add(socket);
+            return socket;
+        }
+
+        @Override
+        public Socket createSocket(String host, int port) throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Socket createSocket(String host, int port, InetAddress localHost, int localPort) throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Socket createSocket(InetAddress host, int port) throws IOException {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public Socket createSocket(InetAddress address, int port, InetAddress localAddress, int localPort) throws IOException {
+            throw new UnsupportedOperationException();
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package org.xbib.io.ftp.fs;
 
+import org.xbib.io.ftp.client.CopyStreamEngine;
 import org.xbib.io.ftp.client.FTPClient;
 import org.xbib.io.ftp.client.FTPClientConfig;
 import org.xbib.io.ftp.client.parser.DefaultFTPFileEntryParserFactory;
@@ -52,6 +53,7 @@ public class FTPEnvironmentSetterTest {
                 {"withParserFactory", "parserFactory", new DefaultFTPFileEntryParserFactory(),},
                 {"withRemoteVerificationEnabled", "remoteVerificationEnabled", true,},
                 {"withDefaultDirectory", "defaultDir", "/",},
+                {"withPreferBlockTransferMode", "preferBlockTransferMode", true,},
                 {"withConnectionMode", "connectionMode", ConnectionMode.PASSIVE,},
                 {"withActiveExternalIPAddress", "activeExternalIPAddress", "127.0.0.1",},
                 {"withPassiveLocalIPAddress", "passiveLocalIPAddress", "127.0.0.1",},
@@ -59,6 +61,8 @@ public class FTPEnvironmentSetterTest {
                 {"withBufferSize", "bufferSize", 1000,},
                 {"withSendDataSocketBufferSize", "sendDataSocketBufferSize", 1024,},
                 {"withReceiveDataSocketBufferSize", "receiveDataSocketBufferSize", 2048,},
+                {"withCopyStreamEngine", "copyStreamEngine", new CopyStreamEngine(),},
+                {"withDeflateLevel", "deflateLevel", 9,},
                 {"withClientConfig", "clientConfig", new FTPClientConfig(),},
                 {"withUseEPSVwithIPv4", "useEPSVwithIPv4", true,},
                 {"withControlKeepAliveTimeout", "controlKeepAliveTimeout", 1000L,},
@@ -66,6 +70,17 @@ public class FTPEnvironmentSetterTest {
                 {"withPassiveNatWorkaroundStrategy", "passiveNatWorkaroundStrategy", new FTPClient.NatServerResolverImpl(new FTPClient()),},
                 {"withAutodetectEncoding", "autodetectEncoding", true,},
                 {"withClientConnectionCount", "clientConnectionCount", 5,},
+                {"withClientPoolMinIdle", "clientPool.minIdle", 1,},
+                {"withClientPoolMaxIdle", "clientPool.maxIdle", 2,},
+                {"withClientPoolIdleTimeout", "clientPool.idleTimeout", 60000L,},
+                {"withClientPoolMaxWaitTime", "clientPool.maxWaitTime", 1000L,},
+                {"withClientPoolKeepAliveInterval", "clientPool.keepAliveInterval", 30000L,},
+                {"withClientPoolKeepAliveListener", "clientPool.keepAliveListener", (KeepAliveListener) (hostname, port, exception) -> { },},
+                {"withClientValidationInterval", "clientValidationInterval", 1000L,},
+                {"withPrefetchedAttributesTimeout", "prefetchedAttributesTimeout", 1000L,},
+                {"withCacheTimeToLive", "cache.timeToLive", 1000L,},
+                {"withCacheNegativeTimeToLive", "cache.negativeTimeToLive", 1000L,},
+                {"withCacheMaxSize", "cache.maxSize", 100,},
                 {"withFileSystemExceptionFactory", "fileSystemExceptionFactory", DefaultFileSystemExceptionFactory.INSTANCE,}
         };
         return Arrays.asList(parameters);
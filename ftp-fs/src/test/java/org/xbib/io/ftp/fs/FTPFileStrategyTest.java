@@ -0,0 +1,173 @@
+package org.xbib.io.ftp.fs;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+import org.mockftpserver.fake.FakeFtpServer;
+import org.mockftpserver.fake.UserAccount;
+import org.mockftpserver.fake.filesystem.DirectoryEntry;
+import org.mockftpserver.fake.filesystem.FileEntry;
+import org.mockftpserver.fake.filesystem.FileSystem;
+import org.mockftpserver.fake.filesystem.UnixFakeFileSystem;
+import org.xbib.io.ftp.client.FTPClient;
+import org.xbib.io.ftp.client.ProtocolCommandEvent;
+import org.xbib.io.ftp.client.ProtocolCommandListener;
+import org.xbib.io.ftp.fs.server.FEATCommandHandler;
+import org.xbib.io.ftp.fs.server.ListHiddenFilesCommandHandler;
+import org.xbib.io.ftp.fs.server.MDTMCommandHandler;
+import org.xbib.io.ftp.fs.server.MLSDCommandHandler;
+import org.xbib.io.ftp.fs.server.MLSTCommandHandler;
+import org.xbib.io.ftp.fs.server.SIZECommandHandler;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests that the MLST and MLSD commands are used if the server advertises them, and that LIST is used otherwise.
+ */
+@RunWith(Parameterized.class)
+public class FTPFileStrategyTest {
+
+    private static final String USERNAME = "TEST_USER";
+    private static final String PASSWORD = "TEST_PASSWORD";
+    private static final String HOME_DIR = "/home/test";
+
+    private final boolean supportsMLSx;
+    private final List<String> commands = new CopyOnWriteArrayList<>();
+    private FakeFtpServer ftpServer;
+    private FTPFileSystem fileSystem;
+
+    public FTPFileStrategyTest(boolean supportsMLSx) {
+        this.supportsMLSx = supportsMLSx;
+    }
+
+    @Parameters(name = "Supports MLST: {0}")
+    public static List<Object[]> getParameters() {
+        Object[][] parameters = {
+                {true,},
+                {false,},
+        };
+        return Arrays.asList(parameters);
+    }
+
+    @Before
+    public void setup() throws IOException {
+        ftpServer = new FakeFtpServer();
+        ftpServer.setSystemName("UNIX");
+        ftpServer.setServerControlPort(0);
+
+        FileSystem initFileSystem = new UnixFakeFileSystem();
+        initFileSystem.add(new DirectoryEntry(HOME_DIR));
+        initFileSystem.add(new FileEntry(HOME_DIR + "/foo", "Hello"));
+        initFileSystem.add(new DirectoryEntry(HOME_DIR + "/bar"));
+        ftpServer.setFileSystem(initFileSystem);
+
+        ftpServer.addUserAccount(new UserAccount(USERNAME, PASSWORD, HOME_DIR));
+
+        ftpServer.setCommandHandler("LIST", new ListHiddenFilesCommandHandler(true));
+        ftpServer.setCommandHandler("MDTM", new MDTMCommandHandler());
+        ftpServer.setCommandHandler("SIZE", new SIZECommandHandler());
+        if (supportsMLSx) {
+            ftpServer.setCommandHandler("FEAT", new FEATCommandHandler("MLST type*;size*;modify*;", "SIZE", "MDTM"));
+            ftpServer.setCommandHandler("MLST", new MLSTCommandHandler());
+            ftpServer.setCommandHandler("MLSD", new MLSDCommandHandler());
+        }
+
+        ftpServer.start();
+
+        FTPEnvironment env = new RecordingEnvironment(commands)
+                .withCredentials(USERNAME, PASSWORD.toCharArray())
+                .withClientConnectionCount(1);
+        fileSystem = (FTPFileSystem) new FTPFileSystemProvider().newFileSystem(URI.create("ftp://localhost:" + ftpServer.getServerControlPort()), env);
+        // only record the commands sent by the tests, not the ones used to set up the file system
+        commands.clear();
+    }
+
+    @After
+    public void cleanup() throws IOException {
+        fileSystem.close();
+        ftpServer.stop();
+    }
+
+    private void assertListedUsingMLSx(String mlsxCommand) {
+        assertEquals(commands.toString(), supportsMLSx, commands.contains(mlsxCommand));
+        assertEquals(commands.toString(), !supportsMLSx, commands.contains("LIST"));
+    }
+
+    @Test
+    public void testReadAttributesOfFile() throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(fileSystem.getPath(HOME_DIR + "/foo"), BasicFileAttributes.class);
+        assertTrue(attributes.isRegularFile());
+        assertEquals(5, attributes.size());
+        assertListedUsingMLSx("MLST");
+    }
+
+    @Test
+    public void testReadAttributesOfDirectory() throws IOException {
+        BasicFileAttributes attributes = Files.readAttributes(fileSystem.getPath(HOME_DIR + "/bar"), BasicFileAttributes.class);
+        assertTrue(attributes.isDirectory());
+        assertListedUsingMLSx("MLST");
+    }
+
+    @Test(expected = NoSuchFileException.class)
+    public void testReadAttributesOfNonExisting() throws IOException {
+        Files.readAttributes(fileSystem.getPath(HOME_DIR + "/baz"), BasicFileAttributes.class);
+    }
+
+    @Test
+    public void testNewDirectoryStream() throws IOException {
+        List<String> names = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(fileSystem.getPath(HOME_DIR))) {
+            for (Path path : stream) {
+                names.add(path.getFileName().toString());
+            }
+        }
+        Collections.sort(names);
+        assertEquals(Arrays.asList("bar", "foo"), names);
+        assertListedUsingMLSx("MLSD");
+        assertFalse(commands.contains("MLST"));
+    }
+
+    private static final class RecordingEnvironment extends FTPEnvironment {
+
+        private final List<String> commands;
+
+        private RecordingEnvironment(List<String> commands) {
+            this.commands = commands;
+        }
+
+        @Override
+        FTPClient createClient(String hostname, int port) throws IOException {
+            FTPClient client = super.createClient(hostname, port);
+            client.addProtocolCommandListener(new ProtocolCommandListener() {
+                @Override
+                public void protocolCommandSent(ProtocolCommandEvent event) {
+                    commands.add(event.getCommand());
+                }
+
+                @Override
+                public void protocolReplyReceived(ProtocolCommandEvent event) {
+                    // not needed
+                }
+            });
+            return client;
+        }
+    }
+}
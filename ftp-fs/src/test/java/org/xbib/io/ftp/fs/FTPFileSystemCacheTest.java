@@ -0,0 +1,214 @@
+package org.xbib.io.ftp.fs;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.Matchers.containsInAnyOrder;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
+
+@RunWith(Parameterized.class)
+public class FTPFileSystemCacheTest extends AbstractFTPFileSystemTest {
+
+    private FTPFileSystem cachingFileSystem;
+
+    public FTPFileSystemCacheTest(boolean useUnixFtpServer) {
+        super(useUnixFtpServer);
+    }
+
+    @Parameters(name = "Use UNIX FTP server: {0}")
+    public static List<Object[]> getParameters() {
+        Object[][] parameters = {
+                {true,},
+                {false,},
+        };
+        return Arrays.asList(parameters);
+    }
+
+    @Before
+    public void createCachingFileSystem() throws IOException {
+        FTPEnvironment env = createEnv()
+                .withCacheTimeToLive(60000L)
+                .withCacheNegativeTimeToLive(60000L)
+                .withCacheMaxSize(100);
+        cachingFileSystem = (FTPFileSystem) new FTPFileSystemProvider().newFileSystem(getURI(), env);
+    }
+
+    @After
+    public void closeCachingFileSystem() throws IOException {
+        cachingFileSystem.close();
+    }
+
+    @Test
+    public void testExistsIsCached() throws IOException {
+        addFile("/foo");
+
+        FTPPath path = createPath(cachingFileSystem, "/foo");
+        assertTrue(Files.exists(path));
+        long hitCount = FTPFileSystemProvider.getCacheHitCount(cachingFileSystem);
+
+        // not deleted through the file system, so the cache does not know
+        delete("/foo");
+        assertTrue(Files.exists(path));
+        assertEquals(hitCount + 1, FTPFileSystemProvider.getCacheHitCount(cachingFileSystem));
+    }
+
+    @Test
+    public void testDeleteInvalidates() throws IOException {
+        addFile("/foo");
+
+        FTPPath path = createPath(cachingFileSystem, "/foo");
+        assertTrue(Files.exists(path));
+        Files.delete(path);
+        assertFalse(Files.exists(path));
+    }
+
+    @Test
+    public void testCreateDirectoryInvalidatesParentListing() throws IOException {
+        addDirectory("/foo");
+        addFile("/foo/bar");
+
+        assertThat(list("/foo"), containsInAnyOrder("bar"));
+
+        Files.createDirectory(createPath(cachingFileSystem, "/foo/baz"));
+        assertThat(list("/foo"), containsInAnyOrder("bar", "baz"));
+    }
+
+    @Test
+    public void testListingIsCached() throws IOException {
+        addDirectory("/foo");
+        addFile("/foo/bar");
+
+        assertThat(list("/foo"), containsInAnyOrder("bar"));
+        long missCount = FTPFileSystemProvider.getCacheMissCount(cachingFileSystem);
+
+        // not added through the file system, so the cache does not know
+        addFile("/foo/baz");
+        assertThat(list("/foo"), containsInAnyOrder("bar"));
+        assertEquals(missCount, FTPFileSystemProvider.getCacheMissCount(cachingFileSystem));
+    }
+
+    @Test
+    public void testOutputStreamCloseInvalidates() throws IOException {
+        addFile("/foo");
+
+        FTPPath path = createPath(cachingFileSystem, "/foo");
+        assertEquals(0, Files.size(path));
+
+        try (OutputStream output = Files.newOutputStream(path)) {
+            output.write(new byte[]{1, 2, 3});
+        }
+        assertEquals(3, Files.size(path));
+    }
+
+    @Test
+    public void testMoveInvalidates() throws IOException {
+        addFile("/foo");
+
+        FTPPath source = createPath(cachingFileSystem, "/foo");
+        FTPPath target = createPath(cachingFileSystem, "/bar");
+        assertTrue(Files.exists(source));
+        assertFalse(Files.exists(target));
+
+        Files.move(source, target);
+        assertFalse(Files.exists(source));
+        assertTrue(Files.exists(target));
+    }
+
+    @Test
+    public void testAbsenceIsCached() throws IOException {
+        FTPPath path = createPath(cachingFileSystem, "/foo");
+        assertFalse(Files.exists(path));
+        long hitCount = FTPFileSystemProvider.getCacheHitCount(cachingFileSystem);
+
+        // not added through the file system, so the cache does not know
+        addFile("/foo");
+        assertFalse(Files.exists(path));
+        assertEquals(hitCount + 1, FTPFileSystemProvider.getCacheHitCount(cachingFileSystem));
+    }
+
+    @Test
+    public void testAbsenceFromParentListing() throws IOException {
+        addDirectory("/foo");
+        addFile("/foo/bar");
+
+        assertThat(list("/foo"), containsInAnyOrder("bar"));
+        long hitCount = FTPFileSystemProvider.getCacheHitCount(cachingFileSystem);
+        long missCount = FTPFileSystemProvider.getCacheMissCount(cachingFileSystem);
+
+        // the listing of /foo is complete, so /foo/baz does not exist
+        addFile("/foo/baz");
+        assertFalse(Files.exists(createPath(cachingFileSystem, "/foo/baz")));
+        assertEquals(hitCount + 1, FTPFileSystemProvider.getCacheHitCount(cachingFileSystem));
+        assertEquals(missCount, FTPFileSystemProvider.getCacheMissCount(cachingFileSystem));
+    }
+
+    @Test
+    public void testCreateInvalidatesAbsence() throws IOException {
+        addDirectory("/foo");
+
+        FTPPath path = createPath(cachingFileSystem, "/foo/bar");
+        assertFalse(Files.exists(path));
+
+        try (OutputStream output = Files.newOutputStream(path)) {
+            output.write(1);
+        }
+        assertTrue(Files.exists(path));
+
+        FTPPath target = createPath(cachingFileSystem, "/foo/baz");
+        assertFalse(Files.exists(target));
+        Files.move(path, target);
+        assertTrue(Files.exists(target));
+        assertFalse(Files.exists(path));
+    }
+
+    @Test
+    public void testNoAbsenceWithoutNegativeTimeToLive() throws IOException {
+        addDirectory("/foo");
+        addFile("/foo/bar");
+
+        FTPEnvironment env = createEnv()
+                .withCacheTimeToLive(60000L)
+                .withCacheNegativeTimeToLive(0L)
+                .withCacheMaxSize(100);
+        try (FTPFileSystem fs = (FTPFileSystem) new FTPFileSystemProvider().newFileSystem(getURI(), env)) {
+            assertThat(list(fs, "/foo"), containsInAnyOrder("bar"));
+            assertFalse(Files.exists(createPath(fs, "/qux")));
+
+            // not added through the file system, but neither the cached listing of /foo nor the earlier lookup say that these do not exist
+            addFile("/foo/baz");
+            addFile("/qux");
+            assertTrue(Files.exists(createPath(fs, "/foo/baz")));
+            assertTrue(Files.exists(createPath(fs, "/qux")));
+        }
+    }
+
+    private List<String> list(String path) throws IOException {
+        return list(cachingFileSystem, path);
+    }
+
+    private List<String> list(FTPFileSystem fs, String path) throws IOException {
+        List<String> names = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(createPath(fs, path))) {
+            for (Path child : stream) {
+                names.add(child.getFileName().toString());
+            }
+        }
+        return names;
+    }
+}
@@ -9,10 +9,15 @@ import org.junit.runners.Parameterized;
 import org.junit.runners.Parameterized.Parameters;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.nio.file.DirectoryIteratorException;
 import java.nio.file.DirectoryStream;
 import java.nio.file.DirectoryStream.Filter;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.NotDirectoryException;
 import java.nio.file.Path;
+import java.nio.file.attribute.PosixFileAttributes;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
@@ -23,8 +28,10 @@ import static org.hamcrest.Matchers.containsInAnyOrder;
 import static org.hamcrest.Matchers.equalTo;
 import static org.hamcrest.Matchers.everyItem;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertThat;
 import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
 
 @RunWith(Parameterized.class)
 public class FTPFileSystemDirectoryStreamTest extends AbstractFTPFileSystemTest {
@@ -230,6 +237,145 @@ public class FTPFileSystemDirectoryStreamTest extends AbstractFTPFileSystemTest
         }
     }
 
+    @Test
+    public void testIteratorMultipleConnections() throws IOException {
+        final int count = 100;
+
+        List<Matcher<? super String>> matchers = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            matchers.add(equalTo("file" + i));
+            addFile("/foo/file" + i);
+        }
+
+        // the listing is read while iterating, so other operations need to use other connections
+        FTPFileSystem fs = getMultiClientFileSystem();
+        List<String> names = new ArrayList<>();
+        try (DirectoryStream<Path> stream = fs.newDirectoryStream(createPath(fs, "/foo"), AcceptAllFilter.INSTANCE)) {
+            for (Path path : stream) {
+                assertTrue(Files.isRegularFile(path));
+                names.add(path.getFileName().toString());
+            }
+        }
+        assertThat(names, containsInAnyOrder(matchers));
+    }
+
+    @Test
+    public void testCloseWhileIteratingMultipleConnections() throws IOException {
+        final int count = 100;
+
+        for (int i = 0; i < count; i++) {
+            addFile("/foo/file" + i);
+        }
+
+        // open more streams than there are connections, to verify that closed streams return their connections
+        FTPFileSystem fs = getMultiClientFileSystem();
+        for (int i = 0; i < 5; i++) {
+            int index = 0;
+            try (DirectoryStream<Path> stream = fs.newDirectoryStream(createPath(fs, "/foo"), AcceptAllFilter.INSTANCE)) {
+                for (Iterator<Path> iterator = stream.iterator(); iterator.hasNext() && index < count / 2; index++) {
+                    iterator.next();
+                }
+            }
+            assertEquals(count / 2, index);
+        }
+    }
+
+    @Test(expected = NoSuchFileException.class)
+    public void testNotExistingMultipleConnections() throws IOException {
+        FTPFileSystem fs = getMultiClientFileSystem();
+        fs.newDirectoryStream(createPath(fs, "/foo"), AcceptAllFilter.INSTANCE);
+    }
+
+    @Test(expected = NotDirectoryException.class)
+    public void testNotDirectoryMultipleConnections() throws IOException {
+        addFile("/foo");
+
+        FTPFileSystem fs = getMultiClientFileSystem();
+        fs.newDirectoryStream(createPath(fs, "/foo"), AcceptAllFilter.INSTANCE);
+    }
+
+    @Test
+    public void testPrefetchedAttributes() throws IOException {
+        addDirectory("/foo/bar");
+        addFile("/foo/baz").setContents(new byte[]{1, 2, 3});
+
+        List<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> stream = getFileSystem().newDirectoryStream(createPath("/foo"), AcceptAllFilter.INSTANCE)) {
+            for (Path path : stream) {
+                paths.add(path);
+            }
+        }
+        assertEquals(2, paths.size());
+
+        // the attributes from the listing are used, so the server is not asked for them again
+        delete("/foo/bar");
+        delete("/foo/baz");
+        for (Path path : paths) {
+            PosixFileAttributes attributes = Files.readAttributes(path, PosixFileAttributes.class);
+            if ("bar".equals(path.getFileName().toString())) {
+                assertTrue(attributes.isDirectory());
+            } else {
+                assertTrue(attributes.isRegularFile());
+                assertEquals(3, attributes.size());
+            }
+        }
+        // paths that are not returned by a directory stream still need the server
+        assertFalse(Files.exists(createPath("/foo/baz")));
+    }
+
+    @Test
+    public void testPrefetchedAttributesAfterDelete() throws IOException {
+        addFile("/foo/baz").setContents(new byte[]{1, 2, 3});
+
+        Path path = getOnlyChild("/foo");
+        Files.delete(path);
+
+        // the path was deleted through the file system, so the attributes from the listing are stale
+        try {
+            Files.readAttributes(path, PosixFileAttributes.class);
+            fail("expected NoSuchFileException");
+        } catch (NoSuchFileException e) {
+            assertEquals("/foo/baz", e.getFile());
+        }
+        assertFalse(Files.exists(path));
+    }
+
+    @Test
+    public void testPrefetchedAttributesAfterWrite() throws IOException {
+        addFile("/foo/baz").setContents(new byte[]{1, 2, 3});
+
+        Path path = getOnlyChild("/foo");
+        try (OutputStream output = Files.newOutputStream(path)) {
+            output.write(new byte[]{1, 2, 3, 4, 5});
+        }
+
+        PosixFileAttributes attributes = Files.readAttributes(path, PosixFileAttributes.class);
+        assertEquals(5, attributes.size());
+    }
+
+    @Test
+    public void testPrefetchedAttributesAfterMoveOfParent() throws IOException {
+        addFile("/foo/bar/baz");
+
+        Path path = getOnlyChild("/foo/bar");
+        Files.move(createPath("/foo/bar"), createPath("/foo/qux"));
+
+        // Files.isRegularFile reads the attributes of the path
+        assertFalse(Files.isRegularFile(path));
+        assertTrue(Files.isRegularFile(createPath("/foo/qux/baz")));
+    }
+
+    private Path getOnlyChild(String dir) throws IOException {
+        List<Path> paths = new ArrayList<>();
+        try (DirectoryStream<Path> stream = getFileSystem().newDirectoryStream(createPath(dir), AcceptAllFilter.INSTANCE)) {
+            for (Path path : stream) {
+                paths.add(path);
+            }
+        }
+        assertEquals(1, paths.size());
+        return paths.get(0);
+    }
+
     private static final class AcceptAllFilter implements Filter<Path> {
 
         private static final AcceptAllFilter INSTANCE = new AcceptAllFilter();
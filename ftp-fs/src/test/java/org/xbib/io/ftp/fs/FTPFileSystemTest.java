@@ -3,6 +3,7 @@ package org.xbib.io.ftp.fs;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
 import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
 import org.junit.runners.Parameterized.Parameters;
@@ -26,6 +27,7 @@ import java.nio.file.DirectoryStream;
 import java.nio.file.DirectoryStream.Filter;
 import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.FileSystemException;
+import java.nio.file.Files;
 import java.nio.file.LinkOption;
 import java.nio.file.NoSuchFileException;
 import java.nio.file.NotDirectoryException;
@@ -34,8 +36,10 @@ import java.nio.file.OpenOption;
 import java.nio.file.Path;
 import java.nio.file.StandardCopyOption;
 import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.nio.file.attribute.PosixFileAttributes;
 import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.EnumSet;
@@ -70,6 +74,9 @@ public class FTPFileSystemTest extends AbstractFTPFileSystemTest {
     @Rule
     public ExpectedException thrown = ExpectedException.none();
 
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
     public FTPFileSystemTest(boolean useUnixFtpServer) {
         super(useUnixFtpServer);
     }
@@ -1105,6 +1112,150 @@ public class FTPFileSystemTest extends AbstractFTPFileSystemTest {
         assertEquals(0, getChildCount("/home/test/foo/bar"));
     }
 
+    // FTPFileSystem.download
+
+    @Test
+    public void testDownloadFile() throws IOException {
+        addFile("/baz").setContents(new byte[]{1, 2, 3});
+
+        Path target = temporaryFolder.getRoot().toPath().resolve("bar");
+        getFileSystem().download(createPath("/baz"), target);
+
+        assertArrayEquals(new byte[]{1, 2, 3}, Files.readAllBytes(target));
+    }
+
+    @Test
+    public void testDownloadFileSegmented() throws IOException {
+        // too small to be split into segments
+        addFile("/baz").setContents(new byte[]{1, 2, 3});
+
+        Path target = temporaryFolder.getRoot().toPath().resolve("bar");
+        FTPFileSystem fs = getMultiClientFileSystem();
+        fs.provider().copy(createPath(fs, "/baz"), target, SegmentedCopy.segments(4));
+
+        assertArrayEquals(new byte[]{1, 2, 3}, Files.readAllBytes(target));
+    }
+
+    @Test(expected = FileAlreadyExistsException.class)
+    public void testDownloadReplaceFile() throws IOException {
+        addFile("/baz");
+
+        Path target = temporaryFolder.newFile("bar").toPath();
+        Files.write(target, new byte[]{4, 5, 6});
+        try {
+            getFileSystem().download(createPath("/baz"), target);
+        } finally {
+            assertArrayEquals(new byte[]{4, 5, 6}, Files.readAllBytes(target));
+        }
+    }
+
+    @Test
+    public void testDownloadReplaceFileAllowed() throws IOException {
+        addFile("/baz").setContents(new byte[]{1, 2, 3});
+
+        Path target = temporaryFolder.newFile("bar").toPath();
+        getFileSystem().download(createPath("/baz"), target, StandardCopyOption.REPLACE_EXISTING);
+
+        assertArrayEquals(new byte[]{1, 2, 3}, Files.readAllBytes(target));
+    }
+
+    @Test
+    public void testDownloadDir() throws IOException {
+        addDirectory("/baz");
+        addFile("/baz/qux");
+
+        Path target = temporaryFolder.getRoot().toPath().resolve("bar");
+        getFileSystem().download(createPath("/baz"), target);
+
+        assertTrue(Files.isDirectory(target));
+        assertFalse(Files.exists(target.resolve("qux")));
+    }
+
+    @Test(expected = NoSuchFileException.class)
+    public void testDownloadNonExisting() throws IOException {
+        Path target = temporaryFolder.getRoot().toPath().resolve("bar");
+        try {
+            getFileSystem().download(createPath("/baz"), target);
+        } finally {
+            assertFalse(Files.exists(target));
+        }
+    }
+
+    // FTPFileSystem.upload
+
+    @Test
+    public void testUploadFile() throws IOException {
+        addDirectory("/foo");
+
+        Path source = temporaryFolder.newFile("bar").toPath();
+        Files.write(source, new byte[]{1, 2, 3});
+        getFileSystem().upload(source, createPath("/foo/baz"));
+
+        assertArrayEquals(new byte[]{1, 2, 3}, getContents(getFile("/foo/baz")));
+    }
+
+    @Test
+    public void testUploadFileSegmented() throws IOException {
+        addDirectory("/foo");
+
+        // too small to be split into segments
+        Path source = temporaryFolder.newFile("bar").toPath();
+        Files.write(source, new byte[]{1, 2, 3});
+        FTPFileSystem fs = getMultiClientFileSystem();
+        fs.provider().copy(source, createPath(fs, "/foo/baz"), SegmentedCopy.segments(4));
+
+        assertArrayEquals(new byte[]{1, 2, 3}, getContents(getFile("/foo/baz")));
+    }
+
+    @Test(expected = FileAlreadyExistsException.class)
+    public void testUploadReplaceFile() throws IOException {
+        addDirectory("/foo");
+        FileEntry baz = addFile("/foo/baz");
+
+        Path source = temporaryFolder.newFile("bar").toPath();
+        try {
+            getFileSystem().upload(source, createPath("/foo/baz"));
+        } finally {
+            assertSame(baz, getFileSystemEntry("/foo/baz"));
+        }
+    }
+
+    @Test
+    public void testUploadReplaceFileAllowed() throws IOException {
+        addDirectory("/foo");
+        addFile("/foo/baz");
+
+        Path source = temporaryFolder.newFile("bar").toPath();
+        Files.write(source, new byte[]{1, 2, 3});
+        getFileSystem().upload(source, createPath("/foo/baz"), StandardCopyOption.REPLACE_EXISTING);
+
+        assertArrayEquals(new byte[]{1, 2, 3}, getContents(getFile("/foo/baz")));
+    }
+
+    @Test
+    public void testUploadDir() throws IOException {
+        addDirectory("/foo");
+
+        Path source = temporaryFolder.newFolder("bar").toPath();
+        Files.createFile(source.resolve("qux"));
+        getFileSystem().upload(source, createPath("/foo/baz"));
+
+        assertNotNull(getDirectory("/foo/baz"));
+        assertEquals(0, getChildCount("/foo/baz"));
+    }
+
+    @Test(expected = NoSuchFileException.class)
+    public void testUploadNonExisting() throws IOException {
+        addDirectory("/foo");
+
+        Path source = temporaryFolder.getRoot().toPath().resolve("bar");
+        try {
+            getFileSystem().upload(source, createPath("/foo/baz"));
+        } finally {
+            assertNull(getFileSystemEntry("/foo/baz"));
+        }
+    }
+
     // FTPFileSystem.move
 
     @Test(expected = NoSuchFileException.class)
@@ -1592,6 +1743,38 @@ public class FTPFileSystemTest extends AbstractFTPFileSystemTest {
         assertFalse(attributes.isOther());
     }
 
+    // FTPFileSystem.readAttributes (bulk variant)
+
+    @Test
+    public void testReadAttributesBulk() throws IOException {
+        FileEntry foo = addFile("/foo");
+        foo.setContents(new byte[1024]);
+        addDirectory("/bar");
+        addFile("/bar/baz").setContents(new byte[]{1, 2, 3});
+
+        List<FTPPath> paths = Arrays.asList(createPath("/foo"), createPath("/bar"), createPath("/qux"), createPath("/bar/baz"));
+        Map<Path, BasicFileAttributes> attributes = getFileSystem().readAttributes(paths);
+
+        // the non-existing path is left out
+        assertEquals(Arrays.asList(createPath("/foo"), createPath("/bar"), createPath("/bar/baz")),
+                new ArrayList<>(attributes.keySet()));
+
+        BasicFileAttributes fooAttributes = attributes.get(createPath("/foo"));
+        assertEquals(foo.getSize(), fooAttributes.size());
+        assertTrue(fooAttributes.isRegularFile());
+        assertFalse(fooAttributes.isDirectory());
+        // MDTM only returns seconds
+        assertEquals(foo.getLastModified().getTime() / 1000, fooAttributes.lastModifiedTime().toMillis() / 1000);
+
+        assertTrue(attributes.get(createPath("/bar")).isDirectory());
+        assertEquals(3, attributes.get(createPath("/bar/baz")).size());
+    }
+
+    @Test
+    public void testReadAttributesBulkEmpty() throws IOException {
+        assertEquals(Collections.emptyMap(), getFileSystem().readAttributes(Collections.<FTPPath>emptyList()));
+    }
+
     @Test
     public void testReadAttributesSymLinkToFileFollowLinks() throws IOException {
         FileEntry foo = addFile("/foo");
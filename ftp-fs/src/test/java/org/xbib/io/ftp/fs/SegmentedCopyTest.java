@@ -0,0 +1,237 @@
+package org.xbib.io.ftp.fs;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.xbib.io.ftp.client.FTPClient;
+import org.xbib.io.ftp.fs.server.RestartableFtpServer;
+import org.xbib.io.ftp.fs.server.RestartableFtpServer.Transfer;
+
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Tests segmented transfers against a server that honours {@code REST} offsets, using small segments.
+ */
+public class SegmentedCopyTest {
+
+    private static final String PATH = "/foo";
+    private static final int SEGMENT_SIZE = 64 * 1024;
+    private static final int SEGMENT_COUNT = 4;
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    private final List<FTPClient> clients = new CopyOnWriteArrayList<>();
+    private byte[] contents;
+    private RestartableFtpServer ftpServer;
+    private FTPFileSystem fileSystem;
+
+    @Before
+    public void setup() throws IOException {
+        contents = new byte[SEGMENT_COUNT * SEGMENT_SIZE];
+        new Random(42).nextBytes(contents);
+        ftpServer = new RestartableFtpServer(PATH, contents);
+
+        FTPEnvironment env = new RecordingEnvironment(clients)
+                .withCredentials("user", "password".toCharArray())
+                .withClientConnectionCount(SEGMENT_COUNT)
+                // keep segments that are uploaded from being buffered entirely before the server reads them
+                .withSendDataSocketBufferSize(16 * 1024);
+        fileSystem = (FTPFileSystem) new FTPFileSystemProvider().newFileSystem(URI.create("ftp://localhost:" + ftpServer.getPort()), env);
+    }
+
+    @After
+    public void cleanup() throws IOException {
+        fileSystem.close();
+        ftpServer.close();
+    }
+
+    private static SegmentedCopy segments(int maxAttempts) {
+        return SegmentedCopy.segments(SEGMENT_COUNT, maxAttempts).withMinSegmentSize(SEGMENT_SIZE);
+    }
+
+    @Test
+    public void testDownload() throws IOException {
+        Path target = temporaryFolder.getRoot().toPath().resolve("bar");
+        fileSystem.provider().copy(fileSystem.getPath(PATH), target, segments(1));
+
+        assertArrayEquals(contents, Files.readAllBytes(target));
+        assertEquals(SEGMENT_COUNT, ftpServer.getTransfers().size());
+        // the first segment starts at offset 0, so it does not need a REST command
+        for (int i = 1; i < SEGMENT_COUNT; i++) {
+            assertTrue(ftpServer.getCommands().contains("REST " + i * SEGMENT_SIZE));
+        }
+        assertClientsAreUsable();
+    }
+
+    @Test
+    public void testDownloadWithFailedSegment() throws IOException {
+        ftpServer.failTransfersAt(2 * SEGMENT_SIZE);
+
+        Path target = temporaryFolder.getRoot().toPath().resolve("bar");
+        try {
+            fileSystem.provider().copy(fileSystem.getPath(PATH), target, segments(1));
+            fail("expected an IOException");
+        } catch (IOException e) {
+            // expected, the segment is not retried
+        }
+        assertFalse(Files.exists(target));
+        assertClientsAreUsable();
+    }
+
+    @Test
+    public void testDownloadWithFailedSegmentKeepsReplacedFile() throws IOException {
+        ftpServer.failTransfersAt(2 * SEGMENT_SIZE);
+
+        Path target = temporaryFolder.getRoot().toPath().resolve("bar");
+        byte[] original = {4, 5, 6};
+        Files.write(target, original);
+        try {
+            fileSystem.provider().copy(fileSystem.getPath(PATH), target, segments(1), StandardCopyOption.REPLACE_EXISTING);
+            fail("expected an IOException");
+        } catch (IOException e) {
+            // expected, the segment is not retried
+        }
+        assertArrayEquals(original, Files.readAllBytes(target));
+        // no partial file is left behind
+        try (Stream<Path> files = Files.list(temporaryFolder.getRoot().toPath())) {
+            assertEquals(Collections.singletonList(target), files.collect(Collectors.toList()));
+        }
+        assertClientsAreUsable();
+    }
+
+    @Test
+    public void testDownloadWithRetriedSegment() throws IOException {
+        ftpServer.failTransfersAt(2 * SEGMENT_SIZE);
+
+        Path target = temporaryFolder.getRoot().toPath().resolve("bar");
+        try {
+            fileSystem.provider().copy(fileSystem.getPath(PATH), target, segments(3));
+            fail("expected an IOException");
+        } catch (IOException e) {
+            // expected, the segment fails on every attempt
+        }
+        assertFalse(Files.exists(target));
+        assertEquals(3, ftpServer.getCommands().stream().filter(("REST " + 2 * SEGMENT_SIZE)::equals).count());
+        assertClientsAreUsable();
+    }
+
+    @Test
+    public void testDownloadCancelsSegmentsInProgress() throws IOException {
+        ftpServer.failTransfersAt(2 * SEGMENT_SIZE);
+        // each segment takes 8 chunks, so 400 ms
+        ftpServer.setChunkDelay(50);
+
+        Path target = temporaryFolder.getRoot().toPath().resolve("bar");
+        try {
+            fileSystem.provider().copy(fileSystem.getPath(PATH), target, segments(1));
+            fail("expected an IOException");
+        } catch (IOException e) {
+            // expected, the segment is not retried
+        }
+        assertFalse(Files.exists(target));
+        assertSegmentsWereAborted("RETR", SEGMENT_SIZE);
+        assertClientsAreUsable();
+    }
+
+    @Test
+    public void testUpload() throws IOException {
+        Path source = temporaryFolder.newFile("bar").toPath();
+        // the probe stores the first bytes, and the segments cover the rest
+        byte[] newContents = new byte[SegmentedUpload.PROBE_SIZE + SEGMENT_COUNT * SEGMENT_SIZE];
+        new Random(13).nextBytes(newContents);
+        Files.write(source, newContents);
+
+        fileSystem.provider().copy(source, fileSystem.getPath(PATH), segments(1), StandardCopyOption.REPLACE_EXISTING);
+
+        assertArrayEquals(newContents, ftpServer.getContents());
+        // two probe transfers, then the segments
+        assertEquals(2 + SEGMENT_COUNT, ftpServer.getTransfers().size());
+        assertClientsAreUsable();
+    }
+
+    @Test
+    public void testUploadCancelsSegmentsInProgress() throws IOException {
+        int segmentSize = 1024 * 1024;
+        Path source = temporaryFolder.newFile("bar").toPath();
+        Files.write(source, new byte[SegmentedUpload.PROBE_SIZE + SEGMENT_COUNT * segmentSize]);
+
+        ftpServer.failTransfersAt(SegmentedUpload.PROBE_SIZE + segmentSize);
+        ftpServer.setChunkDelay(50);
+
+        try {
+            fileSystem.provider().copy(source, fileSystem.getPath(PATH), segments(1), StandardCopyOption.REPLACE_EXISTING);
+            fail("expected an IOException");
+        } catch (IOException e) {
+            // expected, the segment is not retried
+        }
+        assertSegmentsWereAborted("STOR", segmentSize / 2);
+        assertClientsAreUsable();
+    }
+
+    /**
+     * Asserts that all segments ended long before they would have been completed, and that their transfers were aborted.
+     */
+    private void assertSegmentsWereAborted(String command, long maxCount) {
+        List<Transfer> transfers = new ArrayList<>();
+        for (Transfer transfer : ftpServer.getTransfers()) {
+            // the probe of an upload stores the first bytes before the segments
+            if (transfer.command.equals(command) && (command.equals("RETR") || transfer.offset >= SegmentedUpload.PROBE_SIZE)) {
+                transfers.add(transfer);
+                assertTrue(transfer.toString(), transfer.count < maxCount);
+            }
+        }
+        assertEquals(transfers.toString(), SEGMENT_COUNT, transfers.size());
+        assertTrue(ftpServer.getCommands().stream().filter("ABOR"::equals).count() >= SEGMENT_COUNT);
+    }
+
+    /**
+     * Asserts that all clients that are still connected expect the reply to their next command, and not a left-over reply
+     * to an earlier transfer or {@code ABOR} command.
+     */
+    private void assertClientsAreUsable() throws IOException {
+        assertFalse(clients.isEmpty());
+        for (FTPClient client : clients) {
+            if (client.isConnected()) {
+                assertEquals(213, client.sendCommand("SIZE", PATH));
+                assertEquals("213 " + ftpServer.getContents().length, client.getReplyString().trim());
+                assertEquals(200, client.sendCommand("NOOP"));
+            }
+        }
+    }
+
+    private static final class RecordingEnvironment extends FTPEnvironment {
+
+        private final List<FTPClient> clients;
+
+        private RecordingEnvironment(List<FTPClient> clients) {
+            this.clients = clients;
+        }
+
+        @Override
+        FTPClient createClient(String hostname, int port) throws IOException {
+            FTPClient client = super.createClient(hostname, port);
+            clients.add(client);
+            return client;
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package org.xbib.io.ftp.fs.server;
+
+import org.mockftpserver.core.command.Command;
+import org.mockftpserver.core.session.Session;
+import org.mockftpserver.fake.command.AbstractFakeCommandHandler;
+
+/**
+ * A command handler for the FEAT command that advertises a fixed list of features.
+ */
+public class FEATCommandHandler extends AbstractFakeCommandHandler {
+
+    private static final int SYSTEM_STATUS_OK = 211;
+
+    private final String[] features;
+
+    /**
+     * Creates a new FEAT command handler.
+     *
+     * @param features The features to advertise, for instance {@code MLST type*;size*;modify*;}.
+     */
+    public FEATCommandHandler(String... features) {
+        this.features = features.clone();
+    }
+
+    @Override
+    protected void handle(Command command, Session session) {
+        StringBuilder reply = new StringBuilder("Features:");
+        for (String feature : features) {
+            reply.append(endOfLine()).append(' ').append(feature);
+        }
+        reply.append(endOfLine()).append("End");
+        session.sendReply(SYSTEM_STATUS_OK, reply.toString());
+    }
+}
@@ -0,0 +1,46 @@
+package org.xbib.io.ftp.fs.server;
+
+import org.mockftpserver.core.command.Command;
+import org.mockftpserver.core.command.ReplyCodes;
+import org.mockftpserver.core.session.Session;
+import org.mockftpserver.core.util.StringUtil;
+import org.mockftpserver.fake.command.AbstractFakeCommandHandler;
+import org.mockftpserver.fake.filesystem.FileSystemEntry;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A command handler for the MLSD command. Like {@link MLSTCommandHandler}, it only reports the type, size and last modification time
+ * facts.
+ */
+public class MLSDCommandHandler extends AbstractFakeCommandHandler {
+
+    @Override
+    protected void handle(Command command, Session session) {
+        verifyLoggedIn(session);
+
+        String path = getRealPath(session, command.getParameter(0));
+
+        this.replyCodeForFileSystemException = ReplyCodes.READ_FILE_ERROR;
+        verifyFileSystemCondition(getFileSystem().exists(path), path, "filesystem.doesNotExist");
+        verifyFileSystemCondition(getFileSystem().isDirectory(path), path, "filesystem.isNotADirectory");
+        verifyReadPermission(session, path);
+
+        List<String> lines = new ArrayList<>();
+        for (Object child : getFileSystem().listFiles(path)) {
+            FileSystemEntry entry = (FileSystemEntry) child;
+            lines.add(MLSTCommandHandler.getFacts(entry) + " " + entry.getName());
+        }
+        String result = StringUtil.join(lines, endOfLine());
+        result += result.length() > 0 ? endOfLine() : "";
+
+        sendReply(session, ReplyCodes.TRANSFER_DATA_INITIAL_OK);
+
+        session.openDataConnection();
+        session.sendData(result.getBytes(), result.length());
+        session.closeDataConnection();
+
+        sendReply(session, ReplyCodes.TRANSFER_DATA_FINAL_OK);
+    }
+}
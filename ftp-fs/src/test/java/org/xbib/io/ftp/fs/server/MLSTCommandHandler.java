@@ -0,0 +1,39 @@
+package org.xbib.io.ftp.fs.server;
+
+import org.mockftpserver.core.command.Command;
+import org.mockftpserver.core.session.Session;
+import org.mockftpserver.fake.command.AbstractFakeCommandHandler;
+import org.mockftpserver.fake.filesystem.FileSystemEntry;
+
+import java.text.SimpleDateFormat;
+import java.util.TimeZone;
+
+/**
+ * A command handler for the MLST command. It only reports the type, size and last modification time facts.
+ */
+public class MLSTCommandHandler extends AbstractFakeCommandHandler {
+
+    private static final int ACTION_OK = 250;
+
+    @Override
+    protected void handle(Command command, Session session) {
+        verifyLoggedIn(session);
+
+        String path = getRealPath(session, command.getParameter(0));
+
+        verifyFileSystemCondition(getFileSystem().exists(path), path, "filesystem.doesNotExist");
+        verifyReadPermission(session, path);
+
+        FileSystemEntry entry = getFileSystem().getEntry(path);
+        session.sendReply(ACTION_OK, "Listing " + path + endOfLine() + " " + getFacts(entry) + " " + path + endOfLine() + "End");
+    }
+
+    static String getFacts(FileSystemEntry entry) {
+        final SimpleDateFormat sdf = new SimpleDateFormat("yyyyMMddHHmmss");
+        sdf.setTimeZone(TimeZone.getTimeZone("GMT"));
+        String modify = "modify=" + sdf.format(entry.getLastModified()) + ";";
+        return entry.isDirectory()
+                ? "type=dir;" + modify
+                : "type=file;size=" + entry.getSize() + ";" + modify;
+    }
+}
@@ -0,0 +1,392 @@
+package org.xbib.io.ftp.fs.server;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * A minimal FTP server that serves a single file in its root directory. Unlike {@code FakeFtpServer}, it honours {@code REST}
+ * offsets for {@code RETR} and {@code STOR}, which makes it possible to test segmented transfers.
+ * <p>
+ * Transfers can be made to fail for given restart offsets. Such a transfer is ended after its first chunk by resetting the
+ * data connection, after which the server replies with {@code 426}. Transfers can also be slowed down, to keep them in
+ * progress long enough to be interrupted.
+ */
+public final class RestartableFtpServer implements Closeable {
+
+    private static final int CHUNK_SIZE = 8192;
+    // small enough that clients cannot send entire segments before the server reads them
+    private static final int RECEIVE_BUFFER_SIZE = 2 * CHUNK_SIZE;
+    private static final int DATA_TIMEOUT = 10000;
+
+    private final String path;
+    private final ServerSocket serverSocket;
+    private final List<Socket> sockets = new CopyOnWriteArrayList<>();
+    private final List<String> commands = new CopyOnWriteArrayList<>();
+    private final List<Transfer> transfers = new CopyOnWriteArrayList<>();
+    private final Set<Long> failingOffsets = ConcurrentHashMap.newKeySet();
+    private volatile long chunkDelay = 0;
+    private byte[] contents;
+    private boolean exists = true;
+
+    /**
+     * Creates and starts a new server.
+     *
+     * @param path     The absolute path of the file to serve, for instance {@code /foo}.
+     * @param contents The initial contents of the file.
+     * @throws IOException If the server socket could not be created.
+     */
+    public RestartableFtpServer(String path, byte[] contents) throws IOException {
+        this.path = path;
+        this.contents = contents.clone();
+        serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress());
+
+        Thread thread = new Thread(this::accept, "restartable-ftp-server");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public int getPort() {
+        return serverSocket.getLocalPort();
+    }
+
+    public synchronized byte[] getContents() {
+        return contents.clone();
+    }
+
+    /**
+     * Makes the transfers that start at the given offset fail.
+     */
+    public void failTransfersAt(long offset) {
+        failingOffsets.add(offset);
+    }
+
+    /**
+     * Makes all transfers wait after each chunk of 8 KB.
+     *
+     * @param chunkDelay The time to wait in milliseconds.
+     */
+    public void setChunkDelay(long chunkDelay) {
+        this.chunkDelay = chunkDelay;
+    }
+
+    /**
+     * Returns the commands that were received, over all connections.
+     */
+    public List<String> getCommands() {
+        return commands;
+    }
+
+    /**
+     * Returns the {@code RETR} and {@code STOR} transfers that ended, over all connections.
+     */
+    public List<Transfer> getTransfers() {
+        return transfers;
+    }
+
+    @Override
+    public void close() throws IOException {
+        serverSocket.close();
+        for (Socket socket : sockets) {
+            socket.close();
+        }
+    }
+
+    private void accept() {
+        try {
+            while (true) {
+                Socket socket = serverSocket.accept();
+                sockets.add(socket);
+                Thread thread = new Thread(() -> serve(socket), "restartable-ftp-session");
+                thread.setDaemon(true);
+                thread.start();
+            }
+        } catch (IOException e) {
+            // the server is closed
+        }
+    }
+
+    private void serve(Socket socket) {
+        ServerSocket dataServer = null;
+        InetSocketAddress dataAddress = null;
+        try (Socket control = socket) {
+            BufferedReader in = new BufferedReader(new InputStreamReader(control.getInputStream(), StandardCharsets.US_ASCII));
+            Writer out = new OutputStreamWriter(control.getOutputStream(), StandardCharsets.US_ASCII);
+            reply(out, "220 Service ready");
+
+            long restartOffset = 0;
+            String line;
+            while ((line = in.readLine()) != null) {
+                commands.add(line);
+                int index = line.indexOf(' ');
+                String command = (index == -1 ? line : line.substring(0, index)).toUpperCase(Locale.ROOT);
+                String argument = index == -1 ? "" : line.substring(index + 1);
+                switch (command) {
+                    case "USER":
+                        reply(out, "331 Password required");
+                        break;
+                    case "PASS":
+                        reply(out, "230 Logged in");
+                        break;
+                    case "SYST":
+                        reply(out, "215 UNIX Type: L8");
+                        break;
+                    case "PWD":
+                        reply(out, "257 \"/\"");
+                        break;
+                    case "CWD":
+                        reply(out, "/".equals(argument) ? "250 OK" : "550 Not a directory");
+                        break;
+                    case "TYPE":
+                    case "MODE":
+                    case "STRU":
+                    case "NOOP":
+                        reply(out, "200 OK");
+                        break;
+                    case "FEAT":
+                        reply(out, "211-Features\r\n MLST type*;size*;modify*;\r\n REST STREAM\r\n SIZE\r\n211 End");
+                        break;
+                    case "MLST":
+                        if ("/".equals(argument)) {
+                            reply(out, "250-Listing /\r\n type=dir;modify=20200101000000; /\r\n250 End");
+                        } else if (exists(argument)) {
+                            reply(out, "250-Listing " + path + "\r\n type=file;size=" + size() + ";modify=20200101000000; " + path
+                                    + "\r\n250 End");
+                        } else {
+                            reply(out, "550 No such file");
+                        }
+                        break;
+                    case "SIZE":
+                        reply(out, exists(argument) ? "213 " + size() : "550 No such file");
+                        break;
+                    case "DELE":
+                        reply(out, delete(argument) ? "250 Deleted" : "550 No such file");
+                        break;
+                    case "REST":
+                        restartOffset = Long.parseLong(argument);
+                        reply(out, "350 Restarting at " + restartOffset);
+                        break;
+                    case "PORT":
+                        String[] parts = argument.split(",");
+                        dataAddress = new InetSocketAddress(String.join(".", Arrays.copyOf(parts, 4)),
+                                Integer.parseInt(parts[4]) << 8 | Integer.parseInt(parts[5]));
+                        reply(out, "200 OK");
+                        break;
+                    case "EPRT":
+                        String[] fields = argument.split(argument.substring(0, 1), -1);
+                        dataAddress = new InetSocketAddress(fields[2], Integer.parseInt(fields[3]));
+                        reply(out, "200 OK");
+                        break;
+                    case "PASV":
+                    case "EPSV":
+                        closeQuietly(dataServer);
+                        dataServer = new ServerSocket(0, 1, InetAddress.getLoopbackAddress());
+                        dataServer.setSoTimeout(DATA_TIMEOUT);
+                        dataServer.setReceiveBufferSize(RECEIVE_BUFFER_SIZE);
+                        int port = dataServer.getLocalPort();
+                        reply(out, "PASV".equals(command)
+                                ? "227 Entering Passive Mode (127,0,0,1," + (port >> 8) + "," + (port & 0xFF) + ")"
+                                : "229 Entering Extended Passive Mode (|||" + port + "|)");
+                        break;
+                    case "RETR":
+                    case "STOR":
+                        if ("RETR".equals(command) ? !exists(argument) : !path.equals(argument)) {
+                            reply(out, "550 No such file");
+                        } else if (dataServer == null && dataAddress == null) {
+                            reply(out, "425 Use PORT or PASV first");
+                        } else {
+                            reply(out, "150 Opening data connection");
+                            Socket data;
+                            if (dataServer != null) {
+                                data = dataServer.accept();
+                                dataServer.close();
+                                dataServer = null;
+                            } else {
+                                data = new Socket();
+                                data.setReceiveBufferSize(RECEIVE_BUFFER_SIZE);
+                                data.connect(dataAddress, DATA_TIMEOUT);
+                                dataAddress = null;
+                            }
+                            Transfer transfer = transfer(command, data, restartOffset);
+                            transfers.add(transfer);
+                            reply(out, transfer.completed ? "226 Transfer complete" : "426 Connection closed; transfer aborted");
+                        }
+                        restartOffset = 0;
+                        break;
+                    case "ABOR":
+                        // transfers are ended before the next command is read, so there is nothing to abort anymore
+                        reply(out, "226 Abort successful");
+                        break;
+                    case "QUIT":
+                        reply(out, "221 Goodbye");
+                        return;
+                    default:
+                        reply(out, "502 Command not implemented");
+                        break;
+                }
+            }
+        } catch (IOException e) {
+            // the connection is closed
+        } finally {
+            closeQuietly(dataServer);
+        }
+    }
+
+    private Transfer transfer(String command, Socket dataSocket, long offset) throws IOException {
+        boolean fail = failingOffsets.contains(offset);
+        long count = 0;
+        try (Socket data = dataSocket) {
+            try {
+                if ("RETR".equals(command)) {
+                    byte[] bytes = getContents();
+                    OutputStream output = data.getOutputStream();
+                    for (long position = offset; position < bytes.length; position += CHUNK_SIZE) {
+                        int length = (int) Math.min(CHUNK_SIZE, bytes.length - position);
+                        output.write(bytes, (int) position, length);
+                        count += length;
+                        if (fail) {
+                            return reset(command, data, offset, count);
+                        }
+                        delay();
+                    }
+                } else {
+                    ByteArrayOutputStream received = new ByteArrayOutputStream();
+                    InputStream input = data.getInputStream();
+                    byte[] buffer = new byte[CHUNK_SIZE];
+                    int n;
+                    while ((n = input.read(buffer)) != -1) {
+                        received.write(buffer, 0, n);
+                        count += n;
+                        if (fail) {
+                            return reset(command, data, offset, count);
+                        }
+                        delay();
+                    }
+                    store(offset, received.toByteArray());
+                }
+            } catch (IOException e) {
+                // the client closed the data connection early
+                return new Transfer(command, offset, count, false);
+            }
+        }
+        return new Transfer(command, offset, count, true);
+    }
+
+    private static Transfer reset(String command, Socket data, long offset, long count) throws IOException {
+        data.setSoLinger(true, 0);
+        data.close();
+        return new Transfer(command, offset, count, false);
+    }
+
+    private void delay() throws IOException {
+        if (chunkDelay > 0) {
+            try {
+                Thread.sleep(chunkDelay);
+            } catch (InterruptedException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+
+    private synchronized boolean exists(String argument) {
+        return exists && path.equals(argument);
+    }
+
+    private synchronized boolean delete(String argument) {
+        if (!exists(argument)) {
+            return false;
+        }
+        exists = false;
+        contents = new byte[0];
+        return true;
+    }
+
+    private synchronized long size() {
+        return contents.length;
+    }
+
+    private synchronized void store(long offset, byte[] bytes) {
+        exists = true;
+        if (offset == 0) {
+            // a STOR command that is not restarted replaces the file
+            contents = bytes;
+        } else {
+            // a restarted STOR command overwrites the file in place
+            int end = (int) offset + bytes.length;
+            if (end > contents.length) {
+                contents = Arrays.copyOf(contents, end);
+            }
+            System.arraycopy(bytes, 0, contents, (int) offset, bytes.length);
+        }
+    }
+
+    private static void reply(Writer out, String reply) throws IOException {
+        out.write(reply + "\r\n");
+        out.flush();
+    }
+
+    private static void closeQuietly(Closeable closeable) {
+        if (closeable != null) {
+            try {
+                closeable.close();
+            } catch (IOException e) {
+                // ignore
+            }
+        }
+    }
+
+    /**
+     * A {@code RETR} or {@code STOR} transfer that ended.
+     */
+    public static final class Transfer {
+
+        /**
+         * The transfer command, {@code RETR} or {@code STOR}.
+         */
+        public final String command;
+
+        /**
+         * The restart offset of the transfer.
+         */
+        public final long offset;
+
+        /**
+         * The number of bytes that were sent or received over the data connection.
+         */
+        public final long count;
+
+        /**
+         * Whether the transfer was completed, i.e. whether it was replied to with {@code 226}.
+         */
+        public final boolean completed;
+
+        private Transfer(String command, long offset, long count, boolean completed) {
+            this.command = command;
+            this.offset = offset;
+            this.count = count;
+            this.completed = completed;
+        }
+
+        @Override
+        public String toString() {
+            return command + " " + offset + ": " + count + (completed ? " completed" : " aborted");
+        }
+    }
+}
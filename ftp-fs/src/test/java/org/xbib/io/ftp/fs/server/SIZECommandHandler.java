@@ -0,0 +1,27 @@
+package org.xbib.io.ftp.fs.server;
+
+import org.mockftpserver.core.command.Command;
+import org.mockftpserver.core.command.ReplyCodes;
+import org.mockftpserver.core.session.Session;
+import org.mockftpserver.fake.command.AbstractFakeCommandHandler;
+import org.mockftpserver.fake.filesystem.FileSystemEntry;
+
+/**
+ * A command handler for the SIZE command. Like most FTP servers, it only returns the size of regular files.
+ */
+public class SIZECommandHandler extends AbstractFakeCommandHandler {
+
+    @Override
+    protected void handle(Command command, Session session) {
+        verifyLoggedIn(session);
+
+        String path = getRealPath(session, command.getParameter(0));
+
+        verifyFileSystemCondition(getFileSystem().exists(path), path, "filesystem.doesNotExist");
+        verifyFileSystemCondition(!getFileSystem().isDirectory(path), path, "filesystem.isNotAFile");
+        verifyReadPermission(session, path);
+
+        FileSystemEntry entry = getFileSystem().getEntry(path);
+        session.sendReply(ReplyCodes.STAT_FILE_OK, Long.toString(entry.getSize()));
+    }
+}